@@ -0,0 +1,107 @@
+package org.gsobko;
+
+import org.gsobko.integration.mail.AttachmentSink;
+import org.gsobko.integration.mail.ContentLimits;
+import org.gsobko.integration.mail.MimeExtractor;
+import org.gsobko.model.EmailBody;
+import org.gsobko.model.SyncState;
+import org.gsobko.repo.MailRepo;
+import org.gsobko.repo.MessageArchive;
+import org.gsobko.repo.SyncStateRepo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// extracts bodies of archived raw messages again (i.e. after MimeExtractor changed) and overwrites them
+// in the emails table, batches are parsed in parallel, nothing is downloaded from IMAP
+public class ArchiveReprocessor {
+    private static final Logger logger = LoggerFactory.getLogger(ArchiveReprocessor.class);
+
+    private final MailRepo repo;
+    private final SyncStateRepo syncStateRepo;
+    private final MessageArchive archive;
+    private final String account;
+    private final String folder;
+    private final ContentLimits contentLimits;
+    private final AttachmentSink attachmentSink;
+    private final int batchSize;
+    private final int parallelism;
+
+    public ArchiveReprocessor(MailRepo repo, SyncStateRepo syncStateRepo, MessageArchive archive, String account, String folder,
+                              ContentLimits contentLimits, AttachmentSink attachmentSink, int batchSize, int parallelism) {
+        if (batchSize < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("Batch size and parallelism should be positive, got %d and %d".formatted(batchSize, parallelism));
+        }
+        this.repo = repo;
+        this.syncStateRepo = syncStateRepo;
+        this.archive = archive;
+        this.account = account;
+        this.folder = folder;
+        this.contentLimits = contentLimits;
+        this.attachmentSink = attachmentSink;
+        this.batchSize = batchSize;
+        this.parallelism = parallelism;
+    }
+
+    // returns the number of emails updated
+    public int reprocess() {
+        Optional<SyncState> state = syncStateRepo.find(account, folder);
+        if (state.isEmpty()) {
+            logger.info("Folder {} was never synced, nothing to reprocess", folder);
+            return 0;
+        }
+        // messages archived under an older UIDVALIDITY are not the ones the rows point at anymore
+        long uidValidity = state.get().uidValidity();
+        List<Long> uids = archive.uids(uidValidity);
+        logger.info("Reprocessing {} archived messages of folder {} on {} threads", uids.size(), folder, parallelism);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<Integer>> batches = new ArrayList<>();
+            for (int from = 0; from < uids.size(); from += batchSize) {
+                List<Long> batch = uids.subList(from, Math.min(from + batchSize, uids.size()));
+                batches.add(executor.submit(() -> reprocess(uidValidity, batch)));
+            }
+            int updated = 0;
+            for (Future<Integer> batch : batches) {
+                updated += batch.get();
+            }
+            logger.info("Reprocessed {} emails of folder {}", updated, folder);
+            return updated;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Reprocessing of folder %s was interrupted".formatted(folder), e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not reprocess archived messages of folder %s".formatted(folder), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int reprocess(long uidValidity, List<Long> uids) {
+        List<EmailBody> bodies = new ArrayList<>(uids.size());
+        for (long uid : uids) {
+            try {
+                Optional<byte[]> rawMessage = archive.read(uidValidity, uid);
+                if (rawMessage.isPresent()) {
+                    bodies.add(toEmailBody(uid, MimeExtractor.extractContent(rawMessage.get(), contentLimits, attachmentSink)));
+                }
+            } catch (Exception e) {
+                // the body saved before is kept
+                logger.warn("Could not reprocess archived message uid={} of folder {}", uid, folder, e);
+            }
+        }
+        return repo.replaceBodies(folder, uidValidity, bodies);
+    }
+
+    private static EmailBody toEmailBody(long uid, MimeExtractor.MessageContent content) {
+        return new EmailBody(uid, content.text().orElse(""), content.html().orElse(""), content.attachmentNames(),
+                PeriodicMailFetcher.storedAttachments(content.attachments()));
+    }
+}
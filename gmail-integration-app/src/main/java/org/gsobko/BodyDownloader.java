@@ -0,0 +1,134 @@
+package org.gsobko;
+
+import org.gsobko.integration.mail.FetchedBody;
+import org.gsobko.integration.mail.ImapFetcher;
+import org.gsobko.integration.mail.MimeExtractor;
+import org.gsobko.model.BodyState;
+import org.gsobko.model.EmailBody;
+import org.gsobko.model.EmailMessage;
+import org.gsobko.model.SyncState;
+import org.gsobko.repo.MailRepo;
+import org.gsobko.repo.SyncStateRepo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class BodyDownloader {
+    private static final Logger logger = LoggerFactory.getLogger(BodyDownloader.class);
+    public static final int DEFAULT_BODY_DOWNLOAD_SECONDS = 5;
+
+    private final MailRepo repo;
+    private final SyncStateRepo syncStateRepo;
+    private final ImapFetcher imapFetcher;
+    private final String account;
+    private final String folder;
+    private final int batchSize;
+    private final long periodSeconds;
+    private final ScheduledExecutorService executor;
+
+    public BodyDownloader(MailRepo repo, SyncStateRepo syncStateRepo, ImapFetcher imapFetcher,
+                          String account, String folder, int batchSize, long periodSeconds) {
+        this(repo, syncStateRepo, imapFetcher, account, folder, batchSize, periodSeconds, createScheduledService(folder));
+    }
+
+    BodyDownloader(MailRepo repo, SyncStateRepo syncStateRepo, ImapFetcher imapFetcher,
+                   String account, String folder, int batchSize, long periodSeconds, ScheduledExecutorService executor) {
+        this.repo = repo;
+        this.syncStateRepo = syncStateRepo;
+        this.imapFetcher = imapFetcher;
+        this.account = account;
+        this.folder = folder;
+        this.batchSize = batchSize;
+        this.periodSeconds = periodSeconds;
+        this.executor = executor;
+    }
+
+    private static ScheduledExecutorService createScheduledService(String folder) {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setName("body-downloader-" + folder);
+            return thread;
+        });
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(this::downloadPendingBodies, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    public EmailMessage withBody(EmailMessage email) {
+        if (email.bodyState() != BodyState.HEADERS) {
+            return email;
+        }
+        return download(email, false);
+    }
+
+    // downloads the whole body of a truncated oversized mail too
+    public EmailMessage withFullBody(EmailMessage email) {
+        if (email.bodyState() == BodyState.FULL) {
+            return email;
+        }
+        return download(email, true);
+    }
+
+    private EmailMessage download(EmailMessage email, boolean full) {
+        if (email.deleted()) {
+            return email;
+        }
+        try {
+            Optional<SyncState> state = syncStateRepo.find(account, folder);
+            if (state.isPresent()) {
+                download(state.get().uidValidity(), List.of(email.imapUid()), full);
+            }
+        } catch (Exception e) {
+            // the headers are still worth returning, background download will retry
+            logger.warn("Could not download body of mail id={} on read", email.id(), e);
+            return email;
+        }
+        return repo.findById(email.id()).orElse(email);
+    }
+
+    private void downloadPendingBodies() {
+        try {
+            Optional<SyncState> state = syncStateRepo.find(account, folder);
+            if (state.isEmpty()) {
+                return;
+            }
+            long uidValidity = state.get().uidValidity();
+            List<Long> uids = repo.findUidsWithoutBody(folder, uidValidity, batchSize);
+            while (!uids.isEmpty()) {
+                if (download(uidValidity, uids, false) == 0) {
+                    // nothing could be saved (i.e. all are expunged already), will be picked up by change sync
+                    logger.warn("No bodies saved for {} uids pending download", uids.size());
+                    return;
+                }
+                uids = repo.findUidsWithoutBody(folder, uidValidity, batchSize);
+            }
+        } catch (Exception e) {
+            logger.error("Could not download pending bodies", e);
+        }
+    }
+
+    private int download(long uidValidity, List<Long> uids, boolean full) {
+        List<EmailBody> bodies = imapFetcher.fetchBodies(uidValidity, uids, full).stream()
+                .map(BodyDownloader::toEmailBody)
+                .toList();
+        int saved = repo.saveBodies(folder, uidValidity, bodies);
+        logger.info("Saved {} bodies of {} requested", saved, uids.size());
+        return saved;
+    }
+
+    private static EmailBody toEmailBody(FetchedBody body) {
+        return new EmailBody(body.imapUid(), body.text().orElse(""), body.html().orElse(""),
+                body.attachments().stream().map(MimeExtractor.Attachment::name).toList(),
+                PeriodicMailFetcher.storedAttachments(body.attachments()), body.truncated());
+    }
+}
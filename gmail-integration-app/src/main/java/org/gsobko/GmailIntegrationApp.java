@@ -8,17 +8,44 @@ import io.javalin.Javalin;
 import io.javalin.http.HttpStatus;
 import io.javalin.json.JavalinJackson;
 import org.flywaydb.core.Flyway;
+import org.gsobko.integration.mail.AttachmentSink;
+import org.gsobko.integration.mail.ContentLimits;
+import org.gsobko.integration.mail.FetchPipelineStats;
+import org.gsobko.integration.mail.ImapConnection;
+import org.gsobko.integration.mail.ImapConnectionPool;
+import org.gsobko.integration.mail.FetchOptions;
 import org.gsobko.integration.mail.ImapFetcher;
+import org.gsobko.integration.mail.ImapGovernor;
+import org.gsobko.integration.mail.ImapIdleWatcher;
+import org.gsobko.integration.mail.RawMessageSink;
 import org.gsobko.integration.mail.SmtpSender;
+import org.gsobko.repo.AttachmentStore;
+import org.gsobko.repo.BackfillStateRepo;
 import org.gsobko.repo.MailRepo;
+import org.gsobko.repo.MessageArchive;
+import org.gsobko.repo.SyncStateRepo;
+import org.gsobko.repo.V013__Compute_missing_snippets;
+import org.gsobko.repo.V014__Move_inline_bodies;
 import org.gsobko.resource.MailResource;
+import org.gsobko.resource.SearchResource;
+import org.gsobko.search.SearchIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.lang.Integer.parseInt;
 import static java.util.Objects.requireNonNull;
@@ -26,43 +53,192 @@ import static java.util.Objects.requireNonNull;
 public class GmailIntegrationApp {
 
     private static final Logger logger = LoggerFactory.getLogger(GmailIntegrationApp.class);
+    private static final int DEFAULT_IDLE_REISSUE_SECONDS = 240;
 
     private final Properties properties;
     private final List<Closeable> cleanupOnStop = new ArrayList<>();
+    private final Metrics metrics = new Metrics();
 
     public GmailIntegrationApp(Properties properties) {
         this.properties = properties;
     }
 
     public void start() {
-        ImapFetcher fetcher = createFetcher();
+        ImapGovernor governor = createImapGovernor();
+        ImapConnectionPool connectionPool = new ImapConnectionPool(
+                intProperty("gmail.imap.max_connections", ImapConnectionPool.DEFAULT_MAX_CONNECTIONS),
+                () -> createImapConnection(governor), governor);
+        List<String> folders = folders();
         SmtpSender sender = createMailSender();
         HikariDataSource dataSource = createDbConnectionPool();
-        MailRepo repo = new MailRepo(dataSource);
+        SyncStateRepo syncStateRepo = new SyncStateRepo(dataSource);
+        MailRepo repo = new MailRepo(dataSource, syncStateRepo);
+        BackfillStateRepo backfillStateRepo = new BackfillStateRepo(dataSource);
+        AttachmentStore attachmentStore = createAttachmentStore();
 
         migrate(dataSource);
+        // before folders were tracked only gmail.folder was synced, which is the first folder now
+        repo.assignLegacyEmailsToFolder(folders.getFirst());
+        SearchIndex searchIndex = createSearchIndex();
+        SearchIndexer searchIndexer = searchIndex == null ? null : startSearchIndexer(repo, searchIndex);
+        RecentMailCache recentMailCache = Boolean.parseBoolean(properties.getProperty("mails.cache.enabled", "false"))
+                ? startRecentMailCache(repo) : null;
+
+        // every folder has its own checkpoints and workers, only IMAP connections are shared
+        List<FolderSync> folderSyncs = folders.stream()
+                .map(folder -> createFolderSync(connectionPool, folder, repo, syncStateRepo, backfillStateRepo, attachmentStore))
+                .toList();
+        Javalin javalin = bootstrapWebServer(repo, sender, folderSyncs, attachmentStore, searchIndex, recentMailCache);
+
+        boolean headersOnly = isHeadersOnlyIngestion();
+        boolean backfillEnabled = Boolean.parseBoolean(properties.getProperty("gmail.backfill.enabled", "false"));
+        for (FolderSync folderSync : folderSyncs) {
+            if (folderSync == folderSyncs.getFirst()) {
+                startFetching(folderSync.mailFetcher(), folderSync.folder(), governor);
+            } else {
+                folderSync.mailFetcher().start();
+            }
+            folderSync.changeSynchronizer().start();
+            if (headersOnly) {
+                folderSync.bodyDownloader().start();
+            }
+            if (backfillEnabled) {
+                folderSync.backfill().start();
+            }
+        }
 
-        Javalin javalin = bootstrapWebServer(repo, sender);
-
-        PeriodicMailFetcher periodicMailFetcher = new PeriodicMailFetcher(repo, fetcher, 5);
-        periodicMailFetcher.start();
-
-        cleanupOnStop.add(periodicMailFetcher::stop);
+        folderSyncs.forEach(folderSync -> cleanupOnStop.add(folderSync.mailFetcher()::stop));
+        folderSyncs.forEach(folderSync -> cleanupOnStop.add(folderSync.changeSynchronizer()::stop));
+        folderSyncs.forEach(folderSync -> cleanupOnStop.add(folderSync.bodyDownloader()::stop));
+        folderSyncs.forEach(folderSync -> cleanupOnStop.add(folderSync.backfill()::stop));
+        folderSyncs.forEach(folderSync -> cleanupOnStop.add(folderSync.fetcher()));
+        // shared by the folders, closed once their fetchers stopped using it
+        cleanupOnStop.add(connectionPool);
+        // after the fetchers, which write to it
+        folderSyncs.forEach(folderSync -> folderSync.archive().ifPresent(cleanupOnStop::add));
+        if (searchIndexer != null) {
+            cleanupOnStop.add(searchIndexer::stop);
+        }
+        if (recentMailCache != null) {
+            cleanupOnStop.add(recentMailCache::stop);
+        }
         cleanupOnStop.add(javalin::stop);
+        // after the indexer and the searches of the web server
+        if (searchIndex != null) {
+            cleanupOnStop.add(searchIndex);
+        }
         cleanupOnStop.add(dataSource);
     }
 
-    private Javalin bootstrapWebServer(MailRepo repo, SmtpSender sender) {
-        Javalin javalin = createJavalin();
-        MailResource mailResource = new MailResource(repo, sender);
+    // reprocess command: bodies of archived messages are extracted again, nothing is synced
+    public int reprocessArchive() {
+        if (properties.getProperty("gmail.archive.dir") == null) {
+            throw new IllegalStateException("Property gmail.archive.dir not set, there is no archive to reprocess");
+        }
+        try (HikariDataSource dataSource = createDbConnectionPool()) {
+            migrate(dataSource);
+            SyncStateRepo syncStateRepo = new SyncStateRepo(dataSource);
+            MailRepo repo = new MailRepo(dataSource, syncStateRepo);
+            AttachmentStore attachmentStore = createAttachmentStore();
+            int updated = 0;
+            for (String folder : folders()) {
+                try (MessageArchive archive = createMessageArchive(folder)) {
+                    updated += new ArchiveReprocessor(repo, syncStateRepo, archive, requiredProperty("gmail.email"), folder,
+                            contentLimits(), attachmentStore == null ? AttachmentSink.DISCARD : attachmentStore::store,
+                            intProperty("gmail.imap.fetch_batch_size", ImapFetcher.DEFAULT_FETCH_BATCH_SIZE),
+                            Runtime.getRuntime().availableProcessors())
+                            .reprocess();
+                }
+            }
+            return updated;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not close message archive", e);
+        }
+    }
+
+    private void registerPipelineMetrics(String folder, FetchPipelineStats stats) {
+        for (FetchPipelineStats.Stage stage : FetchPipelineStats.Stage.values()) {
+            String stageName = stage.name().toLowerCase();
+            metrics.gauge(Metrics.name("fetch_pipeline_queue_depth", "folder", folder, "stage", stageName), () -> stats.queueDepth(stage));
+            metrics.gauge(Metrics.name("fetch_pipeline_messages_total", "folder", folder, "stage", stageName), () -> stats.messages(stage));
+            metrics.gauge(Metrics.name("fetch_pipeline_messages_per_second", "folder", folder, "stage", stageName), () -> stats.messagesPerSecond(stage));
+        }
+    }
+
+    private FolderSync createFolderSync(ImapConnectionPool connectionPool, String folder,
+                                        MailRepo repo, SyncStateRepo syncStateRepo, BackfillStateRepo backfillStateRepo,
+                                        AttachmentStore attachmentStore) {
+        String account = requiredProperty("gmail.email");
+        int fetchBatchSize = intProperty("gmail.imap.fetch_batch_size", ImapFetcher.DEFAULT_FETCH_BATCH_SIZE);
+        MessageArchive archive = properties.getProperty("gmail.archive.dir") == null ? null : createMessageArchive(folder);
+        ImapFetcher fetcher = new ImapFetcher(connectionPool, folder, new FetchOptions(
+                requireIntProperty("gmail.initial_max_depth"), fetchBatchSize, isHeadersOnlyIngestion(),
+                contentLimits(),
+                attachmentStore == null ? AttachmentSink.DISCARD : attachmentStore::store,
+                repo::findKnownGmailMessageIds,
+                archive == null ? RawMessageSink.DISCARD : (uidValidity, uid) -> {
+                    MessageArchive.ArchivedMessage archived = archive.append(uidValidity, uid);
+                    return new RawMessageSink.RawMessage(archived, archived::abort);
+                }));
+        PeriodicMailFetcher mailFetcher = new PeriodicMailFetcher(repo, syncStateRepo, fetcher, account, folder,
+                new PollOptions(
+                        intProperty("gmail.imap.poll_seconds", PollOptions.DEFAULT_POLL_SECONDS),
+                        intProperty("gmail.imap.max_poll_seconds", PollOptions.DEFAULT_MAX_POLL_SECONDS),
+                        intProperty("gmail.imap.max_messages_per_poll", PollOptions.DEFAULT_MAX_MESSAGES_PER_POLL)),
+                new MailBatchWriter(repo, folder,
+                        intProperty("db.batch_size", MailBatchWriter.DEFAULT_BATCH_SIZE),
+                        Duration.ofMillis(intProperty("db.batch_max_latency_millis", MailBatchWriter.DEFAULT_MAX_LATENCY_MILLIS))));
+        metrics.gauge(Metrics.name("poll_interval_millis", "folder", folder), mailFetcher::currentPollIntervalMillis);
+        registerPipelineMetrics(folder, fetcher.stats());
+        MailChangeSynchronizer changeSynchronizer = new MailChangeSynchronizer(repo, syncStateRepo, fetcher, account, folder,
+                intProperty("gmail.imap.change_sync_seconds", MailChangeSynchronizer.DEFAULT_CHANGE_SYNC_SECONDS));
+        BodyDownloader bodyDownloader = new BodyDownloader(repo, syncStateRepo, fetcher, account, folder, fetchBatchSize,
+                intProperty("gmail.imap.body_download_seconds", BodyDownloader.DEFAULT_BODY_DOWNLOAD_SECONDS));
+        HistoricalBackfill backfill = new HistoricalBackfill(repo, syncStateRepo, backfillStateRepo,
+                fetcher, mailFetcher::isFetching, account, folder, fetchBatchSize,
+                new HistoricalBackfill.Budget(
+                        intProperty("gmail.backfill.messages_per_second", HistoricalBackfill.DEFAULT_MESSAGES_PER_SECOND),
+                        intProperty("gmail.backfill.bytes_per_second", HistoricalBackfill.DEFAULT_BYTES_PER_SECOND)),
+                intProperty("gmail.backfill.period_seconds", HistoricalBackfill.DEFAULT_BACKFILL_SECONDS));
+        return new FolderSync(folder, fetcher, mailFetcher, changeSynchronizer, bodyDownloader, backfill, Optional.ofNullable(archive));
+    }
+
+    private ContentLimits contentLimits() {
+        return new ContentLimits(
+                intProperty("gmail.imap.max_text_length", ContentLimits.DEFAULT_MAX_TEXT_LENGTH),
+                intProperty("gmail.imap.streaming_threshold_bytes", ContentLimits.DEFAULT_STREAMING_THRESHOLD_BYTES),
+                intProperty("gmail.max_message_bytes", ContentLimits.DEFAULT_MAX_MESSAGE_BYTES),
+                intProperty("gmail.truncated_text_bytes", ContentLimits.DEFAULT_TRUNCATED_TEXT_BYTES));
+    }
+
+    // raw messages are only archived if gmail.archive.dir is set, every folder has a directory of its own
+    private MessageArchive createMessageArchive(String folder) {
+        return new MessageArchive(Path.of(requiredProperty("gmail.archive.dir")).resolve(URLEncoder.encode(folder, StandardCharsets.UTF_8)),
+                intProperty("gmail.archive.segment_megabytes", MessageArchive.DEFAULT_SEGMENT_MEGABYTES));
+    }
+
+    private Javalin bootstrapWebServer(MailRepo repo, SmtpSender sender, List<FolderSync> folderSyncs, AttachmentStore attachmentStore,
+                                       SearchIndex searchIndex, RecentMailCache recentMailCache) {
+        ObjectMapper objectMapper = setupObjectMapper();
+        Javalin javalin = createJavalin(objectMapper);
+        Map<String, BodyDownloader> bodyDownloaders = folderSyncs.stream()
+                .collect(Collectors.toMap(FolderSync::folder, FolderSync::bodyDownloader));
+        MailResource mailResource = new MailResource(repo, sender, bodyDownloaders, attachmentStore, recentMailCache, objectMapper);
+        SearchResource searchResource = new SearchResource(searchIndex, repo, objectMapper);
         javalin.get("/mails", mailResource::fetchEmails);
+        // before /mails/{id}, search is no id
+        javalin.get("/mails/search", searchResource::search);
+        javalin.get("/mails/{id}", mailResource::fetchEmail);
+        javalin.get("/mails/{id}/attachments/{n}", mailResource::fetchAttachment);
+        javalin.get("/threads/{threadId}", mailResource::fetchThread);
         javalin.post("/mail", mailResource::sendEmail);
+        javalin.get("/metrics", ctx -> ctx.json(metrics.snapshot()));
+        javalin.get("/backfill", ctx -> ctx.json(folderSyncs.stream().map(folderSync -> folderSync.backfill().progress()).toList()));
         javalin.start(parseInt(requiredProperty("server.port")));
         return javalin;
     }
 
-    private static Javalin createJavalin() {
-        ObjectMapper objectMapper = setupObjectMapper();
+    private static Javalin createJavalin(ObjectMapper objectMapper) {
         Javalin javalin = Javalin.create(cfg -> {
             cfg.jsonMapper(new JavalinJackson(objectMapper, false));
             cfg.requestLogger.http(((ctx, executionTimeMs) ->
@@ -92,15 +268,112 @@ public class GmailIntegrationApp {
     }
 
 
-    private ImapFetcher createFetcher() {
-        return new ImapFetcher(
+    // mails are only indexed for search if search.index.dir is set
+    private SearchIndex createSearchIndex() {
+        String dir = properties.getProperty("search.index.dir");
+        return dir == null ? null : SearchIndex.open(Path.of(dir));
+    }
+
+    // indexing starts before ingestion, so no mail saved is missed
+    private SearchIndexer startSearchIndexer(MailRepo repo, SearchIndex searchIndex) {
+        SearchIndexer searchIndexer = new SearchIndexer(repo, searchIndex,
+                intProperty("search.refresh_millis", SearchIndexer.DEFAULT_REFRESH_MILLIS),
+                intProperty("search.catch_up_seconds", SearchIndexer.DEFAULT_CATCH_UP_SECONDS));
+        repo.onChange(searchIndexer::changed);
+        searchIndexer.start();
+        metrics.gauge("search_index_documents", searchIndex::size);
+        metrics.gauge("search_index_pending_mails", searchIndexer::pendingMails);
+        return searchIndexer;
+    }
+
+    // loaded before ingestion starts, mails saved from then on are put in as they are saved
+    private RecentMailCache startRecentMailCache(MailRepo repo) {
+        RecentMailCache recentMailCache = new RecentMailCache(repo,
+                intProperty("mails.cache.max_mails", RecentMailCache.DEFAULT_MAX_MAILS),
+                intProperty("mails.cache.max_megabytes", RecentMailCache.DEFAULT_MAX_MEGABYTES) * 1024L * 1024L,
+                Duration.ofMinutes(intProperty("mails.cache.window_minutes", RecentMailCache.DEFAULT_WINDOW_MINUTES)),
+                intProperty("mails.cache.refresh_millis", RecentMailCache.DEFAULT_REFRESH_MILLIS));
+        repo.onChange(recentMailCache::changed);
+        recentMailCache.start();
+        metrics.gauge("mail_cache_mails", recentMailCache::mails);
+        metrics.gauge("mail_cache_bytes", recentMailCache::bytes);
+        metrics.gauge("mail_cache_hits_total", recentMailCache::hits);
+        metrics.gauge("mail_cache_misses_total", recentMailCache::misses);
+        return recentMailCache;
+    }
+
+    // attachment content is only kept if gmail.attachments.dir is set
+    private AttachmentStore createAttachmentStore() {
+        String dir = properties.getProperty("gmail.attachments.dir");
+        return dir == null ? null : new AttachmentStore(Path.of(dir));
+    }
+
+    private List<String> folders() {
+        String folders = properties.getProperty("gmail.folders");
+        if (folders == null) {
+            return List.of(requiredProperty("gmail.folder"));
+        }
+        List<String> folderList = Stream.of(folders.split(","))
+                .map(String::trim)
+                .filter(folder -> !folder.isEmpty())
+                .distinct()
+                .toList();
+        if (folderList.isEmpty()) {
+            throw new IllegalArgumentException("Property gmail.folders has no folders");
+        }
+        return folderList;
+    }
+
+    private boolean isHeadersOnlyIngestion() {
+        String ingestion = properties.getProperty("gmail.imap.ingestion", "full");
+        return switch (ingestion) {
+            case "full" -> false;
+            case "headers" -> true;
+            default -> throw new IllegalArgumentException("Unknown gmail.imap.ingestion %s, expected full or headers".formatted(ingestion));
+        };
+    }
+
+    private void startFetching(PeriodicMailFetcher periodicMailFetcher, String folder, ImapGovernor governor) {
+        String mode = properties.getProperty("gmail.imap.mode", "poll");
+        switch (mode) {
+            case "poll" -> periodicMailFetcher.start();
+            case "idle" -> {
+                periodicMailFetcher.startSafetyPoll(intProperty("gmail.imap.idle_safety_poll_seconds", PeriodicMailFetcher.DEFAULT_IDLE_SAFETY_POLL_SECONDS));
+                ImapIdleWatcher idleWatcher = new ImapIdleWatcher(createImapConnection(governor),
+                        folder,
+                        Duration.ofSeconds(intProperty("gmail.imap.idle_reissue_seconds", DEFAULT_IDLE_REISSUE_SECONDS)),
+                        periodicMailFetcher::fetchNow,
+                        periodicMailFetcher::start);
+                idleWatcher.start();
+                cleanupOnStop.add(idleWatcher);
+            }
+            default -> throw new IllegalArgumentException("Unknown gmail.imap.mode %s, expected idle or poll".formatted(mode));
+        }
+    }
+
+    private ImapConnection createImapConnection(ImapGovernor governor) {
+        return new ImapConnection(
                 requiredProperty("gmail.email"),
                 requiredProperty("gmail.app_password"),
-                requiredProperty("gmail.folder"),
                 requiredProperty("gmail.imap.host"),
                 requireIntProperty("gmail.imap.port"),
                 requireBooleanProperty("gmail.imap.disable_ssl_checks"),
-                requireIntProperty("gmail.initial_max_depth"));
+                governor);
+    }
+
+    // all connections of the account share the quota, the IDLE one included
+    private ImapGovernor createImapGovernor() {
+        ImapGovernor governor = new ImapGovernor(new ImapGovernor.Quota(
+                intProperty("gmail.imap.quota.download_megabytes", ImapGovernor.DEFAULT_DOWNLOAD_MEGABYTES) * 1024L * 1024L,
+                Duration.ofSeconds(intProperty("gmail.imap.quota.window_seconds", ImapGovernor.DEFAULT_WINDOW_SECONDS)),
+                Duration.ofSeconds(intProperty("gmail.imap.circuit.cool_down_seconds", ImapGovernor.DEFAULT_COOL_DOWN_SECONDS)),
+                Duration.ofSeconds(intProperty("gmail.imap.circuit.max_cool_down_seconds", ImapGovernor.DEFAULT_MAX_COOL_DOWN_SECONDS)),
+                intProperty("gmail.imap.circuit.disconnect_threshold", ImapGovernor.DEFAULT_DISCONNECT_THRESHOLD)));
+        metrics.gauge("imap_circuit_state", () -> governor.state().ordinal());
+        metrics.gauge("imap_quota_available_bytes", governor::availableBytes);
+        metrics.gauge("imap_downloaded_bytes_total", governor::downloadedBytes);
+        metrics.gauge("imap_rejected_operations_total", governor::rejectedOperations);
+        return governor;
     }
 
 
@@ -116,6 +389,8 @@ public class GmailIntegrationApp {
     private void migrate(HikariDataSource dataSource) {
         Flyway flyway = Flyway.configure()
                 .locations("classpath:/migrations")
+                // data rewritten once in Java, i.e. bodies encoded by BodyCodec
+                .javaMigrations(new V013__Compute_missing_snippets(), new V014__Move_inline_bodies())
                 .dataSource(dataSource)
                 .baselineOnMigrate(true)
                 .load();
@@ -160,5 +435,8 @@ public class GmailIntegrationApp {
         });
     }
 
-
+    private record FolderSync(String folder, ImapFetcher fetcher, PeriodicMailFetcher mailFetcher,
+                              MailChangeSynchronizer changeSynchronizer, BodyDownloader bodyDownloader,
+                              HistoricalBackfill backfill, Optional<MessageArchive> archive) {
+    }
 }
@@ -0,0 +1,203 @@
+package org.gsobko;
+
+import org.gsobko.integration.mail.FetchedEmail;
+import org.gsobko.integration.mail.ImapFetcher;
+import org.gsobko.model.BackfillState;
+import org.gsobko.model.EmailMessage;
+import org.gsobko.model.SyncState;
+import org.gsobko.repo.BackfillStateRepo;
+import org.gsobko.repo.MailRepo;
+import org.gsobko.repo.SyncStateRepo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+// fetches mail older than gmail.initial_max_depth, newest first, within a rate budget
+public class HistoricalBackfill {
+    private static final Logger logger = LoggerFactory.getLogger(HistoricalBackfill.class);
+    public static final int DEFAULT_BACKFILL_SECONDS = 60;
+    public static final int DEFAULT_MESSAGES_PER_SECOND = 5;
+    public static final int DEFAULT_BYTES_PER_SECOND = 1_000_000;
+    static final Duration LIVE_FETCH_BACKOFF = Duration.ofMillis(500);
+
+    private final MailRepo repo;
+    private final SyncStateRepo syncStateRepo;
+    private final BackfillStateRepo backfillStateRepo;
+    private final ImapFetcher imapFetcher;
+    private final BooleanSupplier liveFetchActive;
+    private final String account;
+    private final String folder;
+    private final int chunkSize;
+    private final Budget budget;
+    private final long periodSeconds;
+    private final ScheduledExecutorService executor;
+    private final Clock clock;
+    private final Sleeper sleeper;
+    private volatile Progress progress;
+
+    public HistoricalBackfill(MailRepo repo, SyncStateRepo syncStateRepo, BackfillStateRepo backfillStateRepo,
+                              ImapFetcher imapFetcher, BooleanSupplier liveFetchActive,
+                              String account, String folder, int chunkSize, Budget budget, long periodSeconds) {
+        this(repo, syncStateRepo, backfillStateRepo, imapFetcher, liveFetchActive, account, folder, chunkSize, budget,
+                periodSeconds, createScheduledService(folder), Clock.systemUTC(), duration -> Thread.sleep(duration.toMillis()));
+    }
+
+    HistoricalBackfill(MailRepo repo, SyncStateRepo syncStateRepo, BackfillStateRepo backfillStateRepo,
+                       ImapFetcher imapFetcher, BooleanSupplier liveFetchActive,
+                       String account, String folder, int chunkSize, Budget budget, long periodSeconds,
+                       ScheduledExecutorService executor, Clock clock, Sleeper sleeper) {
+        if (budget.messagesPerSecond() < 1 || budget.bytesPerSecond() < 1) {
+            throw new IllegalArgumentException("Backfill budget should be positive, got %s".formatted(budget));
+        }
+        this.repo = repo;
+        this.syncStateRepo = syncStateRepo;
+        this.backfillStateRepo = backfillStateRepo;
+        this.imapFetcher = imapFetcher;
+        this.liveFetchActive = liveFetchActive;
+        this.account = account;
+        this.folder = folder;
+        this.chunkSize = chunkSize;
+        this.budget = budget;
+        this.periodSeconds = periodSeconds;
+        this.executor = executor;
+        this.clock = clock;
+        this.sleeper = sleeper;
+        this.progress = new Progress(account, folder, Status.NOT_STARTED, 0, 0, null);
+    }
+
+    private static ScheduledExecutorService createScheduledService(String folder) {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setName("historical-backfill-" + folder);
+            return thread;
+        });
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(this::backfill, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    public Progress progress() {
+        return progress;
+    }
+
+    private void backfill() {
+        try {
+            Optional<SyncState> syncState = syncStateRepo.find(account, folder);
+            if (syncState.isEmpty() || syncState.get().lastUid() == 0) {
+                logger.debug("Nothing fetched from {}/{} yet, no history to backfill", account, folder);
+                return;
+            }
+            Optional<BackfillState> maybeState = currentState(syncState.get().uidValidity());
+            if (maybeState.isEmpty()) {
+                return;
+            }
+            BackfillState state = maybeState.get();
+            List<Long> pending = state.lowWaterUid() > 1
+                    ? imapFetcher.fetchUids(state.uidValidity(), 1, state.lowWaterUid() - 1)
+                    : List.of();
+            if (pending.isEmpty()) {
+                progress = new Progress(account, folder, Status.COMPLETE, state.lowWaterUid(), 0, 0L);
+                return;
+            }
+            logger.info("Backfilling {} uids of {}/{} below uid {}", pending.size(), account, folder, state.lowWaterUid());
+            long startedMillis = clock.millis();
+            int backfilled = 0;
+            progress = new Progress(account, folder, Status.RUNNING, state.lowWaterUid(), pending.size(), null);
+            while (!pending.isEmpty()) {
+                waitForLiveFetch();
+                List<Long> chunk = pending.subList(Math.max(0, pending.size() - chunkSize), pending.size());
+                long chunkStartedMillis = clock.millis();
+                long bytes = saveChunk(state.uidValidity(), chunk);
+                state = state.withLowWaterUid(chunk.getFirst());
+                backfillStateRepo.save(state);
+                backfilled += chunk.size();
+                pending = pending.subList(0, pending.size() - chunk.size());
+                throttle(chunk.size(), bytes, clock.millis() - chunkStartedMillis);
+                progress = new Progress(account, folder, pending.isEmpty() ? Status.COMPLETE : Status.RUNNING,
+                        state.lowWaterUid(), pending.size(), eta(pending.size(), backfilled, clock.millis() - startedMillis));
+            }
+            logger.info("Backfill of {}/{} is complete down to uid {}", account, folder, state.lowWaterUid());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("Could not backfill {}/{}", account, folder, e);
+        }
+    }
+
+    private Optional<BackfillState> currentState(long uidValidity) {
+        Optional<BackfillState> saved = backfillStateRepo.find(account, folder);
+        if (saved.isPresent() && saved.get().uidValidity() == uidValidity) {
+            return saved;
+        }
+        // starts (or after UIDVALIDITY change restarts) right below the oldest mail fetched so far
+        OptionalLong oldestUid = repo.minImapUid(folder, uidValidity);
+        if (oldestUid.isEmpty()) {
+            return Optional.empty();
+        }
+        BackfillState state = new BackfillState(account, folder, uidValidity, oldestUid.getAsLong());
+        backfillStateRepo.save(state);
+        return Optional.of(state);
+    }
+
+    private void waitForLiveFetch() throws InterruptedException {
+        while (liveFetchActive.getAsBoolean()) {
+            sleeper.sleep(LIVE_FETCH_BACKOFF);
+        }
+    }
+
+    private long saveChunk(long uidValidity, List<Long> chunk) {
+        long bytes = 0;
+        for (FetchedEmail email : imapFetcher.fetchEmails(uidValidity, chunk)) {
+            bytes += email.size();
+            EmailMessage emailModel = PeriodicMailFetcher.toEmailModel(email, folder);
+            if (repo.save(emailModel, uidValidity).skipped() > 0) {
+                logger.debug("Mail with imapUid={} is already saved", email.imapUid());
+            }
+        }
+        logger.info("Backfilled uids[{}..{}], {} bytes", chunk.getFirst(), chunk.getLast(), bytes);
+        return bytes;
+    }
+
+    private void throttle(int messages, long bytes, long elapsedMillis) throws InterruptedException {
+        long budgetMillis = Math.max(
+                messages * 1000L / budget.messagesPerSecond(),
+                bytes * 1000L / budget.bytesPerSecond());
+        if (budgetMillis > elapsedMillis) {
+            sleeper.sleep(Duration.ofMillis(budgetMillis - elapsedMillis));
+        }
+    }
+
+    private static Long eta(int remaining, int backfilled, long elapsedMillis) {
+        return remaining * Math.max(elapsedMillis, 1) / backfilled / 1000;
+    }
+
+    public record Budget(int messagesPerSecond, int bytesPerSecond) {
+    }
+
+    public enum Status {
+        NOT_STARTED, RUNNING, COMPLETE
+    }
+
+    public record Progress(String account, String folder, Status status, long lowWaterUid,
+                           long remainingUids, Long etaSeconds) {
+    }
+
+    @FunctionalInterface
+    interface Sleeper {
+        void sleep(Duration duration) throws InterruptedException;
+    }
+}
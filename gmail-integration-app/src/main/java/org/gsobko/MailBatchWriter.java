@@ -0,0 +1,105 @@
+package org.gsobko;
+
+import org.gsobko.model.EmailMessage;
+import org.gsobko.model.SyncState;
+import org.gsobko.repo.DuplicateModelException;
+import org.gsobko.repo.MailRepo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// group commit of fetched mail: mails are saved by MailRepo.saveAll in batches of batchSize, together with the
+// checkpoint of the last one. A batch that is not full is saved once its first mail waited maxLatency,
+// so a trickle of new mail is not held back until the end of the fetch
+public class MailBatchWriter {
+    private static final Logger logger = LoggerFactory.getLogger(MailBatchWriter.class);
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_MAX_LATENCY_MILLIS = 500;
+
+    private final MailRepo repo;
+    private final int batchSize;
+    private final Duration maxLatency;
+    private final ScheduledExecutorService timer;
+    private final List<EmailMessage> pending = new ArrayList<>();
+    private SyncState checkpoint;
+    private ScheduledFuture<?> flushTimer;
+
+    public MailBatchWriter(MailRepo repo, String folder, int batchSize, Duration maxLatency) {
+        this(repo, batchSize, maxLatency, createTimer(folder));
+    }
+
+    MailBatchWriter(MailRepo repo, int batchSize, Duration maxLatency, ScheduledExecutorService timer) {
+        if (batchSize < 1 || maxLatency.isNegative()) {
+            throw new IllegalArgumentException("Batch size should be positive, got %d and latency %s".formatted(batchSize, maxLatency));
+        }
+        this.repo = repo;
+        this.batchSize = batchSize;
+        this.maxLatency = maxLatency;
+        this.timer = timer;
+    }
+
+    private static ScheduledExecutorService createTimer(String folder) {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setName("mail-batch-flusher-" + folder);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // mails come in UID order, the checkpoint of the batch is the one of its last mail
+    synchronized void add(EmailMessage email, SyncState checkpoint) {
+        pending.add(email);
+        this.checkpoint = checkpoint;
+        if (pending.size() >= batchSize) {
+            flush();
+        } else if (pending.size() == 1) {
+            flushTimer = timer.schedule(this::flush, maxLatency.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void flush() {
+        if (flushTimer != null) {
+            flushTimer.cancel(false);
+            flushTimer = null;
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<EmailMessage> batch = List.copyOf(pending);
+        pending.clear();
+        try {
+            MailRepo.SaveResult result = repo.saveAll(batch, checkpoint);
+            logger.info("Saved {} mails up to imapUid={} to database, {} were already saved", result.inserted(), checkpoint.lastUid(), result.skipped());
+        } catch (Exception e) {
+            // a mail the database refuses must not cost the rest of the batch
+            logger.error("Could not save a batch of {} mails, saving them one by one", batch.size(), e);
+            batch.forEach(email -> saveOne(email, checkpoint.withLastUid(email.imapUid())));
+        }
+    }
+
+    void stop() {
+        timer.shutdownNow();
+    }
+
+    private void saveOne(EmailMessage email, SyncState emailCheckpoint) {
+        try {
+            if (repo.save(email, emailCheckpoint).inserted() > 0) {
+                logger.info("Saved a mail id={}, imapUid={} to database", email.id(), email.imapUid());
+            } else {
+                logger.info("Mail with imapUid={} is already saved", email.imapUid());
+            }
+        } catch (DuplicateModelException e) {
+            logger.info("Mail with imapUid={} is already saved", email.imapUid());
+        } catch (Exception e) {
+            logger.error("Could not save the fetched email {}", email.imapUid());
+        }
+    }
+}
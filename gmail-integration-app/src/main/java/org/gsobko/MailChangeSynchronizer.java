@@ -0,0 +1,140 @@
+package org.gsobko;
+
+import org.gsobko.integration.mail.ImapFetcher;
+import org.gsobko.integration.mail.MailChanges;
+import org.gsobko.model.SyncState;
+import org.gsobko.repo.MailRepo;
+import org.gsobko.repo.SyncStateRepo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class MailChangeSynchronizer {
+    private static final Logger logger = LoggerFactory.getLogger(MailChangeSynchronizer.class);
+    public static final int DEFAULT_CHANGE_SYNC_SECONDS = 60;
+    static final int DIFF_CHUNK_SIZE = 500;
+
+    private final MailRepo repo;
+    private final SyncStateRepo syncStateRepo;
+    private final ImapFetcher imapFetcher;
+    private final String account;
+    private final String folder;
+    private final long syncPeriodSeconds;
+    private final ScheduledExecutorService executor;
+
+    public MailChangeSynchronizer(MailRepo repo, SyncStateRepo syncStateRepo, ImapFetcher imapFetcher,
+                                  String account, String folder, long syncPeriodSeconds) {
+        this(repo, syncStateRepo, imapFetcher, account, folder, syncPeriodSeconds, createScheduledService(folder));
+    }
+
+    MailChangeSynchronizer(MailRepo repo, SyncStateRepo syncStateRepo, ImapFetcher imapFetcher,
+                           String account, String folder, long syncPeriodSeconds, ScheduledExecutorService executor) {
+        this.repo = repo;
+        this.syncStateRepo = syncStateRepo;
+        this.imapFetcher = imapFetcher;
+        this.account = account;
+        this.folder = folder;
+        this.syncPeriodSeconds = syncPeriodSeconds;
+        this.executor = executor;
+    }
+
+    private static ScheduledExecutorService createScheduledService(String folder) {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setName("mail-change-synchronizer-" + folder);
+            return thread;
+        });
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(this::syncChanges, syncPeriodSeconds, syncPeriodSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    private void syncChanges() {
+        try {
+            Optional<SyncState> maybeState = syncStateRepo.find(account, folder);
+            if (maybeState.isEmpty() || maybeState.get().lastUid() == 0) {
+                logger.debug("Nothing fetched from {}/{} yet, no changes to sync", account, folder);
+                return;
+            }
+            SyncState state = maybeState.get();
+            Optional<MailChanges> changes = imapFetcher.fetchChangesSince(state.uidValidity(), state.lastUid(), state.highestModSeq());
+            if (changes.isPresent()) {
+                applyChanges(state, changes.get());
+            } else {
+                diffWithServer(state, true);
+            }
+        } catch (Exception e) {
+            logger.error("Could not sync changes of {}/{}", account, folder, e);
+        }
+    }
+
+    private void applyChanges(SyncState state, MailChanges changes) {
+        int updated = repo.updateFlags(folder, state.uidValidity(), changes.changedFlags());
+        int deleted = changes.expungedUids()
+                .map(uids -> repo.markDeleted(folder, state.uidValidity(), uids))
+                // CONDSTORE alone does not report expunges, so only UIDs are compared
+                .orElseGet(() -> diffWithServer(state, false));
+        syncStateRepo.updateHighestModSeq(state.withHighestModSeq(changes.highestModSeq()));
+        logger.info("Synced changes of {}/{} up to modseq {}: {} flag updates, {} deleted",
+                account, folder, changes.highestModSeq(), updated, deleted);
+    }
+
+    private int diffWithServer(SyncState state, boolean compareFlags) {
+        int updated = 0;
+        int deleted = 0;
+        long afterUid = 0;
+        while (true) {
+            SortedMap<Long, String> saved = repo.findFlags(folder, state.uidValidity(), afterUid, state.lastUid(), DIFF_CHUNK_SIZE);
+            if (saved.isEmpty()) {
+                break;
+            }
+            long fromUid = saved.firstKey();
+            long toUid = saved.lastKey();
+            Map<Long, String> changedFlags = new HashMap<>();
+            Set<Long> onServer;
+            if (compareFlags) {
+                Map<Long, String> serverFlags = imapFetcher.fetchFlags(state.uidValidity(), fromUid, toUid);
+                serverFlags.forEach((uid, flags) -> {
+                    if (saved.containsKey(uid) && !flags.equals(saved.get(uid))) {
+                        changedFlags.put(uid, flags);
+                    }
+                });
+                onServer = serverFlags.keySet();
+            } else {
+                onServer = new HashSet<>(imapFetcher.fetchUids(state.uidValidity(), fromUid, toUid));
+            }
+            List<Long> expunged = new ArrayList<>();
+            for (Long uid : saved.keySet()) {
+                if (!onServer.contains(uid)) {
+                    expunged.add(uid);
+                }
+            }
+            updated += repo.updateFlags(folder, state.uidValidity(), changedFlags);
+            deleted += repo.markDeleted(folder, state.uidValidity(), expunged);
+            if (saved.size() < DIFF_CHUNK_SIZE) {
+                break;
+            }
+            afterUid = toUid;
+        }
+        if (compareFlags) {
+            logger.info("Diffed {}/{} with server: {} flag updates, {} deleted", account, folder, updated, deleted);
+        }
+        return deleted;
+    }
+}
@@ -13,6 +13,10 @@ public class Main {
         try {
             Properties properties = loadProperties();
             GmailIntegrationApp gmailIntegrationApp = new GmailIntegrationApp(properties);
+            if (args.length > 0 && args[0].equals("reprocess")) {
+                logger.info("Reprocessed {} archived mails", gmailIntegrationApp.reprocessArchive());
+                return;
+            }
             gmailIntegrationApp.start();
             Runtime.getRuntime().addShutdownHook(new Thread(gmailIntegrationApp::stop, "terminator"));
         } catch (Exception e) {
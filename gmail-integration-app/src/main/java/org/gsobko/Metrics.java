@@ -0,0 +1,38 @@
+package org.gsobko;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// gauges and counters of the application, served as JSON on /metrics.
+// Labels are part of the name in prometheus style, i.e. poll_interval_millis{folder="INBOX"}
+public class Metrics {
+    private final Map<String, Supplier<Number>> gauges = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    public static String name(String metric, String label, String value) {
+        return "%s{%s=\"%s\"}".formatted(metric, label, value);
+    }
+
+    public static String name(String metric, String label, String value, String otherLabel, String otherValue) {
+        return "%s{%s=\"%s\",%s=\"%s\"}".formatted(metric, label, value, otherLabel, otherValue);
+    }
+
+    public void gauge(String name, Supplier<Number> value) {
+        gauges.put(name, value);
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> snapshot = new TreeMap<>();
+        gauges.forEach((name, value) -> snapshot.put(name, value.get()));
+        counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        return snapshot;
+    }
+}
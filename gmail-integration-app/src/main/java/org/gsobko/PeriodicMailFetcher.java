@@ -1,86 +1,266 @@
 package org.gsobko;
 
+import org.gsobko.PollInterval.PollResult;
 import org.gsobko.integration.mail.FetchedEmail;
+import org.gsobko.integration.mail.FolderStatus;
+import org.gsobko.integration.mail.GmailAttributes;
 import org.gsobko.integration.mail.ImapFetcher;
+import org.gsobko.integration.mail.ImapThrottledException;
+import org.gsobko.integration.mail.MimeExtractor;
+import org.gsobko.model.BodyState;
+import org.gsobko.model.EmailAttachment;
 import org.gsobko.model.EmailMessage;
+import org.gsobko.model.MessageIds;
+import org.gsobko.model.SyncState;
 import org.gsobko.repo.MailRepo;
+import org.gsobko.repo.SyncStateRepo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.OptionalLong;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PeriodicMailFetcher {
     private final Logger logger = LoggerFactory.getLogger(PeriodicMailFetcher.class);
+    public static final int DEFAULT_IDLE_SAFETY_POLL_SECONDS = 300;
     private final MailRepo repo;
+    private final SyncStateRepo syncStateRepo;
     private final ImapFetcher imapFetcher;
-    private final long pollPeriodSeconds;
+    private final String account;
+    private final String folder;
+    private final PollInterval pollInterval;
+    private final int maxMessagesPerPoll;
+    private final MailBatchWriter batchWriter;
     private final ScheduledExecutorService executor;
+    private final AtomicBoolean fetchRequested = new AtomicBoolean();
+    private final AtomicBoolean fetching = new AtomicBoolean();
+    // retryAt of the last fetch refused as the account is throttled, only touched on the executor thread
+    private Instant throttledUntil;
 
-
-    public PeriodicMailFetcher(MailRepo repo, ImapFetcher imapFetcher, long pollPeriodSeconds) {
-        this(repo, imapFetcher, pollPeriodSeconds, createScheduledService());
+    public PeriodicMailFetcher(MailRepo repo, SyncStateRepo syncStateRepo, ImapFetcher imapFetcher,
+                               String account, String folder, PollOptions options, MailBatchWriter batchWriter) {
+        this(repo, syncStateRepo, imapFetcher, account, folder, options.pollInterval(), options.maxMessagesPerPoll(),
+                batchWriter, createScheduledService(folder));
     }
 
-    PeriodicMailFetcher(MailRepo repo, ImapFetcher imapFetcher, long pollPeriodSeconds, ScheduledExecutorService executor) {
+    PeriodicMailFetcher(MailRepo repo, SyncStateRepo syncStateRepo, ImapFetcher imapFetcher,
+                        String account, String folder, PollInterval pollInterval, int maxMessagesPerPoll,
+                        MailBatchWriter batchWriter, ScheduledExecutorService executor) {
+        if (maxMessagesPerPoll < 1) {
+            throw new IllegalArgumentException("Max messages per poll should be positive, got %d".formatted(maxMessagesPerPoll));
+        }
         this.repo = repo;
+        this.syncStateRepo = syncStateRepo;
         this.imapFetcher = imapFetcher;
-        this.pollPeriodSeconds = pollPeriodSeconds;
+        this.account = account;
+        this.folder = folder;
+        this.pollInterval = pollInterval;
+        this.maxMessagesPerPoll = maxMessagesPerPoll;
+        this.batchWriter = batchWriter;
         this.executor = executor;
     }
 
-    private static ScheduledExecutorService createScheduledService() {
+    private static ScheduledExecutorService createScheduledService(String folder) {
         return Executors.newSingleThreadScheduledExecutor(runnable -> {
             Thread thread = new Thread(runnable);
-            thread.setName("periodic-email-fetcher");
+            thread.setName("periodic-email-fetcher-" + folder);
             return thread;
         });
     }
 
 
     public void start() {
-        executor.scheduleWithFixedDelay(this::downloadNewMail, 0, pollPeriodSeconds, TimeUnit.SECONDS);
+        executor.schedule(this::poll, 0, TimeUnit.SECONDS);
+    }
+
+    // with IDLE new mail is fetched when the server tells about it. Polling now and then still catches up
+    // should a notification be missed, i.e. while the IDLE connection was being re-established
+    public void startSafetyPoll(long periodSeconds) {
+        executor.scheduleWithFixedDelay(this::fetchNow, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public void fetchNow() {
+        // notifications coming while a fetch is already queued are served by that fetch
+        if (fetchRequested.compareAndSet(false, true)) {
+            executor.execute(this::fetchRequestedMail);
+        }
     }
 
     public void stop() {
         executor.shutdownNow();
+        batchWriter.stop();
+    }
+
+    // true while new mail is being fetched or a fetch is queued, background jobs back off meanwhile
+    public boolean isFetching() {
+        return fetching.get() || fetchRequested.get();
     }
 
-    private void downloadNewMail() {
+    public long currentPollIntervalMillis() {
+        return pollInterval.current().toMillis();
+    }
+
+    private void poll() {
+        Duration delay = nextDelay(downloadNewMail());
+        logger.debug("Next poll of {} in {}ms", folder, delay.toMillis());
+        executor.schedule(this::poll, delay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    // a failed fetch is retried backing off like a failed poll, the server tells about mail delivered before it only once
+    private void fetchRequestedMail() {
+        PollResult result = downloadNewMail();
+        Duration delay = nextDelay(result);
+        if (result == PollResult.MORE_MAIL) {
+            fetchNow();
+        } else if (result == PollResult.FAILED) {
+            logger.debug("Fetching {} again in {}ms", folder, delay.toMillis());
+            executor.schedule(this::fetchNow, delay.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private PollResult downloadNewMail() {
+        fetchRequested.set(false);
+        fetching.set(true);
+        AtomicInteger fetched = new AtomicInteger();
         try {
-            OptionalLong maxImapUid = repo.maxImapUid();
-            imapFetcher.fetchEmailsSinceUid(maxImapUid, email -> {
-                try {
-                    EmailMessage emailModel = toEmailModel(email);
-                    repo.save(emailModel);
-                    logger.info("Saved a mail id={}, imapUid={} to database", emailModel.id(), email.imapUid());
-                } catch (Exception e) {
-                    logger.error("Could not save the fetched email {}", email.imapUid());
-                }
-            });
+            FolderStatus status = imapFetcher.folderStatus();
+            SyncState state = syncStateRepo.find(account, folder).orElseGet(() -> bootstrap(status));
+            if (state.uidValidity() != status.uidValidity()) {
+                // the cached state may be stale, another node polling the folder may have resynced it already
+                state = syncStateRepo.reload(account, folder).orElse(state);
+            }
+            if (state.uidValidity() != status.uidValidity()) {
+                state = resync(state, status);
+            }
+            SyncState checkpoint = state;
+            boolean moreMail;
+            try {
+                moreMail = imapFetcher.fetchEmailsSinceUid(checkpoint.uidValidity(), lastReadUid(checkpoint), maxMessagesPerPoll, email -> {
+                    fetched.incrementAndGet();
+                    try {
+                        batchWriter.add(toEmailModel(email, folder), checkpoint.withLastUid(email.imapUid()));
+                    } catch (Exception e) {
+                        logger.error("Could not save the fetched email {}", email.imapUid());
+                    }
+                });
+            } finally {
+                // mails fetched before a failure are saved too
+                batchWriter.flush();
+            }
+            if (moreMail) {
+                return PollResult.MORE_MAIL;
+            }
+            return fetched.get() > 0 ? PollResult.NEW_MAIL : PollResult.NO_MAIL;
         } catch (Exception e) {
-            logger.error("Could not fetch new emails", e);
+            Optional<ImapThrottledException> throttled = throttledCause(e);
+            if (throttled.isPresent()) {
+                throttledUntil = throttled.get().retryAt();
+                logger.warn("Fetching {} is held back until {}: {}", folder, throttledUntil, throttled.get().getMessage());
+            } else {
+                logger.error("Could not fetch new emails", e);
+            }
+            return PollResult.FAILED;
+        } finally {
+            fetching.set(false);
         }
     }
 
-    private EmailMessage toEmailModel(FetchedEmail email) {
+    // backing off as usual, but not retrying before the governor lets IMAP operations through again
+    private Duration nextDelay(PollResult result) {
+        Duration delay = pollInterval.next(result);
+        Instant retryAt = throttledUntil;
+        throttledUntil = null;
+        if (retryAt != null) {
+            Duration untilRetry = Duration.between(Instant.now(), retryAt);
+            return untilRetry.compareTo(delay) > 0 ? untilRetry : delay;
+        }
+        return delay;
+    }
+
+    private static Optional<ImapThrottledException> throttledCause(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ImapThrottledException throttled) {
+                return Optional.of(throttled);
+            }
+        }
+        return Optional.empty();
+    }
+
+    private SyncState bootstrap(FolderStatus status) {
+        // emails saved before the checkpoint existed belong to the current UIDVALIDITY
+        OptionalLong maxImapUid = repo.maxImapUid(folder);
+        logger.info("No sync state for {}/{}, starting from last saved UID {}", account, folder, maxImapUid);
+        return repo.adoptLegacyEmails(new SyncState(account, folder, status.uidValidity(), maxImapUid.orElse(0), status.highestModSeq()));
+    }
+
+    private SyncState resync(SyncState state, FolderStatus status) {
+        logger.warn("UIDVALIDITY of {}/{} changed from {} to {}, remapping saved emails by X-GM-MSGID or Message-ID",
+                account, folder, state.uidValidity(), status.uidValidity());
+        Map<Long, MessageIds> messageIds = new HashMap<>();
+        imapFetcher.fetchMessageIds().forEach((uid, ids) -> messageIds.put(uid, new MessageIds(ids.messageId(), ids.gmailMessageId())));
+        OptionalLong lastRemappedUid = repo.remapUids(state, status.uidValidity(), messageIds);
+        SyncState newState = new SyncState(account, folder, status.uidValidity(), lastRemappedUid.orElse(0), status.highestModSeq());
+        if (!syncStateRepo.resync(state, newState)) {
+            logger.info("{}/{} was resynced by another node meanwhile, continuing from its checkpoint", account, folder);
+            return syncStateRepo.reload(account, folder).orElseThrow(() -> new IllegalStateException("Sync state of %s/%s is gone".formatted(account, folder)));
+        }
+        return newState;
+    }
+
+    private static OptionalLong lastReadUid(SyncState state) {
+        // UIDs start from 1, so 0 means nothing was fetched from the folder yet
+        return state.lastUid() > 0 ? OptionalLong.of(state.lastUid()) : OptionalLong.empty();
+    }
+
+    private static BodyState bodyState(FetchedEmail email) {
+        if (email.truncated()) {
+            return BodyState.TRUNCATED;
+        }
+        return email.hasBody() ? BodyState.FULL : BodyState.HEADERS;
+    }
+
+    static EmailMessage toEmailModel(FetchedEmail email, String folder) {
         return EmailMessage.builder()
                 .withId(UUID.randomUUID())
                 .withImapUid(email.imapUid())
                 .withMessageId(email.messageId())
                 .withText(email.text().orElse(""))
                 .withHtml(email.html().orElse(""))
-                .withAttachments(email.attachments())
+                .withAttachments(email.attachments().stream().map(MimeExtractor.Attachment::name).toList())
+                .withStoredAttachments(storedAttachments(email.attachments()))
                 .withSubject(email.subject())
                 .withFrom(email.from())
                 .withTo(email.to())
                 .withCc(email.cc())
                 .withSentDate(email.date())
+                .withFlags(email.flags())
+                .withBodyState(bodyState(email))
+                .withFolder(folder)
+                .withGmailMessageId(email.gmail().map(GmailAttributes::messageId).orElse(null))
+                .withGmailThreadId(email.gmail().map(GmailAttributes::threadId).orElse(null))
+                .withLabels(email.gmail().map(GmailAttributes::labels).orElse(List.of()))
                 .withCreatedDate(Instant.now())
                 .build();
     }
+
+    static List<EmailAttachment> storedAttachments(List<MimeExtractor.Attachment> attachments) {
+        // content is either stored for all attachments of a mail or for none, so indexes match attachment names
+        if (attachments.stream().anyMatch(attachment -> attachment.sha256() == null)) {
+            return List.of();
+        }
+        return attachments.stream()
+                .map(attachment -> new EmailAttachment(attachment.name(), attachment.contentType(), attachment.size(), attachment.sha256()))
+                .toList();
+    }
 }
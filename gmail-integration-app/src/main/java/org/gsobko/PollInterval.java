@@ -0,0 +1,61 @@
+package org.gsobko;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+
+// delay before the next poll of a folder: min right after a poll found new mail, doubling up to max (with jitter)
+// while the folder is quiet or polls fail, none when a poll stopped at the per poll cap with more mail left
+class PollInterval {
+    // delays are cut by up to 20% at random, so folders and nodes backing off together do not poll in lockstep
+    static final double JITTER = 0.2;
+
+    enum PollResult { NEW_MAIL, MORE_MAIL, NO_MAIL, FAILED }
+
+    private final Duration min;
+    private final Duration max;
+    private final DoubleSupplier random;
+    private Duration backoff;
+    private volatile Duration current;
+
+    PollInterval(Duration min, Duration max) {
+        this(min, max, () -> ThreadLocalRandom.current().nextDouble());
+    }
+
+    PollInterval(Duration min, Duration max, DoubleSupplier random) {
+        if (!min.isPositive() || max.compareTo(min) < 0) {
+            throw new IllegalArgumentException("Poll interval should be positive and below max, got %s and %s".formatted(min, max));
+        }
+        this.min = min;
+        this.max = max;
+        this.random = random;
+        this.backoff = min;
+        this.current = min;
+    }
+
+    synchronized Duration next(PollResult result) {
+        current = switch (result) {
+            case MORE_MAIL -> {
+                backoff = min;
+                yield Duration.ZERO;
+            }
+            case NEW_MAIL -> {
+                backoff = min;
+                yield min;
+            }
+            case NO_MAIL, FAILED -> {
+                backoff = backoff.multipliedBy(2).compareTo(max) > 0 ? max : backoff.multipliedBy(2);
+                yield withJitter(backoff);
+            }
+        };
+        return current;
+    }
+
+    Duration current() {
+        return current;
+    }
+
+    private Duration withJitter(Duration delay) {
+        return Duration.ofMillis(Math.round(delay.toMillis() * (1 - JITTER * random.getAsDouble())));
+    }
+}
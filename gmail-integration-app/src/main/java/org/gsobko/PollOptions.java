@@ -0,0 +1,22 @@
+package org.gsobko;
+
+import java.time.Duration;
+
+// PeriodicMailFetcher polls every pollSeconds, backing off up to maxPollSeconds while nothing new comes,
+// and saves at most maxMessagesPerPoll messages per poll
+public record PollOptions(int pollSeconds, int maxPollSeconds, int maxMessagesPerPoll) {
+    public static final int DEFAULT_POLL_SECONDS = 5;
+    public static final int DEFAULT_MAX_POLL_SECONDS = 60;
+    public static final int DEFAULT_MAX_MESSAGES_PER_POLL = 1000;
+    public static final PollOptions DEFAULT = new PollOptions(DEFAULT_POLL_SECONDS, DEFAULT_MAX_POLL_SECONDS, DEFAULT_MAX_MESSAGES_PER_POLL);
+
+    public PollOptions {
+        if (maxMessagesPerPoll < 1) {
+            throw new IllegalArgumentException("Max messages per poll should be positive, got %d".formatted(maxMessagesPerPoll));
+        }
+    }
+
+    PollInterval pollInterval() {
+        return new PollInterval(Duration.ofSeconds(pollSeconds), Duration.ofSeconds(maxPollSeconds));
+    }
+}
@@ -0,0 +1,282 @@
+package org.gsobko;
+
+import org.gsobko.model.EmailMessage;
+import org.gsobko.model.MailCursor;
+import org.gsobko.model.MailField;
+import org.gsobko.repo.MailRepo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// the newest mails held in memory, so clients polling /mails for the last minutes do not have the same rows read and
+// mapped over and over. The cache has every mail newer than its boundary: a page that ends above the boundary is served
+// from memory, any other from the database. The oldest mails are evicted past the max count, bytes or age, the boundary
+// moves up to them. Mails saved by this node are read back and put in by the cache thread right after the commit. What
+// changed elsewhere (mails saved by other nodes, bodies, flags, deletions) is found every refresh period by change_seq,
+// which numbers the changes in commit order; a cache that could not refresh for a few periods serves nothing until it
+// does again
+public class RecentMailCache {
+    private static final Logger logger = LoggerFactory.getLogger(RecentMailCache.class);
+    public static final int DEFAULT_MAX_MAILS = 10_000;
+    public static final int DEFAULT_MAX_MEGABYTES = 64;
+    public static final int DEFAULT_WINDOW_MINUTES = 60;
+    public static final int DEFAULT_REFRESH_MILLIS = 1000;
+    static final int MAX_STALE_REFRESHES = 5;
+    static final int BATCH_SIZE = 500;
+    // object headers, references and boxed values of a mail besides its strings
+    static final int MAIL_OVERHEAD_BYTES = 400;
+    // the order of /mails, ids compared unsigned as the database does
+    static final Comparator<MailCursor> NEWEST_FIRST = Comparator.comparing(MailCursor::createdDate)
+            .thenComparing(MailCursor::id, (a, b) -> a.getMostSignificantBits() != b.getMostSignificantBits()
+                    ? Long.compareUnsigned(a.getMostSignificantBits(), b.getMostSignificantBits())
+                    : Long.compareUnsigned(a.getLeastSignificantBits(), b.getLeastSignificantBits()))
+            .reversed();
+    private static final UUID MIN_ID = new UUID(0, 0);
+    private static final UUID MAX_ID = new UUID(-1, -1);
+    private static final Instant LATEST = Instant.parse("9999-12-31T00:00:00Z");
+
+    private final MailRepo repo;
+    private final int maxMails;
+    private final long maxBytes;
+    private final Duration window;
+    private final long refreshMillis;
+    private final ScheduledExecutorService executor;
+    private final ConcurrentSkipListMap<MailCursor, Cached> mails = new ConcurrentSkipListMap<>(NEWEST_FIRST);
+    // ids of mails saved by this node not read back yet
+    private final Set<UUID> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // every mail newer is cached, null until loaded. Only moves up, it is set before mails are evicted
+    private volatile MailCursor boundary;
+    // start of the last refresh that read the changes
+    private volatile long refreshedNanos;
+    // last change number before the last refresh, every change up to it is cached. Only touched on the refresh thread
+    private long refreshedUntil;
+
+    public RecentMailCache(MailRepo repo, int maxMails, long maxBytes, Duration window, long refreshMillis) {
+        this(repo, maxMails, maxBytes, window, refreshMillis, createScheduledService());
+    }
+
+    RecentMailCache(MailRepo repo, int maxMails, long maxBytes, Duration window, long refreshMillis, ScheduledExecutorService executor) {
+        this.repo = repo;
+        this.maxMails = maxMails;
+        this.maxBytes = maxBytes;
+        this.window = window;
+        this.refreshMillis = refreshMillis;
+        this.executor = executor;
+    }
+
+    private static ScheduledExecutorService createScheduledService() {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setName("recent-mail-cache");
+            return thread;
+        });
+    }
+
+    // the window is read before it is served from, changes committed meanwhile are read by the first refresh
+    public void start() {
+        load();
+        executor.scheduleWithFixedDelay(this::refresh, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    void load() {
+        long started = System.nanoTime();
+        refreshedUntil = repo.lastChangeSeq();
+        Instant from = Instant.now().minus(window);
+        Optional<MailCursor> pageEnd = repo.findPageEnd(from, LATEST, Optional.empty(), maxMails);
+        boundary = pageEnd.orElse(new MailCursor(from, MIN_ID));
+        repo.streamPage(from, LATEST, Optional.empty(), pageEnd, email -> put(email, null));
+        refreshedNanos = started;
+        logger.info("Cached {} recent mails, {} bytes", count.get(), bytes.get());
+    }
+
+    // MailRepo change listener. Mails are only queued, so saving does not wait for them to be read back, the cache
+    // thread reads them at once, a single read of what was queued meanwhile
+    public void changed(Collection<UUID> ids) {
+        if (boundary == null) {
+            return;
+        }
+        pending.addAll(ids);
+        try {
+            executor.execute(this::cachePending);
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
+    }
+
+    // a client is served what it was just saved. Failing that the mails come with the next refresh
+    void cachePending() {
+        List<UUID> list = List.copyOf(pending);
+        if (list.isEmpty()) {
+            return;
+        }
+        pending.removeAll(list);
+        try {
+            for (int from = 0; from < list.size(); from += BATCH_SIZE) {
+                repo.findByIds(list.subList(from, Math.min(from + BATCH_SIZE, list.size())), MailField.ALL)
+                        .forEach(email -> put(email, null));
+            }
+        } catch (Exception e) {
+            logger.error("Could not cache {} saved mails, they are cached with the next refresh", list.size(), e);
+        }
+    }
+
+    void refresh() {
+        try {
+            long started = System.nanoTime();
+            // changes committed after it are found now or by the next refresh
+            long lastChangeSeq = repo.lastChangeSeq();
+            MailCursor boundary = this.boundary;
+            Map<UUID, Long> changed = new HashMap<>();
+            for (MailRepo.Change change : repo.findChangedAfter(refreshedUntil, boundary.createdDate())) {
+                Cached cached = mails.get(change.mail());
+                // a mail is only read when it changed since it was cached, which also puts back the latest state of a
+                // mail a slower read put over
+                if (NEWEST_FIRST.compare(change.mail(), boundary) < 0
+                        && (cached == null || cached.changeSeq() == null || cached.changeSeq() < change.changeSeq())) {
+                    changed.put(change.mail().id(), change.changeSeq());
+                }
+            }
+            List<UUID> ids = List.copyOf(changed.keySet());
+            for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+                repo.findByIds(ids.subList(from, Math.min(from + BATCH_SIZE, ids.size())), MailField.ALL)
+                        .forEach(email -> put(email, changed.get(email.id())));
+            }
+            refreshedUntil = lastChangeSeq;
+            evict();
+            refreshedNanos = started;
+        } catch (Exception e) {
+            logger.error("Could not refresh cache of recent mails", e);
+        }
+    }
+
+    // newest first like MailRepo.fetchPage, empty when the page reaches below the boundary
+    public Optional<MailRepo.Page> page(Instant start, Instant end, Optional<MailCursor> after, int limit) {
+        MailCursor boundary = this.boundary;
+        if (boundary == null || System.nanoTime() - refreshedNanos > MAX_STALE_REFRESHES * TimeUnit.MILLISECONDS.toNanos(refreshMillis)) {
+            misses.increment();
+            return Optional.empty();
+        }
+        NavigableMap<MailCursor, Cached> older = after.isPresent() && !after.get().createdDate().isAfter(end)
+                ? mails.tailMap(after.get(), false)
+                : mails.tailMap(new MailCursor(end, MAX_ID), true);
+        List<EmailMessage> emails = new ArrayList<>();
+        // the page is complete if every mail down to it is cached
+        MailCursor lowest = new MailCursor(start, MIN_ID);
+        boolean hasNext = false;
+        for (Map.Entry<MailCursor, Cached> entry : older.entrySet()) {
+            MailCursor key = entry.getKey();
+            if (key.createdDate().isBefore(start) || NEWEST_FIRST.compare(key, boundary) >= 0) {
+                break;
+            }
+            if (emails.size() == limit) {
+                lowest = key;
+                hasNext = true;
+                break;
+            }
+            emails.add(entry.getValue().email());
+        }
+        // mails may have been evicted meanwhile, only the boundary set before tells
+        if (NEWEST_FIRST.compare(lowest, this.boundary) >= 0) {
+            misses.increment();
+            return Optional.empty();
+        }
+        hits.increment();
+        return Optional.of(new MailRepo.Page(emails, hasNext ? Optional.of(MailCursor.of(emails.getLast())) : Optional.empty()));
+    }
+
+    // a changed mail replaces the one cached, mails not newer than the boundary are not cached. changeSeq is null when
+    // it is not known, such a mail is read once more should it be among the changes found by a refresh
+    private synchronized void put(EmailMessage email, Long changeSeq) {
+        MailCursor key = MailCursor.of(email);
+        if (NEWEST_FIRST.compare(key, boundary) >= 0) {
+            return;
+        }
+        Cached cached = new Cached(email, estimatedBytes(email), changeSeq);
+        Cached previous = mails.put(key, cached);
+        if (previous == null) {
+            count.incrementAndGet();
+        }
+        bytes.addAndGet(cached.bytes() - (previous == null ? 0 : previous.bytes()));
+        evict();
+    }
+
+    private synchronized void evict() {
+        Instant oldest = Instant.now().minus(window);
+        while (!mails.isEmpty()) {
+            Map.Entry<MailCursor, Cached> last = mails.lastEntry();
+            if (count.get() <= maxMails && bytes.get() <= maxBytes && !last.getKey().createdDate().isBefore(oldest)) {
+                return;
+            }
+            boundary = last.getKey();
+            mails.remove(last.getKey());
+            count.decrementAndGet();
+            bytes.addAndGet(-last.getValue().bytes());
+        }
+    }
+
+    // strings take up to 2 bytes a char, close enough to bound the heap taken
+    static long estimatedBytes(EmailMessage email) {
+        long chars = length(email.messageId()) + length(email.from()) + length(email.to()) + length(email.cc())
+                + length(email.subject()) + length(email.snippet()) + length(email.text()) + length(email.html())
+                + length(email.flags()) + length(email.folder());
+        for (String attachment : email.attachments()) {
+            chars += length(attachment);
+        }
+        for (String label : email.labels()) {
+            chars += length(label);
+        }
+        return MAIL_OVERHEAD_BYTES + 2 * chars;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    public int mails() {
+        return count.get();
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    private record Cached(EmailMessage email, long bytes, Long changeSeq) {
+    }
+}
@@ -0,0 +1,183 @@
+package org.gsobko;
+
+import org.gsobko.model.BodyState;
+import org.gsobko.model.EmailMessage;
+import org.gsobko.model.MailCursor;
+import org.gsobko.model.MailField;
+import org.gsobko.repo.MailRepo;
+import org.gsobko.search.SearchDocument;
+import org.gsobko.search.SearchIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// keeps the search index up with the database on a thread of its own. MailRepo tells the ids of mails saved, they are
+// only queued, so saving never waits for the index. Queued mails are read back and indexed every refresh period.
+// What this node was not told about (mails saved by other nodes or before a crash, bodies downloaded elsewhere)
+// is found every catch up period: mails created since the last catch up and headers only mails that have a body now.
+// An index that is new or of another format is filled from the database page by page, newest first. The index is
+// committed every catch up, a crash loses what was indexed since, which the next catch up finds again
+public class SearchIndexer {
+    private static final Logger logger = LoggerFactory.getLogger(SearchIndexer.class);
+    public static final int DEFAULT_REFRESH_MILLIS = 1000;
+    public static final int DEFAULT_CATCH_UP_SECONDS = 60;
+    // created date is set before a mail is committed, mails committed late are still found
+    static final Duration CATCH_UP_OVERLAP = Duration.ofMinutes(5);
+    static final int BATCH_SIZE = 500;
+    private static final int STOP_TIMEOUT_SECONDS = 30;
+    static final int REBUILD_PAGE_SIZE = 1000;
+    // a rebuild refreshes every that many pages rather than every page, a refresh flushes a segment and larger ones are merged less
+    static final int REBUILD_PAGES_PER_REFRESH = 20;
+    static final Set<MailField> INDEXED_FIELDS = EnumSet.of(MailField.ID, MailField.FROM, MailField.TO, MailField.CC,
+            MailField.SUBJECT, MailField.TEXT, MailField.HTML, MailField.CREATED_DATE, MailField.BODY_STATE);
+
+    private final MailRepo repo;
+    private final SearchIndex index;
+    private final long refreshMillis;
+    private final long catchUpSeconds;
+    private final ScheduledExecutorService executor;
+    private final Set<UUID> pending = ConcurrentHashMap.newKeySet();
+    // where the rebuild is, only touched on the indexing thread
+    private Instant rebuildUntil;
+    private Optional<MailCursor> rebuildCursor = Optional.empty();
+    private int rebuildPages;
+
+    public SearchIndexer(MailRepo repo, SearchIndex index, long refreshMillis, long catchUpSeconds) {
+        this(repo, index, refreshMillis, catchUpSeconds, createScheduledService());
+    }
+
+    SearchIndexer(MailRepo repo, SearchIndex index, long refreshMillis, long catchUpSeconds, ScheduledExecutorService executor) {
+        this.repo = repo;
+        this.index = index;
+        this.refreshMillis = refreshMillis;
+        this.catchUpSeconds = catchUpSeconds;
+        this.executor = executor;
+    }
+
+    private static ScheduledExecutorService createScheduledService() {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setName("search-indexer");
+            return thread;
+        });
+    }
+
+    // MailRepo change listener
+    public void changed(Collection<UUID> ids) {
+        pending.addAll(ids);
+    }
+
+    public int pendingMails() {
+        return pending.size();
+    }
+
+    public void start() {
+        if (!index.isComplete()) {
+            rebuildUntil = Instant.now();
+            // mails saved from now on are indexed as they come
+            index.watermark(rebuildUntil);
+            logger.info("Search index is empty or outdated, indexing all mails created before {}", rebuildUntil);
+            executor.execute(this::rebuildPage);
+        }
+        executor.scheduleWithFixedDelay(this::indexPending, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::catchUp, catchUpSeconds, catchUpSeconds, TimeUnit.SECONDS);
+    }
+
+    // not interrupted, Lucene gives up an index written by an interrupted thread. The index is closed by its owner after
+    public void stop() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Search indexer did not stop within {} seconds", STOP_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void indexPending() {
+        List<UUID> ids = List.copyOf(pending);
+        if (ids.isEmpty()) {
+            return;
+        }
+        pending.removeAll(ids);
+        try {
+            for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+                // mails removed meanwhile are not found and not indexed
+                repo.findByIds(ids.subList(from, Math.min(from + BATCH_SIZE, ids.size())), INDEXED_FIELDS)
+                        .forEach(email -> index.add(SearchDocument.of(email)));
+            }
+            index.refresh();
+        } catch (Exception e) {
+            pending.addAll(ids);
+            logger.error("Could not index {} mails, will retry", ids.size(), e);
+        }
+    }
+
+    void catchUp() {
+        try {
+            Instant now = Instant.now();
+            Instant from = index.watermark().orElse(now).minus(CATCH_UP_OVERLAP);
+            repo.streamPage(from, now, Optional.empty(), Optional.empty(), EnumSet.of(MailField.ID), email -> {
+                if (!index.contains(email.id())) {
+                    pending.add(email.id());
+                }
+            });
+            List<UUID> headersOnly = index.headersOnlyIds(Integer.MAX_VALUE);
+            for (int i = 0; i < headersOnly.size(); i += BATCH_SIZE) {
+                repo.findByIds(headersOnly.subList(i, Math.min(i + BATCH_SIZE, headersOnly.size())), EnumSet.of(MailField.ID, MailField.BODY_STATE)).stream()
+                        .filter(email -> email.bodyState() != BodyState.HEADERS)
+                        .map(EmailMessage::id)
+                        .forEach(pending::add);
+            }
+            index.watermark(now);
+            indexPending();
+            index.refresh();
+            index.commit();
+        } catch (Exception e) {
+            logger.error("Could not catch up search index", e);
+        }
+    }
+
+    // a page at a time, so mails saved meanwhile are indexed in between
+    void rebuildPage() {
+        try {
+            Optional<MailCursor> pageEnd = repo.findPageEnd(Instant.EPOCH, rebuildUntil, rebuildCursor, REBUILD_PAGE_SIZE);
+            List<SearchDocument> documents = new ArrayList<>();
+            repo.streamPage(Instant.EPOCH, rebuildUntil, rebuildCursor, pageEnd, INDEXED_FIELDS, email -> documents.add(SearchDocument.of(email)));
+            documents.forEach(index::add);
+            rebuildPages++;
+            if (pageEnd.isEmpty()) {
+                index.markComplete();
+                index.refresh();
+                index.commit();
+                logger.info("Search index has all {} mails created before {}", index.size(), rebuildUntil);
+                return;
+            }
+            if (rebuildPages % REBUILD_PAGES_PER_REFRESH == 0) {
+                index.refresh();
+            }
+            rebuildCursor = pageEnd;
+            // a stopped indexer goes on from scratch on start, as the index is not complete
+            if (!executor.isShutdown()) {
+                executor.execute(this::rebuildPage);
+            }
+        } catch (Exception e) {
+            logger.error("Could not index mails after {}, will retry", rebuildCursor, e);
+            executor.schedule(this::rebuildPage, catchUpSeconds, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.gsobko.integration.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// receives decoded content of every attachment while the message is being parsed
+@FunctionalInterface
+public interface AttachmentSink {
+    // attachments are only counted, their content is not kept
+    AttachmentSink DISCARD = content -> null;
+
+    // returns SHA-256 of the stored content, or null if content was not stored
+    String store(InputStream content) throws IOException;
+}
@@ -0,0 +1,27 @@
+package org.gsobko.integration.mail;
+
+// messages bigger than streamingThresholdBytes are parsed while streamed from the server instead of being
+// downloaded as a whole, text and html longer than maxTextLength characters are cut off.
+// Of messages bigger than maxMessageBytes only the envelope and first truncatedTextBytes of the text are downloaded
+public record ContentLimits(int maxTextLength, int streamingThresholdBytes, int maxMessageBytes, int truncatedTextBytes) {
+    public static final int DEFAULT_MAX_TEXT_LENGTH = 1_000_000;
+    public static final int DEFAULT_STREAMING_THRESHOLD_BYTES = 1_048_576;
+    public static final int DEFAULT_MAX_MESSAGE_BYTES = 10_485_760;
+    public static final int DEFAULT_TRUNCATED_TEXT_BYTES = 65_536;
+    public static final ContentLimits DEFAULT = new ContentLimits(DEFAULT_MAX_TEXT_LENGTH, DEFAULT_STREAMING_THRESHOLD_BYTES);
+
+    public ContentLimits {
+        if (maxTextLength < 1 || streamingThresholdBytes < 0 || maxMessageBytes < 1 || truncatedTextBytes < 1) {
+            throw new IllegalArgumentException("Content limits should be positive, got %d, %d, %d and %d"
+                    .formatted(maxTextLength, streamingThresholdBytes, maxMessageBytes, truncatedTextBytes));
+        }
+    }
+
+    public ContentLimits(int maxTextLength, int streamingThresholdBytes) {
+        this(maxTextLength, streamingThresholdBytes, DEFAULT_MAX_MESSAGE_BYTES, DEFAULT_TRUNCATED_TEXT_BYTES);
+    }
+
+    public boolean isOversized(int messageSize) {
+        return messageSize > maxMessageBytes;
+    }
+}
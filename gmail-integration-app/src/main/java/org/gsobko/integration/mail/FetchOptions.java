@@ -0,0 +1,44 @@
+package org.gsobko.integration.mail;
+
+// how ImapFetcher fetches a folder: at most initialDepthLimit newest messages on the first fetch, fetchBatchSize UIDs
+// per UID FETCH, only headers and body structure when headersOnly. Attachments, known Gmail messages and raw messages
+// go to the given sinks and lookups, DEFAULT keeps none of them
+public record FetchOptions(int initialDepthLimit, int fetchBatchSize, boolean headersOnly, ContentLimits contentLimits,
+                           AttachmentSink attachmentSink, KnownMessages knownMessages, RawMessageSink rawMessageSink) {
+    public static final FetchOptions DEFAULT = new FetchOptions(Integer.MAX_VALUE, ImapFetcher.DEFAULT_FETCH_BATCH_SIZE, false,
+            ContentLimits.DEFAULT, AttachmentSink.DISCARD, KnownMessages.NONE, RawMessageSink.DISCARD);
+
+    public FetchOptions {
+        if (fetchBatchSize < 1) {
+            throw new IllegalArgumentException("Fetch batch size should be positive, got %d".formatted(fetchBatchSize));
+        }
+    }
+
+    public FetchOptions withInitialDepthLimit(int initialDepthLimit) {
+        return new FetchOptions(initialDepthLimit, fetchBatchSize, headersOnly, contentLimits, attachmentSink, knownMessages, rawMessageSink);
+    }
+
+    public FetchOptions withFetchBatchSize(int fetchBatchSize) {
+        return new FetchOptions(initialDepthLimit, fetchBatchSize, headersOnly, contentLimits, attachmentSink, knownMessages, rawMessageSink);
+    }
+
+    public FetchOptions withHeadersOnly(boolean headersOnly) {
+        return new FetchOptions(initialDepthLimit, fetchBatchSize, headersOnly, contentLimits, attachmentSink, knownMessages, rawMessageSink);
+    }
+
+    public FetchOptions withContentLimits(ContentLimits contentLimits) {
+        return new FetchOptions(initialDepthLimit, fetchBatchSize, headersOnly, contentLimits, attachmentSink, knownMessages, rawMessageSink);
+    }
+
+    public FetchOptions withAttachmentSink(AttachmentSink attachmentSink) {
+        return new FetchOptions(initialDepthLimit, fetchBatchSize, headersOnly, contentLimits, attachmentSink, knownMessages, rawMessageSink);
+    }
+
+    public FetchOptions withKnownMessages(KnownMessages knownMessages) {
+        return new FetchOptions(initialDepthLimit, fetchBatchSize, headersOnly, contentLimits, attachmentSink, knownMessages, rawMessageSink);
+    }
+
+    public FetchOptions withRawMessageSink(RawMessageSink rawMessageSink) {
+        return new FetchOptions(initialDepthLimit, fetchBatchSize, headersOnly, contentLimits, attachmentSink, knownMessages, rawMessageSink);
+    }
+}
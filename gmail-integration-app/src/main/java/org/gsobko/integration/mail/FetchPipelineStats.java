@@ -0,0 +1,50 @@
+package org.gsobko.integration.mail;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// per stage of the fetch pipeline: ranges waiting for or in the stage, messages passed and time spent in it.
+// Messages per busy second show the slowest stage, the one the others queue up behind
+public class FetchPipelineStats {
+    public enum Stage { FETCH, PARSE, PERSIST }
+
+    private final Map<Stage, AtomicInteger> queueDepth = new EnumMap<>(Stage.class);
+    private final Map<Stage, LongAdder> messages = new EnumMap<>(Stage.class);
+    private final Map<Stage, LongAdder> busyNanos = new EnumMap<>(Stage.class);
+
+    public FetchPipelineStats() {
+        for (Stage stage : Stage.values()) {
+            queueDepth.put(stage, new AtomicInteger());
+            messages.put(stage, new LongAdder());
+            busyNanos.put(stage, new LongAdder());
+        }
+    }
+
+    public int queueDepth(Stage stage) {
+        return queueDepth.get(stage).get();
+    }
+
+    public long messages(Stage stage) {
+        return messages.get(stage).sum();
+    }
+
+    public double messagesPerSecond(Stage stage) {
+        long nanos = busyNanos.get(stage).sum();
+        return nanos == 0 ? 0 : messages(stage) * 1e9 / nanos;
+    }
+
+    void enqueued(Stage stage) {
+        queueDepth.get(stage).incrementAndGet();
+    }
+
+    void dequeued(Stage stage) {
+        queueDepth.get(stage).decrementAndGet();
+    }
+
+    void processed(Stage stage, int messageCount, long startedNanos) {
+        messages.get(stage).add(messageCount);
+        busyNanos.get(stage).add(System.nanoTime() - startedNanos);
+    }
+}
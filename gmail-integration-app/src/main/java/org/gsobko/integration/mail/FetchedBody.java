@@ -0,0 +1,15 @@
+package org.gsobko.integration.mail;
+
+import java.util.List;
+import java.util.Optional;
+
+public record FetchedBody(long imapUid,
+                          Optional<String> text,
+                          Optional<String> html,
+                          List<MimeExtractor.Attachment> attachments,
+                          boolean truncated) {
+
+    public FetchedBody(long imapUid, Optional<String> text, Optional<String> html, List<MimeExtractor.Attachment> attachments) {
+        this(imapUid, text, html, attachments, false);
+    }
+}
@@ -9,6 +9,28 @@ public record FetchedEmail(String messageId, long imapUid,
                            String subject,
                            Optional<String> text,
                            Optional<String> html,
-                           List<String> attachments,
-                           Instant date) {
+                           List<MimeExtractor.Attachment> attachments,
+                           Instant date,
+                           String flags,
+                           boolean hasBody,
+                           int size,
+                           Optional<GmailAttributes> gmail,
+                           boolean truncated) {
+
+    public FetchedEmail(String messageId, long imapUid, String from, String to, String cc, String subject,
+                        Optional<String> text, Optional<String> html, List<MimeExtractor.Attachment> attachments,
+                        Instant date, String flags, boolean hasBody, int size) {
+        this(messageId, imapUid, from, to, cc, subject, text, html, attachments, date, flags, hasBody, size, Optional.empty());
+    }
+
+    public FetchedEmail(String messageId, long imapUid, String from, String to, String cc, String subject,
+                        Optional<String> text, Optional<String> html, List<MimeExtractor.Attachment> attachments,
+                        Instant date, String flags, boolean hasBody, int size, Optional<GmailAttributes> gmail) {
+        this(messageId, imapUid, from, to, cc, subject, text, html, attachments, date, flags, hasBody, size, gmail, false);
+    }
+
+    public FetchedEmail withContent(MimeExtractor.MessageContent content) {
+        return new FetchedEmail(messageId, imapUid, from, to, cc, subject, content.text(), content.html(), content.attachments(),
+                date, flags, hasBody, size, gmail, truncated);
+    }
 }
@@ -0,0 +1,5 @@
+package org.gsobko.integration.mail;
+
+// Message-ID header and, from Gmail, X-GM-MSGID of a message. Either may be null
+public record FetchedMessageIds(String messageId, Long gmailMessageId) {
+}
@@ -0,0 +1,4 @@
+package org.gsobko.integration.mail;
+
+public record FolderStatus(long uidValidity, long highestModSeq) {
+}
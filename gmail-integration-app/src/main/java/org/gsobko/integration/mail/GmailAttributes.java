@@ -0,0 +1,7 @@
+package org.gsobko.integration.mail;
+
+import java.util.List;
+
+// X-GM-MSGID is the same in every folder (label) a Gmail message shows up in, X-GM-THRID groups a conversation
+public record GmailAttributes(long messageId, long threadId, List<String> labels) {
+}
@@ -0,0 +1,180 @@
+package org.gsobko.integration.mail;
+
+import jakarta.mail.FetchProfile;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.URLName;
+import org.eclipse.angus.mail.iap.ParsingException;
+import org.eclipse.angus.mail.iap.ProtocolException;
+import org.eclipse.angus.mail.iap.Response;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.eclipse.angus.mail.imap.IMAPMessage;
+import org.eclipse.angus.mail.imap.IMAPSSLStore;
+import org.eclipse.angus.mail.imap.protocol.FetchItem;
+import org.eclipse.angus.mail.imap.protocol.FetchResponse;
+import org.eclipse.angus.mail.imap.protocol.IMAPProtocol;
+import org.eclipse.angus.mail.imap.protocol.IMAPResponse;
+import org.eclipse.angus.mail.util.MailLogger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+// IMAPS store which understands Gmail's X-GM-MSGID, X-GM-THRID and X-GM-LABELS FETCH items (X-GM-EXT-1),
+// registered as mail.imaps.class. Without the registered items angus fails to parse a FETCH response carrying them
+public class GmailImapStore extends IMAPSSLStore {
+    public static final String GMAIL_CAPABILITY = "X-GM-EXT-1";
+    static final String GOVERNOR_PROPERTY = "org.gsobko.imap.governor";
+    // response codes and texts Gmail (and other servers) answer with when the account is over its limits
+    static final List<String> THROTTLING_MARKERS = List.of("[THROTTLED]", "[OVERQUOTA]", "[UNAVAILABLE]", "[LIMIT]",
+            "bandwidth limits", "Too many simultaneous connections");
+
+    static final FetchProfile.Item MESSAGE_ID = new GmailItem("X-GM-MSGID");
+    static final FetchProfile.Item THREAD_ID = new GmailItem("X-GM-THRID");
+    static final FetchProfile.Item LABELS = new GmailItem("X-GM-LABELS");
+
+    static final FetchItem MESSAGE_ID_ITEM = new FetchItem("X-GM-MSGID", MESSAGE_ID) {
+        @Override
+        public Object parseItem(FetchResponse r) {
+            return r.readLong();
+        }
+    };
+    static final FetchItem THREAD_ID_ITEM = new FetchItem("X-GM-THRID", THREAD_ID) {
+        @Override
+        public Object parseItem(FetchResponse r) {
+            return r.readLong();
+        }
+    };
+    static final FetchItem LABELS_ITEM = new FetchItem("X-GM-LABELS", LABELS) {
+        @Override
+        public Object parseItem(FetchResponse r) throws ParsingException {
+            return parseLabels(r);
+        }
+    };
+    static final FetchItem[] FETCH_ITEMS = {MESSAGE_ID_ITEM, THREAD_ID_ITEM, LABELS_ITEM};
+
+    public GmailImapStore(Session session, URLName url) {
+        super(session, url);
+    }
+
+    @Override
+    protected IMAPProtocol newIMAPProtocol(String host, int port) throws IOException, ProtocolException {
+        ImapGovernor governor = session.getProperties().get(GOVERNOR_PROPERTY) instanceof ImapGovernor configured ? configured : null;
+        return new GmailProtocol(name, host, port, session, isSSL, logger, governor);
+    }
+
+    // the items may only be requested from Gmail, any other server would reject the whole FETCH
+    static boolean supportsGmailItems(IMAPFolder folder) throws MessagingException {
+        return folder.getStore() instanceof GmailImapStore store && store.hasCapability(GMAIL_CAPABILITY);
+    }
+
+    static void addGmailItems(FetchProfile fetchProfile) {
+        fetchProfile.add(MESSAGE_ID);
+        fetchProfile.add(THREAD_ID);
+        fetchProfile.add(LABELS);
+    }
+
+    // only call for messages fetched with MESSAGE_ID
+    static Optional<Long> gmailMessageId(IMAPMessage message) throws MessagingException {
+        return message.getItem(MESSAGE_ID_ITEM) instanceof Long messageId && messageId >= 0 ? Optional.of(messageId) : Optional.empty();
+    }
+
+    // only call for messages fetched with addGmailItems, a missing item is otherwise fetched one by one
+    static Optional<GmailAttributes> gmailAttributes(IMAPMessage message) throws MessagingException {
+        if (!(message.getItem(MESSAGE_ID_ITEM) instanceof Long messageId) || messageId < 0) {
+            return Optional.empty();
+        }
+        long threadId = message.getItem(THREAD_ID_ITEM) instanceof Long id ? id : 0;
+        List<String> labels = message.getItem(LABELS_ITEM) instanceof List<?> names
+                ? names.stream().map(String.class::cast).toList()
+                : List.of();
+        return Optional.of(new GmailAttributes(messageId, threadId, labels));
+    }
+
+    // system labels come as flag-like atoms (\Inbox), which Response.readAtomStringList would loop on forever
+    static List<String> parseLabels(FetchResponse r) throws ParsingException {
+        if (!r.isNextNonSpace('(')) {
+            throw new ParsingException("X-GM-LABELS is not a list");
+        }
+        List<String> labels = new ArrayList<>();
+        while (!r.isNextNonSpace(')')) {
+            String label;
+            if (r.peekByte() == '\\') {
+                r.readByte();
+                label = "\\" + r.readAtom();
+            } else {
+                label = r.readAtomString();
+            }
+            if (label == null || label.isEmpty()) {
+                throw new ParsingException("Unexpected X-GM-LABELS item in %s".formatted(r));
+            }
+            labels.add(label);
+        }
+        return labels;
+    }
+
+    static boolean isThrottling(Response response) {
+        if (!response.isNO() && !response.isBAD() && !response.isBYE()) {
+            return false;
+        }
+        String text = response.toString();
+        return THROTTLING_MARKERS.stream().anyMatch(text::contains);
+    }
+
+    private static class GmailProtocol extends IMAPProtocol {
+        // null until the super constructor, which reads the greeting, is done
+        private final ImapGovernor governor;
+        private volatile boolean loggingOut;
+
+        GmailProtocol(String name, String host, int port, Session session, boolean isSSL, MailLogger logger,
+                      ImapGovernor governor) throws IOException, ProtocolException {
+            super(name, host, port, session.getProperties(), isSSL, logger);
+            this.governor = governor;
+        }
+
+        @Override
+        public FetchItem[] getFetchItems() {
+            return FETCH_ITEMS;
+        }
+
+        @Override
+        public Response readResponse() throws IOException, ProtocolException {
+            CountedResponse response = new CountedResponse(this);
+            if (governor != null) {
+                governor.downloaded(response.byteCount());
+                if (isThrottling(response)) {
+                    governor.throttled(response.toString());
+                } else if (response.isBYE() && !loggingOut) {
+                    governor.disconnected(response.toString());
+                }
+            }
+            return response.keyEquals("FETCH") ? new FetchResponse(response, getFetchItems()) : response;
+        }
+
+        @Override
+        public void logout() throws ProtocolException {
+            // the server says BYE to LOGOUT, that is no disconnect
+            loggingOut = true;
+            super.logout();
+        }
+    }
+
+    // a response which tells how many bytes it was read from, literals (message bodies) included
+    private static class CountedResponse extends IMAPResponse {
+        CountedResponse(IMAPProtocol protocol) throws IOException, ProtocolException {
+            super(protocol);
+        }
+
+        int byteCount() {
+            // CRLF at the end is not part of the response buffer
+            return size + 2;
+        }
+    }
+
+    private static class GmailItem extends FetchProfile.Item {
+        GmailItem(String name) {
+            super(name);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package org.gsobko.integration.mail;
+
+import jakarta.mail.Folder;
+import jakarta.mail.MessagingException;
+import jakarta.mail.PasswordAuthentication;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+import jakarta.mail.event.MailEvent;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.eclipse.angus.mail.imap.ResyncData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.Supplier;
+
+public class ImapConnection implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ImapConnection.class);
+    static final Duration INITIAL_BACKOFF = Duration.ofSeconds(1);
+    static final Duration MAX_BACKOFF = Duration.ofMinutes(2);
+
+    private final Supplier<Session> sessionProvider;
+    private final PasswordAuthentication auth;
+    private final Clock clock;
+
+    private Store store;
+    private IMAPFolder folder;
+    private int failedAttempts;
+    private Instant nextAttemptAt = Instant.MIN;
+
+    public ImapConnection(String username, String password, String hostname, int port, boolean disableSslChecks) {
+        this(imapsSessionProvider(imapsProperties(hostname, port, disableSslChecks)),
+                new PasswordAuthentication(username, password));
+    }
+
+    public ImapConnection(String username, String password, String hostname, int port, boolean disableSslChecks,
+                          ImapGovernor governor) {
+        this(imapsSessionProvider(governedImapsProperties(hostname, port, disableSslChecks, governor)),
+                new PasswordAuthentication(username, password));
+    }
+
+    public ImapConnection(Supplier<Session> sessionProvider, PasswordAuthentication auth) {
+        this(sessionProvider, auth, Clock.systemUTC());
+    }
+
+    ImapConnection(Supplier<Session> sessionProvider, PasswordAuthentication auth, Clock clock) {
+        this.sessionProvider = sessionProvider;
+        this.auth = auth;
+        this.clock = clock;
+    }
+
+    private static Supplier<Session> imapsSessionProvider(Properties imapsProperties) {
+        return () -> Session.getInstance(imapsProperties);
+    }
+
+    static Properties imapsProperties(String hostname, int port, boolean disableSslChecks) {
+        Properties properties = new Properties();
+        properties.put("mail.imaps.host", hostname);
+        properties.put("mail.imaps.port", port);
+        properties.put("mail.imaps.ssl.enable", "true");
+        properties.put("mail.imaps.class", GmailImapStore.class.getName());
+        properties.put("mail.imaps.connectiontimeout", "30000");
+        properties.put("mail.imaps.timeout", "300000");
+        // block size of partial fetches when a big message is streamed
+        properties.put("mail.imaps.fetchsize", "1048576");
+        if (disableSslChecks) {
+            properties.put("mail.imaps.ssl.checkserveridentity", "false");
+            properties.put("mail.imaps.ssl.trust", "*");
+        }
+        return properties;
+    }
+
+    // GmailImapStore reports downloaded bytes and throttling responses of the session to the governor
+    static Properties governedImapsProperties(String hostname, int port, boolean disableSslChecks, ImapGovernor governor) {
+        Properties properties = imapsProperties(hostname, port, disableSslChecks);
+        properties.put(GmailImapStore.GOVERNOR_PROPERTY, governor);
+        return properties;
+    }
+
+    public synchronized IMAPFolder folder(String folderName) throws MessagingException {
+        if (folder != null && folder.getFullName().equals(folderName) && isAlive()) {
+            return folder;
+        }
+        if (store != null && isStoreAlive()) {
+            return select(folderName);
+        }
+        reconnect();
+        return select(folderName);
+    }
+
+    public synchronized List<MailEvent> selectWithResync(String folderName, ResyncData resyncData) throws MessagingException {
+        if (store == null || !isStoreAlive()) {
+            reconnect();
+        }
+        closeFolderQuietly();
+        IMAPFolder newFolder = (IMAPFolder) store.getFolder(folderName);
+        List<MailEvent> events = newFolder.open(Folder.READ_ONLY, resyncData);
+        folder = newFolder;
+        return events == null ? List.of() : events;
+    }
+
+    public synchronized void closeFolder() {
+        closeFolderQuietly();
+    }
+
+    public synchronized void reset() {
+        closeQuietly();
+    }
+
+    @Override
+    public synchronized void close() {
+        closeQuietly();
+    }
+
+    private boolean isAlive() {
+        try {
+            folder.doCommand(protocol -> {
+                protocol.noop();
+                return null;
+            });
+            return true;
+        } catch (MessagingException | RuntimeException e) {
+            logger.warn("IMAP connection health check failed, will reconnect", e);
+            closeQuietly();
+            return false;
+        }
+    }
+
+    private boolean isStoreAlive() {
+        if (store.isConnected()) {
+            return true;
+        }
+        closeQuietly();
+        return false;
+    }
+
+    private IMAPFolder select(String folderName) throws MessagingException {
+        closeFolderQuietly();
+        IMAPFolder newFolder = (IMAPFolder) store.getFolder(folderName);
+        newFolder.open(Folder.READ_ONLY);
+        folder = newFolder;
+        return folder;
+    }
+
+    private void reconnect() throws MessagingException {
+        Instant now = clock.instant();
+        if (now.isBefore(nextAttemptAt)) {
+            throw new MessagingException("IMAP reconnect is backing off after %d failed attempts, next attempt at %s"
+                    .formatted(failedAttempts, nextAttemptAt));
+        }
+        try {
+            Store newStore = sessionProvider.get().getStore("imaps");
+            newStore.connect(auth.getUserName(), auth.getPassword());
+            store = newStore;
+            failedAttempts = 0;
+            nextAttemptAt = Instant.MIN;
+            logger.info("Connected to IMAP store");
+        } catch (MessagingException e) {
+            failedAttempts++;
+            nextAttemptAt = now.plus(backoff(failedAttempts));
+            logger.warn("Could not connect to IMAP store ({} failed attempts), next attempt at {}", failedAttempts, nextAttemptAt);
+            throw e;
+        }
+    }
+
+    static Duration backoff(int failedAttempts) {
+        int exponent = Math.min(failedAttempts - 1, 30);
+        Duration backoff = INITIAL_BACKOFF.multipliedBy(1L << exponent);
+        return backoff.compareTo(MAX_BACKOFF) > 0 ? MAX_BACKOFF : backoff;
+    }
+
+    private void closeQuietly() {
+        closeFolderQuietly();
+        if (store != null) {
+            try {
+                store.close();
+            } catch (MessagingException e) {
+                logger.debug("Could not close IMAP store", e);
+            }
+            store = null;
+        }
+    }
+
+    private void closeFolderQuietly() {
+        if (folder != null) {
+            try {
+                if (folder.isOpen()) {
+                    folder.close(false);
+                }
+            } catch (MessagingException | RuntimeException e) {
+                logger.debug("Could not close IMAP folder", e);
+            }
+            folder = null;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.gsobko.integration.mail;
+
+import jakarta.mail.MessagingException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.function.Supplier;
+
+public class ImapConnectionPool implements Closeable {
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    private final int maxConnections;
+    private final Supplier<ImapConnection> connectionFactory;
+    private final BlockingDeque<ImapConnection> available = new LinkedBlockingDeque<>();
+    private final List<ImapConnection> created = new ArrayList<>();
+    private final ImapGovernor governor;
+
+    public ImapConnectionPool(int maxConnections, Supplier<ImapConnection> connectionFactory) {
+        this(maxConnections, connectionFactory, new ImapGovernor(ImapGovernor.Quota.UNLIMITED));
+    }
+
+    public ImapConnectionPool(int maxConnections, Supplier<ImapConnection> connectionFactory, ImapGovernor governor) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Max connections should be positive, got %d".formatted(maxConnections));
+        }
+        this.maxConnections = maxConnections;
+        this.connectionFactory = connectionFactory;
+        this.governor = governor;
+    }
+
+    public int maxConnections() {
+        return maxConnections;
+    }
+
+    // throws ImapThrottledException without touching the server while the governor holds the account back.
+    // Only a failure of the server or the connection (MessagingException, or an IOException such as
+    // FolderClosedIOException while a message is streamed) counts against the circuit and resets the connection,
+    // the server did answer when the callback failed otherwise (i.e. a UIDVALIDITY check or a parse error)
+    public <T> T withConnection(ConnectionCallback<T> callback) throws Exception {
+        boolean probe = governor.acquire();
+        boolean serverFailed = false;
+        ImapConnection connection;
+        try {
+            connection = borrow();
+        } catch (InterruptedException | RuntimeException e) {
+            governor.release(probe, false);
+            throw e;
+        }
+        try {
+            return callback.call(connection);
+        } catch (MessagingException | IOException e) {
+            serverFailed = true;
+            connection.reset();
+            throw e;
+        } finally {
+            // most recently used connection goes first, so it most likely still has the folder selected
+            available.addFirst(connection);
+            governor.release(probe, !serverFailed);
+        }
+    }
+
+    private ImapConnection borrow() throws InterruptedException {
+        ImapConnection connection = available.pollFirst();
+        if (connection != null) {
+            return connection;
+        }
+        synchronized (created) {
+            if (created.size() < maxConnections) {
+                ImapConnection newConnection = connectionFactory.get();
+                created.add(newConnection);
+                return newConnection;
+            }
+        }
+        return available.takeFirst();
+    }
+
+    @Override
+    public void close() {
+        synchronized (created) {
+            created.forEach(ImapConnection::close);
+        }
+    }
+
+    @FunctionalInterface
+    public interface ConnectionCallback<T> {
+        T call(ImapConnection connection) throws Exception;
+    }
+}
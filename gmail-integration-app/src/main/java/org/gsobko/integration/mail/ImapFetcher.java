@@ -1,119 +1,784 @@
 package org.gsobko.integration.mail;
 
 import jakarta.mail.*;
+import jakarta.mail.event.MailEvent;
+import jakarta.mail.event.MessageChangedEvent;
 import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeMessage;
 import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.eclipse.angus.mail.imap.IMAPMessage;
+import org.eclipse.angus.mail.imap.IMAPStore;
+import org.eclipse.angus.mail.imap.MessageVanishedEvent;
+import org.eclipse.angus.mail.imap.ResyncData;
+import org.eclipse.angus.mail.imap.protocol.BODY;
+import org.eclipse.angus.mail.imap.protocol.BODYSTRUCTURE;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.OptionalLong;
-import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
-public class ImapFetcher {
+import static org.gsobko.integration.mail.FetchPipelineStats.Stage.FETCH;
+import static org.gsobko.integration.mail.FetchPipelineStats.Stage.PARSE;
+import static org.gsobko.integration.mail.FetchPipelineStats.Stage.PERSIST;
+
+// new mail goes through a pipeline of three stages: ranges are fetched on pooled connections, small messages are
+// parsed on a few platform threads after their connection is released, and emails are handed to the reader on
+// a virtual thread, range after range in UID order. At most maxRangesInFlight ranges are between the first and
+// the last stage, so a reader slower than the server holds back fetching instead of filling the memory
+public class ImapFetcher implements Closeable {
     private static final Logger logger = LoggerFactory.getLogger(ImapFetcher.class);
-    private final Properties imapsProperties;
-    private final PasswordAuthentication auth;
+    public static final int DEFAULT_FETCH_BATCH_SIZE = 50;
+    public static final String CONDSTORE_CAPABILITY = "CONDSTORE";
+    public static final String QRESYNC_CAPABILITY = "QRESYNC";
+    private static final int CLOSE_TIMEOUT_SECONDS = 30;
+    private static final MimeExtractor.MessageContent NO_CONTENT = new MimeExtractor.MessageContent(Optional.empty(), Optional.empty(), List.of());
+
+    private final ImapConnectionPool connectionPool;
     private final String folder;
     private final int initialDepthLimit;
+    private final int fetchBatchSize;
+    private final boolean headersOnly;
+    private final ContentLimits contentLimits;
+    private final AttachmentSink attachmentSink;
+    private final KnownMessages knownMessages;
+    private final RawMessageSink rawMessageSink;
+    private final ExecutorService rangeFetchExecutor;
+    private final ExecutorService parseExecutor;
+    private final ExecutorService persistExecutor;
+    private final int maxRangesInFlight;
+    private final FetchPipelineStats stats = new FetchPipelineStats();
 
-    public ImapFetcher(String username, String password, String folder, String hostname,
-                       int port, boolean disableSslChecks, int initialDepthLimit) {
-        this.initialDepthLimit = initialDepthLimit;
-        this.imapsProperties = imapsProperties(hostname, port, disableSslChecks);
-        this.auth = new PasswordAuthentication(username, password);
+    public ImapFetcher(ImapConnectionPool connectionPool, String folder, FetchOptions options) {
+        this.connectionPool = connectionPool;
         this.folder = folder;
+        this.initialDepthLimit = options.initialDepthLimit();
+        this.fetchBatchSize = options.fetchBatchSize();
+        this.headersOnly = options.headersOnly();
+        this.contentLimits = options.contentLimits();
+        this.attachmentSink = options.attachmentSink();
+        this.knownMessages = options.knownMessages();
+        this.rawMessageSink = options.rawMessageSink();
+        // platform threads for IMAP, angus reads the socket holding monitors, which would pin virtual threads
+        this.rangeFetchExecutor = createPlatformExecutor("imap-range-fetcher-", connectionPool.maxConnections());
+        // parsing is CPU bound, no point in more threads than cores or than ranges fetched at once
+        int parseThreads = Math.min(Runtime.getRuntime().availableProcessors(), connectionPool.maxConnections());
+        this.parseExecutor = createPlatformExecutor("imap-parser-", parseThreads);
+        // only one range is persisted at a time, each waits for the one before it
+        this.persistExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("imap-persister-", 1).factory());
+        this.maxRangesInFlight = connectionPool.maxConnections() + parseThreads;
+    }
+
+    private static ExecutorService createPlatformExecutor(String namePrefix, int parallelism) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setName(namePrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public FetchPipelineStats stats() {
+        return stats;
     }
 
-    private static Properties imapsProperties(String hostname, int port, boolean disableSslChecks) {
-        Properties properties = new Properties();
-        properties.put("mail.imaps.host", hostname);
-        properties.put("mail.imaps.port", port);
-        properties.put("mail.imaps.ssl.enable", "true");
-        if (disableSslChecks) {
-            properties.put("mail.imaps.ssl.checkserveridentity", "false");
-            properties.put("mail.imaps.ssl.trust", "*");
+    public FolderStatus folderStatus() {
+        try {
+            return connectionPool.withConnection(connection -> {
+                IMAPFolder emailFolder = connection.folder(folder);
+                // HIGHESTMODSEQ is -1 unless the server announced CONDSTORE when the folder was selected
+                return new FolderStatus(emailFolder.getUIDValidity(), Math.max(emailFolder.getHighestModSeq(), 0));
+            });
+        } catch (Exception e) {
+            throw new IllegalStateException("Error reading status of folder %s".formatted(folder), e);
         }
-        return properties;
     }
 
+    public void fetchEmailsSinceUid(long uidValidity, OptionalLong lastReadUid, Consumer<FetchedEmail> reader) {
+        fetchEmailsSinceUid(uidValidity, lastReadUid, Integer.MAX_VALUE, reader);
+    }
 
-    public void fetchEmailsSinceUid(OptionalLong lastReadUid, Consumer<FetchedEmail> reader) {
+    // fetches up to maxMessages oldest new emails, returns true if there are more new emails left on the server
+    public boolean fetchEmailsSinceUid(long uidValidity, OptionalLong lastReadUid, int maxMessages, Consumer<FetchedEmail> reader) {
         boolean wasNotFetchedBefore = lastReadUid.isEmpty();
-        try (Store store = getStore(); IMAPFolder imapFolder = openFolder(store)) {
+        try {
             logger.info("Requesting for new UIDs since last UID {}", lastReadUid);
-            List<Long> newUuids = getNewUidsSince(imapFolder, lastReadUid);
+            List<Long> newUuids = connectionPool.withConnection(connection ->
+                    getNewUidsSince(checkUidValidity(connection.folder(folder), uidValidity), lastReadUid));
             List<Long> uidsToFetch = limitMaximumNumber(wasNotFetchedBefore, newUuids);
             if (uidsToFetch.isEmpty()) {
                 logger.info("No new mail in folder {}", folder);
-                return;
+                return false;
             }
-            fetchAll(imapFolder, uidsToFetch, reader);
+            if (uidsToFetch.size() > maxMessages) {
+                logger.info("{} new mails in folder {}, fetching first {} of them", uidsToFetch.size(), folder, maxMessages);
+                fetchAll(uidValidity, uidsToFetch.subList(0, maxMessages), reader);
+                return true;
+            }
+            fetchAll(uidValidity, uidsToFetch, reader);
+            return false;
         } catch (Exception e) {
             logger.error("Error reading emails", e);
             throw new IllegalStateException("Error reading emails from folder %s".formatted(folder), e);
         }
     }
 
+    // on Gmail with X-GM-MSGID too, which tells copies sharing a Message-ID apart
+    public Map<Long, FetchedMessageIds> fetchMessageIds() {
+        try {
+            return connectionPool.withConnection(connection -> {
+                IMAPFolder emailFolder = connection.folder(folder);
+                try {
+                    boolean gmail = GmailImapStore.supportsGmailItems(emailFolder);
+                    Message[] messages = emailFolder.getMessages();
+                    FetchProfile fetchProfile = new FetchProfile();
+                    fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+                    fetchProfile.add("Message-ID");
+                    if (gmail) {
+                        fetchProfile.add(GmailImapStore.MESSAGE_ID);
+                    }
+                    emailFolder.fetch(messages, fetchProfile);
+                    Map<Long, FetchedMessageIds> messageIds = new HashMap<>(messages.length);
+                    for (Message message : messages) {
+                        String messageId = ((MimeMessage) message).getMessageID();
+                        Long gmailMessageId = gmail ? GmailImapStore.gmailMessageId((IMAPMessage) message).orElse(null) : null;
+                        if (messageId != null || gmailMessageId != null) {
+                            messageIds.put(emailFolder.getUID(message), new FetchedMessageIds(messageId, gmailMessageId));
+                        }
+                    }
+                    logger.info("Fetched {} message ids from folder {}", messageIds.size(), folder);
+                    return messageIds;
+                } finally {
+                    connection.closeFolder();
+                }
+            });
+        } catch (Exception e) {
+            throw new IllegalStateException("Error reading message ids from folder %s".formatted(folder), e);
+        }
+    }
+
+    public Optional<MailChanges> fetchChangesSince(long uidValidity, long lastUid, long highestModSeq) {
+        try {
+            return connectionPool.withConnection(connection -> {
+                IMAPStore store = (IMAPStore) connection.folder(folder).getStore();
+                try {
+                    // QRESYNC needs a known modseq, first sync after bootstrap goes through CONDSTORE or flags diff
+                    if (store.hasCapability(QRESYNC_CAPABILITY) && highestModSeq > 0) {
+                        return Optional.of(fetchQuickResync(connection, uidValidity, lastUid, highestModSeq));
+                    }
+                    if (store.hasCapability(CONDSTORE_CAPABILITY)) {
+                        return Optional.of(fetchChangedSince(connection, uidValidity, lastUid, highestModSeq));
+                    }
+                    return Optional.empty();
+                } finally {
+                    connection.closeFolder();
+                }
+            });
+        } catch (Exception e) {
+            throw new IllegalStateException("Error reading changes from folder %s".formatted(folder), e);
+        }
+    }
+
+    private MailChanges fetchQuickResync(ImapConnection connection, long uidValidity, long lastUid, long highestModSeq) throws MessagingException {
+        logger.info("Resyncing folder {} with QRESYNC since modseq {}", folder, highestModSeq);
+        // changes and expunges come back as part of the EXAMINE response
+        List<MailEvent> events = connection.selectWithResync(folder, new ResyncData(uidValidity, highestModSeq, 1, lastUid));
+        IMAPFolder emailFolder = checkUidValidity(connection.folder(folder), uidValidity);
+        Map<Long, String> changedFlags = new HashMap<>();
+        List<Long> expungedUids = new ArrayList<>();
+        for (MailEvent event : events) {
+            if (event instanceof MessageVanishedEvent vanished) {
+                LongStream.of(vanished.getUIDs()).forEach(expungedUids::add);
+            } else if (event instanceof MessageChangedEvent changed) {
+                long uid = emailFolder.getUID(changed.getMessage());
+                if (uid <= lastUid) {
+                    changedFlags.put(uid, flagsToString(changed.getMessage().getFlags()));
+                }
+            }
+        }
+        return new MailChanges(changedFlags, Optional.of(expungedUids), emailFolder.getHighestModSeq());
+    }
+
+    private MailChanges fetchChangedSince(ImapConnection connection, long uidValidity, long lastUid, long highestModSeq) throws MessagingException {
+        logger.info("Fetching flags changed in folder {} since modseq {}", folder, highestModSeq);
+        connection.selectWithResync(folder, ResyncData.CONDSTORE);
+        IMAPFolder emailFolder = checkUidValidity(connection.folder(folder), uidValidity);
+        // taken before the fetch, so changes made in between are fetched again next time rather than lost
+        long newHighestModSeq = emailFolder.getHighestModSeq();
+        Map<Long, String> changedFlags = new HashMap<>();
+        for (Message message : emailFolder.getMessagesByUIDChangedSince(1, lastUid, highestModSeq)) {
+            changedFlags.put(emailFolder.getUID(message), flagsToString(message.getFlags()));
+        }
+        return new MailChanges(changedFlags, Optional.empty(), newHighestModSeq);
+    }
+
+    public List<Long> fetchUids(long uidValidity, long fromUid, long toUid) {
+        try {
+            return connectionPool.withConnection(connection -> {
+                IMAPFolder emailFolder = checkUidValidity(connection.folder(folder), uidValidity);
+                long[] uids = (long[]) emailFolder.doCommand(p -> p.fetchSequenceNumbers(fromUid, toUid));
+                return LongStream.of(uids).filter(uid -> uid >= fromUid && uid <= toUid).sorted().boxed().toList();
+            });
+        } catch (Exception e) {
+            throw new IllegalStateException("Error reading uids from folder %s".formatted(folder), e);
+        }
+    }
+
+    public List<FetchedEmail> fetchEmails(long uidValidity, List<Long> uids) {
+        try {
+            // a single range on a single connection, so the rest of the pool stays free for new mail
+            return parseRange(fetchRange(uidValidity, uids));
+        } catch (Exception e) {
+            throw new IllegalStateException("Error reading emails from folder %s".formatted(folder), e);
+        }
+    }
+
+    public Map<Long, String> fetchFlags(long uidValidity, long fromUid, long toUid) {
+        try {
+            return connectionPool.withConnection(connection -> {
+                // FLAGS are fetched by sequence numbers, which are only right if all expunges were reported
+                // to the open folder, so the folder is re-selected rather than trusted
+                connection.closeFolder();
+                IMAPFolder emailFolder = checkUidValidity(connection.folder(folder), uidValidity);
+                try {
+                    Message[] messages = emailFolder.getMessagesByUID(fromUid, toUid);
+                    FetchProfile fetchProfile = new FetchProfile();
+                    fetchProfile.add(FetchProfile.Item.FLAGS);
+                    emailFolder.fetch(messages, fetchProfile);
+                    Map<Long, String> flagsByUid = new HashMap<>(messages.length);
+                    for (Message message : messages) {
+                        flagsByUid.put(emailFolder.getUID(message), flagsToString(message.getFlags()));
+                    }
+                    return flagsByUid;
+                } finally {
+                    connection.closeFolder();
+                }
+            });
+        } catch (Exception e) {
+            throw new IllegalStateException("Error reading flags from folder %s".formatted(folder), e);
+        }
+    }
+
+    static String flagsToString(Flags flags) {
+        Stream<String> systemFlags = Stream.of(flags.getSystemFlags())
+                // \Recent is per session, it would show up as a change on every sync
+                .filter(flag -> flag != Flags.Flag.RECENT)
+                .map(ImapFetcher::systemFlagName);
+        return Stream.concat(systemFlags, Stream.of(flags.getUserFlags()))
+                .filter(Objects::nonNull)
+                .sorted()
+                .collect(Collectors.joining(" "));
+    }
+
+    private static String systemFlagName(Flags.Flag flag) {
+        if (flag == Flags.Flag.ANSWERED) {
+            return "\\Answered";
+        } else if (flag == Flags.Flag.DELETED) {
+            return "\\Deleted";
+        } else if (flag == Flags.Flag.DRAFT) {
+            return "\\Draft";
+        } else if (flag == Flags.Flag.FLAGGED) {
+            return "\\Flagged";
+        } else if (flag == Flags.Flag.SEEN) {
+            return "\\Seen";
+        }
+        return null;
+    }
+
+    private IMAPFolder checkUidValidity(IMAPFolder emailFolder, long expectedUidValidity) throws MessagingException {
+        long uidValidity = emailFolder.getUIDValidity();
+        if (uidValidity != expectedUidValidity) {
+            throw new IllegalStateException("UIDVALIDITY of folder %s changed from %d to %d"
+                    .formatted(folder, expectedUidValidity, uidValidity));
+        }
+        return emailFolder;
+    }
+
     private List<Long> limitMaximumNumber(boolean wasNotFetchedBefore, List<Long> newUuids) {
         if (wasNotFetchedBefore && newUuids.size() > initialDepthLimit) {
-            logger.warn("The initial folder size {} is greater than initial depth limit, will only fetch latest {} messages", newUuids.size(), initialDepthLimit);
+            logger.warn("The initial folder size {} is greater than initial depth limit, will only fetch latest {} messages, older ones are left to backfill",
+                    newUuids.size(), initialDepthLimit);
             return newUuids.subList(newUuids.size() - initialDepthLimit, newUuids.size());
         }
         return newUuids;
     }
 
-    private IMAPFolder openFolder(Store store) throws MessagingException {
-        IMAPFolder emailFolder = (IMAPFolder) store.getFolder(folder);
-        emailFolder.open(Folder.READ_ONLY);
-        return emailFolder;
+    private static List<Long> getNewUidsSince(IMAPFolder emailFolder, OptionalLong lastReadUid) throws MessagingException {
+        long startSequence = lastReadUid.orElse(0L) + 1;
+        logger.info("Fetching UID in range {}:*", startSequence);
+        long[] newUids = (long[]) emailFolder.doCommand(p -> p.fetchSequenceNumbers(startSequence, UIDFolder.LASTUID));
+        // n:* always matches the last message even if its UID is below n
+        return LongStream.of(newUids).filter(uid -> uid >= startSequence).sorted().boxed().toList();
     }
 
-    private Store getStore() throws MessagingException {
-        Session instance = Session.getInstance(imapsProperties);
-        Store store = instance.getStore("imaps");
-        store.connect(auth.getUserName(), auth.getPassword());
-        return store;
+    // only the fetcher's own threads, the connection pool is shared by folders and closed by whoever created it.
+    // Stages in flight are waited for, they use pooled connections and write to the archive
+    @Override
+    public void close() {
+        rangeFetchExecutor.shutdownNow();
+        parseExecutor.shutdownNow();
+        persistExecutor.shutdownNow();
+        awaitTermination(rangeFetchExecutor);
+        awaitTermination(parseExecutor);
+        awaitTermination(persistExecutor);
     }
 
-    private static List<Long> getNewUidsSince(IMAPFolder emailFolder, OptionalLong lastReadUid) throws MessagingException {
-        long startSequence = lastReadUid.orElse(0L) + 1;
-        long uidNext = emailFolder.getUIDNext();
-        logger.info("Fetching UID in range {}:{}", startSequence, uidNext);
-        long[] newUids = (long[]) emailFolder.doCommand(p -> p.fetchSequenceNumbers(startSequence, uidNext));
-        return LongStream.of(newUids).sorted().boxed().toList();
+    private void awaitTermination(ExecutorService executor) {
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Fetch stages of folder {} did not stop within {} seconds", folder, CLOSE_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void fetchAll(long uidValidity, List<Long> uidsToFetch, Consumer<FetchedEmail> reader) throws Exception {
+        List<List<Long>> ranges = splitIntoRanges(uidsToFetch);
+        logger.info("About to fetch {} uids in {} ranges of {} using up to {} connections",
+                uidsToFetch.size(), ranges.size(), fetchBatchSize, connectionPool.maxConnections());
+        long started = System.nanoTime();
+        AtomicBoolean aborted = new AtomicBoolean();
+        AtomicInteger persisted = new AtomicInteger();
+        Deque<CompletableFuture<Void>> inFlight = new ArrayDeque<>();
+        CompletableFuture<Void> previous = CompletableFuture.completedFuture(null);
+        try {
+            for (List<Long> range : ranges) {
+                if (inFlight.size() == maxRangesInFlight) {
+                    // backpressure, the next range is not fetched before the oldest one is persisted
+                    waitFor(inFlight.removeFirst());
+                }
+                stats.enqueued(FETCH);
+                CompletableFuture<List<FetchedEmail>> parsed = CompletableFuture
+                        .supplyAsync(() -> fetchStage(uidValidity, range, aborted), rangeFetchExecutor)
+                        .thenApplyAsync(pending -> parseStage(pending, aborted), parseExecutor);
+                // ranges are persisted strictly in UID order, even if a later range was parsed first,
+                // so the UID checkpoint never jumps over a range that is not fetched yet
+                previous = parsed.thenCombineAsync(previous.handle((ignored, failure) -> Optional.ofNullable(failure)),
+                        (emails, previousFailure) -> persistStage(emails, previousFailure, reader, aborted, persisted, uidsToFetch.size()),
+                        persistExecutor);
+                inFlight.addLast(previous);
+            }
+            while (!inFlight.isEmpty()) {
+                waitFor(inFlight.removeFirst());
+            }
+        } finally {
+            // ranges still in flight after a failure are dropped by the stage they are in
+            aborted.set(true);
+        }
+        long millis = Math.max((System.nanoTime() - started) / 1_000_000, 1);
+        logger.info("Fetched {} uids of folder {} in {}ms, {} per second", persisted.get(), folder, millis, persisted.get() * 1000L / millis);
+    }
+
+    private List<PendingEmail> fetchStage(long uidValidity, List<Long> range, AtomicBoolean aborted) {
+        long started = System.nanoTime();
+        try {
+            checkNotAborted(aborted);
+            List<PendingEmail> pending = fetchRange(uidValidity, range);
+            stats.processed(FETCH, pending.size(), started);
+            stats.enqueued(PARSE);
+            return pending;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        } finally {
+            stats.dequeued(FETCH);
+        }
+    }
+
+    private List<FetchedEmail> parseStage(List<PendingEmail> pending, AtomicBoolean aborted) {
+        long started = System.nanoTime();
+        try {
+            checkNotAborted(aborted);
+            List<FetchedEmail> emails = parseRange(pending);
+            stats.processed(PARSE, emails.size(), started);
+            stats.enqueued(PERSIST);
+            return emails;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        } finally {
+            stats.dequeued(PARSE);
+        }
+    }
+
+    private Void persistStage(List<FetchedEmail> emails, Optional<Throwable> previousFailure, Consumer<FetchedEmail> reader,
+                              AtomicBoolean aborted, AtomicInteger persisted, int total) {
+        long started = System.nanoTime();
+        try {
+            if (previousFailure.isPresent()) {
+                throw previousFailure.get() instanceof CompletionException failure ? failure : new CompletionException(previousFailure.get());
+            }
+            checkNotAborted(aborted);
+            emails.forEach(reader);
+            stats.processed(PERSIST, emails.size(), started);
+            logger.info("Fetched {}/{} uids", persisted.addAndGet(emails.size()), total);
+            return null;
+        } finally {
+            stats.dequeued(PERSIST);
+        }
+    }
+
+    private void checkNotAborted(AtomicBoolean aborted) {
+        if (aborted.get()) {
+            throw new CancellationException("Fetch of folder %s was aborted".formatted(folder));
+        }
+    }
+
+    private List<List<Long>> splitIntoRanges(List<Long> uids) {
+        List<List<Long>> ranges = new ArrayList<>();
+        for (int from = 0; from < uids.size(); from += fetchBatchSize) {
+            ranges.add(uids.subList(from, Math.min(from + fetchBatchSize, uids.size())));
+        }
+        return ranges;
+    }
+
+    private static <T> T waitFor(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+
+    private List<PendingEmail> fetchRange(long uidValidity, List<Long> range) throws Exception {
+        return connectionPool.withConnection(connection -> {
+            IMAPFolder emailFolder = checkUidValidity(connection.folder(folder), uidValidity);
+            try {
+                logger.info("Fetching uids[{}..{}]", range.getFirst(), range.getLast());
+                boolean gmail = GmailImapStore.supportsGmailItems(emailFolder);
+                List<PendingEmail> emails = new ArrayList<>(range.size());
+                List<MimeMessage> messages = fetchBatch(emailFolder, range, newMailFetchProfile(gmail));
+                Map<MimeMessage, GmailAttributes> gmailAttributes = gmail ? gmailAttributes(messages) : Map.of();
+                Set<Long> known = headersOnly ? Set.of() : knownGmailMessageIds(gmailAttributes.values());
+                List<MimeMessage> withBody = messages.stream()
+                        .filter(message -> !isKnown(gmailAttributes.get(message), known))
+                        .toList();
+                if (!headersOnly) {
+                    prefetchSmallMessages(emailFolder, withBody);
+                }
+                for (MimeMessage message : messages) {
+                    long uid = emailFolder.getUID(message);
+                    Optional<GmailAttributes> gmailMessage = Optional.ofNullable(gmailAttributes.get(message));
+                    if (headersOnly || isKnown(gmailMessage.orElse(null), known)) {
+                        // a message saved from another folder (label) is passed on without body, it is only a duplicate to skip
+                        FetchedEmail email = convertToHeadersOnlyEmail(uid, message, gmailMessage);
+                        emails.add(() -> email);
+                    } else if (contentLimits.isOversized(message.getSize())) {
+                        // the rest of the message is only downloaded on request
+                        FetchedEmail email = convertToFetchedEmail(uid, message, truncatedContent(emailFolder, message), gmailMessage, true);
+                        emails.add(() -> email);
+                    } else if (message.getSize() <= contentLimits.streamingThresholdBytes()) {
+                        FetchedEmail email = convertToFetchedEmail(uid, message, NO_CONTENT, gmailMessage, false);
+                        // a copy of the prefetched message, so it is parsed without the folder and its connection
+                        MimeMessage detached = new MimeMessage(message);
+                        emails.add(() -> {
+                            archive(uidValidity, uid, detached);
+                            return email.withContent(extractContent(detached));
+                        });
+                    } else {
+                        // big messages are parsed while they are streamed, that needs the folder open
+                        FetchedEmail email = convertToFetchedEmail(uid, message, streamContent(uidValidity, uid, message), gmailMessage, false);
+                        emails.add(() -> email);
+                    }
+                }
+                if (withBody.size() < messages.size()) {
+                    logger.info("Skipped bodies of {} messages already saved from other folders", messages.size() - withBody.size());
+                }
+                return emails;
+            } finally {
+                // prefetched messages are cached by the folder for as long as it is open
+                connection.closeFolder();
+            }
+        });
+    }
+
+    private static List<FetchedEmail> parseRange(List<PendingEmail> pending) throws Exception {
+        List<FetchedEmail> emails = new ArrayList<>(pending.size());
+        for (PendingEmail email : pending) {
+            emails.add(email.parse());
+        }
+        return emails;
+    }
+
+    private static Map<MimeMessage, GmailAttributes> gmailAttributes(List<MimeMessage> messages) throws MessagingException {
+        Map<MimeMessage, GmailAttributes> attributes = new HashMap<>(messages.size());
+        for (MimeMessage message : messages) {
+            GmailImapStore.gmailAttributes((IMAPMessage) message).ifPresent(gmail -> attributes.put(message, gmail));
+        }
+        return attributes;
+    }
+
+    private Set<Long> knownGmailMessageIds(Collection<GmailAttributes> gmailAttributes) {
+        if (gmailAttributes.isEmpty()) {
+            return Set.of();
+        }
+        return knownMessages.knownGmailMessageIds(gmailAttributes.stream().map(GmailAttributes::messageId).toList());
+    }
+
+    private static boolean isKnown(GmailAttributes gmail, Set<Long> known) {
+        return gmail != null && known.contains(gmail.messageId());
+    }
+
+    public List<FetchedBody> fetchBodies(long uidValidity, List<Long> uids) {
+        return fetchBodies(uidValidity, uids, false);
+    }
+
+    // whole bodies of oversized messages too if full is set, otherwise only their truncated text
+    public List<FetchedBody> fetchBodies(long uidValidity, List<Long> uids, boolean full) {
+        try {
+            return connectionPool.withConnection(connection -> {
+                IMAPFolder emailFolder = checkUidValidity(connection.folder(folder), uidValidity);
+                try {
+                    logger.info("Fetching bodies of {} uids", uids.size());
+                    List<FetchedBody> bodies = new ArrayList<>(uids.size());
+                    List<MimeMessage> messages = fetchBatch(emailFolder, uids, bodyFetchProfile());
+                    prefetchSmallMessages(emailFolder, messages);
+                    for (MimeMessage message : messages) {
+                        long uid = emailFolder.getUID(message);
+                        boolean truncated = !full && contentLimits.isOversized(message.getSize());
+                        MimeExtractor.MessageContent content = truncated
+                                ? truncatedContent(emailFolder, message)
+                                : extractContent(uidValidity, uid, message);
+                        bodies.add(new FetchedBody(uid, content.text(), content.html(), content.attachments(), truncated));
+                    }
+                    return bodies;
+                } finally {
+                    connection.closeFolder();
+                }
+            });
+        } catch (Exception e) {
+            throw new IllegalStateException("Error reading bodies from folder %s".formatted(folder), e);
+        }
+    }
+
+    private static List<MimeMessage> fetchBatch(IMAPFolder emailFolder, List<Long> batch, FetchProfile fetchProfile) throws MessagingException {
+        long[] uids = batch.stream().mapToLong(Long::longValue).toArray();
+        List<MimeMessage> messages = new ArrayList<>(uids.length);
+        for (Message message : emailFolder.getMessagesByUID(uids)) {
+            // null means message was expunged after we have listed uids
+            if (message != null) {
+                messages.add((MimeMessage) message);
+            }
+        }
+        if (messages.size() < uids.length) {
+            logger.warn("{} of {} uids were not found in folder, skipping them", uids.length - messages.size(), uids.length);
+        }
+        if (messages.isEmpty()) {
+            return messages;
+        }
+        emailFolder.fetch(messages.toArray(Message[]::new), fetchProfile);
+        return messages;
+    }
+
+    private static FetchProfile newMailFetchProfile(boolean gmail) {
+        FetchProfile fetchProfile = new FetchProfile();
+        // ENVELOPE is the parsed header (from, to, cc, subject, date, message-id), CONTENT_INFO is BODYSTRUCTURE
+        fetchProfile.add(FetchProfile.Item.ENVELOPE);
+        fetchProfile.add(FetchProfile.Item.CONTENT_INFO);
+        fetchProfile.add(FetchProfile.Item.FLAGS);
+        if (gmail) {
+            GmailImapStore.addGmailItems(fetchProfile);
+        }
+        return fetchProfile;
+    }
+
+    private static FetchProfile bodyFetchProfile() {
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.add(FetchProfile.Item.CONTENT_INFO);
+        fetchProfile.add(FetchProfile.Item.SIZE);
+        return fetchProfile;
+    }
+
+    // small messages are downloaded whole in one batched FETCH, big ones are left to be streamed one by one
+    private void prefetchSmallMessages(IMAPFolder emailFolder, List<MimeMessage> messages) throws MessagingException {
+        List<Message> small = new ArrayList<>(messages.size());
+        for (MimeMessage message : messages) {
+            if (message.getSize() <= contentLimits.streamingThresholdBytes() && !contentLimits.isOversized(message.getSize())) {
+                small.add(message);
+            }
+        }
+        if (!small.isEmpty()) {
+            FetchProfile fetchProfile = new FetchProfile();
+            fetchProfile.add(IMAPFolder.FetchProfileItem.MESSAGE);
+            emailFolder.fetch(small.toArray(Message[]::new), fetchProfile);
+        }
+    }
+
+    private MimeExtractor.MessageContent extractContent(MimeMessage message) throws Exception {
+        return MimeExtractor.extractContent(message, attachmentSink).limitText(contentLimits.maxTextLength());
     }
 
-    private static void fetchAll(IMAPFolder emailFolder, List<Long> uidsToFetch, Consumer<FetchedEmail> reader) throws Exception {
-        logger.info("About to fetch {} uids", uidsToFetch.size());
-        for (int i = 0; i < uidsToFetch.size(); i++) {
-            Long uid = uidsToFetch.get(i);
-            logger.info("Fetching uid[{}]. {}/{}", uid, i + 1, uidsToFetch.size());
-            MimeMessage message = (MimeMessage) emailFolder.getMessageByUID(uid);
-            FetchedEmail fetchedEmail = convertToFetchedEmail(uid, message);
-            reader.accept(fetchedEmail);
+    private MimeExtractor.MessageContent extractContent(long uidValidity, long uid, MimeMessage message) throws Exception {
+        if (message.getSize() <= contentLimits.streamingThresholdBytes()) {
+            archive(uidValidity, uid, message);
+            return extractContent(message);
+        }
+        return streamContent(uidValidity, uid, message);
+    }
+
+    // small messages are archived from memory, after they are downloaded whole
+    private void archive(long uidValidity, long uid, MimeMessage message) throws Exception {
+        if (rawMessageSink == RawMessageSink.DISCARD) {
+            return;
+        }
+        RawMessageSink.RawMessage archived = rawMessageSink.open(uidValidity, uid);
+        try {
+            message.writeTo(archived);
+            archived.close();
+        } finally {
+            archived.abort();
+        }
+    }
+
+    // BODY.PEEK[section]<0.N> of the first text part, attachments are only listed from BODYSTRUCTURE
+    private MimeExtractor.MessageContent truncatedContent(IMAPFolder emailFolder, MimeMessage message) throws Exception {
+        int messageNumber = message.getMessageNumber();
+        // IMAPMessage keeps its BODYSTRUCTURE to itself, oversized messages are rare enough for another round trip
+        BODYSTRUCTURE structure = (BODYSTRUCTURE) emailFolder.doCommand(p -> p.fetchBodyStructure(messageNumber));
+        List<MimeExtractor.Attachment> attachments = MimeExtractor.extractAttachments(message);
+        Optional<TruncatedText.TextPart> textPart = TruncatedText.firstTextPart(structure);
+        if (textPart.isEmpty()) {
+            return new MimeExtractor.MessageContent(Optional.empty(), Optional.empty(), attachments);
+        }
+        int maxBytes = contentLimits.truncatedTextBytes();
+        BODY body = (BODY) emailFolder.doCommand(p -> p.peekBody(messageNumber, textPart.get().section(), 0, maxBytes));
+        byte[] bytes = body == null || body.getByteArray() == null ? new byte[0] : body.getByteArray().getNewBytes();
+        Optional<String> text = Optional.of(TruncatedText.decode(textPart.get(), bytes, bytes.length >= maxBytes));
+        logger.info("Message uid={} of {} bytes is over the size limit, saved {} bytes of its text",
+                emailFolder.getUID(message), message.getSize(), bytes.length);
+        return new MimeExtractor.MessageContent(textPart.get().html() ? Optional.empty() : text,
+                textPart.get().html() ? text : Optional.empty(), attachments).limitText(contentLimits.maxTextLength());
+    }
+
+    private MimeExtractor.MessageContent streamContent(long uidValidity, long uid, MimeMessage message) throws Exception {
+        IMAPMessage imapMessage = (IMAPMessage) message;
+        // BODY.PEEK, reading the body must not mark the mail as seen
+        imapMessage.setPeek(true);
+        if (rawMessageSink == RawMessageSink.DISCARD) {
+            try (InputStream rawMessage = imapMessage.getMimeStream()) {
+                return StreamingMimeParser.parse(rawMessage, contentLimits.maxTextLength(), attachmentSink);
+            }
+        }
+        // big messages are archived while they are streamed, and only if the whole of them was read
+        RawMessageSink.RawMessage archived = rawMessageSink.open(uidValidity, uid);
+        try {
+            MimeExtractor.MessageContent content;
+            try (InputStream rawMessage = new TeeInputStream(imapMessage.getMimeStream(), archived)) {
+                content = StreamingMimeParser.parse(rawMessage, contentLimits.maxTextLength(), attachmentSink);
+                // the parser stops at the closing boundary, the epilogue is archived too
+                rawMessage.transferTo(OutputStream.nullOutputStream());
+            }
+            archived.close();
+            return content;
+        } finally {
+            // does nothing once archived
+            archived.abort();
         }
     }
 
 
-    private static FetchedEmail convertToFetchedEmail(long uid, MimeMessage message) throws Exception {
+    private static FetchedEmail convertToFetchedEmail(long uid, MimeMessage message, MimeExtractor.MessageContent content,
+                                                      Optional<GmailAttributes> gmail, boolean truncated) throws Exception {
         String messageId = message.getMessageID();
         String from = message.getFrom()[0].toString();
         String to = Optional.ofNullable(message.getRecipients(Message.RecipientType.TO)).map(InternetAddress::toString).orElse("");
         String cc = Optional.ofNullable(message.getRecipients(Message.RecipientType.CC)).map(InternetAddress::toString).orElse("");
-        MimeExtractor.MessageContent content = MimeExtractor.extractContent(message);
         String subject = message.getSubject();
         return new FetchedEmail(
                 messageId, uid,
                 from, to, cc,
-                subject, content.text(), content.html(), content.attachmentNames(),
-                message.getSentDate().toInstant()
+                subject, content.text(), content.html(), content.attachments(),
+                message.getSentDate().toInstant(),
+                flagsToString(message.getFlags()),
+                true,
+                message.getSize(),
+                gmail,
+                truncated
         );
     }
 
+    private static FetchedEmail convertToHeadersOnlyEmail(long uid, MimeMessage message, Optional<GmailAttributes> gmail) throws Exception {
+        String to = Optional.ofNullable(message.getRecipients(Message.RecipientType.TO)).map(InternetAddress::toString).orElse("");
+        String cc = Optional.ofNullable(message.getRecipients(Message.RecipientType.CC)).map(InternetAddress::toString).orElse("");
+        return new FetchedEmail(
+                message.getMessageID(), uid,
+                message.getFrom()[0].toString(), to, cc,
+                message.getSubject(), Optional.empty(), Optional.empty(),
+                // attachments come from BODYSTRUCTURE, parts are not downloaded
+                MimeExtractor.extractAttachments(message),
+                message.getSentDate().toInstant(),
+                flagsToString(message.getFlags()),
+                false,
+                message.getSize(),
+                gmail
+        );
+    }
+
+    // a fetched message, parsed by the parse stage once the connection is back in the pool
+    @FunctionalInterface
+    private interface PendingEmail {
+        FetchedEmail parse() throws Exception;
+    }
+
+    // copies whatever is read from the message to the archive
+    private static final class TeeInputStream extends FilterInputStream {
+        private final OutputStream copy;
+
+        private TeeInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
 
-}
\ No newline at end of file
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                copy.write(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes are read, so they are copied too
+            return Math.max(read(new byte[(int) Math.min(n, 8192)]), 0);
+        }
+    }
+}
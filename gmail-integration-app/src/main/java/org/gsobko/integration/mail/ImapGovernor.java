@@ -0,0 +1,173 @@
+package org.gsobko.integration.mail;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+
+// keeps IMAP traffic of the account within Gmail's limits. Downloaded bytes are taken from a token bucket
+// refilled at quota.downloadBytes per quota.window, an operation is refused while the bucket is empty.
+// A throttling response ([THROTTLED], [OVERQUOTA], ...) or a run of unexpected BYEs opens the circuit: operations
+// are refused for the cool-down, then a single probe is let through, its failure opens the circuit for twice as long
+public class ImapGovernor {
+    private static final Logger logger = LoggerFactory.getLogger(ImapGovernor.class);
+    public static final int DEFAULT_DOWNLOAD_MEGABYTES = 2500;
+    public static final int DEFAULT_WINDOW_SECONDS = 24 * 60 * 60;
+    public static final int DEFAULT_COOL_DOWN_SECONDS = 60;
+    public static final int DEFAULT_MAX_COOL_DOWN_SECONDS = 30 * 60;
+    public static final int DEFAULT_DISCONNECT_THRESHOLD = 3;
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final Quota quota;
+    private final Clock clock;
+    private double availableBytes;
+    private Instant refilledAt;
+    private long downloadedBytes;
+    private long rejectedOperations;
+    private State state = State.CLOSED;
+    private Duration coolDown;
+    private Instant openUntil = Instant.MIN;
+    private int disconnects;
+    private boolean probeInFlight;
+
+    public ImapGovernor(Quota quota) {
+        this(quota, Clock.systemUTC());
+    }
+
+    ImapGovernor(Quota quota, Clock clock) {
+        if (quota.downloadBytes() < 1 || !quota.window().isPositive() || !quota.coolDown().isPositive()
+                || quota.maxCoolDown().compareTo(quota.coolDown()) < 0 || quota.disconnectThreshold() < 1) {
+            throw new IllegalArgumentException("IMAP quota should be positive, got %s".formatted(quota));
+        }
+        this.quota = quota;
+        this.clock = clock;
+        this.availableBytes = quota.downloadBytes();
+        this.refilledAt = clock.instant();
+        this.coolDown = quota.coolDown();
+    }
+
+    // returns true if the operation is the probe of a half-open circuit
+    public synchronized boolean acquire() {
+        Instant now = clock.instant();
+        if (state == State.OPEN && !now.isBefore(openUntil)) {
+            state = State.HALF_OPEN;
+        }
+        if (state == State.OPEN) {
+            rejectedOperations++;
+            throw new ImapThrottledException("IMAP circuit is open after throttling, next attempt at %s".formatted(openUntil), openUntil);
+        }
+        if (state == State.HALF_OPEN && probeInFlight) {
+            rejectedOperations++;
+            throw new ImapThrottledException("IMAP circuit is half-open, waiting for the probe to finish", now.plus(quota.coolDown()));
+        }
+        refill(now);
+        if (availableBytes <= 0) {
+            rejectedOperations++;
+            Instant refilled = now.plusMillis(millisToRefill(1 - availableBytes));
+            throw new ImapThrottledException("IMAP download quota of %d bytes per %s is used up, next attempt at %s"
+                    .formatted(quota.downloadBytes(), quota.window(), refilled), refilled);
+        }
+        if (state == State.HALF_OPEN) {
+            probeInFlight = true;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void release(boolean probe, boolean succeeded) {
+        if (!probe) {
+            if (succeeded) {
+                disconnects = 0;
+            }
+            return;
+        }
+        probeInFlight = false;
+        if (state != State.HALF_OPEN) {
+            // the probe got a throttling response, which opened the circuit again
+            return;
+        }
+        if (succeeded) {
+            logger.info("IMAP probe succeeded, closing the circuit");
+            state = State.CLOSED;
+            coolDown = quota.coolDown();
+            disconnects = 0;
+        } else {
+            open("probe failed");
+        }
+    }
+
+    public synchronized void downloaded(long bytes) {
+        refill(clock.instant());
+        availableBytes -= bytes;
+        downloadedBytes += bytes;
+    }
+
+    public synchronized void throttled(String response) {
+        open(response);
+    }
+
+    // a BYE the client did not ask for, Gmail sends it on idle timeout too, so only a run of them counts as throttling
+    public synchronized void disconnected(String response) {
+        if (++disconnects >= quota.disconnectThreshold()) {
+            open("%d unexpected disconnects, last %s".formatted(disconnects, response));
+        }
+    }
+
+    public synchronized State state() {
+        if (state == State.OPEN && !clock.instant().isBefore(openUntil)) {
+            // cool-down is over, the next operation is the probe
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    public synchronized long availableBytes() {
+        refill(clock.instant());
+        return (long) availableBytes;
+    }
+
+    public synchronized long downloadedBytes() {
+        return downloadedBytes;
+    }
+
+    public synchronized long rejectedOperations() {
+        return rejectedOperations;
+    }
+
+    private void open(String reason) {
+        Instant now = clock.instant();
+        if (state == State.OPEN && now.isBefore(openUntil)) {
+            // the other connections report the same throttling
+            return;
+        }
+        if (state != State.CLOSED) {
+            // throttled again right after the cool-down
+            coolDown = coolDown.multipliedBy(2).compareTo(quota.maxCoolDown()) > 0 ? quota.maxCoolDown() : coolDown.multipliedBy(2);
+        }
+        state = State.OPEN;
+        disconnects = 0;
+        openUntil = now.plus(coolDown);
+        logger.warn("IMAP server throttles the account ({}), opening the circuit until {}", reason, openUntil);
+    }
+
+    private void refill(Instant now) {
+        long elapsedMillis = Duration.between(refilledAt, now).toMillis();
+        if (elapsedMillis > 0) {
+            availableBytes = Math.min(quota.downloadBytes(), availableBytes + (double) elapsedMillis * quota.downloadBytes() / quota.window().toMillis());
+            refilledAt = now;
+        }
+    }
+
+    private long millisToRefill(double bytes) {
+        return (long) Math.ceil(bytes * quota.window().toMillis() / quota.downloadBytes());
+    }
+
+    public record Quota(long downloadBytes, Duration window, Duration coolDown, Duration maxCoolDown, int disconnectThreshold) {
+        // no download budget, only the circuit breaker
+        public static final Quota UNLIMITED = new Quota(Long.MAX_VALUE / 2, Duration.ofDays(1),
+                Duration.ofSeconds(DEFAULT_COOL_DOWN_SECONDS), Duration.ofSeconds(DEFAULT_MAX_COOL_DOWN_SECONDS), DEFAULT_DISCONNECT_THRESHOLD);
+    }
+}
@@ -0,0 +1,136 @@
+package org.gsobko.integration.mail;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.event.MessageCountAdapter;
+import jakarta.mail.event.MessageCountEvent;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.eclipse.angus.mail.imap.IMAPStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class ImapIdleWatcher implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ImapIdleWatcher.class);
+    public static final String IDLE_CAPABILITY = "IDLE";
+
+    private final ImapConnection connection;
+    private final String folder;
+    private final Duration reissueInterval;
+    private final Runnable onNewMail;
+    private final Runnable onIdleNotSupported;
+    private final ScheduledExecutorService reissueTimer;
+    private final Thread watcherThread;
+    private volatile boolean running;
+
+    public ImapIdleWatcher(ImapConnection connection, String folder, Duration reissueInterval,
+                           Runnable onNewMail, Runnable onIdleNotSupported) {
+        this.connection = connection;
+        this.folder = folder;
+        this.reissueInterval = reissueInterval;
+        this.onNewMail = onNewMail;
+        this.onIdleNotSupported = onIdleNotSupported;
+        this.reissueTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setName("imap-idle-reissue");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.watcherThread = new Thread(this::watch, "imap-idle-watcher");
+        this.watcherThread.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        watcherThread.start();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        reissueTimer.shutdownNow();
+        connection.close();
+        watcherThread.interrupt();
+    }
+
+    private void watch() {
+        IMAPFolder watchedFolder = null;
+        int failedAttempts = 0;
+        while (running) {
+            try {
+                IMAPFolder imapFolder = connection.folder(folder);
+                if (imapFolder != watchedFolder) {
+                    if (!supportsIdle(imapFolder)) {
+                        logger.warn("IMAP server does not support IDLE, falling back to polling");
+                        running = false;
+                        connection.close();
+                        onIdleNotSupported.run();
+                        return;
+                    }
+                    imapFolder.addMessageCountListener(new NewMailListener());
+                    watchedFolder = imapFolder;
+                    // mail might have arrived while we were not watching
+                    onNewMail.run();
+                }
+                idleOnce(imapFolder);
+                failedAttempts = 0;
+            } catch (MessagingException | RuntimeException e) {
+                if (!running) {
+                    return;
+                }
+                failedAttempts++;
+                logger.warn("IDLE on folder {} failed, will retry", folder, e);
+                connection.reset();
+                watchedFolder = null;
+                sleep(ImapConnection.backoff(failedAttempts));
+            }
+        }
+    }
+
+    private void idleOnce(IMAPFolder imapFolder) throws MessagingException {
+        // servers drop IDLE after a timeout (Gmail ~10 minutes, RFC says >= 29), so we abort and re-issue it periodically
+        ScheduledFuture<?> reissue = reissueTimer.schedule(() -> abortIdle(imapFolder), reissueInterval.toMillis(), TimeUnit.MILLISECONDS);
+        try {
+            imapFolder.idle(true);
+        } finally {
+            reissue.cancel(false);
+        }
+    }
+
+    private static void abortIdle(IMAPFolder imapFolder) {
+        try {
+            // any command on the folder makes IDLE send DONE and return
+            imapFolder.doCommand(protocol -> {
+                protocol.noop();
+                return null;
+            });
+        } catch (MessagingException | RuntimeException e) {
+            logger.debug("Could not abort IDLE", e);
+        }
+    }
+
+    private static boolean supportsIdle(IMAPFolder imapFolder) throws MessagingException {
+        return ((IMAPStore) imapFolder.getStore()).hasCapability(IDLE_CAPABILITY);
+    }
+
+    private static void sleep(Duration duration) {
+        try {
+            Thread.sleep(duration);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class NewMailListener extends MessageCountAdapter {
+        @Override
+        public void messagesAdded(MessageCountEvent e) {
+            logger.info("IDLE notified about {} new messages in folder {}", e.getMessages().length, folder);
+            onNewMail.run();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.gsobko.integration.mail;
+
+import java.time.Instant;
+
+// an IMAP operation refused without contacting the server, as the account is throttled or out of download quota
+public class ImapThrottledException extends RuntimeException {
+    private final Instant retryAt;
+
+    public ImapThrottledException(String message, Instant retryAt) {
+        super(message);
+        this.retryAt = retryAt;
+    }
+
+    public Instant retryAt() {
+        return retryAt;
+    }
+}
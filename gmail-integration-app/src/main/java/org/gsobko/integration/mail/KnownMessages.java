@@ -0,0 +1,12 @@
+package org.gsobko.integration.mail;
+
+import java.util.Collection;
+import java.util.Set;
+
+// tells which of the Gmail messages (by X-GM-MSGID) are already saved, their bodies are not downloaded again
+@FunctionalInterface
+public interface KnownMessages {
+    KnownMessages NONE = gmailMessageIds -> Set.of();
+
+    Set<Long> knownGmailMessageIds(Collection<Long> gmailMessageIds);
+}
@@ -0,0 +1,9 @@
+package org.gsobko.integration.mail;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+// expungedUids is empty when server only tracks flag changes (CONDSTORE without QRESYNC)
+public record MailChanges(Map<Long, String> changedFlags, Optional<List<Long>> expungedUids, long highestModSeq) {
+}
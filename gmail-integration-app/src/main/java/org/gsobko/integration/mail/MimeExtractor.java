@@ -2,31 +2,60 @@ package org.gsobko.integration.mail;
 
 import jakarta.mail.BodyPart;
 import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.ContentType;
 import jakarta.mail.internet.MimeBodyPart;
 import jakarta.mail.internet.MimeMessage;
 import jakarta.mail.internet.MimeMultipart;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
 
 public class MimeExtractor {
     private static final Logger logger = LoggerFactory.getLogger(MimeExtractor.class);
 
-    public record MessageContent(Optional<String> text, Optional<String> html, List<String> attachmentNames) {
+    public record MessageContent(Optional<String> text, Optional<String> html, List<Attachment> attachments) {
 
+        public List<String> attachmentNames() {
+            return attachments.stream().map(Attachment::name).toList();
+        }
+
+        public MessageContent limitText(int maxTextLength) {
+            return new MessageContent(text.map(value -> limit(value, maxTextLength)), html.map(value -> limit(value, maxTextLength)), attachments);
+        }
+
+        private static String limit(String value, int maxLength) {
+            return value.length() > maxLength ? value.substring(0, maxLength) : value;
+        }
+    }
+
+    // size is the decoded size in bytes (-1 until the part is downloaded), sha256 is set once content is stored
+    public record Attachment(String name, String contentType, long size, String sha256) {
+
+        public Attachment(String name, String contentType, long size) {
+            this(name, contentType, size, null);
+        }
     }
 
     public static MessageContent extractContent(MimeMessage message) throws MessagingException, IOException {
+        return extractContent(message, AttachmentSink.DISCARD);
+    }
+
+    public static MessageContent extractContent(MimeMessage message, AttachmentSink attachmentSink) throws MessagingException, IOException {
         if (message.isMimeType("multipart/*")) {
             List<MimeBodyPart> parts = listPartsFlat((MimeMultipart) message.getContent());
             Optional<String> textPlain = findContentInParts(parts, "text/plain");
             Optional<String> html = findContentInParts(parts, "text/html");
-            List<String> attachmentFilenames = findAttachments(parts);
-            return new MessageContent(textPlain, html, attachmentFilenames);
+            return new MessageContent(textPlain, html, findAttachments(parts, attachmentSink));
         }
 
         if (message.isMimeType("text/html")) {
@@ -41,6 +70,46 @@ public class MimeExtractor {
         return new MessageContent(Optional.empty(), Optional.empty(), List.of());
     }
 
+    // a raw message read back from the archive, big ones are parsed as they are when streamed from the server
+    public static MessageContent extractContent(byte[] rawMessage, ContentLimits contentLimits, AttachmentSink attachmentSink)
+            throws MessagingException, IOException {
+        if (rawMessage.length <= contentLimits.streamingThresholdBytes()) {
+            MimeMessage message = new MimeMessage((Session) null, new ByteArrayInputStream(rawMessage));
+            return extractContent(message, attachmentSink).limitText(contentLimits.maxTextLength());
+        }
+        return StreamingMimeParser.parse(new ByteArrayInputStream(rawMessage), contentLimits.maxTextLength(), attachmentSink);
+    }
+
+    // attachments as described by BODYSTRUCTURE, without downloading them
+    public static List<Attachment> extractAttachments(MimeMessage message) throws MessagingException, IOException {
+        if (message.isMimeType("multipart/*")) {
+            List<Attachment> attachments = new ArrayList<>();
+            for (MimeBodyPart part : listPartsFlat((MimeMultipart) message.getContent())) {
+                if (part.getFileName() != null) {
+                    attachments.add(new Attachment(part.getFileName(), baseType(part.getContentType()), -1));
+                }
+            }
+            return attachments;
+        }
+        return List.of();
+    }
+
+    static Attachment readAttachment(String name, String contentType, InputStream content, AttachmentSink attachmentSink) throws IOException {
+        CountingInputStream counting = new CountingInputStream(content);
+        String sha256 = attachmentSink.store(counting);
+        // whatever the sink did not read is still counted
+        counting.transferTo(OutputStream.nullOutputStream());
+        return new Attachment(name, contentType, counting.count, sha256);
+    }
+
+    static String baseType(String contentType) {
+        try {
+            return new ContentType(contentType).getBaseType().toLowerCase(Locale.ROOT);
+        } catch (MessagingException e) {
+            return "application/octet-stream";
+        }
+    }
+
     private static Optional<String> findContentInParts(List<MimeBodyPart> parts, String contentType) throws MessagingException, IOException {
         for (BodyPart part : parts) {
             if (part.isMimeType(contentType)) {
@@ -50,12 +119,14 @@ public class MimeExtractor {
         return Optional.empty();
     }
 
-    private static List<String> findAttachments(List<MimeBodyPart> parts) throws MessagingException {
-        List<String> attachments = new ArrayList<>();
+    private static List<Attachment> findAttachments(List<MimeBodyPart> parts, AttachmentSink attachmentSink) throws MessagingException, IOException {
+        List<Attachment> attachments = new ArrayList<>();
         for (MimeBodyPart part : parts) {
             String fileName = part.getFileName();
             if (fileName != null) {
-                attachments.add(fileName);
+                try (InputStream content = part.getInputStream()) {
+                    attachments.add(readAttachment(fileName, baseType(part.getContentType()), content, attachmentSink));
+                }
             }
         }
         return attachments;
@@ -73,4 +144,37 @@ public class MimeExtractor {
         }
         return bodyParts;
     }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
 }
@@ -0,0 +1,36 @@
+package org.gsobko.integration.mail;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// receives raw RFC822 bytes of every message downloaded whole, so it can be parsed again without IMAP
+@FunctionalInterface
+public interface RawMessageSink {
+    // raw messages are not kept
+    RawMessageSink DISCARD = (uidValidity, uid) -> new RawMessage(OutputStream.nullOutputStream(), () -> {
+    });
+
+    // the message is stored once the returned stream is closed, a failed download is aborted instead
+    RawMessage open(long uidValidity, long uid) throws IOException;
+
+    // a message being stored. abort() drops a message that was not read whole and frees what it holds, it does nothing
+    // once the message is closed
+    final class RawMessage extends FilterOutputStream {
+        private final Runnable abort;
+
+        public RawMessage(OutputStream out, Runnable abort) {
+            super(out);
+            this.abort = abort;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        public void abort() {
+            abort.run();
+        }
+    }
+}
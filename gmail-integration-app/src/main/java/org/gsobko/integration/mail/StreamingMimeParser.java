@@ -0,0 +1,420 @@
+package org.gsobko.integration.mail;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.ContentDisposition;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.InternetHeaders;
+import jakarta.mail.internet.MimeUtility;
+import org.gsobko.integration.mail.MimeExtractor.Attachment;
+import org.gsobko.integration.mail.MimeExtractor.MessageContent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+// walks the MIME tree straight off the raw message stream: text parts are decoded up to a limit,
+// attachments are decoded straight into the attachment sink, nothing else is kept in memory
+public class StreamingMimeParser {
+    private static final Logger logger = LoggerFactory.getLogger(StreamingMimeParser.class);
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_HEADER_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_NESTING = 16;
+
+    public static MessageContent parse(InputStream rawMessage, int maxTextLength) throws IOException, MessagingException {
+        return parse(rawMessage, maxTextLength, AttachmentSink.DISCARD);
+    }
+
+    public static MessageContent parse(InputStream rawMessage, int maxTextLength, AttachmentSink attachmentSink)
+            throws IOException, MessagingException {
+        MimeInput in = new MimeInput(rawMessage);
+        Collector collector = new Collector(maxTextLength, attachmentSink);
+        ContentType contentType = parsePart(readHeaders(in), in, collector, 0);
+        if (collector.isEmpty() && !contentType.match("multipart/*")) {
+            logger.warn("Unsupported message mime type: {}", contentType);
+        }
+        return collector.toContent();
+    }
+
+    private static ContentType parsePart(InternetHeaders headers, MimeInput body, Collector collector, int depth)
+            throws IOException, MessagingException {
+        ContentType contentType = contentType(headers);
+        String boundary = contentType.getParameter("boundary");
+        if (contentType.match("multipart/*") && boundary != null && depth < MAX_NESTING) {
+            parseMultipart(body, boundary, collector, depth + 1);
+            return contentType;
+        }
+        String fileName = fileName(headers, contentType);
+        InputStream decoded = decode(body, headers);
+        if (fileName != null) {
+            collector.attachments.add(MimeExtractor.readAttachment(fileName,
+                    contentType.getBaseType().toLowerCase(Locale.ROOT), decoded, collector.attachmentSink));
+        } else if (contentType.match("text/plain") && collector.text == null) {
+            collector.text = readText(decoded, charset(contentType), collector.maxTextLength);
+        } else if (contentType.match("text/html") && collector.html == null) {
+            collector.html = readText(decoded, charset(contentType), collector.maxTextLength);
+        }
+        return contentType;
+    }
+
+    private static void parseMultipart(MimeInput in, String boundary, Collector collector, int depth)
+            throws IOException, MessagingException {
+        byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        PartInputStream preamble = new PartInputStream(in, delimiter);
+        preamble.drain();
+        boolean hasNext = preamble.delimiterFound() && !preamble.closeDelimiterFound();
+        while (hasNext) {
+            PartInputStream part = new PartInputStream(in, delimiter);
+            MimeInput partInput = new MimeInput(part);
+            parsePart(readHeaders(partInput), partInput, collector, depth);
+            // whatever the part handler did not need is skipped without decoding
+            part.drain();
+            hasNext = part.delimiterFound() && !part.closeDelimiterFound();
+        }
+    }
+
+    private static InternetHeaders readHeaders(MimeInput in) throws IOException {
+        InternetHeaders headers = new InternetHeaders();
+        byte[] chunk = new byte[BUFFER_SIZE];
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int read;
+        while ((read = in.readLineChunk(chunk)) != -1) {
+            if (line.size() < MAX_HEADER_LINE_LENGTH) {
+                line.write(chunk, 0, Math.min(read, MAX_HEADER_LINE_LENGTH - line.size()));
+            }
+            if (!in.atLineStart()) {
+                continue;
+            }
+            String header = stripLineBreak(line.toString(StandardCharsets.UTF_8));
+            line.reset();
+            if (header.isEmpty()) {
+                break;
+            }
+            headers.addHeaderLine(header);
+        }
+        if (line.size() > 0) {
+            headers.addHeaderLine(stripLineBreak(line.toString(StandardCharsets.UTF_8)));
+        }
+        return headers;
+    }
+
+    private static String stripLineBreak(String line) {
+        int end = line.length();
+        while (end > 0 && (line.charAt(end - 1) == '\n' || line.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        return line.substring(0, end);
+    }
+
+    private static ContentType contentType(InternetHeaders headers) {
+        String header = headers.getHeader("Content-Type", null);
+        try {
+            return new ContentType(header == null ? "text/plain" : header);
+        } catch (MessagingException e) {
+            logger.debug("Could not parse content type {}", header, e);
+            return new ContentType("application", "octet-stream", null);
+        }
+    }
+
+    private static String fileName(InternetHeaders headers, ContentType contentType) {
+        String disposition = headers.getHeader("Content-Disposition", null);
+        if (disposition != null) {
+            try {
+                String fileName = new ContentDisposition(disposition).getParameter("filename");
+                if (fileName != null) {
+                    return fileName;
+                }
+            } catch (MessagingException e) {
+                logger.debug("Could not parse content disposition {}", disposition, e);
+            }
+        }
+        return contentType.getParameter("name");
+    }
+
+    private static InputStream decode(InputStream body, InternetHeaders headers) {
+        String encoding = headers.getHeader("Content-Transfer-Encoding", null);
+        if (encoding == null) {
+            return body;
+        }
+        try {
+            return MimeUtility.decode(body, encoding.trim());
+        } catch (MessagingException e) {
+            logger.debug("Unknown transfer encoding {}, reading part as is", encoding);
+            return body;
+        }
+    }
+
+    private static Charset charset(ContentType contentType) {
+        String charset = contentType.getParameter("charset");
+        if (charset == null) {
+            return StandardCharsets.UTF_8;
+        }
+        try {
+            return Charset.forName(MimeUtility.javaCharset(charset));
+        } catch (RuntimeException e) {
+            logger.debug("Unsupported charset {}, decoding as UTF-8", charset);
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    private static String readText(InputStream decoded, Charset charset, int maxLength) throws IOException {
+        Reader reader = new InputStreamReader(decoded, charset);
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[Math.min(BUFFER_SIZE, Math.max(maxLength, 1))];
+        int read;
+        while (text.length() < maxLength
+                && (read = reader.read(buffer, 0, Math.min(buffer.length, maxLength - text.length()))) != -1) {
+            text.append(buffer, 0, read);
+        }
+        return text.toString();
+    }
+
+    private static final class Collector {
+        private final int maxTextLength;
+        private final AttachmentSink attachmentSink;
+        private final List<Attachment> attachments = new ArrayList<>();
+        private String text;
+        private String html;
+
+        private Collector(int maxTextLength, AttachmentSink attachmentSink) {
+            this.maxTextLength = maxTextLength;
+            this.attachmentSink = attachmentSink;
+        }
+
+        private boolean isEmpty() {
+            return text == null && html == null && attachments.isEmpty();
+        }
+
+        private MessageContent toContent() {
+            return new MessageContent(Optional.ofNullable(text), Optional.ofNullable(html), attachments);
+        }
+    }
+
+    // buffered input which can also hand out line sized chunks, to spot boundaries without reading whole lines
+    static final class MimeInput extends InputStream {
+        private final InputStream in;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+        private int limit;
+        private boolean atLineStart = true;
+
+        MimeInput(InputStream in) {
+            this.in = in;
+        }
+
+        private boolean fill() throws IOException {
+            if (position < limit) {
+                return true;
+            }
+            int read;
+            do {
+                read = in.read(buffer, 0, buffer.length);
+            } while (read == 0);
+            if (read == -1) {
+                return false;
+            }
+            position = 0;
+            limit = read;
+            return true;
+        }
+
+        // true if the next byte begins a new line
+        boolean atLineStart() {
+            return atLineStart;
+        }
+
+        // reads up to and including the next line feed, but no more than dst.length bytes
+        int readLineChunk(byte[] dst) throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            int length = 0;
+            while (length < dst.length && (position < limit || fill())) {
+                byte b = buffer[position++];
+                dst[length++] = b;
+                if (b == '\n') {
+                    break;
+                }
+            }
+            atLineStart = dst[length - 1] == '\n';
+            return length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            byte b = buffer[position++];
+            atLineStart = b == '\n';
+            return b & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int length = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, length);
+            position += length;
+            atLineStart = buffer[position - 1] == '\n';
+            return length;
+        }
+    }
+
+    // content of a single body part, ends right before the line break preceding the next boundary delimiter
+    static final class PartInputStream extends InputStream {
+        private final MimeInput in;
+        private final byte[] delimiter;
+        private final byte[] chunk = new byte[BUFFER_SIZE];
+        private int chunkPosition;
+        private int chunkLength;
+        // a line break is held back until it is known not to be part of a delimiter
+        private final byte[] heldLineBreak = new byte[2];
+        private int heldLength;
+        private final byte[] lineBreak = new byte[2];
+        private int lineBreakPosition;
+        private int lineBreakLength;
+        private boolean ended;
+        private boolean delimiterFound;
+        private boolean closeDelimiterFound;
+
+        PartInputStream(MimeInput in, byte[] delimiter) {
+            this.in = in;
+            this.delimiter = delimiter;
+        }
+
+        boolean delimiterFound() {
+            return delimiterFound;
+        }
+
+        boolean closeDelimiterFound() {
+            return closeDelimiterFound;
+        }
+
+        void drain() throws IOException {
+            while (fill()) {
+                chunkPosition = chunkLength;
+                lineBreakPosition = lineBreakLength;
+            }
+        }
+
+        private boolean fill() throws IOException {
+            while (lineBreakPosition == lineBreakLength && chunkPosition == chunkLength) {
+                if (ended) {
+                    return false;
+                }
+                boolean lineStart = in.atLineStart();
+                int read = in.readLineChunk(chunk);
+                chunkPosition = 0;
+                chunkLength = 0;
+                if (read == -1) {
+                    // no closing delimiter, the held line break is part of the content
+                    ended = true;
+                    releaseHeldLineBreak();
+                } else if (lineStart && isDelimiter(read)) {
+                    ended = true;
+                    delimiterFound = true;
+                    skipRestOfLine(read);
+                } else if (heldLength == 1 && heldLineBreak[0] == '\r' && read == 1 && chunk[0] == '\n') {
+                    // CR LF split between two chunks
+                    heldLineBreak[heldLength++] = '\n';
+                } else {
+                    releaseHeldLineBreak();
+                    chunkLength = read - holdLineBreak(read);
+                }
+            }
+            return true;
+        }
+
+        private void releaseHeldLineBreak() {
+            System.arraycopy(heldLineBreak, 0, lineBreak, 0, heldLength);
+            lineBreakPosition = 0;
+            lineBreakLength = heldLength;
+            heldLength = 0;
+        }
+
+        private int holdLineBreak(int length) {
+            if (chunk[length - 1] == '\n') {
+                boolean crlf = length > 1 && chunk[length - 2] == '\r';
+                heldLength = crlf ? 2 : 1;
+                heldLineBreak[0] = crlf ? (byte) '\r' : (byte) '\n';
+                heldLineBreak[1] = '\n';
+            } else if (chunk[length - 1] == '\r') {
+                heldLength = 1;
+                heldLineBreak[0] = '\r';
+            }
+            return heldLength;
+        }
+
+        private boolean isDelimiter(int length) {
+            if (length < delimiter.length) {
+                return false;
+            }
+            for (int i = 0; i < delimiter.length; i++) {
+                if (chunk[i] != delimiter[i]) {
+                    return false;
+                }
+            }
+            int i = delimiter.length;
+            boolean close = i + 1 < length && chunk[i] == '-' && chunk[i + 1] == '-';
+            for (i = close ? i + 2 : i; i < length; i++) {
+                if (chunk[i] != ' ' && chunk[i] != '\t' && chunk[i] != '\r' && chunk[i] != '\n') {
+                    return false;
+                }
+            }
+            closeDelimiterFound = close;
+            return true;
+        }
+
+        private void skipRestOfLine(int read) throws IOException {
+            while (!in.atLineStart() && read != -1) {
+                read = in.readLineChunk(chunk);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            if (lineBreakPosition < lineBreakLength) {
+                return lineBreak[lineBreakPosition++] & 0xff;
+            }
+            return chunk[chunkPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            if (lineBreakPosition < lineBreakLength) {
+                int length = Math.min(len, lineBreakLength - lineBreakPosition);
+                System.arraycopy(lineBreak, lineBreakPosition, b, off, length);
+                lineBreakPosition += length;
+                return length;
+            }
+            int length = Math.min(len, chunkLength - chunkPosition);
+            System.arraycopy(chunk, chunkPosition, b, off, length);
+            chunkPosition += length;
+            return length;
+        }
+    }
+}
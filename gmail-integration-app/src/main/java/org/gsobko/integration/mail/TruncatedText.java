@@ -0,0 +1,103 @@
+package org.gsobko.integration.mail;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Part;
+import jakarta.mail.internet.MimeUtility;
+import org.eclipse.angus.mail.imap.protocol.BODYSTRUCTURE;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+// the beginning of the text of an oversized message, fetched with BODY.PEEK[section]<0.N> instead of the whole message
+final class TruncatedText {
+
+    private TruncatedText() {
+    }
+
+    // section of a text part in IMAP terms, TEXT is the body of a single part message
+    record TextPart(String section, boolean html, String encoding, String charset) {
+    }
+
+    // first text/plain part which is not an attachment, or the first text/html one if there is no plain text
+    static Optional<TextPart> firstTextPart(BODYSTRUCTURE structure) {
+        return firstTextPart(structure, "", false).or(() -> firstTextPart(structure, "", true));
+    }
+
+    private static Optional<TextPart> firstTextPart(BODYSTRUCTURE part, String section, boolean html) {
+        if (part.isMulti()) {
+            for (int i = 0; i < part.bodies.length; i++) {
+                String childSection = section.isEmpty() ? String.valueOf(i + 1) : section + "." + (i + 1);
+                Optional<TextPart> found = firstTextPart(part.bodies[i], childSection, html);
+                if (found.isPresent()) {
+                    return found;
+                }
+            }
+            return Optional.empty();
+        }
+        if (!"text".equalsIgnoreCase(part.type) || Part.ATTACHMENT.equalsIgnoreCase(part.disposition)
+                || !(html ? "html" : "plain").equalsIgnoreCase(part.subtype)) {
+            return Optional.empty();
+        }
+        String charset = part.cParams == null ? null : part.cParams.get("charset");
+        return Optional.of(new TextPart(section.isEmpty() ? "TEXT" : section, html, part.encoding, charset));
+    }
+
+    // bytes are the first ones of the part, cut is true if the part goes on after them
+    static String decode(TextPart part, byte[] bytes, boolean cut) throws IOException, MessagingException {
+        int length = bytes.length;
+        if (cut) {
+            // the last line may end in the middle of a base64 quantum, a quoted-printable escape or a character
+            int lastLineEnd = lastIndexOf(bytes, length, (byte) '\n');
+            if (lastLineEnd >= 0) {
+                length = lastLineEnd + 1;
+            }
+            if ("base64".equalsIgnoreCase(part.encoding())) {
+                length = wholeBase64Quanta(bytes, length);
+            }
+        }
+        String encoding = part.encoding() == null ? "7bit" : part.encoding();
+        try (InputStream decoded = MimeUtility.decode(new ByteArrayInputStream(bytes, 0, length), encoding)) {
+            return new String(decoded.readAllBytes(), charset(part.charset()));
+        }
+    }
+
+    private static int lastIndexOf(byte[] bytes, int length, byte value) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int wholeBase64Quanta(byte[] bytes, int length) {
+        int significant = 0;
+        for (int i = 0; i < length; i++) {
+            if (!Character.isWhitespace(bytes[i])) {
+                significant++;
+            }
+        }
+        while (significant % 4 != 0) {
+            length--;
+            if (!Character.isWhitespace(bytes[length])) {
+                significant--;
+            }
+        }
+        return length;
+    }
+
+    private static Charset charset(String mimeCharset) {
+        if (mimeCharset == null) {
+            return StandardCharsets.UTF_8;
+        }
+        try {
+            return Charset.forName(MimeUtility.javaCharset(mimeCharset));
+        } catch (IllegalArgumentException e) {
+            return StandardCharsets.UTF_8;
+        }
+    }
+}
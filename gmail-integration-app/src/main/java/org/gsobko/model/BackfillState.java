@@ -0,0 +1,13 @@
+package org.gsobko.model;
+
+// every mail with UID >= lowWaterUid is either saved or was never fetched by design (expunged)
+public record BackfillState(
+        String account,
+        String folder,
+        long uidValidity,
+        long lowWaterUid) {
+
+    public BackfillState withLowWaterUid(long lowWaterUid) {
+        return new BackfillState(account, folder, uidValidity, lowWaterUid);
+    }
+}
@@ -0,0 +1,8 @@
+package org.gsobko.model;
+
+public enum BodyState {
+    HEADERS,
+    // over gmail.max_message_bytes, only the beginning of the text is saved until the whole body is requested
+    TRUNCATED,
+    FULL
+}
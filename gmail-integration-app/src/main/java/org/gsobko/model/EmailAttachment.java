@@ -0,0 +1,9 @@
+package org.gsobko.model;
+
+// attachment content is kept in the attachment store under its SHA-256
+public record EmailAttachment(
+        String name,
+        String contentType,
+        long size,
+        String sha256) {
+}
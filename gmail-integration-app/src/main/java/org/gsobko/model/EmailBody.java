@@ -0,0 +1,15 @@
+package org.gsobko.model;
+
+import java.util.List;
+
+public record EmailBody(long imapUid, String text, String html, List<String> attachments,
+                        List<EmailAttachment> storedAttachments, boolean truncated) {
+
+    public EmailBody(long imapUid, String text, String html, List<String> attachments) {
+        this(imapUid, text, html, attachments, List.of());
+    }
+
+    public EmailBody(long imapUid, String text, String html, List<String> attachments, List<EmailAttachment> storedAttachments) {
+        this(imapUid, text, html, attachments, storedAttachments, false);
+    }
+}
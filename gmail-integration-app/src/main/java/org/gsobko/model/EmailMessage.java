@@ -1,5 +1,7 @@
 package org.gsobko.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import java.time.Instant;
 import java.util.List;
 import java.util.UUID;
@@ -14,16 +16,56 @@ public record EmailMessage(
         String to,
         String cc,
         String subject,
+        // first SNIPPET_LENGTH characters of text with whitespace collapsed, saved with it so lists need not read bodies
+        String snippet,
         String text,
         String html,
         List<String> attachments,
         Instant sentDate,
-        Instant createdDate) {
+        Instant createdDate,
+        String flags,
+        boolean deleted,
+        BodyState bodyState,
+        String folder,
+        // Gmail X-GM-MSGID and X-GM-THRID, null for other servers
+        Long gmailMessageId,
+        Long gmailThreadId,
+        List<String> labels,
+        // only set when saving, attachments are served one by one from /mails/{id}/attachments/{n}
+        @JsonIgnore List<EmailAttachment> storedAttachments) {
+    public static final int SNIPPET_LENGTH = 200;
 
     public static Builder builder() {
         return new Builder();
     }
 
+    public static String snippetOf(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder snippet = new StringBuilder(SNIPPET_LENGTH);
+        boolean space = false;
+        for (int i = 0; i < text.length() && snippet.length() < SNIPPET_LENGTH; i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = !snippet.isEmpty();
+            } else if (space && snippet.length() + 1 == SNIPPET_LENGTH) {
+                break;
+            } else {
+                if (space) {
+                    snippet.append(' ');
+                    space = false;
+                }
+                snippet.append(c);
+            }
+        }
+        // a surrogate pair is not cut in half
+        if (!snippet.isEmpty() && Character.isHighSurrogate(snippet.charAt(snippet.length() - 1))) {
+            snippet.setLength(snippet.length() - 1);
+        }
+        return snippet.toString();
+    }
+
     public static class Builder {
         private UUID id;
         private Long imapUid;
@@ -32,11 +74,20 @@ public record EmailMessage(
         private String to;
         private String cc;
         private String subject;
+        private String snippet;
         private String text;
         private String html;
         private List<String> attachments = emptyList();
         private Instant sentDate;
         private Instant createdDate;
+        private String flags = "";
+        private boolean deleted;
+        private BodyState bodyState = BodyState.FULL;
+        private String folder = "";
+        private Long gmailMessageId;
+        private Long gmailThreadId;
+        private List<String> labels = emptyList();
+        private List<EmailAttachment> storedAttachments = emptyList();
 
         public Builder withId(UUID id) {
             this.id = id;
@@ -73,6 +124,12 @@ public record EmailMessage(
             return this;
         }
 
+        // computed from text when not set
+        public Builder withSnippet(String snippet) {
+            this.snippet = snippet;
+            return this;
+        }
+
         public Builder withText(String text) {
             this.text = text;
             return this;
@@ -98,6 +155,46 @@ public record EmailMessage(
             return this;
         }
 
+        public Builder withFlags(String flags) {
+            this.flags = flags;
+            return this;
+        }
+
+        public Builder withDeleted(boolean deleted) {
+            this.deleted = deleted;
+            return this;
+        }
+
+        public Builder withBodyState(BodyState bodyState) {
+            this.bodyState = bodyState;
+            return this;
+        }
+
+        public Builder withFolder(String folder) {
+            this.folder = folder;
+            return this;
+        }
+
+        public Builder withGmailMessageId(Long gmailMessageId) {
+            this.gmailMessageId = gmailMessageId;
+            return this;
+        }
+
+        public Builder withGmailThreadId(Long gmailThreadId) {
+            this.gmailThreadId = gmailThreadId;
+            return this;
+        }
+
+        public Builder withLabels(List<String> labels) {
+            this.labels = labels;
+            return this;
+        }
+
+        public Builder withStoredAttachments(List<EmailAttachment> storedAttachments) {
+            this.storedAttachments = storedAttachments;
+            return this;
+        }
+
         public EmailMessage build() {
             return new EmailMessage(
                     id,
@@ -107,11 +204,20 @@ public record EmailMessage(
                     to,
                     cc,
                     subject,
+                    snippet != null ? snippet : snippetOf(text),
                     text,
                     html,
                     attachments,
                     sentDate,
-                    createdDate
+                    createdDate,
+                    flags,
+                    deleted,
+                    bodyState,
+                    folder,
+                    gmailMessageId,
+                    gmailThreadId,
+                    labels,
+                    storedAttachments
             );
         }
     }
@@ -0,0 +1,35 @@
+package org.gsobko.model;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.UUID;
+
+// position in /mails, the next page starts right after the mail with this created date and id
+public record MailCursor(Instant createdDate, UUID id) {
+    private static final String SEPARATOR = "|";
+
+    public static MailCursor of(EmailMessage email) {
+        return new MailCursor(email.createdDate(), email.id());
+    }
+
+    // opaque to clients, so the key can change without breaking them
+    public String encode() {
+        byte[] key = (createdDate + SEPARATOR + id).getBytes(StandardCharsets.US_ASCII);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key);
+    }
+
+    public static MailCursor decode(String cursor) {
+        try {
+            String key = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII);
+            int separator = key.indexOf(SEPARATOR);
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid cursor %s".formatted(cursor));
+            }
+            return new MailCursor(Instant.parse(key.substring(0, separator)), UUID.fromString(key.substring(separator + 1)));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid cursor %s".formatted(cursor), e);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.gsobko.model;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+// fields of EmailMessage as named in JSON, with the emails column each one is read from. /mails reads and writes
+// only the requested ones
+public enum MailField {
+    ID("id", "id", EmailMessage::id),
+    IMAP_UID("imapUid", "imap_uid", EmailMessage::imapUid),
+    MESSAGE_ID("messageId", "message_id", EmailMessage::messageId),
+    FROM("from", "mail_from", EmailMessage::from),
+    TO("to", "mail_to", EmailMessage::to),
+    CC("cc", "mail_cc", EmailMessage::cc),
+    SUBJECT("subject", "subject", EmailMessage::subject),
+    SNIPPET("snippet", "snippet", EmailMessage::snippet),
+    // bodies are compressed in email_bodies
+    TEXT("text", "text_compressed", EmailMessage::text),
+    HTML("html", "html_compressed", EmailMessage::html),
+    ATTACHMENTS("attachments", "attachments", EmailMessage::attachments),
+    SENT_DATE("sentDate", "sent_date", EmailMessage::sentDate),
+    CREATED_DATE("createdDate", "created_date", EmailMessage::createdDate),
+    FLAGS("flags", "flags", EmailMessage::flags),
+    DELETED("deleted", "deleted", EmailMessage::deleted),
+    BODY_STATE("bodyState", "body_state", EmailMessage::bodyState),
+    FOLDER("folder", "folder", EmailMessage::folder),
+    GMAIL_MESSAGE_ID("gmailMessageId", "gm_msgid", EmailMessage::gmailMessageId),
+    GMAIL_THREAD_ID("gmailThreadId", "gm_thrid", EmailMessage::gmailThreadId),
+    LABELS("labels", "gm_labels", EmailMessage::labels);
+
+    public static final Set<MailField> ALL = Collections.unmodifiableSet(EnumSet.allOf(MailField.class));
+    // everything but the bodies
+    public static final Set<MailField> SUMMARY = Collections.unmodifiableSet(EnumSet.complementOf(EnumSet.of(TEXT, HTML)));
+
+    private final String jsonName;
+    private final String column;
+    private final Function<EmailMessage, Object> value;
+
+    MailField(String jsonName, String column, Function<EmailMessage, Object> value) {
+        this.jsonName = jsonName;
+        this.column = column;
+        this.value = value;
+    }
+
+    public static MailField ofJsonName(String jsonName) {
+        return Stream.of(values())
+                .filter(field -> field.jsonName.equals(jsonName))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown mail field %s".formatted(jsonName)));
+    }
+
+    public String jsonName() {
+        return jsonName;
+    }
+
+    public String column() {
+        return column;
+    }
+
+    public Object valueOf(EmailMessage email) {
+        return value.apply(email);
+    }
+}
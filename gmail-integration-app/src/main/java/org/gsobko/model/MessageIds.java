@@ -0,0 +1,6 @@
+package org.gsobko.model;
+
+// what a message is known by across UIDVALIDITY changes: its Message-ID, which copies of a mail may share, and
+// on Gmail its X-GM-MSGID, unique in the account. Either may be null
+public record MessageIds(String messageId, Long gmailMessageId) {
+}
@@ -0,0 +1,17 @@
+package org.gsobko.model;
+
+public record SyncState(
+        String account,
+        String folder,
+        long uidValidity,
+        long lastUid,
+        long highestModSeq) {
+
+    public SyncState withLastUid(long lastUid) {
+        return new SyncState(account, folder, uidValidity, lastUid, highestModSeq);
+    }
+
+    public SyncState withHighestModSeq(long highestModSeq) {
+        return new SyncState(account, folder, uidValidity, lastUid, highestModSeq);
+    }
+}
@@ -0,0 +1,67 @@
+package org.gsobko.repo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+// content-addressed files: <dir>/ab/cd/abcd...ef named by SHA-256 of the content, so every distinct content is stored once
+public class AttachmentStore {
+    private static final String TEMP_DIR = "tmp";
+
+    private final Path dir;
+    private final Path tempDir;
+
+    public AttachmentStore(Path dir) {
+        this.dir = dir;
+        this.tempDir = dir.resolve(TEMP_DIR);
+        try {
+            Files.createDirectories(tempDir);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create attachment store in %s".formatted(dir), e);
+        }
+    }
+
+    // content is hashed while written to a temp file, which is then renamed into place
+    public String store(InputStream content) throws IOException {
+        Path temp = Files.createTempFile(tempDir, "attachment", ".tmp");
+        try {
+            MessageDigest digest = sha256();
+            try (OutputStream out = new DigestOutputStream(Files.newOutputStream(temp), digest)) {
+                content.transferTo(out);
+            }
+            String sha256 = HexFormat.of().formatHex(digest.digest());
+            Path file = path(sha256);
+            if (!Files.exists(file)) {
+                Files.createDirectories(file.getParent());
+                // the same content stored concurrently is just replaced by an identical file
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return sha256;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public Path path(String sha256) {
+        if (sha256.length() != 64 || !sha256.chars().allMatch(c -> Character.digit(c, 16) != -1)) {
+            throw new IllegalArgumentException("Not a SHA-256 hash: %s".formatted(sha256));
+        }
+        return dir.resolve(sha256.substring(0, 2)).resolve(sha256.substring(2, 4)).resolve(sha256);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
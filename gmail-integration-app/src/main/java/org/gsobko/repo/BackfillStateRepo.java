@@ -0,0 +1,77 @@
+package org.gsobko.repo;
+
+import org.gsobko.model.BackfillState;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.time.Instant;
+import java.util.Optional;
+
+public class BackfillStateRepo {
+
+    private static final String SELECT_SQL = """
+            SELECT * FROM backfill_state
+            WHERE account = ? AND folder = ?
+            """;
+
+    private static final String UPDATE_SQL = """
+            UPDATE backfill_state SET uid_validity = ?, low_water_uid = ?, updated_date = ?
+            WHERE account = ? AND folder = ?
+            """;
+
+    private static final String INSERT_SQL = """
+            INSERT INTO backfill_state (account, folder, uid_validity, low_water_uid, updated_date)
+            VALUES (?, ?, ?, ?, ?)
+            """;
+
+    private final DataSource dataSource;
+
+    public BackfillStateRepo(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public Optional<BackfillState> find(String account, String folder) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(SELECT_SQL)) {
+            ps.setString(1, account);
+            ps.setString(2, folder);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return Optional.of(new BackfillState(
+                            rs.getString("account"),
+                            rs.getString("folder"),
+                            rs.getLong("uid_validity"),
+                            rs.getLong("low_water_uid")));
+                }
+                return Optional.empty();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to load backfill state", e);
+        }
+    }
+
+    public void save(BackfillState state) {
+        try (Connection conn = dataSource.getConnection()) {
+            try (PreparedStatement ps = conn.prepareStatement(UPDATE_SQL)) {
+                ps.setLong(1, state.uidValidity());
+                ps.setLong(2, state.lowWaterUid());
+                ps.setTimestamp(3, Timestamp.from(Instant.now()));
+                ps.setString(4, state.account());
+                ps.setString(5, state.folder());
+                if (ps.executeUpdate() > 0) {
+                    return;
+                }
+            }
+            try (PreparedStatement ps = conn.prepareStatement(INSERT_SQL)) {
+                ps.setString(1, state.account());
+                ps.setString(2, state.folder());
+                ps.setLong(3, state.uidValidity());
+                ps.setLong(4, state.lowWaterUid());
+                ps.setTimestamp(5, Timestamp.from(Instant.now()));
+                ps.executeUpdate();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to save backfill state", e);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.gsobko.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// bodies are stored deflated with a preset dictionary of markup and phrases common in mail, so even a short html body
+// compresses. The first byte tells how the rest is encoded: a dictionary file must never change once bodies were
+// stored with it, a better one is added under a new code and bodies stored before are still decoded with the old one
+final class BodyCodec {
+    private static final byte UTF8 = 0;
+    private static final byte DEFLATE_DICTIONARY_1 = 1;
+    // code, length of the body in UTF-8
+    private static final int DEFLATED_HEADER_BYTES = 5;
+    private static final byte[] DICTIONARY_1 = loadDictionary("/compression/body-dictionary-1.txt");
+    private static final int BUFFER_SIZE = 8192;
+    // zlib state is costly to set up and only freed on end(), so it is reused. Bodies are encoded on virtual threads
+    // and decoded on request threads, a thread of its own would leave native state to every one of them: a few are
+    // kept for whichever thread needs one, one more is ended as soon as it is given back
+    static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+    // an inflater keeps the buffer it inflated into if the buffer is not larger, larger bodies get an array of their own
+    private static final int MAX_POOLED_BUFFER_SIZE = 256 * 1024;
+    private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final BlockingQueue<Inflating> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private BodyCodec() {
+    }
+
+    // null stays null. A body deflate does not make smaller (i.e. a short text) is stored as it is
+    static byte[] encode(String body) {
+        if (body == null) {
+            return null;
+        }
+        byte[] utf8 = body.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater();
+        }
+        try {
+            deflater.setDictionary(DICTIONARY_1);
+            deflater.setInput(utf8);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(utf8.length / 4 + DEFLATED_HEADER_BYTES);
+            out.writeBytes(ByteBuffer.allocate(DEFLATED_HEADER_BYTES).put(DEFLATE_DICTIONARY_1).putInt(utf8.length).array());
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished() && out.size() <= utf8.length) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            if (deflater.finished() && out.size() <= utf8.length) {
+                return out.toByteArray();
+            }
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+        byte[] stored = new byte[utf8.length + 1];
+        stored[0] = UTF8;
+        System.arraycopy(utf8, 0, stored, 1, utf8.length);
+        return stored;
+    }
+
+    static String decode(byte[] stored) {
+        if (stored == null) {
+            return null;
+        }
+        return switch (stored[0]) {
+            case UTF8 -> new String(stored, 1, stored.length - 1, StandardCharsets.UTF_8);
+            case DEFLATE_DICTIONARY_1 -> inflate(stored, DICTIONARY_1);
+            default -> throw new IllegalStateException("Unknown body encoding %d".formatted(stored[0]));
+        };
+    }
+
+    private static String inflate(byte[] stored, byte[] dictionary) {
+        // the length is known upfront, the body is inflated in one go and only copied into the string.
+        // A byte to spare tells a body longer than it should be
+        int length = ByteBuffer.wrap(stored, 1, 4).getInt();
+        Inflating inflating = inflaters.poll();
+        if (inflating == null) {
+            inflating = new Inflating(new Inflater());
+        }
+        if (inflating.buffer.length < length + 1) {
+            inflating.buffer = new byte[length + 1];
+        }
+        byte[] utf8 = inflating.buffer;
+        Inflater inflater = inflating.inflater;
+        inflater.setInput(stored, DEFLATED_HEADER_BYTES, stored.length - DEFLATED_HEADER_BYTES);
+        try {
+            int inflated = 0;
+            while (!inflater.finished()) {
+                int read = inflater.inflate(utf8, inflated, length + 1 - inflated);
+                inflated += read;
+                if (read == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(dictionary);
+                } else if (read == 0) {
+                    throw new IllegalStateException("Stored body is corrupt, %d of %d bytes inflated".formatted(inflated, length));
+                }
+            }
+            if (inflated != length) {
+                throw new IllegalStateException("Stored body is corrupt, %d bytes inflated instead of %d".formatted(inflated, length));
+            }
+            return new String(utf8, 0, length, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Stored body is corrupt", e);
+        } finally {
+            inflater.reset();
+            if (utf8.length > MAX_POOLED_BUFFER_SIZE) {
+                inflating.buffer = new byte[0];
+            }
+            if (!inflaters.offer(inflating)) {
+                inflater.end();
+            }
+        }
+    }
+
+    private static final class Inflating {
+        private final Inflater inflater;
+        private byte[] buffer = new byte[BUFFER_SIZE];
+
+        private Inflating(Inflater inflater) {
+            this.inflater = inflater;
+        }
+    }
+
+    private static byte[] loadDictionary(String resource) {
+        try (InputStream in = BodyCodec.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalStateException("Dictionary %s is missing".formatted(resource));
+            }
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -1,77 +1,756 @@
 package org.gsobko.repo;
 
+import org.gsobko.model.BodyState;
+import org.gsobko.model.EmailAttachment;
+import org.gsobko.model.EmailBody;
 import org.gsobko.model.EmailMessage;
+import org.gsobko.model.MailCursor;
+import org.gsobko.model.MailField;
+import org.gsobko.model.MessageIds;
+import org.gsobko.model.SyncState;
 
 import javax.sql.DataSource;
 import java.sql.*;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.OptionalLong;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.gsobko.model.EmailMessage.builder;
 
 public class MailRepo {
     public static final String EMAILS_IMAP_UID_CONSTRAINT = "EMAILS_IMAP_UID";
+    public static final String EMAILS_GM_MSGID_CONSTRAINT = "EMAILS_GM_MSGID";
+    private static final String UNIQUE_VIOLATION_SQL_STATE = "23505";
 
-    private static final String INSERT_SQL = """
-            INSERT INTO emails (id, imap_uid, message_id, mail_from, mail_to, mail_cc, subject, body_text, body_html, attachments, sent_date, created_date)
-            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+    private static final String INSERT_COLUMNS = "id, imap_uid, message_id, mail_from, mail_to, mail_cc, subject, attachments, "
+            + "sent_date, created_date, uid_validity, flags, body_state, folder, gm_msgid, gm_thrid, gm_labels, snippet";
+
+    // skips rows violating any unique index, folder/uid_validity/imap_uid or gm_msgid
+    private static final String INSERT_OR_SKIP_POSTGRESQL_SQL = """
+            INSERT INTO emails (%s)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+            ON CONFLICT DO NOTHING
+            """.formatted(INSERT_COLUMNS);
+
+    // H2 has no ON CONFLICT, MERGE inserts the row only when neither unique key matches. The update count tells if it did
+    private static final String INSERT_OR_SKIP_H2_SQL = """
+            MERGE INTO emails e
+            USING (VALUES (CAST(? AS UUID), CAST(? AS BIGINT), CAST(? AS VARCHAR), CAST(? AS VARCHAR), CAST(? AS VARCHAR),
+                           CAST(? AS VARCHAR), CAST(? AS VARCHAR), CAST(? AS VARCHAR), CAST(? AS TIMESTAMP WITH TIME ZONE),
+                           CAST(? AS TIMESTAMP WITH TIME ZONE), CAST(? AS BIGINT), CAST(? AS VARCHAR), CAST(? AS VARCHAR),
+                           CAST(? AS VARCHAR), CAST(? AS BIGINT), CAST(? AS BIGINT), CAST(? AS VARCHAR), CAST(? AS VARCHAR)))
+                AS n (%1$s)
+            ON e.folder = n.folder AND e.uid_validity = n.uid_validity AND e.imap_uid = n.imap_uid
+            WHEN NOT MATCHED AND NOT EXISTS (SELECT 1 FROM emails g WHERE g.gm_msgid = n.gm_msgid) THEN
+                INSERT (%1$s)
+                VALUES (n.id, n.imap_uid, n.message_id, n.mail_from, n.mail_to, n.mail_cc, n.subject, n.attachments,
+                        n.sent_date, n.created_date, n.uid_validity, n.flags, n.body_state, n.folder,
+                        n.gm_msgid, n.gm_thrid, n.gm_labels, n.snippet)
+            """.formatted(INSERT_COLUMNS);
+
+    // newest first, below the cursor of the previous page and down to the cursor of the last mail of the page when given.
+    // The next page continues below the cursor on the (created_date, id) index, however deep the page is
+    private static final String SELECT_PAGE_SQL = """
+            SELECT %s FROM %s
+            WHERE created_date BETWEEN ? AND ?%s%s
+            ORDER BY created_date DESC, id DESC%s
+            """;
+    private static final String AFTER_CURSOR_CONDITION = " AND (created_date, id) < (?, ?)";
+    private static final String UNTIL_CURSOR_CONDITION = " AND (created_date, id) >= (?, ?)";
+    private static final int STREAM_FETCH_SIZE = 100;
+
+    // bodies are only joined when they are read
+    private static final String EMAILS = "emails";
+    private static final String EMAILS_WITH_BODIES = "emails LEFT JOIN email_bodies ON email_id = id";
+
+    private static final String SELECT_BY_ID_SQL = "SELECT * FROM %s WHERE id = ?".formatted(EMAILS_WITH_BODIES);
+
+    private static final String SELECT_BY_IDS_SQL = "SELECT %s FROM %s WHERE id IN (%s)";
+
+    // inserted rows have no change_seq until commitChange sets it
+    private static final String SELECT_CHANGED_SQL = "SELECT id, created_date, change_seq FROM emails WHERE change_seq > ? AND created_date >= ?";
+
+    private static final String SELECT_CHANGE_SEQ_SQL = "SELECT seq FROM email_change_counter";
+
+    private static final String NEXT_CHANGE_SEQ_SQL = "UPDATE email_change_counter SET seq = seq + 1";
+
+    private static final String NUMBER_CHANGE_SQL = "UPDATE emails SET change_seq = ? WHERE change_seq IS NULL";
+
+    private static final String SELECT_BY_THREAD_SQL = "SELECT * FROM %s WHERE gm_thrid = ? ORDER BY sent_date".formatted(EMAILS_WITH_BODIES);
+
+    private static final String SELECT_KNOWN_GMAIL_IDS_SQL = "SELECT gm_msgid FROM emails WHERE gm_msgid IN (%s)";
+
+    private static final String SELECT_WITHOUT_BODY_SQL = """
+            SELECT imap_uid FROM emails
+            WHERE body_state = 'HEADERS' AND folder = ? AND uid_validity = ? AND NOT deleted
+            ORDER BY imap_uid DESC LIMIT ?
+            """;
+
+    private static final String UPDATE_BODY_SQL = """
+            UPDATE emails SET snippet = ?, attachments = ?, body_state = ?, change_seq = NULL
+            WHERE folder = ? AND uid_validity = ? AND imap_uid = ? AND body_state <> 'FULL'
+            """;
+
+    // a body parsed again from the archived message, whatever was saved before
+    private static final String REPLACE_BODY_SQL = """
+            UPDATE emails SET snippet = ?, attachments = ?, body_state = ?, change_seq = NULL
+            WHERE folder = ? AND uid_validity = ? AND imap_uid = ?
             """;
 
-    private static final String SELECT_SQL = """
-            SELECT * FROM emails
-            WHERE created_date BETWEEN ? AND ?
-            ORDER BY created_date DESC LIMIT ?
+    private static final String SELECT_IDS_BY_UID_SQL = "SELECT id FROM emails WHERE folder = ? AND uid_validity = ? AND imap_uid IN (%s)";
+
+    private static final String INSERT_BODY_SQL = "INSERT INTO email_bodies (email_id, text_compressed, html_compressed) VALUES (?, ?, ?)";
+
+    private static final String DELETE_BODY_BY_UID_SQL = """
+            DELETE FROM email_bodies
+            WHERE email_id IN (SELECT id FROM emails WHERE folder = ? AND uid_validity = ? AND imap_uid = ?)
             """;
 
-    private static final String MAX_UID_SQL = "SELECT MAX(imap_uid) FROM emails";
+    private static final String INSERT_BODY_BY_UID_SQL = """
+            INSERT INTO email_bodies (email_id, text_compressed, html_compressed)
+            SELECT id, ?, ? FROM emails WHERE folder = ? AND uid_validity = ? AND imap_uid = ?
+            """;
+
+    private static final String SELECT_INLINE_BODIES_SQL = """
+            SELECT id, body_text, body_html FROM emails
+            WHERE (body_text IS NOT NULL OR body_html IS NOT NULL) AND id > ?
+            ORDER BY id LIMIT ?
+            """;
+    private static final String CLEAR_INLINE_BODY_SQL = "UPDATE emails SET body_text = NULL, body_html = NULL WHERE id = ?";
+
+    private static final String DELETE_ATTACHMENTS_BY_UID_SQL = """
+            DELETE FROM email_attachments
+            WHERE email_id IN (SELECT id FROM emails WHERE folder = ? AND uid_validity = ? AND imap_uid = ?)
+            """;
+
+    private static final String INSERT_ATTACHMENT_SQL = """
+            INSERT INTO email_attachments (email_id, part_index, name, content_type, size_bytes, sha256)
+            VALUES (?, ?, ?, ?, ?, ?)
+            """;
+
+    // the email is only known by its UID when a body is downloaded for it
+    private static final String INSERT_ATTACHMENT_BY_UID_SQL = """
+            INSERT INTO email_attachments (email_id, part_index, name, content_type, size_bytes, sha256)
+            SELECT id, ?, ?, ?, ?, ? FROM emails WHERE folder = ? AND uid_validity = ? AND imap_uid = ?
+            """;
+
+    private static final String SELECT_ATTACHMENT_SQL = "SELECT * FROM email_attachments WHERE email_id = ? AND part_index = ?";
+
+    private static final String MAX_UID_SQL = "SELECT MAX(imap_uid) FROM emails WHERE folder = ?";
+    private static final String MIN_UID_SQL = "SELECT MIN(imap_uid) FROM emails WHERE folder = ? AND uid_validity = ?";
+    // the body may still be inline when bodies were not moved yet
+    private static final String SELECT_WITHOUT_SNIPPET_SQL = """
+            SELECT id, body_text, text_compressed FROM %s
+            WHERE snippet IS NULL AND id > ?
+            ORDER BY id LIMIT ?
+            """.formatted(EMAILS_WITH_BODIES);
+    private static final String UPDATE_SNIPPET_SQL = "UPDATE emails SET snippet = ? WHERE id = ?";
+    private static final int LEGACY_BATCH_SIZE = 500;
+    private static final String ASSIGN_LEGACY_FOLDER_SQL = "UPDATE emails SET folder = ? WHERE folder = ''";
+    private static final String ADOPT_LEGACY_ROWS_SQL = "UPDATE emails SET uid_validity = ? WHERE folder = ? AND uid_validity = 0";
+    private static final String SELECT_REMAPPED_SQL = """
+            SELECT id, message_id, gm_msgid, uid_validity, imap_uid FROM emails
+            WHERE folder = ? AND uid_validity IN (?, ?)
+            """;
+    private static final String REMAP_UID_SQL = """
+            UPDATE emails SET imap_uid = ?, uid_validity = ?, change_seq = NULL
+            WHERE id = ? AND uid_validity = ?
+            """;
+    private static final String SELECT_LAST_UID_SQL = "SELECT MAX(imap_uid) FROM emails WHERE folder = ? AND uid_validity = ?";
+    private static final String SELECT_FLAGS_SQL = """
+            SELECT imap_uid, flags FROM emails
+            WHERE folder = ? AND uid_validity = ? AND imap_uid > ? AND imap_uid <= ? AND NOT deleted
+            ORDER BY imap_uid LIMIT ?
+            """;
+    private static final String UPDATE_FLAGS_SQL = """
+            UPDATE emails SET flags = ?, change_seq = NULL
+            WHERE folder = ? AND uid_validity = ? AND imap_uid = ?
+            """;
+    private static final String MARK_DELETED_SQL = """
+            UPDATE emails SET deleted = TRUE, change_seq = NULL
+            WHERE folder = ? AND uid_validity = ? AND imap_uid = ?
+            """;
+    private static final int UPDATE_BATCH_SIZE = 500;
     public static final String ATTACHMENTS_SEPARATOR = ";";
+    // Gmail labels may contain ';' and spaces, but not line breaks
+    public static final String LABELS_SEPARATOR = "\n";
 
     private final DataSource dataSource;
+    private final SyncStateRepo syncStateRepo;
+    private final List<Consumer<Collection<UUID>>> changeListeners = new CopyOnWriteArrayList<>();
 
     public MailRepo(DataSource dataSource) {
+        this(dataSource, new SyncStateRepo(dataSource));
+    }
+
+    public MailRepo(DataSource dataSource, SyncStateRepo syncStateRepo) {
         this.dataSource = dataSource;
+        this.syncStateRepo = syncStateRepo;
     }
 
-    public void save(EmailMessage email) {
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement ps = conn.prepareStatement(INSERT_SQL)) {
+    // listeners are told ids of mails inserted or with bodies saved, after the commit on the thread that saved them,
+    // so they should not block
+    public void onChange(Consumer<Collection<UUID>> listener) {
+        changeListeners.add(listener);
+    }
+
+    public SaveResult save(EmailMessage email) {
+        return save(email, 0);
+    }
+
+    public SaveResult save(EmailMessage email, long uidValidity) {
+        return insert(List.of(email), uidValidity, Optional.empty());
+    }
+
+    public SaveResult save(EmailMessage email, SyncState checkpoint) {
+        return saveAll(List.of(email), checkpoint);
+    }
+
+    // the whole batch and its checkpoint in a single transaction, so the checkpoint moves past mails already saved too
+    public SaveResult saveAll(List<EmailMessage> emails, SyncState checkpoint) {
+        if (emails.isEmpty()) {
+            return new SaveResult(0, 0);
+        }
+        SaveResult result = insert(emails, checkpoint.uidValidity(), Optional.of(checkpoint));
+        syncStateRepo.cacheAdvanced(checkpoint);
+        return result;
+    }
 
+    private SaveResult insert(List<EmailMessage> emails, long uidValidity, Optional<SyncState> checkpoint) {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                Set<UUID> inserted = insertNew(conn, emails, uidValidity);
+                if (checkpoint.isPresent()) {
+                    syncStateRepo.advance(conn, checkpoint.get());
+                }
+                commitChange(conn);
+                notifyChanged(inserted);
+                return new SaveResult(inserted.size(), emails.size() - inserted.size());
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw translateInsertException(e);
+        }
+    }
+
+    // emails already saved (i.e. by another node polling the same mailbox) are skipped by the database without an error,
+    // attachments are only inserted for the emails that were inserted
+    private static Set<UUID> insertNew(Connection conn, List<EmailMessage> emails, long uidValidity) throws SQLException {
+        Set<UUID> inserted = new HashSet<>();
+        if (SqlDialect.of(conn) == SqlDialect.POSTGRESQL) {
+            // the driver appends RETURNING id, only inserted rows are returned
+            try (PreparedStatement ps = conn.prepareStatement(INSERT_OR_SKIP_POSTGRESQL_SQL, new String[]{"id"})) {
+                for (EmailMessage email : emails) {
+                    setInsertParameters(ps, email, uidValidity);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                try (ResultSet rs = ps.getGeneratedKeys()) {
+                    while (rs.next()) {
+                        inserted.add(rs.getObject(1, UUID.class));
+                    }
+                }
+            }
+        } else {
+            try (PreparedStatement ps = conn.prepareStatement(INSERT_OR_SKIP_H2_SQL)) {
+                for (EmailMessage email : emails) {
+                    setInsertParameters(ps, email, uidValidity);
+                    ps.addBatch();
+                }
+                int[] counts = ps.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0) {
+                        inserted.add(emails.get(i).id());
+                    }
+                }
+            }
+        }
+        List<EmailMessage> withBodies = emails.stream()
+                .filter(email -> inserted.contains(email.id()) && (email.text() != null || email.html() != null))
+                .toList();
+        if (!withBodies.isEmpty()) {
+            try (PreparedStatement ps = conn.prepareStatement(INSERT_BODY_SQL)) {
+                for (EmailMessage email : withBodies) {
+                    ps.setObject(1, email.id());
+                    ps.setBytes(2, BodyCodec.encode(email.text()));
+                    ps.setBytes(3, BodyCodec.encode(email.html()));
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+        }
+        List<EmailMessage> withAttachments = emails.stream()
+                .filter(email -> inserted.contains(email.id()) && !email.storedAttachments().isEmpty())
+                .toList();
+        if (!withAttachments.isEmpty()) {
+            try (PreparedStatement ps = conn.prepareStatement(INSERT_ATTACHMENT_SQL)) {
+                for (EmailMessage email : withAttachments) {
+                    addAttachments(ps, email);
+                }
+                ps.executeBatch();
+            }
+        }
+        return inserted;
+    }
+
+    private static void setInsertParameters(PreparedStatement ps, EmailMessage email, long uidValidity) throws SQLException {
+        ps.setObject(1, email.id());
+        ps.setLong(2, email.imapUid());
+        ps.setString(3, email.messageId());
+        ps.setString(4, email.from());
+        ps.setString(5, email.to());
+        ps.setString(6, email.cc());
+        ps.setString(7, email.subject());
+        ps.setString(8, joinAttachmentList(email.attachments()));
+        ps.setTimestamp(9, Timestamp.from(email.sentDate()));
+        ps.setTimestamp(10, Timestamp.from(email.createdDate()));
+        ps.setLong(11, uidValidity);
+        ps.setString(12, email.flags());
+        ps.setString(13, email.bodyState().name());
+        ps.setString(14, email.folder());
+        ps.setObject(15, email.gmailMessageId(), Types.BIGINT);
+        ps.setObject(16, email.gmailThreadId(), Types.BIGINT);
+        ps.setString(17, String.join(LABELS_SEPARATOR, email.labels()));
+        ps.setString(18, email.snippet());
+    }
+
+    private static void addAttachments(PreparedStatement ps, EmailMessage email) throws SQLException {
+        for (int i = 0; i < email.storedAttachments().size(); i++) {
+            EmailAttachment attachment = email.storedAttachments().get(i);
             ps.setObject(1, email.id());
-            ps.setLong(2, email.imapUid());
-            ps.setString(3, email.messageId());
-            ps.setString(4, email.from());
-            ps.setString(5, email.to());
-            ps.setString(6, email.cc());
-            ps.setString(7, email.subject());
-            ps.setString(8, email.text());
-            ps.setString(9, email.html());
-            ps.setString(10, joinAttachmentList(email.attachments()));
-            ps.setTimestamp(11, Timestamp.from(email.sentDate()));
-            ps.setTimestamp(12, Timestamp.from(email.createdDate()));
+            ps.setInt(2, i);
+            ps.setString(3, attachment.name());
+            ps.setString(4, attachment.contentType());
+            ps.setLong(5, attachment.size());
+            ps.setString(6, attachment.sha256());
+            ps.addBatch();
+        }
+    }
+
+    // H2 MERGE does not lock the keys it did not match, so two nodes inserting the same email at the same moment
+    // may still hit a constraint
+    private static RuntimeException translateInsertException(SQLException e) {
+        return duplicateConstraint(e)
+                .<RuntimeException>map(constraint -> new DuplicateModelException(constraint, e))
+                .orElseGet(() -> new IllegalStateException("Failed to insert email", e));
+    }
 
-            ps.executeUpdate();
+    // a batch failure wraps the failure of the row (H2 as cause, PostgreSQL as next exception)
+    private static Optional<String> duplicateConstraint(Throwable e) {
+        if (e == null) {
+            return Optional.empty();
+        }
+        if (e instanceof SQLIntegrityConstraintViolationException
+                || (e instanceof SQLException sqlException && UNIQUE_VIOLATION_SQL_STATE.equals(sqlException.getSQLState()))) {
+            String message = String.valueOf(e.getMessage()).toUpperCase();
+            if (message.contains(EMAILS_IMAP_UID_CONSTRAINT)) {
+                return Optional.of(EMAILS_IMAP_UID_CONSTRAINT);
+            }
+            // the same Gmail message saved from another folder
+            if (message.contains(EMAILS_GM_MSGID_CONSTRAINT)) {
+                return Optional.of(EMAILS_GM_MSGID_CONSTRAINT);
+            }
+        }
+        Optional<String> constraint = duplicateConstraint(e.getCause());
+        if (constraint.isEmpty() && e instanceof SQLException sqlException) {
+            return duplicateConstraint(sqlException.getNextException());
+        }
+        return constraint;
+    }
+
+    // skipped emails were already saved, under the same folder and UID or the same Gmail message id
+    public record SaveResult(int inserted, int skipped) {
+    }
+
+    public int assignLegacyEmailsToFolder(String folder) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(ASSIGN_LEGACY_FOLDER_SQL)) {
+            ps.setString(1, folder);
+            return ps.executeUpdate();
         } catch (SQLException e) {
-            if (e instanceof SQLIntegrityConstraintViolationException && e.getMessage().toUpperCase().contains(EMAILS_IMAP_UID_CONSTRAINT)) {
-                throw new DuplicateModelException(EMAILS_IMAP_UID_CONSTRAINT, e);
+            throw new IllegalStateException("Failed to assign emails saved before folders were tracked", e);
+        }
+    }
+
+    // mails saved before snippets were, walked by id so that every batch starts where the previous one ended.
+    // Run once by V013__Compute_missing_snippets
+    static int computeMissingSnippets(Connection conn) throws SQLException {
+        try (PreparedStatement select = conn.prepareStatement(SELECT_WITHOUT_SNIPPET_SQL);
+             PreparedStatement update = conn.prepareStatement(UPDATE_SNIPPET_SQL)) {
+            UUID after = new UUID(0, 0);
+            int updated = 0;
+            while (true) {
+                select.setObject(1, after);
+                select.setInt(2, LEGACY_BATCH_SIZE);
+                int batch = 0;
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        after = rs.getObject("id", UUID.class);
+                        String text = rs.getString("body_text");
+                        update.setString(1, EmailMessage.snippetOf(text != null ? text : BodyCodec.decode(rs.getBytes("text_compressed"))));
+                        update.setObject(2, after);
+                        update.addBatch();
+                        batch++;
+                    }
+                }
+                if (batch == 0) {
+                    return updated;
+                }
+                update.executeBatch();
+                updated += batch;
             }
-            throw new IllegalStateException("Failed to insert email", e);
         }
+    }
 
+    // bodies saved inline in emails before email_bodies was there, run once by V014__Move_inline_bodies
+    static int moveInlineBodies(Connection conn) throws SQLException {
+        try (PreparedStatement select = conn.prepareStatement(SELECT_INLINE_BODIES_SQL);
+             PreparedStatement insert = conn.prepareStatement(INSERT_BODY_SQL);
+             PreparedStatement clear = conn.prepareStatement(CLEAR_INLINE_BODY_SQL)) {
+            UUID after = new UUID(0, 0);
+            int moved = 0;
+            while (true) {
+                select.setObject(1, after);
+                select.setInt(2, LEGACY_BATCH_SIZE);
+                int batch = 0;
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        after = rs.getObject("id", UUID.class);
+                        insert.setObject(1, after);
+                        insert.setBytes(2, BodyCodec.encode(rs.getString("body_text")));
+                        insert.setBytes(3, BodyCodec.encode(rs.getString("body_html")));
+                        insert.addBatch();
+                        clear.setObject(1, after);
+                        clear.addBatch();
+                        batch++;
+                    }
+                }
+                if (batch == 0) {
+                    return moved;
+                }
+                insert.executeBatch();
+                clear.executeBatch();
+                moved += batch;
+            }
+        }
+    }
+
+    public SyncState adoptLegacyEmails(SyncState initialState) {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(ADOPT_LEGACY_ROWS_SQL)) {
+                ps.setLong(1, initialState.uidValidity());
+                ps.setString(2, initialState.folder());
+                ps.executeUpdate();
+                syncStateRepo.save(conn, initialState);
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to adopt emails saved before sync state", e);
+        }
+        syncStateRepo.cacheSaved(initialState);
+        return initialState;
     }
 
+    // saved mails are matched to the new UIDs by X-GM-MSGID where both have it, otherwise by Message-ID when exactly one
+    // saved mail and one new UID have it: copies sharing a Message-ID can not be told apart, they keep the old uid
+    // validity as mails no longer on the server do. Remapped UPDATE_BATCH_SIZE mails a transaction, a rerun after a
+    // failure goes on with the mails left under the old uid validity. Returns the last UID saved under the new one
+    public OptionalLong remapUids(SyncState previousState, long newUidValidity, Map<Long, MessageIds> idsByNewUid) {
+        String folder = previousState.folder();
+        List<Map.Entry<UUID, Long>> newUids = List.copyOf(
+                matchNewUids(folder, previousState.uidValidity(), newUidValidity, idsByNewUid).entrySet());
+        for (int from = 0; from < newUids.size(); from += UPDATE_BATCH_SIZE) {
+            executeInBatches(REMAP_UID_SQL, newUids.subList(from, Math.min(from + UPDATE_BATCH_SIZE, newUids.size())), (ps, newUid) -> {
+                ps.setLong(1, newUid.getValue());
+                ps.setLong(2, newUidValidity);
+                ps.setObject(3, newUid.getKey());
+                ps.setLong(4, previousState.uidValidity());
+            });
+        }
+        return lastUid(folder, newUidValidity);
+    }
+
+    // new UID by id of the saved mail it is matched to. UIDs already taken under the new uid validity are left out
+    private Map<UUID, Long> matchNewUids(String folder, long oldUidValidity, long newUidValidity, Map<Long, MessageIds> idsByNewUid) {
+        Map<Long, UUID> savedByGmailId = new HashMap<>();
+        Map<UUID, String> savedMessageIds = new HashMap<>();
+        Set<Long> taken = new HashSet<>();
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(SELECT_REMAPPED_SQL)) {
+            ps.setString(1, folder);
+            ps.setLong(2, oldUidValidity);
+            ps.setLong(3, newUidValidity);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (rs.getLong("uid_validity") == newUidValidity) {
+                        taken.add(rs.getLong("imap_uid"));
+                        continue;
+                    }
+                    UUID id = rs.getObject("id", UUID.class);
+                    long gmailMessageId = rs.getLong("gm_msgid");
+                    if (!rs.wasNull()) {
+                        savedByGmailId.put(gmailMessageId, id);
+                    }
+                    savedMessageIds.put(id, rs.getString("message_id"));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to read emails to remap", e);
+        }
+        Map<UUID, Long> matched = new HashMap<>();
+        Map<String, List<Long>> newUidsByMessageId = new HashMap<>();
+        for (Map.Entry<Long, MessageIds> entry : idsByNewUid.entrySet()) {
+            if (taken.contains(entry.getKey())) {
+                continue;
+            }
+            Long gmailMessageId = entry.getValue().gmailMessageId();
+            UUID id = gmailMessageId == null ? null : savedByGmailId.remove(gmailMessageId);
+            if (id != null) {
+                matched.put(id, entry.getKey());
+                savedMessageIds.remove(id);
+            } else if (entry.getValue().messageId() != null) {
+                newUidsByMessageId.computeIfAbsent(entry.getValue().messageId(), messageId -> new ArrayList<>()).add(entry.getKey());
+            }
+        }
+        Map<String, List<UUID>> savedByMessageId = new HashMap<>();
+        savedMessageIds.forEach((id, messageId) -> {
+            if (messageId != null) {
+                savedByMessageId.computeIfAbsent(messageId, key -> new ArrayList<>()).add(id);
+            }
+        });
+        newUidsByMessageId.forEach((messageId, uids) -> {
+            List<UUID> ids = savedByMessageId.getOrDefault(messageId, List.of());
+            if (uids.size() == 1 && ids.size() == 1) {
+                matched.put(ids.getFirst(), uids.getFirst());
+            }
+        });
+        return matched;
+    }
+
+    private OptionalLong lastUid(String folder, long uidValidity) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(SELECT_LAST_UID_SQL)) {
+            ps.setString(1, folder);
+            ps.setLong(2, uidValidity);
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                long uid = rs.getLong(1);
+                return rs.wasNull() ? OptionalLong.empty() : OptionalLong.of(uid);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to read last uid", e);
+        }
+    }
 
     public List<EmailMessage> fetchAllInInterval(Instant start, Instant end, int limit) {
+        return fetchPage(start, end, Optional.empty(), limit).emails();
+    }
+
+    // newest first. One row more than the limit is read to tell whether there is a next page
+    public Page fetchPage(Instant start, Instant end, Optional<MailCursor> after, int limit) {
         try (Connection conn = dataSource.getConnection();
-             PreparedStatement ps = conn.prepareStatement(SELECT_SQL)) {
+             PreparedStatement ps = preparePage(conn, "*", EMAILS_WITH_BODIES, start, end, after, Optional.empty(), " LIMIT ?", limit + 1L)) {
 
-            ps.setTimestamp(1, Timestamp.from(start));
-            ps.setTimestamp(2, Timestamp.from(end));
-            ps.setInt(3, limit);
+            List<EmailMessage> emails = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    emails.add(mapToEmail(rs));
+                }
+            }
+            if (emails.size() <= limit) {
+                return new Page(emails, Optional.empty());
+            }
+            emails.removeLast();
+            return new Page(emails, Optional.of(MailCursor.of(emails.getLast())));
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to fetch emails in interval", e);
+        }
+    }
 
+    // cursor of the last mail of the page, empty on the last page. Only keys are read, from the (created_date, id) index
+    public Optional<MailCursor> findPageEnd(Instant start, Instant end, Optional<MailCursor> after, int limit) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = preparePage(conn, "created_date, id", EMAILS, start, end, after, Optional.empty(), " LIMIT 2 OFFSET ?", limit - 1L)) {
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    return Optional.empty();
+                }
+                MailCursor last = new MailCursor(rs.getTimestamp("created_date").toInstant(), rs.getObject("id", UUID.class));
+                return rs.next() ? Optional.of(last) : Optional.empty();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to find end of page", e);
+        }
+    }
+
+    public void streamPage(Instant start, Instant end, Optional<MailCursor> after, Optional<MailCursor> until,
+                           Consumer<EmailMessage> consumer) {
+        streamPage(start, end, after, until, MailField.ALL, consumer);
+    }
+
+    // mails of a page passed on one by one as they are read, none of them is held after it was consumed.
+    // With until the page ends at the mail found by findPageEnd, mails saved meanwhile can only make it longer.
+    // Only the columns of the fields are read, the rest of the fields are left unset
+    public void streamPage(Instant start, Instant end, Optional<MailCursor> after, Optional<MailCursor> until,
+                           Set<MailField> fields, Consumer<EmailMessage> consumer) {
+        String columns = fields.stream().map(MailField::column).collect(Collectors.joining(", "));
+        String tables = fields.contains(MailField.TEXT) || fields.contains(MailField.HTML) ? EMAILS_WITH_BODIES : EMAILS;
+        try (Connection conn = dataSource.getConnection()) {
+            // PostgreSQL only reads rows in fetch size chunks through a cursor within a transaction
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = preparePage(conn, columns, tables, start, end, after, until, "")) {
+                ps.setFetchSize(STREAM_FETCH_SIZE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        consumer.accept(mapToEmail(rs, fields));
+                    }
+                }
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to stream emails in interval", e);
+        }
+    }
+
+    // tail (i.e. LIMIT) is appended after ORDER BY, its parameters are bound last
+    private static PreparedStatement preparePage(Connection conn, String columns, String tables, Instant start, Instant end,
+                                                 Optional<MailCursor> after, Optional<MailCursor> until,
+                                                 String tail, long... tailParameters) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(SELECT_PAGE_SQL.formatted(columns, tables,
+                after.isPresent() ? AFTER_CURSOR_CONDITION : "", until.isPresent() ? UNTIL_CURSOR_CONDITION : "", tail));
+        try {
+            // rows between the cursors are within their dates, single bounds on created_date let H2 seek into the index there
+            Instant lower = until.map(cursor -> cursor.createdDate().isAfter(start) ? cursor.createdDate() : start).orElse(start);
+            Instant upper = after.map(cursor -> cursor.createdDate().isBefore(end) ? cursor.createdDate() : end).orElse(end);
+            int index = 1;
+            ps.setTimestamp(index++, Timestamp.from(lower));
+            ps.setTimestamp(index++, Timestamp.from(upper));
+            for (MailCursor cursor : Stream.concat(after.stream(), until.stream()).toList()) {
+                ps.setTimestamp(index++, Timestamp.from(cursor.createdDate()));
+                ps.setObject(index++, cursor.id());
+            }
+            for (long parameter : tailParameters) {
+                ps.setLong(index++, parameter);
+            }
+            return ps;
+        } catch (SQLException | RuntimeException e) {
+            ps.close();
+            throw e;
+        }
+    }
+
+    // next is empty on the last page
+    public record Page(List<EmailMessage> emails, Optional<MailCursor> next) {
+    }
+
+    public Optional<EmailMessage> findById(UUID id) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(SELECT_BY_ID_SQL)) {
+            ps.setObject(1, id);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? Optional.of(mapToEmail(rs)) : Optional.empty();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to fetch email by id", e);
+        }
+    }
+
+    // in the order of the ids, ids of no saved mail are left out. Only the columns of the fields are read
+    public List<EmailMessage> findByIds(List<UUID> ids, Set<MailField> fields) {
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+        String columns = Stream.concat(Stream.of(MailField.ID), fields.stream()).distinct().map(MailField::column).collect(Collectors.joining(", "));
+        String tables = fields.contains(MailField.TEXT) || fields.contains(MailField.HTML) ? EMAILS_WITH_BODIES : EMAILS;
+        String placeholders = String.join(", ", Collections.nCopies(ids.size(), "?"));
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(SELECT_BY_IDS_SQL.formatted(columns, tables, placeholders))) {
+            int index = 1;
+            for (UUID id : ids) {
+                ps.setObject(index++, id);
+            }
+            Map<UUID, EmailMessage> emails = new HashMap<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    emails.put(rs.getObject("id", UUID.class), mapToEmail(rs, fields));
+                }
+            }
+            return ids.stream().map(emails::get).filter(Objects::nonNull).toList();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to fetch emails by ids", e);
+        }
+    }
+
+    // keys of mails created since createdFrom and changed after the given change number, with the number of their last change
+    public List<Change> findChangedAfter(long changeSeq, Instant createdFrom) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(SELECT_CHANGED_SQL)) {
+            ps.setLong(1, changeSeq);
+            ps.setTimestamp(2, Timestamp.from(createdFrom));
+            List<Change> changes = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    changes.add(new Change(new MailCursor(rs.getTimestamp("created_date").toInstant(), rs.getObject("id", UUID.class)),
+                            rs.getLong("change_seq")));
+                }
+            }
+            return changes;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to fetch changed emails", e);
+        }
+    }
+
+    public record Change(MailCursor mail, long changeSeq) {
+    }
+
+    // number of the last committed change, every change up to it is visible to reads started after
+    public long lastChangeSeq() {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(SELECT_CHANGE_SEQ_SQL);
+             ResultSet rs = ps.executeQuery()) {
+            rs.next();
+            return rs.getLong(1);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to fetch last change number", e);
+        }
+    }
+
+    public List<EmailMessage> findByThreadId(long gmailThreadId) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(SELECT_BY_THREAD_SQL)) {
+            ps.setLong(1, gmailThreadId);
             List<EmailMessage> emails = new ArrayList<>();
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
@@ -80,42 +759,356 @@ public class MailRepo {
                 return emails;
             }
         } catch (SQLException e) {
-            throw new IllegalStateException("Failed to fetch emails in interval", e);
+            throw new IllegalStateException("Failed to fetch emails by thread id", e);
         }
     }
 
-    public OptionalLong maxImapUid() {
+    public Set<Long> findKnownGmailMessageIds(Collection<Long> gmailMessageIds) {
+        if (gmailMessageIds.isEmpty()) {
+            return Set.of();
+        }
+        String placeholders = String.join(", ", Collections.nCopies(gmailMessageIds.size(), "?"));
         try (Connection conn = dataSource.getConnection();
-             PreparedStatement ps = conn.prepareStatement(MAX_UID_SQL)) {
-            try (ResultSet resultSet = ps.executeQuery()) {
-                if (resultSet.next()) {
-                    long value = resultSet.getLong(1);
-                    if (!resultSet.wasNull()) {
-                        return OptionalLong.of(value);
+             PreparedStatement ps = conn.prepareStatement(SELECT_KNOWN_GMAIL_IDS_SQL.formatted(placeholders))) {
+            int index = 1;
+            for (Long gmailMessageId : gmailMessageIds) {
+                ps.setLong(index++, gmailMessageId);
+            }
+            Set<Long> known = new HashSet<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    known.add(rs.getLong(1));
+                }
+                return known;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to fetch known gmail message ids", e);
+        }
+    }
+
+    public List<Long> findUidsWithoutBody(String folder, long uidValidity, int limit) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(SELECT_WITHOUT_BODY_SQL)) {
+            ps.setString(1, folder);
+            ps.setLong(2, uidValidity);
+            ps.setInt(3, limit);
+            List<Long> uids = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    uids.add(rs.getLong("imap_uid"));
+                }
+                return uids;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to fetch emails without body", e);
+        }
+    }
+
+    public int saveBodies(String folder, long uidValidity, List<EmailBody> bodies) {
+        return saveBodies(folder, uidValidity, bodies, false);
+    }
+
+    // overwrites bodies and attachments saved before, i.e. with what a changed parser extracts from the archive
+    public int replaceBodies(String folder, long uidValidity, List<EmailBody> bodies) {
+        return saveBodies(folder, uidValidity, bodies, true);
+    }
+
+    private int saveBodies(String folder, long uidValidity, List<EmailBody> bodies, boolean replace) {
+        if (bodies.isEmpty()) {
+            return 0;
+        }
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement updateBody = conn.prepareStatement(replace ? REPLACE_BODY_SQL : UPDATE_BODY_SQL);
+                 PreparedStatement deleteBody = conn.prepareStatement(DELETE_BODY_BY_UID_SQL);
+                 PreparedStatement insertBody = conn.prepareStatement(INSERT_BODY_BY_UID_SQL);
+                 PreparedStatement deleteAttachments = conn.prepareStatement(DELETE_ATTACHMENTS_BY_UID_SQL);
+                 PreparedStatement insertAttachment = conn.prepareStatement(INSERT_ATTACHMENT_BY_UID_SQL)) {
+                if (replace) {
+                    for (EmailBody body : bodies) {
+                        deleteAttachments.setString(1, folder);
+                        deleteAttachments.setLong(2, uidValidity);
+                        deleteAttachments.setLong(3, body.imapUid());
+                        deleteAttachments.addBatch();
+                    }
+                    deleteAttachments.executeBatch();
+                }
+                for (EmailBody body : bodies) {
+                    updateBody.setString(1, EmailMessage.snippetOf(body.text()));
+                    updateBody.setString(2, joinAttachmentList(body.attachments()));
+                    updateBody.setString(3, (body.truncated() ? BodyState.TRUNCATED : BodyState.FULL).name());
+                    updateBody.setString(4, folder);
+                    updateBody.setLong(5, uidValidity);
+                    updateBody.setLong(6, body.imapUid());
+                    updateBody.addBatch();
+                }
+                int[] updated = updateBody.executeBatch();
+                for (int i = 0; i < bodies.size(); i++) {
+                    // a body that was already there is saved already, with its attachments
+                    if (updated[i] == 0) {
+                        continue;
+                    }
+                    EmailBody body = bodies.get(i);
+                    deleteBody.setString(1, folder);
+                    deleteBody.setLong(2, uidValidity);
+                    deleteBody.setLong(3, body.imapUid());
+                    deleteBody.addBatch();
+                    insertBody.setBytes(1, BodyCodec.encode(body.text()));
+                    insertBody.setBytes(2, BodyCodec.encode(body.html()));
+                    insertBody.setString(3, folder);
+                    insertBody.setLong(4, uidValidity);
+                    insertBody.setLong(5, body.imapUid());
+                    insertBody.addBatch();
+                    List<EmailAttachment> attachments = bodies.get(i).storedAttachments();
+                    for (int part = 0; part < attachments.size(); part++) {
+                        EmailAttachment attachment = attachments.get(part);
+                        insertAttachment.setInt(1, part);
+                        insertAttachment.setString(2, attachment.name());
+                        insertAttachment.setString(3, attachment.contentType());
+                        insertAttachment.setLong(4, attachment.size());
+                        insertAttachment.setString(5, attachment.sha256());
+                        insertAttachment.setString(6, folder);
+                        insertAttachment.setLong(7, uidValidity);
+                        insertAttachment.setLong(8, bodies.get(i).imapUid());
+                        insertAttachment.addBatch();
                     }
                 }
-                return OptionalLong.empty();
+                deleteBody.executeBatch();
+                insertBody.executeBatch();
+                insertAttachment.executeBatch();
+                List<Long> updatedUids = new ArrayList<>();
+                for (int i = 0; i < bodies.size(); i++) {
+                    if (updated[i] > 0) {
+                        updatedUids.add(bodies.get(i).imapUid());
+                    }
+                }
+                List<UUID> updatedIds = findIdsByUid(conn, folder, uidValidity, updatedUids);
+                commitChange(conn);
+                notifyChanged(updatedIds);
+                return sum(updated);
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
             }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to save email bodies", e);
+        }
+    }
+
+    private static List<UUID> findIdsByUid(Connection conn, String folder, long uidValidity, List<Long> uids) throws SQLException {
+        if (uids.isEmpty()) {
+            return List.of();
+        }
+        String placeholders = String.join(", ", Collections.nCopies(uids.size(), "?"));
+        try (PreparedStatement ps = conn.prepareStatement(SELECT_IDS_BY_UID_SQL.formatted(placeholders))) {
+            ps.setString(1, folder);
+            ps.setLong(2, uidValidity);
+            int index = 3;
+            for (Long uid : uids) {
+                ps.setLong(index++, uid);
+            }
+            List<UUID> ids = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getObject("id", UUID.class));
+                }
+                return ids;
+            }
+        }
+    }
+
+    // the rows written have change_seq NULL, they get the next number last, so the counter row is locked only until
+    // the commit right after and changes are numbered in commit order
+    private static void commitChange(Connection conn) throws SQLException {
+        try (PreparedStatement next = conn.prepareStatement(NEXT_CHANGE_SEQ_SQL);
+             PreparedStatement read = conn.prepareStatement(SELECT_CHANGE_SEQ_SQL);
+             PreparedStatement number = conn.prepareStatement(NUMBER_CHANGE_SQL)) {
+            next.executeUpdate();
+            try (ResultSet rs = read.executeQuery()) {
+                rs.next();
+                number.setLong(1, rs.getLong(1));
+            }
+            number.executeUpdate();
+        }
+        conn.commit();
+    }
+
+    private void notifyChanged(Collection<UUID> ids) {
+        if (!ids.isEmpty()) {
+            changeListeners.forEach(listener -> listener.accept(ids));
+        }
+    }
+
+    public Optional<EmailAttachment> findAttachment(UUID emailId, int index) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(SELECT_ATTACHMENT_SQL)) {
+            ps.setObject(1, emailId);
+            ps.setInt(2, index);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return Optional.of(new EmailAttachment(
+                            rs.getString("name"),
+                            rs.getString("content_type"),
+                            rs.getLong("size_bytes"),
+                            rs.getString("sha256")));
+                }
+                return Optional.empty();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to fetch email attachment", e);
+        }
+    }
+
+    public SortedMap<Long, String> findFlags(String folder, long uidValidity, long afterUid, long maxUid, int limit) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(SELECT_FLAGS_SQL)) {
+            ps.setString(1, folder);
+            ps.setLong(2, uidValidity);
+            ps.setLong(3, afterUid);
+            ps.setLong(4, maxUid);
+            ps.setInt(5, limit);
+            SortedMap<Long, String> flagsByUid = new TreeMap<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    flagsByUid.put(rs.getLong("imap_uid"), rs.getString("flags"));
+                }
+                return flagsByUid;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to fetch email flags", e);
+        }
+    }
+
+    public int updateFlags(String folder, long uidValidity, Map<Long, String> flagsByUid) {
+        return executeInBatches(UPDATE_FLAGS_SQL, flagsByUid.entrySet(), (ps, uidAndFlags) -> {
+            ps.setString(1, uidAndFlags.getValue());
+            ps.setString(2, folder);
+            ps.setLong(3, uidValidity);
+            ps.setLong(4, uidAndFlags.getKey());
+        });
+    }
+
+    public int markDeleted(String folder, long uidValidity, Collection<Long> uids) {
+        return executeInBatches(MARK_DELETED_SQL, uids, (ps, uid) -> {
+            ps.setString(1, folder);
+            ps.setLong(2, uidValidity);
+            ps.setLong(3, uid);
+        });
+    }
+
+    private <T> int executeInBatches(String sql, Collection<T> rows, StatementBinder<T> binder) {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                int updated = 0;
+                int batched = 0;
+                for (T row : rows) {
+                    binder.bind(ps, row);
+                    ps.addBatch();
+                    if (++batched % UPDATE_BATCH_SIZE == 0) {
+                        updated += sum(ps.executeBatch());
+                    }
+                }
+                if (batched % UPDATE_BATCH_SIZE != 0) {
+                    updated += sum(ps.executeBatch());
+                }
+                commitChange(conn);
+                return updated;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to update emails", e);
+        }
+    }
+
+    private static int sum(int[] updateCounts) {
+        int sum = 0;
+        for (int count : updateCounts) {
+            // drivers may report SUCCESS_NO_INFO (-2) instead of the row count
+            sum += Math.max(count, 0);
+        }
+        return sum;
+    }
+
+    @FunctionalInterface
+    private interface StatementBinder<T> {
+        void bind(PreparedStatement ps, T row) throws SQLException;
+    }
+
+    public OptionalLong maxImapUid(String folder) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(MAX_UID_SQL)) {
+            ps.setString(1, folder);
+            return readOptionalLong(ps);
         } catch (SQLException e) {
             throw new IllegalStateException("Failed to get max imap uid", e);
         }
     }
 
+    public OptionalLong minImapUid(String folder, long uidValidity) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(MIN_UID_SQL)) {
+            ps.setString(1, folder);
+            ps.setLong(2, uidValidity);
+            return readOptionalLong(ps);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to get min imap uid", e);
+        }
+    }
+
+    private static OptionalLong readOptionalLong(PreparedStatement ps) throws SQLException {
+        try (ResultSet resultSet = ps.executeQuery()) {
+            if (resultSet.next()) {
+                long value = resultSet.getLong(1);
+                if (!resultSet.wasNull()) {
+                    return OptionalLong.of(value);
+                }
+            }
+            return OptionalLong.empty();
+        }
+    }
+
     private static EmailMessage mapToEmail(ResultSet rs) throws SQLException {
-        return builder()
-                .withId(UUID.fromString(rs.getString("id")))
-                .withImapUid(rs.getLong("imap_uid"))
-                .withMessageId(rs.getString("message_id"))
-                .withFrom(rs.getString("mail_from"))
-                .withTo(rs.getString("mail_to"))
-                .withCc(rs.getString("mail_cc"))
-                .withSubject(rs.getString("subject"))
-                .withText(rs.getString("body_text"))
-                .withHtml(rs.getString("body_html"))
-                .withAttachments(splitAttachmentList(rs.getString("attachments")))
-                .withSentDate(rs.getTimestamp("sent_date").toInstant())
-                .withCreatedDate(rs.getTimestamp("created_date").toInstant())
-                .build();
+        return mapToEmail(rs, MailField.ALL);
+    }
+
+    // a snippet not computed yet is computed from the text, when it is read. Bodies are decompressed only when asked for
+    private static EmailMessage mapToEmail(ResultSet rs, Set<MailField> fields) throws SQLException {
+        EmailMessage.Builder email = builder();
+        for (MailField field : fields) {
+            switch (field) {
+                case ID -> email.withId(UUID.fromString(rs.getString("id")));
+                case IMAP_UID -> email.withImapUid(rs.getLong("imap_uid"));
+                case MESSAGE_ID -> email.withMessageId(rs.getString("message_id"));
+                case FROM -> email.withFrom(rs.getString("mail_from"));
+                case TO -> email.withTo(rs.getString("mail_to"));
+                case CC -> email.withCc(rs.getString("mail_cc"));
+                case SUBJECT -> email.withSubject(rs.getString("subject"));
+                case SNIPPET -> email.withSnippet(rs.getString("snippet"));
+                case TEXT -> email.withText(BodyCodec.decode(rs.getBytes("text_compressed")));
+                case HTML -> email.withHtml(BodyCodec.decode(rs.getBytes("html_compressed")));
+                case ATTACHMENTS -> email.withAttachments(splitAttachmentList(rs.getString("attachments")));
+                case SENT_DATE -> email.withSentDate(rs.getTimestamp("sent_date").toInstant());
+                case CREATED_DATE -> email.withCreatedDate(rs.getTimestamp("created_date").toInstant());
+                case FLAGS -> email.withFlags(rs.getString("flags"));
+                case DELETED -> email.withDeleted(rs.getBoolean("deleted"));
+                case BODY_STATE -> email.withBodyState(BodyState.valueOf(rs.getString("body_state")));
+                case FOLDER -> email.withFolder(rs.getString("folder"));
+                case GMAIL_MESSAGE_ID -> email.withGmailMessageId(rs.getObject("gm_msgid", Long.class));
+                case GMAIL_THREAD_ID -> email.withGmailThreadId(rs.getObject("gm_thrid", Long.class));
+                case LABELS -> email.withLabels(splitLabels(rs.getString("gm_labels")));
+            }
+        }
+        return email.build();
     }
 
 
@@ -123,6 +1116,10 @@ public class MailRepo {
         return String.join(ATTACHMENTS_SEPARATOR, attachments);
     }
 
+    private static List<String> splitLabels(String labels) {
+        return labels.isEmpty() ? List.of() : List.of(labels.split(LABELS_SEPARATOR));
+    }
+
     private static List<String> splitAttachmentList(String attachments) {
         return Stream.of(attachments.split(ATTACHMENTS_SEPARATOR))
                 .filter(str -> !str.isEmpty()).toList();
@@ -0,0 +1,386 @@
+package org.gsobko.repo;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+// raw RFC822 messages of a folder in append-only segment files <dir>/<uidValidity>/000001.seg, every message deflated
+// on its own, so it is read without the rest of the segment. 000001.idx next to the segment has an entry of fixed size
+// (uid, offset, compressed and raw length) per message, all entries are kept in memory and segments are read through
+// memory mapping. A message archived again (i.e. its full body downloaded later) is found by its latest entry
+public class MessageArchive implements Closeable {
+    public static final int DEFAULT_SEGMENT_MEGABYTES = 256;
+    // a message deflated to more is spilled to a temporary file next to the segments until it is appended
+    static final int MAX_BUFFERED_BYTES = 256 * 1024;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String SPILL_SUFFIX = ".tmp";
+    private static final int INDEX_ENTRY_BYTES = Long.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+    private final Path dir;
+    private final long maxSegmentBytes;
+    private final Map<Long, Volume> volumes = new ConcurrentHashMap<>();
+
+    public MessageArchive(Path dir) {
+        this(dir, DEFAULT_SEGMENT_MEGABYTES);
+    }
+
+    public MessageArchive(Path dir, int maxSegmentMegabytes) {
+        // a segment is mapped whole, a mapping is limited to 2GB
+        if (maxSegmentMegabytes < 1 || maxSegmentMegabytes >= 2048) {
+            throw new IllegalArgumentException("Segment size should be 1 to 2047 megabytes, got %d".formatted(maxSegmentMegabytes));
+        }
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentMegabytes * 1024L * 1024L;
+    }
+
+    // the message is deflated while written, and appended to the archive on close. A message that is not closed
+    // should be aborted, which drops it
+    public ArchivedMessage append(long uidValidity, long uid) {
+        return new ArchivedMessage(volume(uidValidity), uid);
+    }
+
+    public Optional<byte[]> read(long uidValidity, long uid) {
+        Entry entry = volume(uidValidity).entries.get(uid);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(entry.segment().map(entry.offset(), entry.compressedLength()));
+            byte[] raw = new byte[entry.rawLength()];
+            int length = 0;
+            while (!inflater.finished() && length < raw.length) {
+                int inflated = inflater.inflate(raw, length, raw.length - length);
+                if (inflated == 0 && inflater.needsInput()) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != raw.length) {
+                throw new IllegalStateException("Archived message uid=%d is cut, %d of %d bytes".formatted(uid, length, raw.length));
+            }
+            return Optional.of(raw);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Archived message uid=%d is corrupted".formatted(uid), e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read archived message uid=%d".formatted(uid), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // in UID order
+    public List<Long> uids(long uidValidity) {
+        return List.copyOf(volume(uidValidity).entries.keySet());
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Volume volume : volumes.values()) {
+            volume.close();
+        }
+    }
+
+    private Volume volume(long uidValidity) {
+        return volumes.computeIfAbsent(uidValidity, ignored -> {
+            try {
+                return Volume.open(dir.resolve(Long.toString(uidValidity)), maxSegmentBytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open message archive in %s".formatted(dir), e);
+            }
+        });
+    }
+
+    // segments of a single UIDVALIDITY, UIDs of different ones are different messages
+    private static final class Volume {
+        private final Path dir;
+        private final long maxSegmentBytes;
+        private final ConcurrentSkipListMap<Long, Entry> entries = new ConcurrentSkipListMap<>();
+        private final List<Segment> segments = new ArrayList<>();
+        private Segment current;
+
+        private Volume(Path dir, long maxSegmentBytes) {
+            this.dir = dir;
+            this.maxSegmentBytes = maxSegmentBytes;
+        }
+
+        static Volume open(Path dir, long maxSegmentBytes) throws IOException {
+            Volume volume = new Volume(dir, maxSegmentBytes);
+            Files.createDirectories(dir);
+            List<Path> segmentFiles;
+            List<Path> spillFiles;
+            try (Stream<Path> files = Files.list(dir)) {
+                List<Path> all = files.toList();
+                segmentFiles = all.stream().filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+                spillFiles = all.stream().filter(file -> file.getFileName().toString().endsWith(SPILL_SUFFIX)).toList();
+            }
+            // messages being archived when the process stopped
+            for (Path spillFile : spillFiles) {
+                Files.deleteIfExists(spillFile);
+            }
+            for (Path segmentFile : segmentFiles) {
+                volume.load(segmentFile, segmentFile == segmentFiles.getLast());
+            }
+            return volume;
+        }
+
+        private void load(Path segmentFile, boolean last) throws IOException {
+            String name = segmentFile.getFileName().toString();
+            int number = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = last ? Segment.openForAppend(dir, number) : Segment.openSealed(dir, number);
+            Path indexFile = indexFile(dir, number);
+            byte[] index = Files.exists(indexFile) ? Files.readAllBytes(indexFile) : new byte[0];
+            // entries are written after the message, so a crash leaves at most a partial last entry or an unindexed message
+            int wholeEntries = index.length / INDEX_ENTRY_BYTES;
+            ByteBuffer buffer = ByteBuffer.wrap(index, 0, wholeEntries * INDEX_ENTRY_BYTES);
+            while (buffer.hasRemaining()) {
+                long uid = buffer.getLong();
+                long offset = buffer.getLong();
+                int compressedLength = buffer.getInt();
+                int rawLength = buffer.getInt();
+                if (offset + compressedLength <= segment.size) {
+                    entries.put(uid, new Entry(segment, offset, compressedLength, rawLength));
+                }
+            }
+            if (last && index.length != wholeEntries * INDEX_ENTRY_BYTES) {
+                segment.index.truncate((long) wholeEntries * INDEX_ENTRY_BYTES);
+            }
+            segments.add(segment);
+            current = last ? segment : null;
+        }
+
+        // bytes written past the size by a failed write are overwritten by the next one
+        synchronized void write(long uid, CompressedMessage compressed, int rawLength) throws IOException {
+            int compressedLength = Math.toIntExact(compressed.length());
+            if (current == null || (current.size > 0 && current.size + compressedLength > maxSegmentBytes)) {
+                roll();
+            }
+            long offset = current.size;
+            compressed.copyTo(current.data, offset);
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES)
+                    .putLong(uid).putLong(offset).putInt(compressedLength).putInt(rawLength)
+                    .flip();
+            writeFully(current.index, entry, current.index.size());
+            current.size += compressedLength;
+            entries.put(uid, new Entry(current, offset, compressedLength, rawLength));
+        }
+
+        private void roll() throws IOException {
+            int number = segments.isEmpty() ? 1 : segments.getLast().number + 1;
+            if (current != null) {
+                current.seal();
+            }
+            current = Segment.openForAppend(dir, number);
+            segments.add(current);
+        }
+
+        synchronized void close() throws IOException {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    private static final class Segment {
+        private final int number;
+        private final FileChannel data;
+        // null once the segment is sealed
+        private FileChannel index;
+        private volatile long size;
+        private MappedByteBuffer mapped;
+
+        private Segment(int number, FileChannel data, FileChannel index) throws IOException {
+            this.number = number;
+            this.data = data;
+            this.index = index;
+            this.size = data.size();
+        }
+
+        static Segment openForAppend(Path dir, int number) throws IOException {
+            return new Segment(number,
+                    FileChannel.open(segmentFile(dir, number), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE),
+                    FileChannel.open(indexFile(dir, number), StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+        }
+
+        static Segment openSealed(Path dir, int number) throws IOException {
+            return new Segment(number, FileChannel.open(segmentFile(dir, number), StandardOpenOption.READ), null);
+        }
+
+        // the segment being appended to is mapped again once a message beyond the mapping is read
+        synchronized ByteBuffer map(long offset, int length) throws IOException {
+            if (mapped == null || offset + length > mapped.capacity()) {
+                mapped = data.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            return mapped.slice((int) offset, length);
+        }
+
+        void seal() throws IOException {
+            index.close();
+            index = null;
+        }
+
+        void close() throws IOException {
+            if (index != null) {
+                index.close();
+            }
+            data.close();
+        }
+    }
+
+    private record Entry(Segment segment, long offset, int compressedLength, int rawLength) {
+    }
+
+    private static Path segmentFile(Path dir, int number) {
+        return dir.resolve("%06d%s".formatted(number, SEGMENT_SUFFIX));
+    }
+
+    private static Path indexFile(Path dir, int number) {
+        return dir.resolve("%06d%s".formatted(number, INDEX_SUFFIX));
+    }
+
+    public static final class ArchivedMessage extends OutputStream {
+        private final Volume volume;
+        private final long uid;
+        private final Deflater deflater = new Deflater();
+        private final CompressedMessage compressed;
+        private final DeflaterOutputStream out;
+        private long rawLength;
+        private boolean closed;
+
+        private ArchivedMessage(Volume volume, long uid) {
+            this.volume = volume;
+            this.uid = uid;
+            this.compressed = new CompressedMessage(volume.dir);
+            this.out = new DeflaterOutputStream(compressed, deflater, 8192);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            rawLength++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            rawLength += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                out.finish();
+                volume.write(uid, compressed, Math.toIntExact(rawLength));
+            } finally {
+                deflater.end();
+                compressed.discard();
+            }
+        }
+
+        // drops the message, does nothing once it is closed
+        public void abort() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            deflater.end();
+            compressed.discard();
+        }
+    }
+
+    // deflated bytes of a message, in memory up to MAX_BUFFERED_BYTES and in a temporary file beyond
+    private static final class CompressedMessage extends OutputStream {
+        private final Path dir;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private Path spillFile;
+        private OutputStream spill;
+        private long length;
+
+        private CompressedMessage(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (spill == null && length + len > MAX_BUFFERED_BYTES) {
+                spillFile = Files.createTempFile(dir, "append-", SPILL_SUFFIX);
+                spill = new BufferedOutputStream(Files.newOutputStream(spillFile), 64 * 1024);
+                memory.writeTo(spill);
+                memory = null;
+            }
+            if (spill == null) {
+                memory.write(b, off, len);
+            } else {
+                spill.write(b, off, len);
+            }
+            length += len;
+        }
+
+        long length() {
+            return length;
+        }
+
+        void copyTo(FileChannel target, long position) throws IOException {
+            if (spill == null) {
+                Volume.writeFully(target, ByteBuffer.wrap(memory.toByteArray()), position);
+                return;
+            }
+            spill.close();
+            try (FileChannel source = FileChannel.open(spillFile, StandardOpenOption.READ)) {
+                long copied = 0;
+                while (copied < length) {
+                    copied += source.transferTo(copied, length - copied, target.position(position + copied));
+                }
+            }
+        }
+
+        void discard() {
+            if (spill == null) {
+                memory = null;
+                return;
+            }
+            try {
+                spill.close();
+                Files.deleteIfExists(spillFile);
+            } catch (IOException e) {
+                // deleted when the archive is opened again
+            }
+        }
+    }
+}
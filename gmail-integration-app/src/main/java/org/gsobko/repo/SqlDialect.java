@@ -0,0 +1,21 @@
+package org.gsobko.repo;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+// statements that are not portable between the databases the app runs on
+enum SqlDialect {
+    H2,
+    POSTGRESQL;
+
+    static SqlDialect of(Connection conn) throws SQLException {
+        String product = conn.getMetaData().getDatabaseProductName();
+        if ("PostgreSQL".equalsIgnoreCase(product)) {
+            return POSTGRESQL;
+        }
+        if ("H2".equalsIgnoreCase(product)) {
+            return H2;
+        }
+        throw new IllegalStateException("Unsupported database %s".formatted(product));
+    }
+}
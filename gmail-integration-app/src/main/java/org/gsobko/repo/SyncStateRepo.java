@@ -0,0 +1,200 @@
+package org.gsobko.repo;
+
+import org.gsobko.model.SyncState;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class SyncStateRepo {
+
+    private static final String SELECT_SQL = """
+            SELECT * FROM sync_state
+            WHERE account = ? AND folder = ?
+            """;
+
+    // never moves last_uid backwards, another node might have advanced it already
+    private static final String ADVANCE_SQL = """
+            UPDATE sync_state SET last_uid = GREATEST(last_uid, ?), updated_date = ?
+            WHERE account = ? AND folder = ? AND uid_validity = ?
+            """;
+
+    private static final String UPDATE_MODSEQ_SQL = """
+            UPDATE sync_state SET highest_modseq = ?, updated_date = ?
+            WHERE account = ? AND folder = ? AND uid_validity = ?
+            """;
+
+    private static final String UPDATE_SQL = """
+            UPDATE sync_state SET uid_validity = ?, last_uid = ?, highest_modseq = ?, updated_date = ?
+            WHERE account = ? AND folder = ?
+            """;
+
+    // only from the uid validity the node saw, another node polling the folder may have resynced it already
+    private static final String RESYNC_SQL = """
+            UPDATE sync_state SET uid_validity = ?, last_uid = ?, highest_modseq = ?, updated_date = ?
+            WHERE account = ? AND folder = ? AND uid_validity = ?
+            """;
+
+    private static final String INSERT_SQL = """
+            INSERT INTO sync_state (account, folder, uid_validity, last_uid, highest_modseq, updated_date)
+            VALUES (?, ?, ?, ?, ?, ?)
+            """;
+
+    private final DataSource dataSource;
+    private final Map<Key, SyncState> cache = new ConcurrentHashMap<>();
+
+    public SyncStateRepo(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public Optional<SyncState> find(String account, String folder) {
+        Key key = new Key(account, folder);
+        SyncState cached = cache.get(key);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        Optional<SyncState> loaded = load(key);
+        loaded.ifPresent(state -> cache.put(key, state));
+        return loaded;
+    }
+
+    // the state in the database, which another node may have changed, i.e. resynced to a new uid validity
+    public Optional<SyncState> reload(String account, String folder) {
+        Key key = new Key(account, folder);
+        Optional<SyncState> loaded = load(key);
+        loaded.ifPresentOrElse(state -> cache.put(key, state), () -> cache.remove(key));
+        return loaded;
+    }
+
+    // false when the saved state is not of the previous uid validity anymore, nothing is changed then
+    public boolean resync(SyncState previous, SyncState resynced) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(RESYNC_SQL)) {
+            ps.setLong(1, resynced.uidValidity());
+            ps.setLong(2, resynced.lastUid());
+            ps.setLong(3, resynced.highestModSeq());
+            ps.setTimestamp(4, Timestamp.from(Instant.now()));
+            ps.setString(5, previous.account());
+            ps.setString(6, previous.folder());
+            ps.setLong(7, previous.uidValidity());
+            if (ps.executeUpdate() == 0) {
+                return false;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to resync sync state", e);
+        }
+        cacheSaved(resynced);
+        return true;
+    }
+
+    public void save(SyncState state) {
+        try (Connection conn = dataSource.getConnection()) {
+            save(conn, state);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to save sync state", e);
+        }
+        cacheSaved(state);
+    }
+
+    public void advance(SyncState state) {
+        try (Connection conn = dataSource.getConnection()) {
+            advance(conn, state);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to advance sync state", e);
+        }
+        cacheAdvanced(state);
+    }
+
+    public void updateHighestModSeq(SyncState state) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(UPDATE_MODSEQ_SQL)) {
+            ps.setLong(1, state.highestModSeq());
+            ps.setTimestamp(2, Timestamp.from(Instant.now()));
+            ps.setString(3, state.account());
+            ps.setString(4, state.folder());
+            ps.setLong(5, state.uidValidity());
+            if (ps.executeUpdate() == 0) {
+                throw new IllegalStateException("No sync state with uid validity %d for %s/%s to update"
+                        .formatted(state.uidValidity(), state.account(), state.folder()));
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to update highest modseq", e);
+        }
+        // last_uid is advanced concurrently by fetcher, so only modseq is taken from the given state
+        cache.computeIfPresent(new Key(state.account(), state.folder()), (key, cached) ->
+                cached.uidValidity() == state.uidValidity() ? cached.withHighestModSeq(state.highestModSeq()) : cached);
+    }
+
+    void save(Connection conn, SyncState state) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(UPDATE_SQL)) {
+            ps.setLong(1, state.uidValidity());
+            ps.setLong(2, state.lastUid());
+            ps.setLong(3, state.highestModSeq());
+            ps.setTimestamp(4, Timestamp.from(Instant.now()));
+            ps.setString(5, state.account());
+            ps.setString(6, state.folder());
+            if (ps.executeUpdate() > 0) {
+                return;
+            }
+        }
+        try (PreparedStatement ps = conn.prepareStatement(INSERT_SQL)) {
+            ps.setString(1, state.account());
+            ps.setString(2, state.folder());
+            ps.setLong(3, state.uidValidity());
+            ps.setLong(4, state.lastUid());
+            ps.setLong(5, state.highestModSeq());
+            ps.setTimestamp(6, Timestamp.from(Instant.now()));
+            ps.executeUpdate();
+        }
+    }
+
+    void advance(Connection conn, SyncState state) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(ADVANCE_SQL)) {
+            ps.setLong(1, state.lastUid());
+            ps.setTimestamp(2, Timestamp.from(Instant.now()));
+            ps.setString(3, state.account());
+            ps.setString(4, state.folder());
+            ps.setLong(5, state.uidValidity());
+            if (ps.executeUpdate() == 0) {
+                throw new IllegalStateException("No sync state with uid validity %d for %s/%s to advance"
+                        .formatted(state.uidValidity(), state.account(), state.folder()));
+            }
+        }
+    }
+
+    void cacheSaved(SyncState state) {
+        cache.put(new Key(state.account(), state.folder()), state);
+    }
+
+    void cacheAdvanced(SyncState state) {
+        cache.merge(new Key(state.account(), state.folder()), state, (cached, advanced) ->
+                cached.uidValidity() == advanced.uidValidity() && cached.lastUid() > advanced.lastUid() ? cached : advanced);
+    }
+
+    private Optional<SyncState> load(Key key) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement ps = conn.prepareStatement(SELECT_SQL)) {
+            ps.setString(1, key.account());
+            ps.setString(2, key.folder());
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return Optional.of(new SyncState(
+                            rs.getString("account"),
+                            rs.getString("folder"),
+                            rs.getLong("uid_validity"),
+                            rs.getLong("last_uid"),
+                            rs.getLong("highest_modseq")));
+                }
+                return Optional.empty();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to load sync state", e);
+        }
+    }
+
+    private record Key(String account, String folder) {
+    }
+}
@@ -0,0 +1,13 @@
+package org.gsobko.repo;
+
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+
+// snippets of mails saved before V010 added the column
+public class V013__Compute_missing_snippets extends BaseJavaMigration {
+
+    @Override
+    public void migrate(Context context) throws Exception {
+        MailRepo.computeMissingSnippets(context.getConnection());
+    }
+}
@@ -0,0 +1,13 @@
+package org.gsobko.repo;
+
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+
+// bodies of mails saved inline in emails before V011 added email_bodies
+public class V014__Move_inline_bodies extends BaseJavaMigration {
+
+    @Override
+    public void migrate(Context context) throws Exception {
+        MailRepo.moveInlineBodies(context.getConnection());
+    }
+}
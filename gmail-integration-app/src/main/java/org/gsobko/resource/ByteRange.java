@@ -0,0 +1,50 @@
+package org.gsobko.resource;
+
+import java.util.Optional;
+
+// single range of a Range: bytes=... header, both ends inclusive
+public record ByteRange(long start, long end) {
+    private static final String BYTES_UNIT = "bytes=";
+
+    public long length() {
+        return end - start + 1;
+    }
+
+    // empty means the whole content is sent: no header, a malformed one or several ranges (which may be ignored)
+    public static Optional<ByteRange> parse(String header, long size) {
+        if (header == null || !header.startsWith(BYTES_UNIT) || header.contains(",")) {
+            return Optional.empty();
+        }
+        String spec = header.substring(BYTES_UNIT.length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return Optional.empty();
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // suffix range, the last N bytes
+                long suffixLength = Long.parseLong(last);
+                if (suffixLength <= 0 || size == 0) {
+                    throw new RangeNotSatisfiableException(header, size);
+                }
+                return Optional.of(new ByteRange(Math.max(0, size - suffixLength), size - 1));
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+            if (start < 0 || end < 0 || start >= size || start > end) {
+                throw new RangeNotSatisfiableException(header, size);
+            }
+            return Optional.of(new ByteRange(start, end));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    public static class RangeNotSatisfiableException extends RuntimeException {
+        public RangeNotSatisfiableException(String header, long size) {
+            super("Range %s is outside of %d bytes".formatted(header, size));
+        }
+    }
+}
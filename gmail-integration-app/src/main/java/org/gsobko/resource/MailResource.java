@@ -1,31 +1,207 @@
 package org.gsobko.resource;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.javalin.http.ContentType;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 import jakarta.mail.MessagingException;
+import org.gsobko.BodyDownloader;
+import org.gsobko.RecentMailCache;
 import org.gsobko.integration.mail.SmtpSender;
+import org.gsobko.model.EmailAttachment;
 import org.gsobko.model.EmailMessage;
+import org.gsobko.model.MailCursor;
+import org.gsobko.model.MailField;
+import org.gsobko.repo.AttachmentStore;
 import org.gsobko.repo.MailRepo;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
-import java.util.List;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class MailResource {
     public static final int DEFAULT_LIMIT = 100;
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
     private final MailRepo mailRepo;
     private final SmtpSender sender;
+    private final Map<String, BodyDownloader> bodyDownloaders;
+    private final AttachmentStore attachmentStore;
+    private final RecentMailCache recentMailCache;
+    private final ObjectMapper objectMapper;
 
-    public MailResource(MailRepo mailRepo, SmtpSender sender) {
+    public MailResource(MailRepo mailRepo, SmtpSender sender, Map<String, BodyDownloader> bodyDownloaders, ObjectMapper objectMapper) {
+        this(mailRepo, sender, bodyDownloaders, null, null, objectMapper);
+    }
+
+    // attachmentStore is null when attachment content is not stored, recentMailCache when recent mails are not cached.
+    // objectMapper is the one Javalin is configured with, used to write responses that are streamed
+    public MailResource(MailRepo mailRepo, SmtpSender sender, Map<String, BodyDownloader> bodyDownloaders,
+                        AttachmentStore attachmentStore, RecentMailCache recentMailCache, ObjectMapper objectMapper) {
         this.mailRepo = mailRepo;
         this.sender = sender;
+        this.bodyDownloaders = bodyDownloaders;
+        this.attachmentStore = attachmentStore;
+        this.recentMailCache = recentMailCache;
+        this.objectMapper = objectMapper;
     }
 
-    public void fetchEmails(Context ctx) {
+    public void fetchEmails(Context ctx) throws IOException {
         int limit = ctx.queryParamAsClass("limit", Integer.class).getOrDefault(DEFAULT_LIMIT);
+        if (limit < 1) {
+            throw new IllegalArgumentException("Parameter limit should be positive, got %d".formatted(limit));
+        }
         Instant start = getQueryParameterInstant(ctx, "start");
         Instant end = getQueryParameterInstant(ctx, "end");
-        List<EmailMessage> result = mailRepo.fetchAllInInterval(start, end, limit);
-        ctx.json(result);
+        Optional<MailCursor> after = Optional.ofNullable(ctx.queryParam("cursor")).map(MailCursor::decode);
+        Set<MailField> fields = requestedFields(ctx);
+        Optional<MailRepo.Page> cached = recentMailCache == null ? Optional.empty() : recentMailCache.page(start, end, after, limit);
+        if (cached.isPresent()) {
+            cached.get().next().ifPresent(cursor -> ctx.header(NEXT_CURSOR_HEADER, cursor.encode()));
+            ctx.contentType(ContentType.APPLICATION_JSON);
+            try (JsonGenerator json = objectMapper.createGenerator(ctx.outputStream())) {
+                json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                json.writeStartArray();
+                cached.get().emails().forEach(email -> write(json, email, fields));
+                json.writeEndArray();
+            }
+            return;
+        }
+        // the body stays a plain array, the cursor of the next page goes into a header, so it is found before the mails are read
+        Optional<MailCursor> next = mailRepo.findPageEnd(start, end, after, limit);
+        next.ifPresent(cursor -> ctx.header(NEXT_CURSOR_HEADER, cursor.encode()));
+        ctx.contentType(ContentType.APPLICATION_JSON);
+        // mails are serialized into the response one by one as they are read, whatever the limit.
+        // A failure half way can only cut the response, its status is already sent
+        try (JsonGenerator json = objectMapper.createGenerator(ctx.outputStream())) {
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            json.writeStartArray();
+            mailRepo.streamPage(start, end, after, next, fields, email -> write(json, email, fields));
+            json.writeEndArray();
+        }
+    }
+
+    // view=full (default) or summary without the bodies, or fields=id,from,... for just the listed ones
+    static Set<MailField> requestedFields(Context ctx) {
+        String view = ctx.queryParam("view");
+        String fields = ctx.queryParam("fields");
+        if (view != null && fields != null) {
+            throw new IllegalArgumentException("Parameters view and fields can not be used together");
+        }
+        if (fields != null) {
+            return Stream.of(fields.split(","))
+                    .map(field -> MailField.ofJsonName(field.strip()))
+                    .collect(Collectors.toCollection(() -> EnumSet.noneOf(MailField.class)));
+        }
+        return switch (view == null ? "full" : view) {
+            case "full" -> MailField.ALL;
+            case "summary" -> MailField.SUMMARY;
+            default -> throw new IllegalArgumentException("Unknown view %s, expected full or summary".formatted(view));
+        };
+    }
+
+    // a projected mail has only its fields written, the rest of them were not read
+    static void write(JsonGenerator json, EmailMessage email, Set<MailField> fields) {
+        try {
+            if (fields.equals(MailField.ALL)) {
+                json.writeObject(email);
+                return;
+            }
+            json.writeStartObject();
+            for (MailField field : fields) {
+                json.writeFieldName(field.jsonName());
+                json.writeObject(field.valueOf(email));
+            }
+            json.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void fetchEmail(Context ctx) {
+        UUID id = UUID.fromString(ctx.pathParam("id"));
+        Optional<EmailMessage> email = mailRepo.findById(id);
+        if (email.isEmpty()) {
+            ctx.status(HttpStatus.NOT_FOUND);
+            return;
+        }
+        // mails ingested with headers only get their body downloaded on first read, truncated oversized ones
+        // only when asked for with body=full, unless the folder is not synced anymore
+        BodyDownloader bodyDownloader = bodyDownloaders.get(email.get().folder());
+        if (bodyDownloader == null) {
+            ctx.json(email.get());
+        } else if ("full".equals(ctx.queryParam("body"))) {
+            ctx.json(bodyDownloader.withFullBody(email.get()));
+        } else {
+            ctx.json(bodyDownloader.withBody(email.get()));
+        }
+    }
+
+    public void fetchThread(Context ctx) {
+        long threadId = Long.parseLong(ctx.pathParam("threadId"));
+        ctx.json(mailRepo.findByThreadId(threadId));
+    }
+
+    public void fetchAttachment(Context ctx) throws IOException {
+        UUID id = UUID.fromString(ctx.pathParam("id"));
+        int index = Integer.parseInt(ctx.pathParam("n"));
+        Optional<EmailAttachment> attachment = attachmentStore == null ? Optional.empty() : mailRepo.findAttachment(id, index);
+        if (attachment.isEmpty()) {
+            ctx.status(HttpStatus.NOT_FOUND);
+            return;
+        }
+        Path file = attachmentStore.path(attachment.get().sha256());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ctx.header(Header.ACCEPT_RANGES, "bytes");
+            Optional<ByteRange> range;
+            try {
+                range = ByteRange.parse(ctx.header(Header.RANGE), size);
+            } catch (ByteRange.RangeNotSatisfiableException e) {
+                ctx.header(Header.CONTENT_RANGE, "bytes */%d".formatted(size));
+                ctx.status(HttpStatus.RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            ByteRange bytes = range.orElse(new ByteRange(0, size - 1));
+            if (range.isPresent()) {
+                ctx.status(HttpStatus.PARTIAL_CONTENT);
+                ctx.header(Header.CONTENT_RANGE, "bytes %d-%d/%d".formatted(bytes.start(), bytes.end(), size));
+            }
+            ctx.contentType(attachment.get().contentType());
+            ctx.header(Header.CONTENT_DISPOSITION, "attachment; filename*=UTF-8''" + URLEncoder.encode(attachment.get().name(), StandardCharsets.UTF_8).replace("+", "%20"));
+            ctx.res().setContentLengthLong(bytes.length());
+            // straight to the servlet stream, Javalin's own output stream may compress the content;
+            // the servlet stream is no socket, so transferTo still copies through its buffer
+            transfer(channel, bytes, Channels.newChannel(ctx.res().getOutputStream()));
+        } catch (NoSuchFileException e) {
+            throw new IllegalStateException("Attachment %d of mail %s is missing in attachment store".formatted(index, id), e);
+        }
+    }
+
+    private static void transfer(FileChannel channel, ByteRange range, WritableByteChannel target) throws IOException {
+        long position = range.start();
+        long remaining = range.length();
+        while (remaining > 0) {
+            long transferred = channel.transferTo(position, remaining, target);
+            position += transferred;
+            remaining -= transferred;
+        }
     }
 
     private static Instant getQueryParameterInstant(Context ctx, String param) {
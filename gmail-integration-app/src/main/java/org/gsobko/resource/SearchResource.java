@@ -0,0 +1,61 @@
+package org.gsobko.resource;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import org.gsobko.model.EmailMessage;
+import org.gsobko.model.MailField;
+import org.gsobko.repo.MailRepo;
+import org.gsobko.search.SearchCursor;
+import org.gsobko.search.SearchIndex;
+import org.gsobko.search.SearchQuery;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+public class SearchResource {
+    public static final int DEFAULT_LIMIT = 20;
+    private final SearchIndex searchIndex;
+    private final MailRepo mailRepo;
+    private final ObjectMapper objectMapper;
+
+    // searchIndex is null when search is not enabled
+    public SearchResource(SearchIndex searchIndex, MailRepo mailRepo, ObjectMapper objectMapper) {
+        this.searchIndex = searchIndex;
+        this.mailRepo = mailRepo;
+        this.objectMapper = objectMapper;
+    }
+
+    // best matching first, paged as /mails with the cursor of the next page in a header. Mails come from the database
+    // by the ids the index found, with the fields asked for as in /mails
+    public void search(Context ctx) throws IOException {
+        if (searchIndex == null) {
+            ctx.status(HttpStatus.NOT_FOUND);
+            return;
+        }
+        String query = ctx.queryParam("q");
+        if (query == null || query.isBlank()) {
+            throw new IllegalArgumentException("Parameter q is required");
+        }
+        int limit = ctx.queryParamAsClass("limit", Integer.class).getOrDefault(DEFAULT_LIMIT);
+        if (limit < 1 || limit > MailResource.DEFAULT_LIMIT) {
+            throw new IllegalArgumentException("Parameter limit should be 1 to %d, got %d".formatted(MailResource.DEFAULT_LIMIT, limit));
+        }
+        Optional<SearchCursor> after = Optional.ofNullable(ctx.queryParam("cursor")).map(SearchCursor::decode);
+        Set<MailField> fields = MailResource.requestedFields(ctx);
+        SearchIndex.Page page = searchIndex.search(SearchQuery.parse(query), after, limit);
+        List<EmailMessage> emails = mailRepo.findByIds(page.ids(), fields);
+        page.next().ifPresent(cursor -> ctx.header(MailResource.NEXT_CURSOR_HEADER, cursor.encode()));
+        ctx.contentType(ContentType.APPLICATION_JSON);
+        try (JsonGenerator json = objectMapper.createGenerator(ctx.outputStream())) {
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            json.writeStartArray();
+            emails.forEach(email -> MailResource.write(json, email, fields));
+            json.writeEndArray();
+        }
+    }
+}
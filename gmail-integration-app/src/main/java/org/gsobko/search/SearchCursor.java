@@ -0,0 +1,30 @@
+package org.gsobko.search;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.UUID;
+
+// position in search results, the next page starts right after the mail ranked with this score, created date and id
+public record SearchCursor(float score, Instant createdDate, UUID id) {
+    private static final String SEPARATOR = "|";
+
+    // opaque to clients, as MailCursor
+    public String encode() {
+        byte[] key = (score + SEPARATOR + createdDate + SEPARATOR + id).getBytes(StandardCharsets.US_ASCII);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key);
+    }
+
+    public static SearchCursor decode(String cursor) {
+        try {
+            String[] key = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII).split("\\" + SEPARATOR);
+            if (key.length != 3) {
+                throw new IllegalArgumentException("Invalid cursor %s".formatted(cursor));
+            }
+            return new SearchCursor(Float.parseFloat(key[0]), Instant.parse(key[1]), UUID.fromString(key[2]));
+        } catch (DateTimeParseException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor %s".formatted(cursor), e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.gsobko.search;
+
+import org.gsobko.model.BodyState;
+import org.gsobko.model.EmailMessage;
+
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// what is indexed of a mail. A mail saved with headers only is indexed again once its body is saved
+public record SearchDocument(UUID id, Instant createdDate, boolean headersOnly, Map<SearchField, List<String>> tokens) {
+    // words of a body past it are not searched, they would only make the index bigger
+    static final int MAX_BODY_TOKENS = 20_000;
+    private static final int MAX_HEADER_TOKENS = 1_000;
+
+    public static SearchDocument of(EmailMessage email) {
+        String text = email.text() == null || email.text().isBlank() ? Tokenizer.htmlText(email.html()) : email.text();
+        String to = Stream.of(email.to(), email.cc()).filter(address -> address != null).collect(Collectors.joining(" "));
+        Map<SearchField, List<String>> tokens = new EnumMap<>(SearchField.class);
+        tokens.put(SearchField.SUBJECT, Tokenizer.tokens(email.subject(), MAX_HEADER_TOKENS));
+        tokens.put(SearchField.FROM, Tokenizer.tokens(email.from(), MAX_HEADER_TOKENS));
+        tokens.put(SearchField.TO, Tokenizer.tokens(to, MAX_HEADER_TOKENS));
+        tokens.put(SearchField.TEXT, Tokenizer.tokens(text, MAX_BODY_TOKENS));
+        return new SearchDocument(email.id(), email.createdDate(), email.bodyState() == BodyState.HEADERS, tokens);
+    }
+}
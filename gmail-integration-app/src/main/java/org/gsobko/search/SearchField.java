@@ -0,0 +1,34 @@
+package org.gsobko.search;
+
+import java.util.Optional;
+import java.util.stream.Stream;
+
+// fields of a mail that are searched, a query term without a field is looked for in all of them.
+// A field is indexed under its query name. A match in a heavier field ranks higher
+public enum SearchField {
+    SUBJECT("subject", 2.0f),
+    FROM("from", 2.0f),
+    // to and cc
+    TO("to", 1.0f),
+    TEXT("text", 1.0f);
+
+    private final String queryName;
+    private final float weight;
+
+    SearchField(String queryName, float weight) {
+        this.queryName = queryName;
+        this.weight = weight;
+    }
+
+    static Optional<SearchField> ofQueryName(String name) {
+        return Stream.of(values()).filter(field -> field.queryName.equalsIgnoreCase(name)).findFirst();
+    }
+
+    String fieldName() {
+        return queryName;
+    }
+
+    float weight() {
+        return weight;
+    }
+}
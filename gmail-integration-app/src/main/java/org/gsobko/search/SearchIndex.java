@@ -0,0 +1,297 @@
+package org.gsobko.search;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// Lucene index of mails on local disk. Documents added are found once refresh reopened the near real time searcher,
+// and kept across restarts once committed: a crash loses what was added since the last commit, which the indexer
+// finds again as it catches up from the watermark kept with the commit. Lucene merges segments in the background.
+// Adds come from a single indexing thread, searches from any thread on what was refreshed when they started
+public class SearchIndex implements Closeable {
+    // an index with documents of another layout is dropped and rebuilt from the database
+    static final int FORMAT_VERSION = 2;
+    private static final String ID = "id";
+    private static final String CREATED = "created";
+    private static final String HEADERS_ONLY = "headers_only";
+    private static final String FORMAT_KEY = "format";
+    private static final String WATERMARK_KEY = "watermark";
+    private static final String COMPLETE_KEY = "complete";
+    // files of the index written by this service before it was built on Lucene
+    private static final Pattern LEGACY_FILE = Pattern.compile("\\d{6}(\\.doc|\\.trm|\\.pst|_\\d+\\.del)|manifest\\.properties(\\.tmp)?");
+    // best first: higher score, then newer, then by id so the order is total and a cursor is exact
+    private static final Sort RANKING = new Sort(SortField.FIELD_SCORE, new SortField(CREATED, SortField.Type.LONG, true),
+            new SortField(ID, SortField.Type.STRING, true));
+
+    private final Directory directory;
+    private final IndexWriter writer;
+    private final SearcherManager searchers;
+    private Instant watermark;
+    private boolean complete;
+
+    private SearchIndex(Directory directory, IndexWriter writer, SearcherManager searchers, Instant watermark, boolean complete) {
+        this.directory = directory;
+        this.writer = writer;
+        this.searchers = searchers;
+        this.watermark = watermark;
+        this.complete = complete;
+    }
+
+    public record Page(List<UUID> ids, Optional<SearchCursor> next) {
+    }
+
+    public static SearchIndex open(Path dir) {
+        try {
+            Files.createDirectories(dir);
+            deleteLegacyFiles(dir);
+            Directory directory = FSDirectory.open(dir);
+            Map<String, String> commitData = DirectoryReader.indexExists(directory)
+                    ? SegmentInfos.readLatestCommit(directory).getUserData()
+                    : Map.of();
+            // nothing or an index of another format, the indexer fills it from the database
+            boolean current = String.valueOf(FORMAT_VERSION).equals(commitData.get(FORMAT_KEY));
+            IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig()
+                    .setOpenMode(current ? IndexWriterConfig.OpenMode.CREATE_OR_APPEND : IndexWriterConfig.OpenMode.CREATE));
+            return new SearchIndex(directory, writer, new SearcherManager(writer, null),
+                    current ? Optional.ofNullable(commitData.get(WATERMARK_KEY)).map(Instant::parse).orElse(null) : null,
+                    current && Boolean.parseBoolean(commitData.get(COMPLETE_KEY)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open search index in %s".formatted(dir), e);
+        }
+    }
+
+    private static void deleteLegacyFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.filter(file -> LEGACY_FILE.matcher(file.getFileName().toString()).matches()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    // false until every mail of the database was added once, i.e. when the index was just created
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    public synchronized void markComplete() {
+        complete = true;
+    }
+
+    // created date of mails all were added up to, empty if not known
+    public synchronized Optional<Instant> watermark() {
+        return Optional.ofNullable(watermark);
+    }
+
+    public synchronized void watermark(Instant watermark) {
+        this.watermark = watermark;
+    }
+
+    // replaces the document of the mail indexed before, if any
+    public void add(SearchDocument document) {
+        Document doc = new Document();
+        String id = document.id().toString();
+        doc.add(new StringField(ID, id, Field.Store.YES));
+        doc.add(new SortedDocValuesField(ID, new BytesRef(id)));
+        doc.add(new NumericDocValuesField(CREATED, document.createdDate().toEpochMilli()));
+        if (document.headersOnly()) {
+            doc.add(new StringField(HEADERS_ONLY, "true", Field.Store.NO));
+        }
+        document.tokens().forEach((field, tokens) -> doc.add(new TextField(field.fieldName(), new TokenList(tokens))));
+        try {
+            writer.updateDocument(new Term(ID, id), doc);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not add mail %s to search index".formatted(id), e);
+        }
+    }
+
+    // among the documents refreshed
+    public boolean contains(UUID id) {
+        return withSearcher(searcher -> searcher.count(new TermQuery(new Term(ID, id.toString()))) > 0);
+    }
+
+    // mails indexed before their body was saved
+    public List<UUID> headersOnlyIds(int limit) {
+        return withSearcher(searcher -> {
+            TopDocs top = searcher.search(new TermQuery(new Term(HEADERS_ONLY, "true")), limit);
+            StoredFields stored = searcher.storedFields();
+            List<UUID> ids = new ArrayList<>(top.scoreDocs.length);
+            for (ScoreDoc hit : top.scoreDocs) {
+                ids.add(UUID.fromString(stored.document(hit.doc).get(ID)));
+            }
+            return ids;
+        });
+    }
+
+    // documents searched, not counting those of mails indexed again
+    public int size() {
+        return withSearcher(searcher -> searcher.getIndexReader().numDocs());
+    }
+
+    // makes documents added so far searchable
+    public void refresh() {
+        try {
+            searchers.maybeRefreshBlocking();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not refresh search index", e);
+        }
+    }
+
+    // makes documents added so far, the watermark and completeness survive a restart
+    public void commit() {
+        try {
+            synchronized (this) {
+                Map<String, String> commitData = new HashMap<>();
+                commitData.put(FORMAT_KEY, String.valueOf(FORMAT_VERSION));
+                commitData.put(COMPLETE_KEY, String.valueOf(complete));
+                if (watermark != null) {
+                    commitData.put(WATERMARK_KEY, watermark.toString());
+                }
+                writer.setLiveCommitData(commitData.entrySet());
+            }
+            writer.commit();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not commit search index", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        commit();
+        searchers.close();
+        writer.close();
+        directory.close();
+    }
+
+    // mails with all clauses of the query, best ranked first. Lucene scores a clause by BM25 of the term or phrase in
+    // every field it is searched in, boosted by the weight of the field
+    public Page search(SearchQuery query, Optional<SearchCursor> after, int limit) {
+        return withSearcher(searcher -> {
+            int maxDoc = searcher.getIndexReader().maxDoc();
+            if (maxDoc == 0) {
+                return new Page(List.of(), Optional.empty());
+            }
+            // one more than the page to tell whether there is a next one. Ties of all sort values are the cursor's
+            // own mail, the last doc number keeps it out
+            TopDocs top = after.isPresent()
+                    ? searcher.searchAfter(new FieldDoc(maxDoc - 1, after.get().score(), new Object[]{after.get().score(),
+                    after.get().createdDate().toEpochMilli(), new BytesRef(after.get().id().toString())}), luceneQuery(query), limit + 1, RANKING, true)
+                    : searcher.search(luceneQuery(query), limit + 1, RANKING, true);
+            List<SearchCursor> ranked = Arrays.stream(top.scoreDocs)
+                    .map(hit -> cursor((FieldDoc) hit))
+                    .toList();
+            Optional<SearchCursor> next = Optional.empty();
+            if (ranked.size() > limit) {
+                ranked = ranked.subList(0, limit);
+                next = Optional.of(ranked.getLast());
+            }
+            return new Page(ranked.stream().map(SearchCursor::id).toList(), next);
+        });
+    }
+
+    private static SearchCursor cursor(FieldDoc hit) {
+        return new SearchCursor((Float) hit.fields[0], Instant.ofEpochMilli((Long) hit.fields[1]),
+                UUID.fromString(((BytesRef) hit.fields[2]).utf8ToString()));
+    }
+
+    static Query luceneQuery(SearchQuery query) {
+        BooleanQuery.Builder all = new BooleanQuery.Builder();
+        for (SearchQuery.Clause clause : query.clauses()) {
+            BooleanQuery.Builder anyField = new BooleanQuery.Builder();
+            for (SearchField field : clause.fields()) {
+                Query match = clause.isPhrase()
+                        ? new PhraseQuery(field.fieldName(), clause.tokens().toArray(String[]::new))
+                        : new TermQuery(new Term(field.fieldName(), clause.tokens().getFirst()));
+                anyField.add(new BoostQuery(match, field.weight()), BooleanClause.Occur.SHOULD);
+            }
+            all.add(anyField.build(), BooleanClause.Occur.MUST);
+        }
+        return all.build();
+    }
+
+    private <T> T withSearcher(SearcherCallback<T> callback) {
+        try {
+            IndexSearcher searcher = searchers.acquire();
+            try {
+                return callback.call(searcher);
+            } finally {
+                searchers.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not search index", e);
+        }
+    }
+
+    private interface SearcherCallback<T> {
+        T call(IndexSearcher searcher) throws IOException;
+    }
+
+    // tokens of a field as SearchDocument made them, so mails and queries are split into words the same way
+    private static final class TokenList extends TokenStream {
+        private final CharTermAttribute term = addAttribute(CharTermAttribute.class);
+        private final List<String> tokens;
+        private int next;
+
+        TokenList(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (next == tokens.size()) {
+                return false;
+            }
+            clearAttributes();
+            term.setEmpty().append(tokens.get(next++));
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            next = 0;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.gsobko.search;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+// terms a mail has to have all of: invoice "quarterly report" from:alice subject:"team meeting".
+// A term without a field is looked for in any field. Several tokens in one term (a quoted phrase, or i.e. alice@example.com)
+// have to follow one another in the same field. A prefix that is no field name (i.e. http:) is searched as text
+public record SearchQuery(List<Clause> clauses) {
+    // more terms than that are dropped, every one costs a walk through its postings
+    public static final int MAX_CLAUSES = 16;
+    static final int MAX_PHRASE_TOKENS = 16;
+
+    public record Clause(Set<SearchField> fields, List<String> tokens) {
+        boolean isPhrase() {
+            return tokens.size() > 1;
+        }
+    }
+
+    public static SearchQuery parse(String query) {
+        List<Clause> clauses = new ArrayList<>();
+        int i = 0;
+        while (i < query.length() && clauses.size() < MAX_CLAUSES) {
+            if (Character.isWhitespace(query.charAt(i))) {
+                i++;
+                continue;
+            }
+            Set<SearchField> fields = EnumSet.allOf(SearchField.class);
+            int colon = query.indexOf(':', i);
+            int space = indexOfWhitespace(query, i);
+            if (colon > i && colon < space) {
+                var field = SearchField.ofQueryName(query.substring(i, colon));
+                if (field.isPresent()) {
+                    fields = EnumSet.of(field.get());
+                    i = colon + 1;
+                }
+            }
+            int end;
+            String term;
+            if (i < query.length() && query.charAt(i) == '"') {
+                int closing = query.indexOf('"', i + 1);
+                end = closing < 0 ? query.length() : closing + 1;
+                term = query.substring(i + 1, closing < 0 ? query.length() : closing);
+            } else {
+                end = indexOfWhitespace(query, i);
+                term = query.substring(i, end);
+            }
+            List<String> tokens = Tokenizer.tokens(term, MAX_PHRASE_TOKENS);
+            if (!tokens.isEmpty()) {
+                clauses.add(new Clause(fields, tokens));
+            }
+            i = end;
+        }
+        if (clauses.isEmpty()) {
+            throw new IllegalArgumentException("Query has no terms to search for");
+        }
+        return new SearchQuery(List.copyOf(clauses));
+    }
+
+    private static int indexOfWhitespace(String query, int from) {
+        for (int i = from; i < query.length(); i++) {
+            if (Character.isWhitespace(query.charAt(i))) {
+                return i;
+            }
+        }
+        return query.length();
+    }
+}
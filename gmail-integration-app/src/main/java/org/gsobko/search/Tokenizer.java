@@ -0,0 +1,48 @@
+package org.gsobko.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+// tokens are lower cased runs of letters and digits, so "Re: Q3-report" is re, q3, report and aaa@bbb.com is aaa, bbb, com
+final class Tokenizer {
+    // longer runs are base64, hashes or tracking ids nobody searches for
+    static final int MAX_TOKEN_LENGTH = 40;
+    private static final Pattern SCRIPTS = Pattern.compile("<(script|style)\\b.*?</\\1\\s*>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern TAGS_AND_ENTITIES = Pattern.compile("<[^>]*>|&#?\\w+;");
+
+    private Tokenizer() {
+    }
+
+    static List<String> tokens(String text, int maxTokens) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length() && tokens.size() < maxTokens; ) {
+            int codePoint = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                if (text.codePointCount(start, i) <= MAX_TOKEN_LENGTH) {
+                    tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return tokens;
+    }
+
+    // text of an html only mail, markup is not searched
+    static String htmlText(String html) {
+        if (html == null) {
+            return null;
+        }
+        return TAGS_AND_ENTITIES.matcher(SCRIPTS.matcher(html).replaceAll(" ")).replaceAll(" ");
+    }
+}
@@ -0,0 +1,21 @@
+CREATE TABLE sync_state
+(
+    account        VARCHAR NOT NULL,
+    folder         VARCHAR NOT NULL,
+    uid_validity   BIGINT  NOT NULL,
+    last_uid       BIGINT  NOT NULL,
+    highest_modseq BIGINT  NOT NULL,
+    updated_date   TIMESTAMP WITH TIME ZONE,
+    PRIMARY KEY (account, folder)
+);
+
+ALTER TABLE emails ALTER COLUMN imap_uid SET DATA TYPE BIGINT;
+
+-- UIDVALIDITY is never 0, so 0 marks emails saved before the sync state existed
+ALTER TABLE emails ADD COLUMN uid_validity BIGINT NOT NULL DEFAULT 0;
+
+DROP INDEX emails_imap_uid_unique_idx;
+
+CREATE UNIQUE INDEX emails_imap_uid_unique_idx ON emails (uid_validity, imap_uid);
+
+CREATE INDEX emails_message_id_idx ON emails (message_id);
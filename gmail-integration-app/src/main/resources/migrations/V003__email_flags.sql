@@ -0,0 +1,3 @@
+ALTER TABLE emails ADD COLUMN flags VARCHAR NOT NULL DEFAULT '';
+
+ALTER TABLE emails ADD COLUMN deleted BOOLEAN NOT NULL DEFAULT FALSE;
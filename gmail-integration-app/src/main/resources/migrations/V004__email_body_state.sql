@@ -0,0 +1,4 @@
+-- HEADERS - only envelope and body structure are saved, FULL - body is downloaded too
+ALTER TABLE emails ADD COLUMN body_state VARCHAR NOT NULL DEFAULT 'FULL';
+
+CREATE INDEX emails_body_state_idx ON emails (body_state, uid_validity, imap_uid);
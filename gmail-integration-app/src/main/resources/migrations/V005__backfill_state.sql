@@ -0,0 +1,9 @@
+CREATE TABLE backfill_state
+(
+    account       VARCHAR NOT NULL,
+    folder        VARCHAR NOT NULL,
+    uid_validity  BIGINT  NOT NULL,
+    low_water_uid BIGINT  NOT NULL,
+    updated_date  TIMESTAMP WITH TIME ZONE,
+    PRIMARY KEY (account, folder)
+);
@@ -0,0 +1,10 @@
+-- '' marks emails saved before folders were tracked, they are assigned to the first configured folder on start
+ALTER TABLE emails ADD COLUMN folder VARCHAR NOT NULL DEFAULT '';
+
+DROP INDEX emails_imap_uid_unique_idx;
+
+CREATE UNIQUE INDEX emails_imap_uid_unique_idx ON emails (folder, uid_validity, imap_uid);
+
+DROP INDEX emails_body_state_idx;
+
+CREATE INDEX emails_body_state_idx ON emails (body_state, folder, uid_validity, imap_uid);
@@ -0,0 +1,13 @@
+-- attachment content is stored on disk by SHA-256, identical attachments of different emails share the file
+CREATE TABLE email_attachments
+(
+    email_id     UUID        NOT NULL REFERENCES emails (id),
+    part_index   INTEGER     NOT NULL,
+    name         VARCHAR     NOT NULL,
+    content_type VARCHAR     NOT NULL,
+    size_bytes   BIGINT      NOT NULL,
+    sha256       VARCHAR(64) NOT NULL,
+    PRIMARY KEY (email_id, part_index)
+);
+
+CREATE INDEX email_attachments_sha256_idx ON email_attachments (sha256);
@@ -0,0 +1,6 @@
+ALTER TABLE emails ADD COLUMN gm_msgid BIGINT;
+ALTER TABLE emails ADD COLUMN gm_thrid BIGINT;
+ALTER TABLE emails ADD COLUMN gm_labels VARCHAR NOT NULL DEFAULT '';
+-- a Gmail message is saved once whatever number of folders (labels) it shows up in, NULLs (non-Gmail servers) do not clash
+CREATE UNIQUE INDEX emails_gm_msgid_unique_idx ON emails (gm_msgid);
+CREATE INDEX emails_gm_thrid_idx ON emails (gm_thrid, sent_date);
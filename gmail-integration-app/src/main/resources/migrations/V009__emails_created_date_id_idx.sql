@@ -0,0 +1,3 @@
+-- /mails pages are read by (created_date, id) keyset, id breaks ties of mails saved at the same moment
+CREATE INDEX emails_created_date_id_idx ON emails (created_date DESC, id DESC);
+DROP INDEX emails_create_date_idx;
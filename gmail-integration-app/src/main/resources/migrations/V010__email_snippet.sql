@@ -0,0 +1,2 @@
+-- NULL until computed from body_text, mails saved before are given one at startup
+ALTER TABLE emails ADD COLUMN snippet VARCHAR;
@@ -0,0 +1,8 @@
+-- bodies encoded by BodyCodec (deflated with a dictionary), out of emails so that its scans do not read through them.
+-- emails.body_text and body_html are moved here at startup
+CREATE TABLE email_bodies
+(
+    email_id        UUID PRIMARY KEY REFERENCES emails (id),
+    text_compressed BYTEA,
+    html_compressed BYTEA
+);
@@ -0,0 +1,5 @@
+-- database time of the last change of a mail a client can see (saved, body, flags, deleted, uid), nodes caching recent
+-- mails read what changed since they last looked. Set by the database, so the clocks of the nodes do not matter
+ALTER TABLE emails ADD COLUMN updated_date TIMESTAMP WITH TIME ZONE DEFAULT CURRENT_TIMESTAMP;
+
+CREATE INDEX emails_updated_date_idx ON emails (updated_date);
@@ -0,0 +1,19 @@
+-- number of the last committed change of a mail a client can see (saved, body, flags, deleted, uid). A change leaves
+-- change_seq NULL on the rows it writes and, as its last step before the commit, takes the next number from
+-- email_change_counter and sets it on them. The counter row stays locked until the commit, so changes are numbered in
+-- commit order and a reader that saw number n has every change up to n. Existing mails get 0, set without a rewrite
+ALTER TABLE emails ADD COLUMN change_seq BIGINT DEFAULT 0;
+ALTER TABLE emails ALTER COLUMN change_seq DROP DEFAULT;
+
+CREATE INDEX emails_change_seq_idx ON emails (change_seq);
+
+CREATE TABLE email_change_counter
+(
+    id  INT PRIMARY KEY,
+    seq BIGINT NOT NULL
+);
+
+INSERT INTO email_change_counter (id, seq) VALUES (1, 0);
+
+DROP INDEX emails_updated_date_idx;
+ALTER TABLE emails DROP COLUMN updated_date;
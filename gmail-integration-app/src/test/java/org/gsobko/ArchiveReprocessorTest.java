@@ -0,0 +1,103 @@
+package org.gsobko;
+
+import org.gsobko.integration.mail.AttachmentSink;
+import org.gsobko.integration.mail.ContentLimits;
+import org.gsobko.model.EmailBody;
+import org.gsobko.model.SyncState;
+import org.gsobko.repo.MailRepo;
+import org.gsobko.repo.MessageArchive;
+import org.gsobko.repo.SyncStateRepo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class ArchiveReprocessorTest {
+
+    String ACCOUNT = "user@gmail.com";
+    String FOLDER = "INBOX";
+    long UID_VALIDITY = 42;
+    MailRepo repo = mock(MailRepo.class);
+    SyncStateRepo syncStateRepo = mock(SyncStateRepo.class);
+    @TempDir
+    Path dir;
+    MessageArchive archive;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        archive.close();
+    }
+
+    @Test
+    void should_replace_bodies_with_ones_parsed_from_archived_messages_of_current_uid_validity() throws Exception {
+        // given
+        archive = new MessageArchive(dir);
+        for (long uid = 1; uid <= 5; uid++) {
+            append(UID_VALIDITY, uid, textMessage("text" + uid));
+        }
+        append(UID_VALIDITY - 1, 6, textMessage("before UIDVALIDITY changed"));
+        given(syncStateRepo.find(ACCOUNT, FOLDER)).willReturn(Optional.of(new SyncState(ACCOUNT, FOLDER, UID_VALIDITY, 10, 0)));
+        given(repo.replaceBodies(eq(FOLDER), eq(UID_VALIDITY), any())).willAnswer(i -> i.<List<?>>getArgument(2).size());
+        ArchiveReprocessor reprocessor = new ArchiveReprocessor(repo, syncStateRepo, archive, ACCOUNT, FOLDER,
+                ContentLimits.DEFAULT, AttachmentSink.DISCARD, 2, 3);
+
+        // when
+        int updated = reprocessor.reprocess();
+
+        // then
+        ArgumentCaptor<List<EmailBody>> bodies = ArgumentCaptor.forClass(List.class);
+        verify(repo, atLeastOnce()).replaceBodies(eq(FOLDER), eq(UID_VALIDITY), bodies.capture());
+        assertThat(bodies.getAllValues().stream().flatMap(List::stream))
+                .extracting(EmailBody::imapUid, EmailBody::text)
+                .containsExactlyInAnyOrder(
+                        tuple(1L, "text1"),
+                        tuple(2L, "text2"),
+                        tuple(3L, "text3"),
+                        tuple(4L, "text4"),
+                        tuple(5L, "text5"));
+        assertThat(updated).isEqualTo(5);
+    }
+
+    @Test
+    void should_not_reprocess_folder_that_was_never_synced() throws Exception {
+        // given
+        archive = new MessageArchive(dir);
+        append(UID_VALIDITY, 1, textMessage("text"));
+        given(syncStateRepo.find(ACCOUNT, FOLDER)).willReturn(Optional.empty());
+        ArchiveReprocessor reprocessor = new ArchiveReprocessor(repo, syncStateRepo, archive, ACCOUNT, FOLDER,
+                ContentLimits.DEFAULT, AttachmentSink.DISCARD, 2, 3);
+
+        // when
+        int updated = reprocessor.reprocess();
+
+        // then
+        assertThat(updated).isZero();
+        verify(repo, never()).replaceBodies(any(), any(Long.class), any());
+    }
+
+    private void append(long uidValidity, long uid, String message) throws Exception {
+        try (OutputStream out = archive.append(uidValidity, uid)) {
+            out.write(message.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String textMessage(String text) {
+        return "From: a@b\r\nSubject: subj\r\nContent-Type: text/plain; charset=utf-8\r\n\r\n" + text;
+    }
+}
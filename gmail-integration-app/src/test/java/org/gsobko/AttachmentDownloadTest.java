@@ -0,0 +1,112 @@
+package org.gsobko;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.icegreen.greenmail.util.GreenMailUtil;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class AttachmentDownloadTest extends FunctionalTestBase {
+
+    HttpClient client = HttpClient.newHttpClient();
+    byte[] pdf = "%PDF-1.4 not really a pdf, but binary enough \u0000\u0001\u0002".repeat(100).getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    Path attachmentsDir;
+
+    @Override
+    protected Properties createTestProperties() {
+        Properties properties = super.createTestProperties();
+        properties.put("gmail.attachments.dir", attachmentsDir.toString());
+        return properties;
+    }
+
+    @Test
+    void should_store_identical_attachments_once_and_serve_them_with_ranges() throws Exception {
+        // given
+        user.deliver(mailWithAttachment("Subj1"));
+        user.deliver(mailWithAttachment("Subj2"));
+        JsonNode mails = await().atMost(Duration.ofSeconds(5)).until(this::fetchMails, json -> json.size() == 2);
+        String id = mails.get(0).get("id").asText();
+
+        // when
+        HttpResponse<byte[]> whole = get("/mails/%s/attachments/0".formatted(id), null);
+        HttpResponse<byte[]> range = get("/mails/%s/attachments/0".formatted(id), "bytes=10-19");
+        HttpResponse<byte[]> outside = get("/mails/%s/attachments/0".formatted(id), "bytes=100000-");
+        HttpResponse<byte[]> missing = get("/mails/%s/attachments/1".formatted(id), null);
+
+        // then
+        assertThat(whole.statusCode()).isEqualTo(200);
+        assertThat(whole.body()).isEqualTo(pdf);
+        assertThat(whole.headers().firstValue("Content-Type")).contains("application/pdf");
+        assertThat(whole.headers().firstValue("Accept-Ranges")).contains("bytes");
+        assertThat(range.statusCode()).isEqualTo(206);
+        assertThat(range.body()).isEqualTo(Arrays.copyOfRange(pdf, 10, 20));
+        assertThat(range.headers().firstValue("Content-Range")).contains("bytes 10-19/" + pdf.length);
+        assertThat(outside.statusCode()).isEqualTo(416);
+        assertThat(missing.statusCode()).isEqualTo(404);
+        try (Stream<Path> files = Files.walk(attachmentsDir)) {
+            assertThat(files.filter(Files::isRegularFile)).hasSize(1);
+        }
+    }
+
+    private MimeMessage mailWithAttachment(String subject) throws Exception {
+        MimeMessage message = new MimeMessage(GreenMailUtil.getSession(greenMail.getImaps().getServerSetup()));
+        message.setFrom("ccc@ddd");
+        message.setRecipients(MimeMessage.RecipientType.TO, EMAIL);
+        message.setSubject(subject);
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("Body text");
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setContent(pdf, "application/pdf");
+        attachment.setFileName("report.pdf");
+        message.setContent(new MimeMultipart(text, attachment));
+        message.setSentDate(new Date());
+        message.saveChanges();
+        return message;
+    }
+
+    private JsonNode fetchMails() throws IOException, InterruptedException {
+        Instant from = Instant.now().minusSeconds(100);
+        HttpResponse<byte[]> response = get("/mails?start=%s&end=%s".formatted(from, Instant.now()), null);
+        assertThat(response.statusCode()).isEqualTo(200);
+        return new ObjectMapper().readTree(response.body());
+    }
+
+    private HttpResponse<byte[]> get(String path, String range) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + path))
+                .GET();
+        if (range != null) {
+            request.header("Range", range);
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+    }
+}
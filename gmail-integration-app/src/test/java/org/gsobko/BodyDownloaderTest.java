@@ -0,0 +1,148 @@
+package org.gsobko;
+
+import org.gsobko.integration.mail.FetchedBody;
+import org.gsobko.integration.mail.ImapFetcher;
+import org.gsobko.model.BodyState;
+import org.gsobko.model.EmailBody;
+import org.gsobko.model.EmailMessage;
+import org.gsobko.model.SyncState;
+import org.gsobko.repo.MailRepo;
+import org.gsobko.repo.SyncStateRepo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.*;
+
+class BodyDownloaderTest {
+
+    long PERIOD_SECONDS = 5;
+    int BATCH_SIZE = 2;
+    String ACCOUNT = "user@gmail.com";
+    String FOLDER = "INBOX";
+    long UID_VALIDITY = 42;
+    ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+    MailRepo repo = mock(MailRepo.class);
+    SyncStateRepo syncStateRepo = mock(SyncStateRepo.class);
+    ImapFetcher imapFetcher = mock(ImapFetcher.class);
+    BodyDownloader bodyDownloader = new BodyDownloader(repo, syncStateRepo, imapFetcher, ACCOUNT, FOLDER, BATCH_SIZE, PERIOD_SECONDS, scheduler);
+
+    @BeforeEach
+    void setUp() {
+        given(syncStateRepo.find(ACCOUNT, FOLDER)).willReturn(Optional.of(new SyncState(ACCOUNT, FOLDER, UID_VALIDITY, 10, 0)));
+    }
+
+    @Test
+    void should_download_pending_bodies_batch_by_batch() {
+        // given
+        given(repo.findUidsWithoutBody(FOLDER, UID_VALIDITY, BATCH_SIZE)).willReturn(List.of(10L, 9L), List.of(8L), List.of());
+        given(imapFetcher.fetchBodies(eq(UID_VALIDITY), any(), eq(false))).willAnswer(i -> i.<List<Long>>getArgument(1).stream()
+                .map(uid -> new FetchedBody(uid, Optional.of("text" + uid), Optional.empty(), List.of()))
+                .toList());
+        given(repo.saveBodies(eq(FOLDER), eq(UID_VALIDITY), any())).willAnswer(i -> i.<List<?>>getArgument(2).size());
+        bodyDownloader.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verify(repo).saveBodies(FOLDER, UID_VALIDITY, List.of(
+                new EmailBody(10L, "text10", "", List.of()),
+                new EmailBody(9L, "text9", "", List.of())));
+        verify(repo).saveBodies(FOLDER, UID_VALIDITY, List.of(new EmailBody(8L, "text8", "", List.of())));
+    }
+
+    @Test
+    void should_stop_when_no_body_of_a_batch_could_be_saved() {
+        // given
+        given(repo.findUidsWithoutBody(FOLDER, UID_VALIDITY, BATCH_SIZE)).willReturn(List.of(10L));
+        given(imapFetcher.fetchBodies(UID_VALIDITY, List.of(10L), false)).willReturn(List.of());
+        bodyDownloader.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verify(imapFetcher, times(1)).fetchBodies(anyLong(), any(), anyBoolean());
+    }
+
+    @Test
+    void should_download_body_on_read_of_headers_only_email() {
+        // given
+        EmailMessage headersOnly = someEmail().withBodyState(BodyState.HEADERS).build();
+        EmailMessage full = someEmail().withText("text").build();
+        given(imapFetcher.fetchBodies(UID_VALIDITY, List.of(7L), false)).willReturn(List.of(
+                new FetchedBody(7L, Optional.of("text"), Optional.empty(), List.of())));
+        given(repo.findById(headersOnly.id())).willReturn(Optional.of(full));
+
+        // when
+        EmailMessage read = bodyDownloader.withBody(headersOnly);
+
+        // then
+        assertThat(read).isEqualTo(full);
+        verify(repo).saveBodies(FOLDER, UID_VALIDITY, List.of(new EmailBody(7L, "text", "", List.of())));
+    }
+
+    @Test
+    void should_return_headers_only_email_when_body_download_fails_on_read() {
+        // given
+        EmailMessage headersOnly = someEmail().withBodyState(BodyState.HEADERS).build();
+        given(imapFetcher.fetchBodies(anyLong(), any(), anyBoolean())).willThrow(IllegalStateException.class);
+
+        // when
+        EmailMessage read = bodyDownloader.withBody(headersOnly);
+
+        // then
+        assertThat(read).isEqualTo(headersOnly);
+    }
+
+    @Test
+    void should_download_whole_body_of_truncated_email_only_when_asked_for() {
+        // given
+        EmailMessage truncated = someEmail().withBodyState(BodyState.TRUNCATED).withText("beginning").build();
+        EmailMessage full = someEmail().withText("beginning and the rest").build();
+        given(imapFetcher.fetchBodies(UID_VALIDITY, List.of(7L), true)).willReturn(List.of(
+                new FetchedBody(7L, Optional.of("beginning and the rest"), Optional.empty(), List.of())));
+        given(repo.findById(truncated.id())).willReturn(Optional.of(full));
+
+        // expect
+        assertThat(bodyDownloader.withBody(truncated)).isEqualTo(truncated);
+        verifyNoInteractions(imapFetcher);
+
+        // and when
+        EmailMessage read = bodyDownloader.withFullBody(truncated);
+
+        // then
+        assertThat(read).isEqualTo(full);
+        verify(repo).saveBodies(FOLDER, UID_VALIDITY, List.of(new EmailBody(7L, "beginning and the rest", "", List.of())));
+    }
+
+    @Test
+    void should_not_download_body_on_read_of_full_email() {
+        // when
+        bodyDownloader.withBody(someEmail().build());
+
+        // then
+        verifyNoInteractions(imapFetcher);
+    }
+
+    private static EmailMessage.Builder someEmail() {
+        UUID id = UUID.fromString("9f7dd916-fef0-41a6-a058-dc99656d689b");
+        return EmailMessage.builder().withId(id).withImapUid(7L).withSubject("subj");
+    }
+
+    private void scheduledTasksAreRun(ScheduledExecutorService scheduler) {
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).scheduleWithFixedDelay(captor.capture(), anyLong(), anyLong(), any(TimeUnit.class));
+        captor.getValue().run();
+    }
+}
@@ -0,0 +1,70 @@
+package org.gsobko;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Properties;
+
+import static com.icegreen.greenmail.util.GreenMailUtil.createTextEmail;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class CachedListingTest extends FunctionalTestBase {
+
+    HttpClient client = HttpClient.newHttpClient();
+
+    @Override
+    protected Properties createTestProperties() {
+        Properties properties = super.createTestProperties();
+        properties.put("mails.cache.enabled", "true");
+        properties.put("mails.cache.refresh_millis", "100");
+        return properties;
+    }
+
+    @Test
+    void should_page_through_recent_mails_served_from_cache() throws Exception {
+        // given
+        user.deliver(createTextEmail(EMAIL, "alice@example.com", "First", "One", greenMail.getImaps().getServerSetup()));
+        user.deliver(createTextEmail(EMAIL, "bob@example.com", "Second", "Two", greenMail.getImaps().getServerSetup()));
+        String interval = "start=%s&end=%s".formatted(Instant.now().minusSeconds(60), Instant.now().plusSeconds(60));
+        await().atMost(Duration.ofSeconds(5)).until(() -> get("/mails?" + interval).body().size() == 2);
+
+        // when
+        Response firstPage = get("/mails?limit=1&view=summary&" + interval);
+        Response secondPage = get("/mails?limit=1&fields=subject&cursor=%s&%s".formatted(firstPage.nextCursor(), interval));
+
+        // then
+        assertThat(firstPage.body().get(0).get("subject").asText()).isEqualTo("Second");
+        assertThat(firstPage.body().get(0).has("text")).isFalse();
+        assertThat(secondPage.body().toString()).isEqualTo("[{\"subject\":\"First\"}]");
+        assertThat(secondPage.nextCursor()).isNull();
+        JsonNode metrics = get("/metrics").body();
+        assertThat(metrics.get("mail_cache_mails").asInt()).isEqualTo(2);
+        assertThat(metrics.get("mail_cache_hits_total").asLong()).isGreaterThanOrEqualTo(3);
+    }
+
+    private Response get(String path) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + path))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofString());
+        return new Response(new ObjectMapper().readTree(response.body()), response.headers().firstValue("X-Next-Cursor").orElse(null));
+    }
+
+    record Response(JsonNode body, String nextCursor) {
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+    }
+}
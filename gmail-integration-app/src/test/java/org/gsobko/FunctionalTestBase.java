@@ -36,7 +36,7 @@ public abstract class FunctionalTestBase {
         greenMail.stop();
     }
 
-    private Properties createTestProperties() {
+    protected Properties createTestProperties() {
         Properties properties = new Properties();
         properties.put("server.port", "%d".formatted(serverPort));
         properties.put("db.url", "jdbc:h2:mem:testdb_%s;DB_CLOSE_DELAY=-1".formatted(UUID.randomUUID()));
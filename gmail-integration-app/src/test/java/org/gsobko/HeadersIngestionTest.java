@@ -0,0 +1,98 @@
+package org.gsobko;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.icegreen.greenmail.util.GreenMailUtil;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Properties;
+
+import static net.javacrumbs.jsonunit.assertj.JsonAssertions.assertThatJson;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class HeadersIngestionTest extends FunctionalTestBase {
+
+    HttpClient client = HttpClient.newHttpClient();
+
+    @Override
+    protected Properties createTestProperties() {
+        Properties properties = super.createTestProperties();
+        properties.put("gmail.imap.ingestion", "headers");
+        // long enough for the test to see headers-only mail before the background download
+        properties.put("gmail.imap.body_download_seconds", "3600");
+        return properties;
+    }
+
+    @Test
+    void should_list_mail_with_headers_and_download_body_on_first_read() throws Exception {
+        // given
+        user.deliver(mailWithAttachment());
+
+        // when
+        JsonNode mails = await().atMost(Duration.ofSeconds(3)).until(this::fetchMails, json -> json.size() == 1);
+
+        // then
+        JsonNode listed = mails.get(0);
+        assertThat(listed.get("bodyState").asText()).isEqualTo("HEADERS");
+        assertThat(listed.get("subject").asText()).isEqualTo("Subj1");
+        assertThat(listed.get("text").asText()).isEmpty();
+        assertThatJson(listed.toString()).inPath("attachments").isArray().containsExactly("report.pdf");
+
+        // when
+        String mail = get("/mails/" + listed.get("id").asText());
+
+        // then
+        assertThatJson(mail).inPath("bodyState").isEqualTo("FULL");
+        assertThatJson(mail).inPath("text").isEqualTo("Body text");
+        assertThatJson(fetchMails().get(0).toString()).inPath("bodyState").isEqualTo("FULL");
+    }
+
+    private MimeMessage mailWithAttachment() throws Exception {
+        MimeMessage message = new MimeMessage(GreenMailUtil.getSession(greenMail.getImaps().getServerSetup()));
+        message.setFrom("ccc@ddd");
+        message.setRecipients(MimeMessage.RecipientType.TO, EMAIL);
+        message.setSubject("Subj1");
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("Body text");
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setContent("pdf content", "application/pdf");
+        attachment.setFileName("report.pdf");
+        message.setContent(new MimeMultipart(text, attachment));
+        message.setSentDate(new Date());
+        message.saveChanges();
+        return message;
+    }
+
+    private JsonNode fetchMails() throws IOException, InterruptedException {
+        Instant from = Instant.now().minusSeconds(100);
+        return new ObjectMapper().readTree(get("/mails?start=%s&end=%s".formatted(from, Instant.now())));
+    }
+
+    private String get(String path) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + path))
+                .GET()
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertThat(response.statusCode()).isEqualTo(200);
+        return response.body();
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+    }
+}
@@ -0,0 +1,199 @@
+package org.gsobko;
+
+import org.gsobko.integration.mail.FetchedEmail;
+import org.gsobko.integration.mail.ImapFetcher;
+import org.gsobko.model.BackfillState;
+import org.gsobko.model.SyncState;
+import org.gsobko.repo.BackfillStateRepo;
+import org.gsobko.repo.MailRepo;
+import org.gsobko.repo.SyncStateRepo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.*;
+
+class HistoricalBackfillTest {
+
+    long PERIOD_SECONDS = 60;
+    String ACCOUNT = "user@gmail.com";
+    String FOLDER = "INBOX";
+    long UID_VALIDITY = 42;
+    SyncState CHECKPOINT = new SyncState(ACCOUNT, FOLDER, UID_VALIDITY, 100, 0);
+    ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+    MailRepo repo = mock(MailRepo.class);
+    SyncStateRepo syncStateRepo = mock(SyncStateRepo.class);
+    BackfillStateRepo backfillStateRepo = mock(BackfillStateRepo.class);
+    ImapFetcher imapFetcher = mock(ImapFetcher.class);
+    List<Duration> sleeps = new ArrayList<>();
+    AtomicInteger liveFetchChecks = new AtomicInteger();
+    HistoricalBackfill backfill = new HistoricalBackfill(repo, syncStateRepo, backfillStateRepo, imapFetcher,
+            () -> false, ACCOUNT, FOLDER, 2, new HistoricalBackfill.Budget(10, 1000), PERIOD_SECONDS,
+            scheduler, Clock.fixed(Instant.now(), ZoneOffset.UTC), sleeps::add);
+
+    @BeforeEach
+    void setUp() {
+        given(syncStateRepo.find(ACCOUNT, FOLDER)).willReturn(Optional.of(CHECKPOINT));
+        given(repo.save(any(), anyLong())).willReturn(new MailRepo.SaveResult(1, 0));
+        given(imapFetcher.fetchEmails(anyLong(), any())).willAnswer(invocation -> {
+            List<Long> uids = invocation.getArgument(1);
+            return uids.stream().map(uid -> someEmailWithUid(uid, 10)).toList();
+        });
+    }
+
+    @Test
+    void should_schedule_periodic_backfill_with_fixed_delay_on_start() {
+        // when
+        backfill.start();
+
+        // then
+        verify(scheduler).scheduleWithFixedDelay(any(Runnable.class), eq(PERIOD_SECONDS), eq(PERIOD_SECONDS), eq(TimeUnit.SECONDS));
+    }
+
+    @Test
+    void should_not_backfill_before_anything_was_fetched() {
+        // given
+        given(syncStateRepo.find(ACCOUNT, FOLDER)).willReturn(Optional.of(CHECKPOINT.withLastUid(0)));
+        backfill.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verifyNoInteractions(imapFetcher);
+        assertThat(backfill.progress().status()).isEqualTo(HistoricalBackfill.Status.NOT_STARTED);
+    }
+
+    @Test
+    void should_start_below_oldest_saved_uid_and_walk_down_in_chunks() {
+        // given
+        given(backfillStateRepo.find(ACCOUNT, FOLDER)).willReturn(Optional.empty());
+        given(repo.minImapUid(FOLDER, UID_VALIDITY)).willReturn(OptionalLong.of(50));
+        given(imapFetcher.fetchUids(UID_VALIDITY, 1, 49)).willReturn(List.of(3L, 7L, 20L));
+        backfill.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verify(imapFetcher).fetchEmails(UID_VALIDITY, List.of(7L, 20L));
+        verify(imapFetcher).fetchEmails(UID_VALIDITY, List.of(3L));
+        verify(repo).save(argThat(email -> email.imapUid() == 20 && email.folder().equals(FOLDER)), eq(UID_VALIDITY));
+        verify(repo).save(argThat(email -> email.imapUid() == 3), eq(UID_VALIDITY));
+        BackfillState initial = new BackfillState(ACCOUNT, FOLDER, UID_VALIDITY, 50);
+        verify(backfillStateRepo).save(initial);
+        verify(backfillStateRepo).save(initial.withLowWaterUid(7));
+        verify(backfillStateRepo).save(initial.withLowWaterUid(3));
+        verify(repo, never()).save(any(), any(SyncState.class));
+        assertThat(backfill.progress()).isEqualTo(new HistoricalBackfill.Progress(
+                ACCOUNT, FOLDER, HistoricalBackfill.Status.COMPLETE, 3, 0, 0L));
+    }
+
+    @Test
+    void should_continue_from_saved_low_water_mark() {
+        // given
+        given(backfillStateRepo.find(ACCOUNT, FOLDER)).willReturn(Optional.of(new BackfillState(ACCOUNT, FOLDER, UID_VALIDITY, 7)));
+        given(imapFetcher.fetchUids(UID_VALIDITY, 1, 6)).willReturn(List.of(3L));
+        backfill.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verify(repo, never()).minImapUid(anyString(), anyLong());
+        verify(imapFetcher).fetchEmails(UID_VALIDITY, List.of(3L));
+    }
+
+    @Test
+    void should_restart_from_oldest_saved_uid_when_uid_validity_changed() {
+        // given
+        given(backfillStateRepo.find(ACCOUNT, FOLDER)).willReturn(Optional.of(new BackfillState(ACCOUNT, FOLDER, UID_VALIDITY - 1, 7)));
+        given(repo.minImapUid(FOLDER, UID_VALIDITY)).willReturn(OptionalLong.of(30));
+        given(imapFetcher.fetchUids(UID_VALIDITY, 1, 29)).willReturn(List.of());
+        backfill.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verify(backfillStateRepo).save(new BackfillState(ACCOUNT, FOLDER, UID_VALIDITY, 30));
+        verify(imapFetcher, never()).fetchEmails(anyLong(), any());
+        assertThat(backfill.progress().status()).isEqualTo(HistoricalBackfill.Status.COMPLETE);
+    }
+
+    @Test
+    void should_keep_going_when_backfilled_email_is_already_saved() {
+        // given
+        given(backfillStateRepo.find(ACCOUNT, FOLDER)).willReturn(Optional.of(new BackfillState(ACCOUNT, FOLDER, UID_VALIDITY, 7)));
+        given(imapFetcher.fetchUids(UID_VALIDITY, 1, 6)).willReturn(List.of(3L, 5L));
+        given(repo.save(argThat(email -> email.imapUid() == 3), anyLong())).willReturn(new MailRepo.SaveResult(0, 1));
+        backfill.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verify(repo).save(argThat(email -> email.imapUid() == 5), eq(UID_VALIDITY));
+        verify(backfillStateRepo).save(new BackfillState(ACCOUNT, FOLDER, UID_VALIDITY, 3));
+    }
+
+    @Test
+    void should_pause_after_chunk_to_stay_within_the_tighter_of_message_and_byte_budgets() {
+        // given
+        given(backfillStateRepo.find(ACCOUNT, FOLDER)).willReturn(Optional.of(new BackfillState(ACCOUNT, FOLDER, UID_VALIDITY, 7)));
+        given(imapFetcher.fetchUids(UID_VALIDITY, 1, 6)).willReturn(List.of(1L, 2L, 3L));
+        given(imapFetcher.fetchEmails(UID_VALIDITY, List.of(2L, 3L))).willReturn(List.of(someEmailWithUid(2, 10), someEmailWithUid(3, 10)));
+        given(imapFetcher.fetchEmails(UID_VALIDITY, List.of(1L))).willReturn(List.of(someEmailWithUid(1, 500)));
+        backfill.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then 2 messages at 10/sec, then 500 bytes at 1000 bytes/sec
+        assertThat(sleeps).containsExactly(Duration.ofMillis(200), Duration.ofMillis(500));
+    }
+
+    @Test
+    void should_not_start_a_chunk_while_new_mail_is_being_fetched() {
+        // given
+        HistoricalBackfill yieldingBackfill = new HistoricalBackfill(repo, syncStateRepo, backfillStateRepo, imapFetcher,
+                () -> liveFetchChecks.incrementAndGet() <= 2, ACCOUNT, FOLDER, 2, new HistoricalBackfill.Budget(1000, 1_000_000),
+                PERIOD_SECONDS, scheduler, Clock.fixed(Instant.now(), ZoneOffset.UTC), sleeps::add);
+        given(backfillStateRepo.find(ACCOUNT, FOLDER)).willReturn(Optional.of(new BackfillState(ACCOUNT, FOLDER, UID_VALIDITY, 7)));
+        given(imapFetcher.fetchUids(UID_VALIDITY, 1, 6)).willReturn(List.of(3L));
+        yieldingBackfill.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        assertThat(sleeps).startsWith(HistoricalBackfill.LIVE_FETCH_BACKOFF, HistoricalBackfill.LIVE_FETCH_BACKOFF);
+        verify(imapFetcher).fetchEmails(UID_VALIDITY, List.of(3L));
+    }
+
+    private static FetchedEmail someEmailWithUid(long uid, int size) {
+        return new FetchedEmail("messageId" + uid, uid, "from@aaa", "to@bbb", "", "subj" + uid,
+                Optional.of("Body"), Optional.empty(), List.of(), Instant.now(), "", true, size);
+    }
+
+    private void scheduledTasksAreRun(ScheduledExecutorService scheduler) {
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).scheduleWithFixedDelay(captor.capture(), anyLong(), anyLong(), any(TimeUnit.class));
+        captor.getValue().run();
+    }
+}
@@ -0,0 +1,61 @@
+package org.gsobko;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Properties;
+
+import static com.icegreen.greenmail.util.GreenMailUtil.createTextEmail;
+import static net.javacrumbs.jsonunit.assertj.JsonAssertions.assertThatJson;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class IdleModeTest extends FunctionalTestBase {
+
+    HttpClient client = HttpClient.newHttpClient();
+
+    @Override
+    protected Properties createTestProperties() {
+        Properties properties = super.createTestProperties();
+        properties.put("gmail.imap.mode", "idle");
+        return properties;
+    }
+
+    @Test
+    void should_save_delivered_emails_well_before_next_poll() {
+        // given
+        user.deliver(createTextEmail(EMAIL, "ccc@ddd", "Subj1", "Body 1", greenMail.getImaps().getServerSetup()));
+        await().atMost(Duration.ofSeconds(3)).untilAsserted(() -> assertThatJson(fetchMails()).isArray().hasSize(1));
+
+        // when
+        user.deliver(createTextEmail(EMAIL, "ccc@ddd", "Subj2", "Body 2", greenMail.getImaps().getServerSetup()));
+
+        // then
+        // the next poll would be 5 seconds later
+        await().atMost(Duration.ofSeconds(2)).untilAsserted(() -> assertThatJson(fetchMails()).isArray().hasSize(2));
+    }
+
+    private String fetchMails() throws IOException, InterruptedException {
+        Instant from = Instant.now().minusSeconds(100);
+        Instant to = Instant.now();
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/mails?start=%s&end=%s".formatted(from, to)))
+                .GET()
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertThat(response.statusCode()).isEqualTo(200);
+        return response.body();
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+    }
+}
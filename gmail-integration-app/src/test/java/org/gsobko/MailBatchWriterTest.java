@@ -0,0 +1,93 @@
+package org.gsobko;
+
+import org.gsobko.model.EmailMessage;
+import org.gsobko.model.SyncState;
+import org.gsobko.repo.MailRepo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class MailBatchWriterTest {
+
+    SyncState CHECKPOINT = new SyncState("user@gmail.com", "INBOX", 42, 0, 0);
+    MailRepo repo = mock(MailRepo.class);
+    ScheduledExecutorService timer = mock(ScheduledExecutorService.class);
+    MailBatchWriter writer = new MailBatchWriter(repo, 3, Duration.ofMillis(500), timer);
+
+    @BeforeEach
+    void setUp() {
+        given(repo.saveAll(any(), any())).willAnswer(i -> new MailRepo.SaveResult(i.<List<?>>getArgument(0).size(), 0));
+        given(timer.schedule(any(Runnable.class), any(Long.class), any(TimeUnit.class))).willAnswer(i -> mock(ScheduledFuture.class));
+    }
+
+    @Test
+    void should_save_batch_once_it_is_full() {
+        // when
+        for (long uid = 1; uid <= 4; uid++) {
+            writer.add(emailWithUid(uid), CHECKPOINT.withLastUid(uid));
+        }
+
+        // then
+        verify(repo).saveAll(argThat(batch -> batch.stream().map(EmailMessage::imapUid).toList().equals(List.of(1L, 2L, 3L))),
+                eq(CHECKPOINT.withLastUid(3)));
+        verify(repo, never()).saveAll(argThat(batch -> batch.getFirst().imapUid() == 4), any());
+    }
+
+    @Test
+    void should_save_batch_that_is_not_full_once_max_latency_passes() {
+        // given
+        writer.add(emailWithUid(1), CHECKPOINT.withLastUid(1));
+        writer.add(emailWithUid(2), CHECKPOINT.withLastUid(2));
+
+        // when
+        ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+        verify(timer).schedule(flush.capture(), eq(500L), eq(TimeUnit.MILLISECONDS));
+        flush.getValue().run();
+
+        // then
+        verify(repo).saveAll(argThat(batch -> batch.size() == 2), eq(CHECKPOINT.withLastUid(2)));
+    }
+
+    @Test
+    void should_save_emails_one_by_one_when_batch_fails() {
+        // given
+        willThrow(IllegalStateException.class).given(repo).saveAll(any(), any());
+        EmailMessage duplicate = emailWithUid(2);
+        given(repo.save(eq(duplicate), any(SyncState.class))).willReturn(new MailRepo.SaveResult(0, 1));
+        writer.add(emailWithUid(1), CHECKPOINT.withLastUid(1));
+        writer.add(duplicate, CHECKPOINT.withLastUid(2));
+        writer.add(emailWithUid(3), CHECKPOINT.withLastUid(3));
+
+        // when
+        writer.flush();
+
+        // then
+        verify(repo).save(argThat(email -> email.imapUid() == 1), eq(CHECKPOINT.withLastUid(1)));
+        verify(repo).save(duplicate, CHECKPOINT.withLastUid(2));
+        verify(repo).save(argThat(email -> email.imapUid() == 3), eq(CHECKPOINT.withLastUid(3)));
+    }
+
+    private static EmailMessage emailWithUid(long uid) {
+        return EmailMessage.builder()
+                .withId(UUID.randomUUID())
+                .withImapUid(uid)
+                .withFolder("INBOX")
+                .build();
+    }
+}
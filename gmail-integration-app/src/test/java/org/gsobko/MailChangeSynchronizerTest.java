@@ -0,0 +1,149 @@
+package org.gsobko;
+
+import org.gsobko.integration.mail.ImapFetcher;
+import org.gsobko.integration.mail.MailChanges;
+import org.gsobko.model.SyncState;
+import org.gsobko.repo.MailRepo;
+import org.gsobko.repo.SyncStateRepo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.*;
+
+class MailChangeSynchronizerTest {
+
+    long SYNC_PERIOD_SECONDS = 60;
+    String ACCOUNT = "user@gmail.com";
+    String FOLDER = "INBOX";
+    long UID_VALIDITY = 42;
+    SyncState CHECKPOINT = new SyncState(ACCOUNT, FOLDER, UID_VALIDITY, 10, 100);
+    ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+    MailRepo repo = mock(MailRepo.class);
+    SyncStateRepo syncStateRepo = mock(SyncStateRepo.class);
+    ImapFetcher imapFetcher = mock(ImapFetcher.class);
+    MailChangeSynchronizer synchronizer = new MailChangeSynchronizer(repo, syncStateRepo, imapFetcher, ACCOUNT, FOLDER, SYNC_PERIOD_SECONDS, scheduler);
+
+    @BeforeEach
+    void setUp() {
+        given(syncStateRepo.find(ACCOUNT, FOLDER)).willReturn(Optional.of(CHECKPOINT));
+        given(repo.findFlags(anyString(), anyLong(), anyLong(), anyLong(), anyInt())).willReturn(new TreeMap<>());
+    }
+
+    @Test
+    void should_schedule_periodic_sync_with_fixed_delay_on_start() {
+        // when
+        synchronizer.start();
+
+        // then
+        verify(scheduler).scheduleWithFixedDelay(any(Runnable.class), eq(SYNC_PERIOD_SECONDS), eq(SYNC_PERIOD_SECONDS), eq(TimeUnit.SECONDS));
+    }
+
+    @Test
+    void should_not_sync_before_anything_was_fetched() {
+        // given
+        given(syncStateRepo.find(ACCOUNT, FOLDER)).willReturn(Optional.of(CHECKPOINT.withLastUid(0)));
+        synchronizer.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verifyNoInteractions(imapFetcher);
+    }
+
+    @Test
+    void should_apply_changed_flags_and_vanished_uids_and_store_new_modseq() {
+        // given
+        given(imapFetcher.fetchChangesSince(UID_VALIDITY, 10, 100)).willReturn(Optional.of(
+                new MailChanges(Map.of(3L, "\\Seen"), Optional.of(List.of(4L, 5L)), 120)));
+        synchronizer.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verify(repo).updateFlags(FOLDER, UID_VALIDITY, Map.of(3L, "\\Seen"));
+        verify(repo).markDeleted(FOLDER, UID_VALIDITY, List.of(4L, 5L));
+        verify(syncStateRepo).updateHighestModSeq(CHECKPOINT.withHighestModSeq(120));
+        verify(imapFetcher, never()).fetchUids(anyLong(), anyLong(), anyLong());
+        verify(imapFetcher, never()).fetchFlags(anyLong(), anyLong(), anyLong());
+    }
+
+    @Test
+    void should_find_expunged_uids_by_comparing_uids_when_server_only_reports_changed_flags() {
+        // given
+        given(imapFetcher.fetchChangesSince(UID_VALIDITY, 10, 100)).willReturn(Optional.of(
+                new MailChanges(Map.of(3L, "\\Seen"), Optional.empty(), 120)));
+        givenSavedFlags(Map.of(1L, "", 3L, "", 7L, ""));
+        given(imapFetcher.fetchUids(UID_VALIDITY, 1, 7)).willReturn(List.of(1L, 7L));
+        synchronizer.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verify(repo).updateFlags(FOLDER, UID_VALIDITY, Map.of(3L, "\\Seen"));
+        verify(repo).markDeleted(FOLDER, UID_VALIDITY, List.of(3L));
+        verify(syncStateRepo).updateHighestModSeq(CHECKPOINT.withHighestModSeq(120));
+    }
+
+    @Test
+    void should_diff_flags_with_server_when_server_does_not_track_changes() {
+        // given
+        given(imapFetcher.fetchChangesSince(UID_VALIDITY, 10, 100)).willReturn(Optional.empty());
+        givenSavedFlags(Map.of(1L, "", 3L, "\\Seen", 7L, "\\Seen"));
+        given(imapFetcher.fetchFlags(UID_VALIDITY, 1, 7)).willReturn(Map.of(1L, "\\Seen", 7L, "\\Seen"));
+        synchronizer.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verify(repo).updateFlags(FOLDER, UID_VALIDITY, Map.of(1L, "\\Seen"));
+        verify(repo).markDeleted(FOLDER, UID_VALIDITY, List.of(3L));
+        verify(syncStateRepo, never()).updateHighestModSeq(any());
+    }
+
+    @Test
+    void should_diff_in_chunks_of_saved_uids() {
+        // given
+        given(imapFetcher.fetchChangesSince(UID_VALIDITY, 10, 100)).willReturn(Optional.empty());
+        TreeMap<Long, String> firstChunk = new TreeMap<>();
+        LongStream.rangeClosed(1, MailChangeSynchronizer.DIFF_CHUNK_SIZE).forEach(uid -> firstChunk.put(uid, ""));
+        long lastUidOfFirstChunk = MailChangeSynchronizer.DIFF_CHUNK_SIZE;
+        given(repo.findFlags(FOLDER, UID_VALIDITY, 0, 10, MailChangeSynchronizer.DIFF_CHUNK_SIZE)).willReturn(firstChunk);
+        given(repo.findFlags(FOLDER, UID_VALIDITY, lastUidOfFirstChunk, 10, MailChangeSynchronizer.DIFF_CHUNK_SIZE))
+                .willReturn(new TreeMap<>(Map.of(lastUidOfFirstChunk + 1, "")));
+        given(imapFetcher.fetchFlags(anyLong(), anyLong(), anyLong())).willReturn(Map.of());
+        synchronizer.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verify(imapFetcher).fetchFlags(UID_VALIDITY, 1, lastUidOfFirstChunk);
+        verify(imapFetcher).fetchFlags(UID_VALIDITY, lastUidOfFirstChunk + 1, lastUidOfFirstChunk + 1);
+        verify(repo).markDeleted(FOLDER, UID_VALIDITY, List.of(lastUidOfFirstChunk + 1));
+    }
+
+    private void givenSavedFlags(Map<Long, String> flagsByUid) {
+        given(repo.findFlags(FOLDER, UID_VALIDITY, 0, 10, MailChangeSynchronizer.DIFF_CHUNK_SIZE)).willReturn(new TreeMap<>(flagsByUid));
+    }
+
+    private void scheduledTasksAreRun(ScheduledExecutorService scheduler) {
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).scheduleWithFixedDelay(captor.capture(), anyLong(), anyLong(), any(TimeUnit.class));
+        captor.getValue().run();
+    }
+}
@@ -0,0 +1,28 @@
+package org.gsobko;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+class MetricsTest {
+
+    Metrics metrics = new Metrics();
+
+    @Test
+    void should_read_gauges_and_counters_on_snapshot() {
+        // given
+        AtomicLong interval = new AtomicLong(5000);
+        metrics.gauge(Metrics.name("poll_interval_millis", "folder", "INBOX"), interval::get);
+        metrics.counter("mails_saved").add(3);
+        metrics.counter("mails_saved").increment();
+        interval.set(10_000);
+
+        // expect
+        assertThat(metrics.snapshot()).containsExactly(
+                entry("mails_saved", 4L),
+                entry("poll_interval_millis{folder=\"INBOX\"}", 10_000L));
+    }
+}
@@ -0,0 +1,70 @@
+package org.gsobko;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.icegreen.greenmail.store.MailFolder;
+import jakarta.mail.Flags;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Properties;
+
+import static com.icegreen.greenmail.util.GreenMailUtil.createTextEmail;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.awaitility.Awaitility.await;
+
+class MultiFolderTest extends FunctionalTestBase {
+
+    HttpClient client = HttpClient.newHttpClient();
+
+    @Override
+    protected Properties createTestProperties() {
+        Properties properties = super.createTestProperties();
+        properties.put("gmail.folders", "INBOX, Archive");
+        properties.put("gmail.imap.poll_seconds", "1");
+        properties.put("gmail.imap.max_poll_seconds", "1");
+        return properties;
+    }
+
+    @Test
+    void should_sync_every_configured_folder_with_its_own_checkpoint() throws Exception {
+        // given
+        MailFolder archive = greenMail.getManagers().getImapHostManager().createMailbox(user, "Archive");
+        user.deliver(createTextEmail(EMAIL, "aaa@bbb", "Inbox mail", "Body1", greenMail.getImaps().getServerSetup()));
+        archive.appendMessage(createTextEmail(EMAIL, "aaa@bbb", "Archived mail", "Body2", greenMail.getImaps().getServerSetup()),
+                new Flags(), new Date());
+
+        // when
+        JsonNode mails = await().atMost(Duration.ofSeconds(5)).until(this::fetchMails, json -> json.size() == 2);
+
+        // then
+        assertThat(mails)
+                .extracting(mail -> mail.get("folder").asText(), mail -> mail.get("subject").asText(), mail -> mail.get("imapUid").asLong())
+                .containsExactlyInAnyOrder(tuple("INBOX", "Inbox mail", 1L), tuple("Archive", "Archived mail", 1L));
+    }
+
+    private JsonNode fetchMails() throws IOException, InterruptedException {
+        Instant from = Instant.now().minusSeconds(100);
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/mails?start=%s&end=%s".formatted(from, Instant.now())))
+                .GET()
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertThat(response.statusCode()).isEqualTo(200);
+        return new ObjectMapper().readTree(response.body());
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+    }
+}
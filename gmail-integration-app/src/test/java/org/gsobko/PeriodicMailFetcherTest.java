@@ -1,60 +1,315 @@
 package org.gsobko;
 
 import org.gsobko.integration.mail.FetchedEmail;
+import org.gsobko.integration.mail.FetchedMessageIds;
+import org.gsobko.integration.mail.FolderStatus;
+import org.gsobko.integration.mail.GmailAttributes;
 import org.gsobko.integration.mail.ImapFetcher;
+import org.gsobko.integration.mail.ImapThrottledException;
+import org.gsobko.integration.mail.MimeExtractor.Attachment;
+import org.gsobko.model.BodyState;
+import org.gsobko.model.EmailAttachment;
+import org.gsobko.model.EmailMessage;
+import org.gsobko.model.MessageIds;
+import org.gsobko.model.SyncState;
 import org.gsobko.repo.MailRepo;
+import org.gsobko.repo.SyncStateRepo;
 import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalLong;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.*;
 
 class PeriodicMailFetcherTest {
 
-    long POLL_PERIOD_SECONDS = 10;
+    long POLL_PERIOD_MILLIS = 10_000;
+    long MAX_POLL_PERIOD_MILLIS = 30_000;
+    int MAX_MESSAGES_PER_POLL = 100;
     ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+    String ACCOUNT = "user@gmail.com";
+    String FOLDER = "INBOX";
+    String SHA256_1 = "a".repeat(64);
+    String SHA256_2 = "b".repeat(64);
+    long UID_VALIDITY = 42;
+    SyncState CHECKPOINT = new SyncState(ACCOUNT, FOLDER, UID_VALIDITY, 2, 0);
     MailRepo repo = mock(MailRepo.class);
+    SyncStateRepo syncStateRepo = mock(SyncStateRepo.class);
     ImapFetcher imapFetcher = mock(ImapFetcher.class);
-    PeriodicMailFetcher fetcher = new PeriodicMailFetcher(repo, imapFetcher, POLL_PERIOD_SECONDS, scheduler);
+    // no jitter, so delays are exact
+    PollInterval pollInterval = new PollInterval(Duration.ofMillis(POLL_PERIOD_MILLIS), Duration.ofMillis(MAX_POLL_PERIOD_MILLIS), () -> 0);
+    ScheduledExecutorService batchTimer = mock(ScheduledExecutorService.class);
+    MailBatchWriter batchWriter = new MailBatchWriter(repo, 10, Duration.ofMillis(500), batchTimer);
+    PeriodicMailFetcher fetcher = new PeriodicMailFetcher(repo, syncStateRepo, imapFetcher, ACCOUNT, FOLDER, pollInterval, MAX_MESSAGES_PER_POLL,
+            batchWriter, scheduler);
 
+    @BeforeEach
+    void setUp() {
+        given(imapFetcher.folderStatus()).willReturn(new FolderStatus(UID_VALIDITY, 0));
+        given(syncStateRepo.find(ACCOUNT, FOLDER)).willReturn(Optional.of(CHECKPOINT));
+        given(repo.adoptLegacyEmails(any())).willAnswer(returnsFirstArg());
+        given(repo.saveAll(any(), any())).willAnswer(i -> new MailRepo.SaveResult(i.<List<?>>getArgument(0).size(), 0));
+    }
+
+    @Test
+    void should_schedule_first_poll_right_away_on_start() {
+        // when
+        fetcher.start();
+
+        // then
+        verify(scheduler).schedule(any(Runnable.class), eq(0L), eq(TimeUnit.SECONDS));
+    }
+
+    @Test
+    void should_back_off_polling_of_quiet_folder_up_to_max_poll_period() {
+        // given
+        fetcher.start();
+
+        // when
+        pollsAreRun(3);
+
+        // then
+        InOrder inOrder = inOrder(scheduler);
+        inOrder.verify(scheduler).schedule(any(Runnable.class), eq(0L), eq(TimeUnit.SECONDS));
+        inOrder.verify(scheduler).schedule(any(Runnable.class), eq(2 * POLL_PERIOD_MILLIS), eq(TimeUnit.MILLISECONDS));
+        inOrder.verify(scheduler, times(2)).schedule(any(Runnable.class), eq(MAX_POLL_PERIOD_MILLIS), eq(TimeUnit.MILLISECONDS));
+        assertThat(fetcher.currentPollIntervalMillis()).isEqualTo(MAX_POLL_PERIOD_MILLIS);
+    }
+
+    @Test
+    void should_poll_busy_folder_every_poll_period() {
+        // given
+        fetcher.start();
+        pollsAreRun(2);
+        givenEmailsInInbox(someEmailWithUid(3));
+
+        // when
+        pollsAreRun(1);
+
+        // then
+        InOrder inOrder = inOrder(scheduler);
+        inOrder.verify(scheduler).schedule(any(Runnable.class), eq(MAX_POLL_PERIOD_MILLIS), eq(TimeUnit.MILLISECONDS));
+        inOrder.verify(scheduler).schedule(any(Runnable.class), eq(POLL_PERIOD_MILLIS), eq(TimeUnit.MILLISECONDS));
+        assertThat(fetcher.currentPollIntervalMillis()).isEqualTo(POLL_PERIOD_MILLIS);
+    }
 
     @Test
-    void should_schedule_periodic_task_with_fixed_delay_on_start() {
+    void should_back_off_polling_after_failed_polls() {
+        // given
+        given(imapFetcher.folderStatus()).willThrow(new IllegalStateException("Server is not available"));
+        fetcher.start();
+
         // when
+        pollsAreRun(2);
+
+        // then
+        InOrder inOrder = inOrder(scheduler);
+        inOrder.verify(scheduler).schedule(any(Runnable.class), eq(2 * POLL_PERIOD_MILLIS), eq(TimeUnit.MILLISECONDS));
+        inOrder.verify(scheduler).schedule(any(Runnable.class), eq(MAX_POLL_PERIOD_MILLIS), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void should_not_poll_before_throttled_account_may_be_retried() {
+        // given
+        Instant retryAt = Instant.now().plus(Duration.ofMinutes(10));
+        given(imapFetcher.folderStatus()).willThrow(new IllegalStateException("Error reading status of folder INBOX",
+                new ImapThrottledException("IMAP circuit is open", retryAt)));
         fetcher.start();
 
+        // when
+        pollsAreRun(1);
+
         // then
-        verify(scheduler).scheduleWithFixedDelay(any(Runnable.class), eq(0L), eq(POLL_PERIOD_SECONDS), eq(TimeUnit.SECONDS));
+        ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+        verify(scheduler).schedule(any(Runnable.class), delay.capture(), eq(TimeUnit.MILLISECONDS));
+        assertThat(delay.getValue()).isBetween(Duration.ofMinutes(9).toMillis(), Duration.ofMinutes(10).toMillis());
     }
 
     @Test
-    void should_read_max_uid_and_call_fetcher_when_scheduled_task_is_run() {
+    void should_poll_again_right_away_when_poll_stopped_at_message_cap() {
+        // given
+        givenEmailsInInbox(true, someEmailWithUid(3));
+        fetcher.start();
+
+        // when
+        pollsAreRun(1);
+
+        // then
+        verify(imapFetcher).fetchEmailsSinceUid(eq(UID_VALIDITY), eq(OptionalLong.of(2)), eq(MAX_MESSAGES_PER_POLL), any());
+        verify(scheduler).schedule(any(Runnable.class), eq(0L), eq(TimeUnit.MILLISECONDS));
+        assertThat(fetcher.currentPollIntervalMillis()).isZero();
+    }
+
+    @Test
+    void should_fetch_again_when_fetch_now_stopped_at_message_cap() {
+        // given
+        givenEmailsInInbox(true, someEmailWithUid(3));
+        fetcher.fetchNow();
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).execute(captor.capture());
+
+        // when
+        captor.getValue().run();
+
+        // then
+        verify(scheduler, times(2)).execute(any(Runnable.class));
+    }
+
+    @Test
+    void should_fetch_again_after_back_off_when_fetch_now_failed() {
+        // given
+        given(imapFetcher.folderStatus())
+                .willThrow(new IllegalStateException("Connection dropped"))
+                .willReturn(new FolderStatus(UID_VALIDITY, 0));
+        givenEmailsInInbox(someEmailWithUid(3));
+        fetcher.fetchNow();
+        ArgumentCaptor<Runnable> fetch = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).execute(fetch.capture());
+        fetch.getValue().run();
+
+        // when
+        ArgumentCaptor<Runnable> retry = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(retry.capture(), eq(2 * POLL_PERIOD_MILLIS), eq(TimeUnit.MILLISECONDS));
+        retry.getValue().run();
+        verify(scheduler, times(2)).execute(fetch.capture());
+        fetch.getValue().run();
+
+        // then
+        verify(repo).saveAll(argThat(singleEmail(email -> email.imapUid() == 3)), eq(CHECKPOINT.withLastUid(3)));
+    }
+
+    @Test
+    void should_fetch_now_and_then_as_safety_poll() {
+        // when
+        fetcher.startSafetyPoll(300);
+
+        // then
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).scheduleWithFixedDelay(captor.capture(), eq(300L), eq(300L), eq(TimeUnit.SECONDS));
+        captor.getValue().run();
+        verify(scheduler).execute(any(Runnable.class));
+    }
+
+    @Test
+    void should_read_checkpoint_and_call_fetcher_when_scheduled_task_is_run() {
         // given
-        given(repo.maxImapUid()).willReturn(OptionalLong.of(2L));
         fetcher.start();
 
         // when
         scheduledTasksAreRun(scheduler);
 
         // then
-        verify(imapFetcher).fetchEmailsSinceUid(eq(OptionalLong.of(2)), any());
+        verify(imapFetcher).fetchEmailsSinceUid(eq(UID_VALIDITY), eq(OptionalLong.of(2)), anyInt(), any());
+        verify(repo, never()).maxImapUid(any());
     }
 
     @Test
-    void should_save_fetched_email_to_repo() {
+    void should_create_checkpoint_from_max_saved_uid_when_there_is_no_sync_state() {
+        // given
+        given(syncStateRepo.find(ACCOUNT, FOLDER)).willReturn(Optional.empty());
+        given(repo.maxImapUid(FOLDER)).willReturn(OptionalLong.of(7L));
+        fetcher.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verify(repo).adoptLegacyEmails(new SyncState(ACCOUNT, FOLDER, UID_VALIDITY, 7, 0));
+        verify(imapFetcher).fetchEmailsSinceUid(eq(UID_VALIDITY), eq(OptionalLong.of(7)), anyInt(), any());
+    }
+
+    @Test
+    void should_fetch_as_first_time_when_there_is_no_sync_state_and_no_saved_emails() {
+        // given
+        given(syncStateRepo.find(ACCOUNT, FOLDER)).willReturn(Optional.empty());
+        given(repo.maxImapUid(FOLDER)).willReturn(OptionalLong.empty());
+        fetcher.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verify(imapFetcher).fetchEmailsSinceUid(eq(UID_VALIDITY), eq(OptionalLong.empty()), anyInt(), any());
+    }
+
+    @Test
+    void should_remap_saved_emails_and_continue_from_remapped_uid_when_uid_validity_changed() {
+        // given
+        long newUidValidity = UID_VALIDITY + 1;
+        given(imapFetcher.folderStatus()).willReturn(new FolderStatus(newUidValidity, 0));
+        given(imapFetcher.fetchMessageIds()).willReturn(Map.of(10L, new FetchedMessageIds("<a@b>", null), 11L, new FetchedMessageIds("<c@d>", 7L)));
+        given(repo.remapUids(CHECKPOINT, newUidValidity, Map.of(10L, new MessageIds("<a@b>", null), 11L, new MessageIds("<c@d>", 7L))))
+                .willReturn(OptionalLong.of(11L));
+        given(syncStateRepo.reload(ACCOUNT, FOLDER)).willReturn(Optional.of(CHECKPOINT));
+        given(syncStateRepo.resync(any(), any())).willReturn(true);
+        fetcher.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verify(syncStateRepo).resync(CHECKPOINT, new SyncState(ACCOUNT, FOLDER, newUidValidity, 11, 0));
+        verify(imapFetcher).fetchEmailsSinceUid(eq(newUidValidity), eq(OptionalLong.of(11)), anyInt(), any());
+    }
+
+    @Test
+    void should_continue_from_checkpoint_of_another_node_that_resynced_folder_already() {
+        // given the cached checkpoint is of the old uid validity
+        long newUidValidity = UID_VALIDITY + 1;
+        SyncState resyncedElsewhere = new SyncState(ACCOUNT, FOLDER, newUidValidity, 20, 0);
+        given(imapFetcher.folderStatus()).willReturn(new FolderStatus(newUidValidity, 0));
+        given(syncStateRepo.reload(ACCOUNT, FOLDER)).willReturn(Optional.of(resyncedElsewhere));
+        fetcher.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verify(repo, never()).remapUids(any(), anyLong(), any());
+        verify(syncStateRepo, never()).resync(any(), any());
+        verify(imapFetcher).fetchEmailsSinceUid(eq(newUidValidity), eq(OptionalLong.of(20)), anyInt(), any());
+    }
+
+    @Test
+    void should_continue_from_checkpoint_of_another_node_that_resynced_folder_meanwhile() {
+        // given
+        long newUidValidity = UID_VALIDITY + 1;
+        SyncState resyncedElsewhere = new SyncState(ACCOUNT, FOLDER, newUidValidity, 20, 0);
+        given(imapFetcher.folderStatus()).willReturn(new FolderStatus(newUidValidity, 0));
+        given(imapFetcher.fetchMessageIds()).willReturn(Map.of());
+        given(repo.remapUids(any(), anyLong(), any())).willReturn(OptionalLong.empty());
+        given(syncStateRepo.reload(ACCOUNT, FOLDER)).willReturn(Optional.of(CHECKPOINT), Optional.of(resyncedElsewhere));
+        given(syncStateRepo.resync(any(), any())).willReturn(false);
+        fetcher.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verify(imapFetcher).fetchEmailsSinceUid(eq(newUidValidity), eq(OptionalLong.of(20)), anyInt(), any());
+    }
+
+    @Test
+    void should_save_fetched_email_to_repo_with_advanced_checkpoint() {
         // given
-        given(repo.maxImapUid()).willReturn(OptionalLong.of(2L));
         Instant sentDate = Instant.now();
         givenEmailsInInbox(new FetchedEmail(
                 "messageId123",
@@ -65,8 +320,12 @@ class PeriodicMailFetcherTest {
                 "subj",
                 Optional.of("Body123"),
                 Optional.of("html"),
-                List.of("attachment1.pdf", "attachment2.pdf"),
-                sentDate
+                List.of(new Attachment("attachment1.pdf", "application/pdf", 10, SHA256_1),
+                        new Attachment("attachment2.pdf", "application/pdf", 20, SHA256_2)),
+                sentDate,
+                "\\Seen",
+                true,
+                1024
         ));
         fetcher.start();
 
@@ -74,7 +333,7 @@ class PeriodicMailFetcherTest {
         scheduledTasksAreRun(scheduler);
 
         // then
-        verify(repo).save(argThat(savedMessage ->
+        verify(repo).saveAll(argThat(singleEmail(savedMessage ->
                 savedMessage.imapUid() == 4
                         && savedMessage.messageId().equals("messageId123")
                         && savedMessage.from().equals("from@aaa")
@@ -84,27 +343,120 @@ class PeriodicMailFetcherTest {
                         && savedMessage.text().equals("Body123")
                         && savedMessage.html().equals("html")
                         && savedMessage.attachments().equals(List.of("attachment1.pdf", "attachment2.pdf"))
-                        && savedMessage.sentDate().equals(sentDate))
+                        && savedMessage.storedAttachments().equals(List.of(
+                                new EmailAttachment("attachment1.pdf", "application/pdf", 10, SHA256_1),
+                                new EmailAttachment("attachment2.pdf", "application/pdf", 20, SHA256_2)))
+                        && savedMessage.sentDate().equals(sentDate)
+                        && savedMessage.flags().equals("\\Seen")
+                        && savedMessage.folder().equals(FOLDER)
+                        && savedMessage.bodyState() == BodyState.FULL)),
+                eq(CHECKPOINT.withLastUid(4))
         );
     }
 
+    @Test
+    void should_save_email_fetched_without_body_as_headers_only() {
+        // given
+        givenEmailsInInbox(new FetchedEmail("messageId123", 4L, "from@aaa", "to@bbb", "", "subj",
+                Optional.empty(), Optional.empty(), List.of(new Attachment("attachment1.pdf", "application/pdf", -1)), Instant.now(), "", false, 1024));
+        fetcher.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verify(repo).saveAll(argThat(singleEmail(savedMessage ->
+                        savedMessage.bodyState() == BodyState.HEADERS
+                                && savedMessage.text().isEmpty()
+                                && savedMessage.attachments().equals(List.of("attachment1.pdf"))
+                                && savedMessage.storedAttachments().isEmpty())),
+                eq(CHECKPOINT.withLastUid(4)));
+    }
+
+    @Test
+    void should_save_gmail_identities_of_fetched_email() {
+        // given
+        givenEmailsInInbox(new FetchedEmail("messageId123", 4L, "from@aaa", "to@bbb", "", "subj",
+                Optional.of("Body123"), Optional.empty(), List.of(), Instant.now(), "", true, 1024,
+                Optional.of(new GmailAttributes(1278455344230334865L, 1266894439832287888L, List.of("\\Inbox", "Work")))));
+        fetcher.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then
+        verify(repo).saveAll(argThat(singleEmail(savedMessage ->
+                        savedMessage.gmailMessageId() == 1278455344230334865L
+                                && savedMessage.gmailThreadId() == 1266894439832287888L
+                                && savedMessage.labels().equals(List.of("\\Inbox", "Work")))),
+                eq(CHECKPOINT.withLastUid(4)));
+    }
+
+    @Test
+    void should_save_fetched_emails_in_batches_with_checkpoint_of_last_email_of_batch() {
+        // given
+        givenEmailsInInbox(LongStream.rangeClosed(3, 14).mapToObj(PeriodicMailFetcherTest::someEmailWithUid).toArray(FetchedEmail[]::new));
+        fetcher.start();
+
+        // when
+        scheduledTasksAreRun(scheduler);
+
+        // then first batch is saved once full, the rest at the end of the fetch
+        InOrder inOrder = inOrder(repo);
+        inOrder.verify(repo).saveAll(argThat(batch -> batch.size() == 10 && batch.getFirst().imapUid() == 3), eq(CHECKPOINT.withLastUid(12)));
+        inOrder.verify(repo).saveAll(argThat(batch -> batch.size() == 2 && batch.getFirst().imapUid() == 13), eq(CHECKPOINT.withLastUid(14)));
+        verify(repo, never()).save(any(), any(SyncState.class));
+    }
+
     @Test
     void should_still_save_second_email_if_repo_throws_on_first() {
         // given
         givenEmailsInInbox(
                 someEmailWithUid(3),
                 someEmailWithUid(4));
+        doThrow(IllegalStateException.class).when(repo).saveAll(any(), any());
         doThrow(IllegalStateException.class)
                 .when(repo)
-                .save(argThat(m -> m.imapUid() == 3L));
+                .save(argThat(m -> m.imapUid() == 3L), any());
         fetcher.start();
 
         // when
         scheduledTasksAreRun(scheduler);
 
         // then
-        verify(repo, times(1)).save(argThat(saved -> saved.imapUid() == 3));
-        verify(repo, times(1)).save(argThat(saved -> saved.imapUid() == 4));
+        verify(repo, times(1)).save(argThat(saved -> saved.imapUid() == 3), any());
+        verify(repo, times(1)).save(argThat(saved -> saved.imapUid() == 4), eq(CHECKPOINT.withLastUid(4)));
+    }
+
+    @Test
+    void should_fetch_once_when_asked_to_fetch_now_several_times_before_fetch_started() {
+        // when
+        fetcher.fetchNow();
+        fetcher.fetchNow();
+
+        // then
+        verify(scheduler, times(1)).execute(any(Runnable.class));
+    }
+
+    @Test
+    void should_fetch_again_when_asked_to_fetch_now_after_previous_fetch_started() {
+        // given
+        fetcher.fetchNow();
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).execute(captor.capture());
+        captor.getValue().run();
+
+        // when
+        fetcher.fetchNow();
+
+        // then
+        verify(scheduler, times(2)).execute(any(Runnable.class));
+        verify(imapFetcher).fetchEmailsSinceUid(anyLong(), any(), anyInt(), any());
+    }
+
+    // fetched mails are saved in batches, here a batch of the only mail fetched
+    private static ArgumentMatcher<List<EmailMessage>> singleEmail(ArgumentMatcher<EmailMessage> matcher) {
+        return batch -> batch.size() == 1 && matcher.matches(batch.getFirst());
     }
 
     private static FetchedEmail someEmailWithUid(long uid) {
@@ -117,22 +469,38 @@ class PeriodicMailFetcherTest {
                 "subj" + uid,
                 Optional.of("Body123"),
                 Optional.of("html"),
-                List.of("attachment1.pdf", "attachment2.pdf"),
-                Instant.now()
+                List.of(new Attachment("attachment1.pdf", "application/pdf", 10), new Attachment("attachment2.pdf", "application/pdf", 20)),
+                Instant.now(),
+                "",
+                true,
+                1024
         );
     }
 
     private void givenEmailsInInbox(FetchedEmail... t) {
+        givenEmailsInInbox(false, t);
+    }
+
+    private void givenEmailsInInbox(boolean moreMailLeft, FetchedEmail... t) {
         doAnswer(i -> {
-            Consumer consumer = i.getArgument(1, Consumer.class);
+            Consumer consumer = i.getArgument(3, Consumer.class);
             Stream.of(t).forEach(consumer::accept);
-            return null;
-        }).when(imapFetcher).fetchEmailsSinceUid(any(), any());
+            return moreMailLeft;
+        }).when(imapFetcher).fetchEmailsSinceUid(anyLong(), any(), anyInt(), any());
     }
 
     private void scheduledTasksAreRun(ScheduledExecutorService scheduler) {
         ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
-        verify(scheduler).scheduleWithFixedDelay(captor.capture(), anyLong(), anyLong(), any(TimeUnit.class));
+        verify(scheduler).schedule(captor.capture(), anyLong(), any(TimeUnit.class));
         captor.getValue().run();
     }
+
+    private void pollsAreRun(int polls) {
+        // every poll schedules the next one
+        for (int i = 0; i < polls; i++) {
+            ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+            verify(scheduler, atLeastOnce()).schedule(captor.capture(), anyLong(), any(TimeUnit.class));
+            captor.getValue().run();
+        }
+    }
 }
\ No newline at end of file
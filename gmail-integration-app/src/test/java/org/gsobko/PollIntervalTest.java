@@ -0,0 +1,73 @@
+package org.gsobko;
+
+import org.gsobko.PollInterval.PollResult;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PollIntervalTest {
+
+    Duration MIN = Duration.ofSeconds(5);
+    Duration MAX = Duration.ofSeconds(60);
+
+    @Test
+    void should_double_delay_of_quiet_and_failed_polls_up_to_max_and_reset_on_new_mail() {
+        // given
+        PollInterval interval = new PollInterval(MIN, MAX, () -> 0);
+
+        // expect
+        assertThat(interval.next(PollResult.NO_MAIL)).isEqualTo(Duration.ofSeconds(10));
+        assertThat(interval.next(PollResult.FAILED)).isEqualTo(Duration.ofSeconds(20));
+        assertThat(interval.next(PollResult.NO_MAIL)).isEqualTo(Duration.ofSeconds(40));
+        assertThat(interval.next(PollResult.FAILED)).isEqualTo(MAX);
+        assertThat(interval.next(PollResult.NO_MAIL)).isEqualTo(MAX);
+        assertThat(interval.next(PollResult.NEW_MAIL)).isEqualTo(MIN);
+        assertThat(interval.next(PollResult.NO_MAIL)).isEqualTo(Duration.ofSeconds(10));
+    }
+
+    @Test
+    void should_poll_right_away_while_more_mail_is_left_and_then_start_over_from_min() {
+        // given
+        PollInterval interval = new PollInterval(MIN, MAX, () -> 0);
+        interval.next(PollResult.NO_MAIL);
+        interval.next(PollResult.NO_MAIL);
+
+        // expect
+        assertThat(interval.next(PollResult.MORE_MAIL)).isZero();
+        assertThat(interval.current()).isZero();
+        assertThat(interval.next(PollResult.NO_MAIL)).isEqualTo(Duration.ofSeconds(10));
+    }
+
+    @Test
+    void should_cut_backoff_delay_by_up_to_jitter() {
+        // given
+        PollInterval interval = new PollInterval(MIN, MAX, () -> 0.5);
+
+        // expect
+        assertThat(interval.next(PollResult.NO_MAIL)).isEqualTo(Duration.ofSeconds(9));
+        assertThat(interval.next(PollResult.NO_MAIL)).isEqualTo(Duration.ofSeconds(18));
+    }
+
+    @Test
+    void should_spread_random_backoff_delays_between_jitter_and_full_delay() {
+        // given
+        PollInterval interval = new PollInterval(MIN, MAX);
+        for (int i = 0; i < 4; i++) {
+            interval.next(PollResult.NO_MAIL);
+        }
+
+        // expect
+        for (int i = 0; i < 100; i++) {
+            assertThat(interval.next(PollResult.NO_MAIL)).isBetween(Duration.ofSeconds(48), MAX);
+        }
+    }
+
+    @Test
+    void should_refuse_max_below_min() {
+        assertThatThrownBy(() -> new PollInterval(MAX, MIN))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,159 @@
+package org.gsobko;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.flywaydb.core.Flyway;
+import org.gsobko.model.EmailMessage;
+import org.gsobko.repo.MailRepo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class RecentMailCacheTest {
+
+    Instant now = Instant.now().truncatedTo(ChronoUnit.MICROS);
+    HikariDataSource dataSource;
+    MailRepo repo;
+    // another node writing to the same database
+    MailRepo otherNode;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl("jdbc:h2:mem:cache%s;DB_CLOSE_DELAY=-1".formatted(UUID.randomUUID()));
+        Flyway.configure().dataSource(dataSource).locations("classpath:/migrations").load().migrate();
+        repo = new MailRepo(dataSource);
+        otherNode = new MailRepo(dataSource);
+    }
+
+    @AfterEach
+    void tearDown() {
+        dataSource.close();
+    }
+
+    @Test
+    void should_serve_same_pages_as_database_down_to_oldest_mail_cached() {
+        // given mails created at the same moment are ordered by id as the database orders them
+        for (int uid = 1; uid <= 30; uid++) {
+            repo.save(someEmail(uid, now.minusSeconds(uid < 20 ? 0 : uid)));
+        }
+        RecentMailCache cache = startedCache(20, Long.MAX_VALUE);
+        Instant start = now.minus(1, ChronoUnit.HOURS);
+
+        // when
+        MailRepo.Page first = cache.page(start, now, Optional.empty(), 7).orElseThrow();
+        MailRepo.Page second = cache.page(start, now, first.next(), 7).orElseThrow();
+        Optional<MailRepo.Page> third = cache.page(start, now, second.next(), 7);
+
+        // then
+        assertThat(first).isEqualTo(repo.fetchPage(start, now, Optional.empty(), 7));
+        assertThat(second).isEqualTo(repo.fetchPage(start, now, first.next(), 7));
+        assertThat(third).isEmpty();
+        assertThat(cache.page(now.minusSeconds(1), now, Optional.empty(), 100)).contains(repo.fetchPage(now.minusSeconds(1), now, Optional.empty(), 100));
+        assertThat(cache.mails()).isEqualTo(19);
+        assertThat(cache.hits()).isEqualTo(3);
+        assertThat(cache.misses()).isEqualTo(1);
+    }
+
+    @Test
+    void should_serve_mails_saved_by_this_node_once_read_back_by_cache_thread_and_changes_of_other_nodes_after_refresh() {
+        // given
+        repo.save(someEmail(1, now.minusSeconds(10)));
+        RecentMailCache cache = startedCache(100, Long.MAX_VALUE);
+        repo.onChange(cache::changed);
+        Instant end = now.plusSeconds(10);
+
+        // when
+        repo.save(someEmail(2, now));
+        otherNode.save(someEmail(3, now.plusSeconds(1)));
+        otherNode.updateFlags("INBOX", 0, Map.of(1L, "\\Seen"));
+
+        // then saving only queued them
+        assertThat(cache.page(now.minusSeconds(60), end, Optional.empty(), 10).orElseThrow().emails())
+                .extracting(EmailMessage::imapUid).containsExactly(1L);
+        cache.cachePending();
+        assertThat(cache.page(now.minusSeconds(60), end, Optional.empty(), 10).orElseThrow().emails())
+                .extracting(EmailMessage::imapUid, EmailMessage::flags)
+                .containsExactly(tuple(2L, ""), tuple(1L, ""));
+        cache.refresh();
+        assertThat(cache.page(now.minusSeconds(60), end, Optional.empty(), 10))
+                .contains(repo.fetchPage(now.minusSeconds(60), end, Optional.empty(), 10));
+    }
+
+    @Test
+    void should_evict_oldest_mails_over_max_bytes_or_older_than_window() {
+        // given
+        repo.save(someEmail(1, now.minus(2, ChronoUnit.HOURS)));
+        repo.save(someEmail(2, now.minusSeconds(2)));
+        EmailMessage newest = someEmail(3, now.minusSeconds(1));
+        repo.save(newest);
+        long bytes = RecentMailCache.estimatedBytes(repo.findById(newest.id()).orElseThrow());
+
+        // when
+        RecentMailCache cache = startedCache(100, bytes);
+
+        // then
+        assertThat(cache.mails()).isEqualTo(1);
+        assertThat(cache.bytes()).isEqualTo(bytes);
+        assertThat(cache.page(now.minusSeconds(1), now, Optional.empty(), 10).orElseThrow().emails())
+                .extracting(EmailMessage::imapUid).containsExactly(3L);
+        assertThat(cache.page(now.minusSeconds(2), now, Optional.empty(), 10)).isEmpty();
+        assertThat(cache.page(now.minus(3, ChronoUnit.HOURS), now, Optional.empty(), 10)).isEmpty();
+    }
+
+    @Test
+    void should_read_changes_numbered_after_change_number_read_before_last_refresh() {
+        // given
+        MailRepo repo = mock(MailRepo.class);
+        given(repo.lastChangeSeq()).willReturn(5L, 7L, 9L);
+        given(repo.findPageEnd(any(), any(), any(), anyInt())).willReturn(Optional.empty());
+        RecentMailCache cache = new RecentMailCache(repo, 100, Long.MAX_VALUE, Duration.ofHours(1), 1000, mock(ScheduledExecutorService.class));
+        cache.start();
+
+        // when
+        cache.refresh();
+        cache.refresh();
+
+        // then
+        verify(repo).findChangedAfter(eq(5L), any());
+        verify(repo).findChangedAfter(eq(7L), any());
+    }
+
+    private RecentMailCache startedCache(int maxMails, long maxBytes) {
+        RecentMailCache cache = new RecentMailCache(repo, maxMails, maxBytes, Duration.ofHours(1), 1000, mock(ScheduledExecutorService.class));
+        cache.start();
+        return cache;
+    }
+
+    private EmailMessage someEmail(long uid, Instant createdDate) {
+        return EmailMessage.builder()
+                .withId(UUID.randomUUID())
+                .withImapUid(uid)
+                .withMessageId("MsgId" + uid)
+                .withFrom("sender@example.com")
+                .withTo("user@gmail.com")
+                .withSubject("Subj")
+                .withText("Text")
+                .withHtml("<p>Text</p>")
+                .withSentDate(now)
+                .withCreatedDate(createdDate)
+                .withFolder("INBOX")
+                .build();
+    }
+}
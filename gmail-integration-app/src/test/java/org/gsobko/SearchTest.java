@@ -0,0 +1,79 @@
+package org.gsobko;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Properties;
+
+import static com.icegreen.greenmail.util.GreenMailUtil.createTextEmail;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class SearchTest extends FunctionalTestBase {
+
+    HttpClient client = HttpClient.newHttpClient();
+
+    @TempDir
+    Path indexDir;
+
+    @Override
+    protected Properties createTestProperties() {
+        Properties properties = super.createTestProperties();
+        properties.put("search.index.dir", indexDir.toString());
+        properties.put("search.refresh_millis", "100");
+        return properties;
+    }
+
+    @Test
+    void should_find_ingested_mails_best_first_and_page_through_them() throws Exception {
+        // given
+        user.deliver(createTextEmail(EMAIL, "alice@example.com", "Quarterly report", "Numbers of the quarter", greenMail.getImaps().getServerSetup()));
+        user.deliver(createTextEmail(EMAIL, "bob@example.com", "Lunch", "Did you read the quarterly report?", greenMail.getImaps().getServerSetup()));
+        user.deliver(createTextEmail(EMAIL, "bob@example.com", "Holidays", "Out of office", greenMail.getImaps().getServerSetup()));
+
+        // when
+        JsonNode found = await().atMost(Duration.ofSeconds(5)).until(() -> search("quarterly report", "").json(), json -> json.size() == 2);
+        Response firstPage = search("report", "&limit=1&view=summary");
+        Response secondPage = search("report", "&limit=1&cursor=" + firstPage.nextCursor());
+
+        // then
+        assertThat(found.findValuesAsText("subject")).containsExactly("Quarterly report", "Lunch");
+        assertThat(search("from:bob \"quarterly report\"", "").json().findValuesAsText("subject")).containsExactly("Lunch");
+        assertThat(search("subject:office", "").json()).isEmpty();
+        assertThat(firstPage.json().get(0).get("subject").asText()).isEqualTo("Quarterly report");
+        assertThat(firstPage.json().get(0).has("text")).isFalse();
+        assertThat(secondPage.json().get(0).get("subject").asText()).isEqualTo("Lunch");
+        assertThat(secondPage.json().get(0).get("text").asText()).isEqualTo("Did you read the quarterly report?");
+        assertThat(secondPage.nextCursor()).isNull();
+        assertThat(search(" ", "").status()).isEqualTo(400);
+    }
+
+    private Response search(String query, String parameters) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/mails/search?q=" + URLEncoder.encode(query, StandardCharsets.UTF_8) + parameters))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofString());
+        JsonNode json = response.statusCode() == 200 ? new ObjectMapper().readTree(response.body()) : null;
+        return new Response(response.statusCode(), json, response.headers().firstValue("X-Next-Cursor").orElse(null));
+    }
+
+    record Response(int status, JsonNode json, String nextCursor) {
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+    }
+}
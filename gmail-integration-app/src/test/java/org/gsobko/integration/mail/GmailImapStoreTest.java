@@ -0,0 +1,41 @@
+package org.gsobko.integration.mail;
+
+import org.eclipse.angus.mail.imap.protocol.FetchResponse;
+import org.eclipse.angus.mail.imap.protocol.IMAPResponse;
+import org.eclipse.angus.mail.imap.protocol.UID;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GmailImapStoreTest {
+
+    @Test
+    void should_parse_gmail_items_of_fetch_response() throws Exception {
+        // given
+        IMAPResponse response = new IMAPResponse(
+                "* 1 FETCH (UID 42 X-GM-MSGID 1278455344230334865 X-GM-THRID 1266894439832287888 X-GM-LABELS (\\Inbox \\Sent Important \"Muy Importante\" \"\\\\Starred\"))");
+
+        // when
+        FetchResponse fetchResponse = new FetchResponse(response, GmailImapStore.FETCH_ITEMS);
+
+        // then
+        assertThat(fetchResponse.getItem(UID.class).uid).isEqualTo(42);
+        assertThat(fetchResponse.getExtensionItems())
+                .containsEntry("X-GM-MSGID", 1278455344230334865L)
+                .containsEntry("X-GM-THRID", 1266894439832287888L);
+        assertThat(fetchResponse.getExtensionItems().get("X-GM-LABELS"))
+                .isEqualTo(List.of("\\Inbox", "\\Sent", "Important", "Muy Importante", "\\Starred"));
+    }
+
+    @Test
+    void should_recognize_throttling_responses() throws Exception {
+        // expect
+        assertThat(GmailImapStore.isThrottling(new IMAPResponse("A12 NO [THROTTLED] Please slow down"))).isTrue();
+        assertThat(GmailImapStore.isThrottling(new IMAPResponse("* BYE [UNAVAILABLE] Account exceeded command or bandwidth limits"))).isTrue();
+        assertThat(GmailImapStore.isThrottling(new IMAPResponse("* BYE Session expired, please login again"))).isFalse();
+        assertThat(GmailImapStore.isThrottling(new IMAPResponse("A13 OK [THROTTLED] Success"))).isFalse();
+        assertThat(GmailImapStore.isThrottling(new IMAPResponse("A14 NO [NONEXISTENT] Unknown folder"))).isFalse();
+    }
+}
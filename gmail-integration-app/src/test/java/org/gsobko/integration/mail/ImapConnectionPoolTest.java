@@ -0,0 +1,184 @@
+package org.gsobko.integration.mail;
+
+import jakarta.mail.MessagingException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class ImapConnectionPoolTest {
+
+    List<ImapConnection> createdConnections = new ArrayList<>();
+    ImapConnectionPool pool = new ImapConnectionPool(2, () -> {
+        ImapConnection connection = mock(ImapConnection.class);
+        createdConnections.add(connection);
+        return connection;
+    });
+
+    @Test
+    void should_reuse_most_recently_released_connection() throws Exception {
+        // given
+        ImapConnection first = pool.withConnection(connection -> connection);
+
+        // when
+        ImapConnection second = pool.withConnection(connection -> connection);
+
+        // then
+        assertThat(second).isSameAs(first);
+        assertThat(createdConnections).hasSize(1);
+    }
+
+    @Test
+    void should_not_create_more_connections_than_max() throws Exception {
+        // given
+        CountDownLatch bothBorrowed = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger maxInUse = new AtomicInteger();
+        AtomicInteger inUse = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+
+        // when
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(executor.submit(() -> pool.withConnection(connection -> {
+                maxInUse.accumulateAndGet(inUse.incrementAndGet(), Math::max);
+                bothBorrowed.countDown();
+                release.await();
+                inUse.decrementAndGet();
+                return null;
+            })));
+        }
+        assertThat(bothBorrowed.await(1, TimeUnit.SECONDS)).isTrue();
+        release.countDown();
+        for (Future<?> future : futures) {
+            future.get(1, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        // then
+        assertThat(maxInUse).hasValue(2);
+        assertThat(createdConnections).hasSize(2);
+    }
+
+    @Test
+    void should_reset_connection_on_imap_failure() throws Exception {
+        // given
+        ImapConnection failed = pool.withConnection(connection -> connection);
+
+        // when
+        assertThatThrownBy(() -> pool.withConnection(connection -> {
+            throw new MessagingException("Connection dropped");
+        })).isInstanceOf(MessagingException.class);
+
+        // then
+        verify(failed).reset();
+        ImapConnection next = pool.withConnection(connection -> connection);
+        assertThat(next).isSameAs(failed);
+    }
+
+    @Test
+    void should_reset_connection_and_count_against_circuit_failure_while_streaming_message() throws Exception {
+        // given a circuit opened by throttling whose cool-down is over
+        Clock clock = mock(Clock.class);
+        AtomicReference<Instant> now = new AtomicReference<>(Instant.parse("2025-01-25T12:00:00Z"));
+        given(clock.instant()).willAnswer(i -> now.get());
+        ImapGovernor governor = new ImapGovernor(new ImapGovernor.Quota(1000, Duration.ofSeconds(10),
+                Duration.ofSeconds(60), Duration.ofSeconds(200), 3), clock);
+        ImapConnection failed = mock(ImapConnection.class);
+        ImapConnectionPool governedPool = new ImapConnectionPool(1, () -> failed, governor);
+        governor.throttled("A1 NO [THROTTLED]");
+        now.set(now.get().plusSeconds(61));
+
+        // when the probe loses the folder while streaming a body
+        assertThatThrownBy(() -> governedPool.withConnection(connection -> {
+            throw new IOException("Folder closed while streaming");
+        })).isInstanceOf(IOException.class);
+
+        // then
+        verify(failed).reset();
+        assertThat(governor.state()).isEqualTo(ImapGovernor.State.OPEN);
+    }
+
+    @Test
+    void should_not_reset_connection_on_other_failures() throws Exception {
+        // given
+        ImapConnection connectionUsed = pool.withConnection(connection -> connection);
+
+        // when
+        assertThatThrownBy(() -> pool.withConnection(connection -> {
+            throw new IllegalStateException("Could not parse");
+        })).isInstanceOf(IllegalStateException.class);
+
+        // then
+        verify(connectionUsed, never()).reset();
+    }
+
+    @Test
+    void should_count_only_imap_failures_of_probe_against_circuit() throws Exception {
+        // given a circuit opened by throttling whose cool-down is over
+        Clock clock = mock(Clock.class);
+        AtomicReference<Instant> now = new AtomicReference<>(Instant.parse("2025-01-25T12:00:00Z"));
+        given(clock.instant()).willAnswer(i -> now.get());
+        ImapGovernor governor = new ImapGovernor(new ImapGovernor.Quota(1000, Duration.ofSeconds(10),
+                Duration.ofSeconds(60), Duration.ofSeconds(200), 3), clock);
+        ImapConnectionPool governedPool = new ImapConnectionPool(1, () -> mock(ImapConnection.class), governor);
+        governor.throttled("A1 NO [THROTTLED]");
+        now.set(now.get().plusSeconds(61));
+
+        // when the probe fails without the server failing
+        assertThatThrownBy(() -> governedPool.withConnection(connection -> {
+            throw new IllegalStateException("UIDVALIDITY of folder INBOX changed");
+        })).isInstanceOf(IllegalStateException.class);
+
+        // then
+        assertThat(governor.state()).isEqualTo(ImapGovernor.State.CLOSED);
+
+        // and when the server fails
+        governor.throttled("A2 NO [THROTTLED]");
+        now.set(now.get().plusSeconds(61));
+        assertThatThrownBy(() -> governedPool.withConnection(connection -> {
+            throw new MessagingException("Connection dropped");
+        })).isInstanceOf(MessagingException.class);
+
+        // then
+        assertThat(governor.state()).isEqualTo(ImapGovernor.State.OPEN);
+    }
+
+    @Test
+    void should_refuse_operations_without_borrowing_a_connection_while_throttled() {
+        // given
+        ImapGovernor governor = new ImapGovernor(ImapGovernor.Quota.UNLIMITED);
+        ImapConnectionPool governedPool = new ImapConnectionPool(2, () -> {
+            ImapConnection connection = mock(ImapConnection.class);
+            createdConnections.add(connection);
+            return connection;
+        }, governor);
+        governor.throttled("A1 NO [THROTTLED]");
+
+        // when
+        assertThatThrownBy(() -> governedPool.withConnection(connection -> connection))
+                .isInstanceOf(ImapThrottledException.class);
+
+        // then
+        assertThat(createdConnections).isEmpty();
+        assertThat(governor.rejectedOperations()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,142 @@
+package org.gsobko.integration.mail;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import jakarta.mail.MessagingException;
+import jakarta.mail.PasswordAuthentication;
+import jakarta.mail.Session;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+class ImapConnectionTest {
+
+    GreenMail greenMail = new GreenMail(ServerSetup.IMAPS.dynamicPort());
+    PasswordAuthentication auth = new PasswordAuthentication("aaa@bbb", "pass");
+    Clock clock = mock(Clock.class);
+    Instant now = Instant.parse("2025-01-25T12:00:00Z");
+    AtomicInteger connectAttempts = new AtomicInteger();
+    ImapConnection connection;
+
+    @BeforeEach
+    void setUp() {
+        greenMail.setUser("aaa@bbb", "aaa@bbb", "pass");
+        greenMail.start();
+        given(clock.instant()).willAnswer(i -> now);
+        connection = new ImapConnection(countingSessionProvider(greenMail.getImaps().getPort()), auth, clock);
+    }
+
+    @Test
+    void should_reuse_open_folder_between_calls() throws Exception {
+        // given
+        IMAPFolder first = connection.folder("INBOX");
+
+        // when
+        IMAPFolder second = connection.folder("INBOX");
+
+        // then
+        assertThat(second).isSameAs(first);
+        assertThat(connectAttempts).hasValue(1);
+    }
+
+    @Test
+    void should_reconnect_transparently_when_connection_was_dropped() throws Exception {
+        // given
+        IMAPFolder first = connection.folder("INBOX");
+        restartMailServer();
+
+        // when
+        IMAPFolder second = connection.folder("INBOX");
+
+        // then
+        assertThat(second).isNotSameAs(first);
+        assertThat(second.isOpen()).isTrue();
+        assertThat(connectAttempts).hasValue(2);
+    }
+
+    @Test
+    void should_reopen_folder_without_reconnecting_after_folder_was_closed() throws Exception {
+        // given
+        IMAPFolder first = connection.folder("INBOX");
+        connection.closeFolder();
+
+        // when
+        IMAPFolder second = connection.folder("INBOX");
+
+        // then
+        assertThat(second.isOpen()).isTrue();
+        assertThat(first.isOpen()).isFalse();
+        assertThat(connectAttempts).hasValue(1);
+    }
+
+    @Test
+    void should_back_off_before_reconnecting_after_failed_attempt() {
+        // given
+        ImapConnection unreachable = new ImapConnection(countingSessionProvider(someFreePort()), auth, clock);
+        assertThatThrownBy(() -> unreachable.folder("INBOX")).isInstanceOf(MessagingException.class);
+
+        // expect
+        assertThatThrownBy(() -> unreachable.folder("INBOX"))
+                .isInstanceOf(MessagingException.class)
+                .hasMessageContaining("backing off");
+        assertThat(connectAttempts).hasValue(1);
+
+        // when
+        now = now.plus(ImapConnection.INITIAL_BACKOFF);
+
+        // then
+        assertThatThrownBy(() -> unreachable.folder("INBOX")).isInstanceOf(MessagingException.class);
+        assertThat(connectAttempts).hasValue(2);
+    }
+
+    @Test
+    void should_grow_backoff_exponentially_up_to_max() {
+        assertThat(ImapConnection.backoff(1)).isEqualTo(Duration.ofSeconds(1));
+        assertThat(ImapConnection.backoff(2)).isEqualTo(Duration.ofSeconds(2));
+        assertThat(ImapConnection.backoff(5)).isEqualTo(Duration.ofSeconds(16));
+        assertThat(ImapConnection.backoff(100)).isEqualTo(ImapConnection.MAX_BACKOFF);
+    }
+
+    @AfterEach
+    void tearDown() {
+        connection.close();
+        greenMail.stop();
+    }
+
+    private void restartMailServer() {
+        ServerSetup sameSetup = greenMail.getImaps().getServerSetup();
+        greenMail.stop();
+        greenMail = new GreenMail(sameSetup);
+        greenMail.setUser("aaa@bbb", "aaa@bbb", "pass");
+        greenMail.start();
+    }
+
+    private Supplier<Session> countingSessionProvider(int port) {
+        return () -> {
+            connectAttempts.incrementAndGet();
+            return Session.getInstance(ImapConnection.imapsProperties("localhost", port, true));
+        };
+    }
+
+    private static int someFreePort() {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
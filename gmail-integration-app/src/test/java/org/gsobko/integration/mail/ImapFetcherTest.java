@@ -2,47 +2,345 @@ package org.gsobko.integration.mail;
 
 import com.icegreen.greenmail.user.GreenMailUser;
 import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.GreenMailUtil;
 import com.icegreen.greenmail.util.ServerSetup;
+import jakarta.mail.Flags;
+import jakarta.mail.Folder;
 import jakarta.mail.Message;
+import jakarta.mail.PasswordAuthentication;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+import jakarta.mail.internet.MimeBodyPart;
 import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 
 import static com.icegreen.greenmail.util.GreenMailUtil.createTextEmail;
-import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
 import static org.mockito.Mockito.*;
 
 class ImapFetcherTest {
 
     public static final int INITIAL_DEPTH_LIMIT = 10;
+    public static final int FETCH_BATCH_SIZE = 5;
+    public static final FetchOptions OPTIONS = FetchOptions.DEFAULT.withInitialDepthLimit(INITIAL_DEPTH_LIMIT).withFetchBatchSize(FETCH_BATCH_SIZE);
+    private static final Pattern FETCH_COMMAND = Pattern.compile("(?m)^[A-Z]+\\d+ (UID )?FETCH ");
 
     GreenMail greenMail = new GreenMail(ServerSetup.IMAPS.dynamicPort());
     GreenMailUser user;
+    ImapConnectionPool connectionPool;
     ImapFetcher imapFetcher;
+    long uidValidity;
 
 
     @BeforeEach
     void setUp() throws Exception {
         user = greenMail.setUser("aaa@bbb", "aaa@bbb", "pass");
         greenMail.start();
-        imapFetcher = new ImapFetcher("aaa@bbb", "pass", "INBOX", "localhost", greenMail.getImaps().getPort(), true, INITIAL_DEPTH_LIMIT);
+        connectionPool = new ImapConnectionPool(1, () -> new ImapConnection("aaa@bbb", "pass", "localhost", greenMail.getImaps().getPort(), true));
+        imapFetcher = new ImapFetcher(connectionPool, "INBOX", OPTIONS);
+        uidValidity = imapFetcher.folderStatus().uidValidity();
+    }
+
+    @AfterEach
+    void tearDown() {
+        imapFetcher.close();
+        connectionPool.close();
+        greenMail.stop();
     }
 
     @Test
     void should_fetch_nothing() {
         Consumer<FetchedEmail> consumer = mock(Consumer.class);
 
-        imapFetcher.fetchEmailsSinceUid(OptionalLong.empty(), consumer);
+        imapFetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.empty(), consumer);
 
         verify(consumer, never()).accept(any(FetchedEmail.class));
     }
 
+    @Test
+    void should_report_uid_validity_and_no_modseq_when_server_has_no_condstore() {
+        // when
+        FolderStatus folderStatus = imapFetcher.folderStatus();
+
+        // then
+        assertThat(folderStatus.uidValidity()).isPositive();
+        assertThat(folderStatus.highestModSeq()).isZero();
+    }
+
+    @Test
+    void should_refuse_to_fetch_when_uid_validity_has_changed() {
+        // given
+        user.deliver(createTextEmail("aaa@bbb", "ccc@ddd", "subj", "Hello", greenMail.getImaps().getServerSetup()));
+        Consumer<FetchedEmail> consumer = mock(Consumer.class);
+
+        // expect
+        assertThatThrownBy(() -> imapFetcher.fetchEmailsSinceUid(uidValidity + 1, OptionalLong.empty(), consumer))
+                .isInstanceOf(IllegalStateException.class)
+                .hasRootCauseMessage("UIDVALIDITY of folder INBOX changed from %d to %d".formatted(uidValidity + 1, uidValidity));
+        verify(consumer, never()).accept(any(FetchedEmail.class));
+    }
+
+    @Test
+    void should_leave_shared_connection_pool_open_when_closed() {
+        // given another folder's fetcher on the same pool
+        createNumberOfMessages(2).forEach(user::deliver);
+        ImapFetcher otherFetcher = new ImapFetcher(connectionPool, "INBOX", OPTIONS);
+        List<FetchedEmail> fetched = new ArrayList<>();
+
+        // when
+        otherFetcher.close();
+
+        // then
+        imapFetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.empty(), fetched::add);
+        assertThat(fetched).hasSize(2);
+    }
+
+    @Test
+    void should_fetch_message_ids_by_uid() {
+        // given
+        createNumberOfMessages(3).forEach(user::deliver);
+        List<FetchedEmail> fetched = new ArrayList<>();
+        imapFetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.empty(), fetched::add);
+
+        // when
+        Map<Long, FetchedMessageIds> messageIds = imapFetcher.fetchMessageIds();
+
+        // then
+        assertThat(messageIds).isEqualTo(fetched.stream()
+                .collect(Collectors.toMap(FetchedEmail::imapUid, email -> new FetchedMessageIds(email.messageId(), null))));
+    }
+
+    @Test
+    void should_report_no_change_tracking_when_server_has_no_condstore() {
+        // given
+        createNumberOfMessages(2).forEach(user::deliver);
+
+        // expect
+        assertThat(imapFetcher.fetchChangesSince(uidValidity, 2, 0)).isEmpty();
+    }
+
+    @Test
+    void should_fetch_flags_and_uids_of_messages_still_in_folder() throws Exception {
+        // given
+        createNumberOfMessages(3).forEach(user::deliver);
+        Store store = greenMail.getImaps().createStore();
+        store.connect("aaa@bbb", "pass");
+        Folder inbox = store.getFolder("INBOX");
+        inbox.open(Folder.READ_WRITE);
+        inbox.getMessage(1).setFlags(new Flags(Flags.Flag.SEEN), true);
+        inbox.getMessage(3).setFlags(new Flags(Flags.Flag.FLAGGED), true);
+        inbox.getMessage(3).setFlags(new Flags("$Forwarded"), true);
+        inbox.getMessage(2).setFlag(Flags.Flag.DELETED, true);
+        inbox.close(true);
+        store.close();
+
+        // when
+        Map<Long, String> flags = imapFetcher.fetchFlags(uidValidity, 1, 3);
+        List<Long> uids = imapFetcher.fetchUids(uidValidity, 1, 3);
+
+        // then
+        assertThat(flags).isEqualTo(Map.of(1L, "\\Seen", 3L, "$Forwarded \\Flagged"));
+        assertThat(uids).containsExactly(1L, 3L);
+    }
+
+    @Test
+    void should_fetch_only_headers_and_body_structure_and_then_bodies_on_request() throws Exception {
+        // given
+        MimeMessage message = createTextEmail("aaa@bbb", "ccc@ddd", "subj", "Hello", greenMail.getImaps().getServerSetup());
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("Hello");
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setContent("pdf content", "application/pdf");
+        attachment.setFileName("report.pdf");
+        message.setContent(new MimeMultipart(text, attachment));
+        message.saveChanges();
+        user.deliver(message);
+        ByteArrayOutputStream commandLog = new ByteArrayOutputStream();
+        ImapFetcher headersFetcher = fetcherWithCommandLog(FETCH_BATCH_SIZE, commandLog, true);
+        List<FetchedEmail> fetched = new ArrayList<>();
+
+        // when
+        headersFetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.empty(), fetched::add);
+
+        // then
+        assertThat(fetched).singleElement().satisfies(email -> {
+            assertThat(email.hasBody()).isFalse();
+            assertThat(email.subject()).isEqualTo("subj");
+            assertThat(email.text()).isEmpty();
+            assertThat(email.attachments()).containsExactly(new MimeExtractor.Attachment("report.pdf", "application/pdf", -1));
+        });
+        assertThat(commandLog.toString()).doesNotContain("BODY.PEEK[]", "BODY[]");
+
+        // when
+        List<FetchedBody> bodies = headersFetcher.fetchBodies(uidValidity, List.of(fetched.getFirst().imapUid()));
+
+        // then
+        assertThat(bodies).containsExactly(new FetchedBody(fetched.getFirst().imapUid(), Optional.of("Hello"), Optional.empty(),
+                List.of(new MimeExtractor.Attachment("report.pdf", "application/pdf", "pdf content".length()))));
+    }
+
+    @Test
+    void should_not_request_gmail_items_from_other_servers() {
+        // given
+        createNumberOfMessages(2).forEach(user::deliver);
+        ByteArrayOutputStream commandLog = new ByteArrayOutputStream();
+        List<FetchedEmail> fetched = new ArrayList<>();
+
+        // when
+        fetcherWithCommandLog(FETCH_BATCH_SIZE, commandLog).fetchEmailsSinceUid(uidValidity, OptionalLong.empty(), fetched::add);
+
+        // then
+        assertThat(fetched).hasSize(2).allSatisfy(email -> {
+            assertThat(email.hasBody()).isTrue();
+            assertThat(email.gmail()).isEmpty();
+        });
+        assertThat(commandLog.toString()).doesNotContain("X-GM-");
+    }
+
+    @Test
+    void should_stream_messages_above_threshold_with_partial_fetches_instead_of_downloading_them_whole() throws Exception {
+        // given
+        MimeMessage message = createTextEmail("aaa@bbb", "ccc@ddd", "subj", "Hello", greenMail.getImaps().getServerSetup());
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("Hello");
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setContent(new byte[50_000], "application/pdf");
+        attachment.setFileName("report.pdf");
+        message.setContent(new MimeMultipart(text, attachment));
+        message.saveChanges();
+        user.deliver(message);
+        ByteArrayOutputStream commandLog = new ByteArrayOutputStream();
+        ImapFetcher streamingFetcher = fetcherWithCommandLog(FETCH_BATCH_SIZE, commandLog, false, new ContentLimits(3, 10_000));
+        List<FetchedEmail> fetched = new ArrayList<>();
+
+        // when
+        streamingFetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.empty(), fetched::add);
+
+        // then
+        assertThat(fetched).singleElement().satisfies(email -> {
+            assertThat(email.hasBody()).isTrue();
+            assertThat(email.text()).contains("Hel");
+            assertThat(email.attachments()).containsExactly(new MimeExtractor.Attachment("report.pdf", "application/pdf", 50_000));
+        });
+        assertThat(commandLog.toString()).contains("BODY.PEEK[]<0.").doesNotContain("BODY.PEEK[])");
+    }
+
+    @Test
+    void should_pass_raw_messages_downloaded_whole_or_streamed_to_archive() throws Exception {
+        // given
+        user.deliver(createTextEmail("aaa@bbb", "ccc@ddd", "small", "Hello", greenMail.getImaps().getServerSetup()));
+        MimeMessage big = createTextEmail("aaa@bbb", "ccc@ddd", "big", "Hello", greenMail.getImaps().getServerSetup());
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setContent(new byte[50_000], "application/pdf");
+        attachment.setFileName("report.pdf");
+        big.setContent(new MimeMultipart(attachment));
+        big.saveChanges();
+        user.deliver(big);
+        Map<Long, ByteArrayOutputStream> archived = new ConcurrentHashMap<>();
+        ImapConnectionPool connectionPool = new ImapConnectionPool(1,
+                () -> new ImapConnection("aaa@bbb", "pass", "localhost", greenMail.getImaps().getPort(), true));
+        ImapFetcher archivingFetcher = new ImapFetcher(connectionPool, "INBOX", OPTIONS
+                .withContentLimits(new ContentLimits(1000, 10_000))
+                .withRawMessageSink((validity, uid) -> new RawMessageSink.RawMessage(archived.computeIfAbsent(uid, ignored -> new ByteArrayOutputStream()), () -> {
+                })));
+        List<FetchedEmail> fetched = new ArrayList<>();
+
+        // when
+        archivingFetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.empty(), fetched::add);
+
+        // then archived messages parse to the same content
+        assertThat(fetched).hasSize(2);
+        for (FetchedEmail email : fetched) {
+            byte[] rawMessage = archived.get(email.imapUid()).toByteArray();
+            assertThat(new String(rawMessage)).contains("Subject: " + email.subject());
+            MimeExtractor.MessageContent content = MimeExtractor.extractContent(rawMessage, new ContentLimits(1000, 10_000), AttachmentSink.DISCARD);
+            assertThat(content.text()).isEqualTo(email.text());
+            assertThat(content.attachments()).isEqualTo(email.attachments());
+        }
+    }
+
+    @Test
+    void should_fetch_only_beginning_of_text_of_oversized_messages() throws Exception {
+        // given
+        MimeMessage message = createTextEmail("aaa@bbb", "ccc@ddd", "subj", "Hello", greenMail.getImaps().getServerSetup());
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("first line\nsecond line\nthird line\n");
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setContent(new byte[50_000], "application/pdf");
+        attachment.setFileName("scan.pdf");
+        message.setContent(new MimeMultipart(text, attachment));
+        message.saveChanges();
+        user.deliver(message);
+        ByteArrayOutputStream commandLog = new ByteArrayOutputStream();
+        ImapFetcher fetcher = fetcherWithCommandLog(FETCH_BATCH_SIZE, commandLog, false, new ContentLimits(1000, 10_000, 40_000, 25));
+        List<FetchedEmail> fetched = new ArrayList<>();
+
+        // when
+        fetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.empty(), fetched::add);
+
+        // then the cut third line is dropped
+        assertThat(fetched).singleElement().satisfies(email -> {
+            assertThat(email.truncated()).isTrue();
+            assertThat(email.subject()).isEqualTo("subj");
+            assertThat(email.text()).contains("first line\nsecond line\n");
+            assertThat(email.attachments()).containsExactly(new MimeExtractor.Attachment("scan.pdf", "application/pdf", -1));
+        });
+        assertThat(commandLog.toString()).contains("BODY.PEEK[1]<0.25>").doesNotContain("BODY.PEEK[]");
+
+        // and when whole body is requested
+        List<FetchedBody> bodies = fetcher.fetchBodies(uidValidity, List.of(fetched.getFirst().imapUid()), true);
+
+        // then
+        assertThat(bodies).singleElement().satisfies(body -> {
+            assertThat(body.truncated()).isFalse();
+            assertThat(body.text()).contains("first line\nsecond line\nthird line\n");
+        });
+    }
+
+    @Test
+    void should_fetch_beginning_of_text_section_of_oversized_single_part_message() throws Exception {
+        // given
+        user.deliver(createTextEmail("aaa@bbb", "ccc@ddd", "subj", "Hello\r\n" + "x".repeat(50_000), greenMail.getImaps().getServerSetup()));
+        ByteArrayOutputStream commandLog = new ByteArrayOutputStream();
+        ImapFetcher fetcher = fetcherWithCommandLog(FETCH_BATCH_SIZE, commandLog, false, new ContentLimits(1000, 10_000, 40_000, 100));
+        List<FetchedEmail> fetched = new ArrayList<>();
+
+        // when
+        fetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.empty(), fetched::add);
+
+        // then
+        assertThat(fetched).singleElement().satisfies(email -> {
+            assertThat(email.truncated()).isTrue();
+            assertThat(email.text()).hasValueSatisfying(text -> assertThat(text).startsWith("Hello\r\n").hasSizeLessThan(100));
+        });
+        assertThat(commandLog.toString()).contains("BODY.PEEK[TEXT]<0.100>");
+    }
+
     @Test
     void should_fetch_a_email() {
         // given
@@ -50,7 +348,7 @@ class ImapFetcherTest {
         user.deliver(createTextEmail("aaa@bbb", "ccc@ddd", "subj", "Hello", greenMail.getImaps().getServerSetup()));
 
         // when
-        imapFetcher.fetchEmailsSinceUid(OptionalLong.empty(), consumer);
+        imapFetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.empty(), consumer);
 
         // then
         verify(consumer).accept(argThat(fetchedEmail ->
@@ -66,13 +364,13 @@ class ImapFetcherTest {
         // given
         Consumer<FetchedEmail> consumer = mock(Consumer.class);
         user.deliver(createTextEmail("aaa@bbb", "ccc@ddd", "subj", "Hello", greenMail.getImaps().getServerSetup()));
-        imapFetcher.fetchEmailsSinceUid(OptionalLong.empty(), consumer);
+        imapFetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.empty(), consumer);
         FetchedEmail firstFetchedEmail = getSingleEmailFetchedBy(consumer);
 
         // when
         Consumer<FetchedEmail> consumer2 = mock(Consumer.class);
         user.deliver(createTextEmail("aaa@bbb", "ccc@ddd", "subj2", "Hello again", greenMail.getImaps().getServerSetup()));
-        imapFetcher.fetchEmailsSinceUid(OptionalLong.of(firstFetchedEmail.imapUid()), consumer2);
+        imapFetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.of(firstFetchedEmail.imapUid()), consumer2);
 
         // then
         FetchedEmail fetchedEmail2 = getSingleEmailFetchedBy(consumer2);
@@ -88,7 +386,7 @@ class ImapFetcherTest {
         messages.forEach(user::deliver);
 
         // when
-        imapFetcher.fetchEmailsSinceUid(OptionalLong.empty(), consumer);
+        imapFetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.empty(), consumer);
 
         // then
         verify(consumer, times(INITIAL_DEPTH_LIMIT)).accept(any(FetchedEmail.class));
@@ -103,7 +401,7 @@ class ImapFetcherTest {
         user.deliver(textEmail);
 
         // when
-        imapFetcher.fetchEmailsSinceUid(OptionalLong.empty(), consumer);
+        imapFetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.empty(), consumer);
 
         // then
         FetchedEmail fetchedEmail = getSingleEmailFetchedBy(consumer);
@@ -112,6 +410,170 @@ class ImapFetcherTest {
 
     }
 
+    @Test
+    void should_fetch_all_emails_when_there_are_more_than_one_batch() {
+        // given
+        Consumer<FetchedEmail> consumer = mock(Consumer.class);
+        createNumberOfMessages(FETCH_BATCH_SIZE * 2 + 1).forEach(user::deliver);
+
+        // when
+        imapFetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.of(0), consumer);
+
+        // then
+        ArgumentCaptor<FetchedEmail> captor = ArgumentCaptor.forClass(FetchedEmail.class);
+        verify(consumer, times(FETCH_BATCH_SIZE * 2 + 1)).accept(captor.capture());
+        assertThat(captor.getAllValues().stream().map(FetchedEmail::subject).toList())
+                .isEqualTo(IntStream.range(0, FETCH_BATCH_SIZE * 2 + 1).mapToObj("subj%d"::formatted).toList());
+    }
+
+    @Test
+    void should_need_less_fetch_round_trips_when_fetching_in_batches() {
+        // given
+        int numberOfMessages = 40;
+        createNumberOfMessages(numberOfMessages).forEach(user::deliver);
+        ByteArrayOutputStream oneByOneLog = new ByteArrayOutputStream();
+        ByteArrayOutputStream batchedLog = new ByteArrayOutputStream();
+        List<FetchedEmail> fetchedOneByOne = new ArrayList<>();
+        List<FetchedEmail> fetchedBatched = new ArrayList<>();
+
+        // when
+        fetcherWithCommandLog(1, oneByOneLog).fetchEmailsSinceUid(uidValidity, OptionalLong.of(0), fetchedOneByOne::add);
+        fetcherWithCommandLog(numberOfMessages, batchedLog).fetchEmailsSinceUid(uidValidity, OptionalLong.of(0), fetchedBatched::add);
+
+        // then
+        assertThat(fetchedBatched).isEqualTo(fetchedOneByOne);
+        assertThat(fetchCommandsIn(oneByOneLog)).isGreaterThanOrEqualTo(numberOfMessages);
+        assertThat(fetchCommandsIn(batchedLog)).isLessThanOrEqualTo(3);
+    }
+
+    @Test
+    void should_fetch_ranges_in_parallel_and_hand_them_over_in_uid_order() {
+        // given
+        int numberOfMessages = FETCH_BATCH_SIZE * 6 + 2;
+        createNumberOfMessages(numberOfMessages).forEach(user::deliver);
+        AtomicInteger connectionsCreated = new AtomicInteger();
+        ImapFetcher parallelFetcher = parallelFetcher(3, connectionsCreated);
+        List<FetchedEmail> fetched = new ArrayList<>();
+
+        // when
+        parallelFetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.of(0), fetched::add);
+
+        // then
+        assertThat(fetched.stream().map(FetchedEmail::imapUid).toList())
+                .isEqualTo(LongStream.rangeClosed(1, numberOfMessages).boxed().toList());
+        assertThat(connectionsCreated).hasValue(3);
+    }
+
+    @Test
+    void should_not_hand_over_ranges_after_a_failed_range() throws Exception {
+        // given
+        createNumberOfMessages(FETCH_BATCH_SIZE * 2).forEach(user::deliver);
+        MimeMessage brokenMessage = new MimeMessage(GreenMailUtil.getSession(greenMail.getImaps().getServerSetup()));
+        brokenMessage.setSubject("message without from header");
+        brokenMessage.setText("Hello");
+        user.deliver(brokenMessage);
+        createNumberOfMessages(FETCH_BATCH_SIZE * 4).forEach(user::deliver);
+        ImapFetcher parallelFetcher = parallelFetcher(3, new AtomicInteger());
+        List<FetchedEmail> fetched = new ArrayList<>();
+
+        // when
+        assertThatThrownBy(() -> parallelFetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.of(0), fetched::add))
+                .isInstanceOf(IllegalStateException.class);
+
+        // then
+        assertThat(fetched.stream().map(FetchedEmail::imapUid).toList())
+                .isEqualTo(LongStream.rangeClosed(1, FETCH_BATCH_SIZE * 2).boxed().toList());
+    }
+
+    @Test
+    void should_count_messages_passed_by_every_stage_of_the_pipeline() {
+        // given
+        int numberOfMessages = FETCH_BATCH_SIZE * 3;
+        createNumberOfMessages(numberOfMessages).forEach(user::deliver);
+        ImapFetcher parallelFetcher = parallelFetcher(2, new AtomicInteger());
+
+        // when
+        parallelFetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.of(0), email -> {});
+
+        // then
+        FetchPipelineStats stats = parallelFetcher.stats();
+        for (FetchPipelineStats.Stage stage : FetchPipelineStats.Stage.values()) {
+            assertThat(stats.messages(stage)).as(stage.name()).isEqualTo(numberOfMessages);
+            assertThat(stats.queueDepth(stage)).as(stage.name()).isZero();
+            assertThat(stats.messagesPerSecond(stage)).as(stage.name()).isPositive();
+        }
+    }
+
+    @Test
+    void should_stop_fetching_ahead_while_reader_is_slow() throws Exception {
+        // given
+        createNumberOfMessages(FETCH_BATCH_SIZE * 8).forEach(user::deliver);
+        ImapFetcher parallelFetcher = parallelFetcher(1, new AtomicInteger());
+        CountDownLatch readerReleased = new CountDownLatch(1);
+        List<FetchedEmail> fetched = new CopyOnWriteArrayList<>();
+        Thread fetch = new Thread(() -> parallelFetcher.fetchEmailsSinceUid(uidValidity, OptionalLong.of(0), email -> {
+            awaitQuietly(readerReleased);
+            fetched.add(email);
+        }));
+
+        // when
+        fetch.start();
+
+        // then at most two ranges (one fetched on the only connection, one parsed) are held while the first waits
+        FetchPipelineStats stats = parallelFetcher.stats();
+        await().atMost(Duration.ofSeconds(5)).until(() -> stats.queueDepth(FetchPipelineStats.Stage.PERSIST) == 1);
+        await().during(Duration.ofMillis(300)).atMost(Duration.ofSeconds(2))
+                .until(() -> stats.messages(FetchPipelineStats.Stage.FETCH) <= FETCH_BATCH_SIZE * 2);
+
+        // and when
+        readerReleased.countDown();
+        fetch.join(5000);
+
+        // then
+        assertThat(fetched).hasSize(FETCH_BATCH_SIZE * 8);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ImapFetcher parallelFetcher(int maxConnections, AtomicInteger connectionsCreated) {
+        ImapConnectionPool connectionPool = new ImapConnectionPool(maxConnections, () -> {
+            connectionsCreated.incrementAndGet();
+            return new ImapConnection("aaa@bbb", "pass", "localhost", greenMail.getImaps().getPort(), true);
+        });
+        return new ImapFetcher(connectionPool, "INBOX", OPTIONS);
+    }
+
+    private ImapFetcher fetcherWithCommandLog(int fetchBatchSize, ByteArrayOutputStream commandLog) {
+        return fetcherWithCommandLog(fetchBatchSize, commandLog, false);
+    }
+
+    private ImapFetcher fetcherWithCommandLog(int fetchBatchSize, ByteArrayOutputStream commandLog, boolean headersOnly) {
+        return fetcherWithCommandLog(fetchBatchSize, commandLog, headersOnly, ContentLimits.DEFAULT);
+    }
+
+    private ImapFetcher fetcherWithCommandLog(int fetchBatchSize, ByteArrayOutputStream commandLog, boolean headersOnly,
+                                              ContentLimits contentLimits) {
+        Supplier<Session> sessionProvider = () -> {
+            Session session = Session.getInstance(ImapConnection.imapsProperties("localhost", greenMail.getImaps().getPort(), true));
+            session.setDebug(true);
+            session.setDebugOut(new PrintStream(commandLog, true));
+            return session;
+        };
+        ImapConnectionPool connectionPool = new ImapConnectionPool(1, () -> new ImapConnection(sessionProvider, new PasswordAuthentication("aaa@bbb", "pass")));
+        return new ImapFetcher(connectionPool, "INBOX", FetchOptions.DEFAULT
+                .withFetchBatchSize(fetchBatchSize).withHeadersOnly(headersOnly).withContentLimits(contentLimits));
+    }
+
+    private static long fetchCommandsIn(ByteArrayOutputStream commandLog) {
+        return FETCH_COMMAND.matcher(commandLog.toString()).results().count();
+    }
+
     private List<MimeMessage> createNumberOfMessages(int number) {
         return IntStream.range(0, number)
                 .mapToObj(i -> createTextEmail("aaa@bbb", "ccc@ddd", "subj%d".formatted(i), "Hello again", greenMail.getImaps().getServerSetup()))
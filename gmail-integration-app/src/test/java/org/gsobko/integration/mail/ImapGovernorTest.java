@@ -0,0 +1,141 @@
+package org.gsobko.integration.mail;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+class ImapGovernorTest {
+
+    static final ImapGovernor.Quota QUOTA = new ImapGovernor.Quota(1000, Duration.ofSeconds(10),
+            Duration.ofSeconds(60), Duration.ofSeconds(200), 3);
+
+    Clock clock = mock(Clock.class);
+    Instant now = Instant.parse("2025-01-25T12:00:00Z");
+    ImapGovernor governor;
+
+    @BeforeEach
+    void setUp() {
+        given(clock.instant()).willAnswer(i -> now);
+        governor = new ImapGovernor(QUOTA, clock);
+    }
+
+    @Test
+    void should_refuse_operations_once_download_quota_is_used_up_until_it_refills() {
+        // given
+        governor.acquire();
+        governor.downloaded(1500);
+        governor.release(false, true);
+
+        // expect
+        assertThatThrownBy(() -> governor.acquire())
+                .isInstanceOf(ImapThrottledException.class)
+                .extracting(e -> ((ImapThrottledException) e).retryAt())
+                .isEqualTo(now.plusMillis(5010));
+
+        // and when 100 bytes per second refill the debt
+        now = now.plusSeconds(6);
+
+        // then
+        assertThat(governor.acquire()).isFalse();
+        assertThat(governor.availableBytes()).isEqualTo(100);
+        assertThat(governor.downloadedBytes()).isEqualTo(1500);
+        assertThat(governor.rejectedOperations()).isEqualTo(1);
+    }
+
+    @Test
+    void should_not_refill_above_quota() {
+        // given
+        governor.downloaded(300);
+
+        // when
+        now = now.plus(Duration.ofHours(1));
+
+        // then
+        assertThat(governor.availableBytes()).isEqualTo(1000);
+    }
+
+    @Test
+    void should_open_circuit_on_throttling_and_close_it_after_successful_probe() {
+        // given
+        governor.throttled("A7 NO [THROTTLED] Too many requests");
+
+        // expect circuit is open during cool-down
+        assertThat(governor.state()).isEqualTo(ImapGovernor.State.OPEN);
+        assertThatThrownBy(() -> governor.acquire()).isInstanceOf(ImapThrottledException.class);
+
+        // and when cool-down is over
+        now = now.plusSeconds(60);
+
+        // then only a single probe goes through
+        assertThat(governor.state()).isEqualTo(ImapGovernor.State.HALF_OPEN);
+        assertThat(governor.acquire()).isTrue();
+        assertThatThrownBy(() -> governor.acquire()).isInstanceOf(ImapThrottledException.class);
+
+        // and when probe succeeds
+        governor.release(true, true);
+
+        // then
+        assertThat(governor.state()).isEqualTo(ImapGovernor.State.CLOSED);
+        assertThat(governor.acquire()).isFalse();
+    }
+
+    @Test
+    void should_double_cool_down_up_to_max_while_probes_fail() {
+        // given
+        governor.throttled("* BYE [OVERQUOTA] Account exceeded command or bandwidth limits");
+
+        // when probes fail three times
+        for (Duration coolDown : new Duration[]{Duration.ofSeconds(60), Duration.ofSeconds(120), Duration.ofSeconds(200)}) {
+            now = now.plus(coolDown);
+            assertThat(governor.acquire()).isTrue();
+            governor.release(true, false);
+        }
+
+        // then
+        now = now.plusSeconds(199);
+        assertThat(governor.state()).isEqualTo(ImapGovernor.State.OPEN);
+        now = now.plusSeconds(1);
+        assertThat(governor.state()).isEqualTo(ImapGovernor.State.HALF_OPEN);
+    }
+
+    @Test
+    void should_not_extend_cool_down_when_other_connections_report_same_throttling() {
+        // given
+        governor.throttled("A1 NO [THROTTLED]");
+
+        // when
+        now = now.plusSeconds(30);
+        governor.throttled("B1 NO [THROTTLED]");
+
+        // then
+        now = now.plusSeconds(30);
+        assertThat(governor.state()).isEqualTo(ImapGovernor.State.HALF_OPEN);
+    }
+
+    @Test
+    void should_open_circuit_only_after_a_run_of_unexpected_disconnects() {
+        // given
+        governor.disconnected("* BYE Session expired");
+        governor.disconnected("* BYE Session expired");
+        governor.release(false, true);
+        governor.disconnected("* BYE Session expired");
+        governor.disconnected("* BYE Session expired");
+
+        // expect
+        assertThat(governor.state()).isEqualTo(ImapGovernor.State.CLOSED);
+
+        // and when
+        governor.disconnected("* BYE Session expired");
+
+        // then
+        assertThat(governor.state()).isEqualTo(ImapGovernor.State.OPEN);
+    }
+}
@@ -0,0 +1,116 @@
+package org.gsobko.integration.mail;
+
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import jakarta.mail.PasswordAuthentication;
+import jakarta.mail.Session;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.eclipse.angus.mail.imap.IMAPStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import static com.icegreen.greenmail.util.GreenMailUtil.createTextEmail;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class ImapIdleWatcherTest {
+
+    private static final Pattern IDLE_COMMAND = Pattern.compile("(?m)^[A-Z]+\\d+ IDLE");
+
+    GreenMail greenMail = new GreenMail(ServerSetup.IMAPS.dynamicPort());
+    GreenMailUser user;
+    ByteArrayOutputStream commandLog = new ByteArrayOutputStream();
+    AtomicInteger newMailNotifications = new AtomicInteger();
+    AtomicInteger fallbacks = new AtomicInteger();
+    ImapIdleWatcher watcher;
+
+    @BeforeEach
+    void setUp() {
+        user = greenMail.setUser("aaa@bbb", "aaa@bbb", "pass");
+        greenMail.start();
+    }
+
+    @Test
+    void should_notify_on_start_and_when_new_mail_arrives() {
+        // given
+        watcher = watcherWithReissueInterval(Duration.ofMinutes(4));
+        watcher.start();
+        await().atMost(2, SECONDS).untilAsserted(() -> assertThat(idleCommandsSent()).isEqualTo(1));
+        assertThat(newMailNotifications).hasValue(1);
+
+        // when
+        user.deliver(createTextEmail("aaa@bbb", "ccc@ddd", "subj", "Hello", greenMail.getImaps().getServerSetup()));
+
+        // then
+        await().atMost(1, SECONDS).untilAsserted(() -> assertThat(newMailNotifications).hasValue(2));
+    }
+
+    @Test
+    void should_re_issue_idle_and_keep_watching() {
+        // given
+        watcher = watcherWithReissueInterval(Duration.ofMillis(200));
+
+        // when
+        watcher.start();
+
+        // then
+        await().atMost(3, SECONDS).untilAsserted(() -> assertThat(idleCommandsSent()).isGreaterThanOrEqualTo(3));
+        user.deliver(createTextEmail("aaa@bbb", "ccc@ddd", "subj", "Hello", greenMail.getImaps().getServerSetup()));
+        await().atMost(1, SECONDS).untilAsserted(() -> assertThat(newMailNotifications).hasValue(2));
+        assertThat(fallbacks).hasValue(0);
+    }
+
+    @Test
+    void should_fall_back_when_server_does_not_support_idle() throws Exception {
+        // given
+        ImapConnection connection = mock(ImapConnection.class);
+        IMAPFolder folder = mock(IMAPFolder.class);
+        IMAPStore store = mock(IMAPStore.class);
+        given(connection.folder("INBOX")).willReturn(folder);
+        given(folder.getStore()).willReturn(store);
+        given(store.hasCapability(ImapIdleWatcher.IDLE_CAPABILITY)).willReturn(false);
+        watcher = new ImapIdleWatcher(connection, "INBOX", Duration.ofMinutes(4), newMailNotifications::incrementAndGet, fallbacks::incrementAndGet);
+
+        // when
+        watcher.start();
+
+        // then
+        await().atMost(1, SECONDS).untilAsserted(() -> assertThat(fallbacks).hasValue(1));
+        verify(folder, never()).idle(any(Boolean.class));
+        assertThat(newMailNotifications).hasValue(0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        watcher.close();
+        greenMail.stop();
+    }
+
+    private ImapIdleWatcher watcherWithReissueInterval(Duration reissueInterval) {
+        ImapConnection connection = new ImapConnection(() -> {
+            Session session = Session.getInstance(ImapConnection.imapsProperties("localhost", greenMail.getImaps().getPort(), true));
+            session.setDebug(true);
+            session.setDebugOut(new PrintStream(commandLog, true));
+            return session;
+        }, new PasswordAuthentication("aaa@bbb", "pass"));
+        return new ImapIdleWatcher(connection, "INBOX", reissueInterval, newMailNotifications::incrementAndGet, fallbacks::incrementAndGet);
+    }
+
+    private long idleCommandsSent() {
+        return IDLE_COMMAND.matcher(commandLog.toString()).results().count();
+    }
+}
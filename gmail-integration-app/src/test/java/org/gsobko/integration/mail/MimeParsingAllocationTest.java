@@ -0,0 +1,92 @@
+package org.gsobko.integration.mail;
+
+import com.sun.management.ThreadMXBean;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// allocation benchmark of the in-memory extractor vs the streaming parser on a large multipart message, run by `./gradlew benchmark`
+@Tag("benchmark")
+class MimeParsingAllocationTest {
+    private static final Logger logger = LoggerFactory.getLogger(MimeParsingAllocationTest.class);
+
+
+    static final int ATTACHMENT_SIZE = 8 * 1024 * 1024;
+    static final int ROUNDS = 3;
+    static Session session = Session.getInstance(new Properties());
+    static byte[] rawMessage;
+    ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @BeforeAll
+    static void createLargeMessage() throws Exception {
+        byte[] attachment = new byte[ATTACHMENT_SIZE];
+        new Random(42).nextBytes(attachment);
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("Please find the scan attached");
+        MimeBodyPart html = new MimeBodyPart();
+        html.setText("<p>Please find the scan attached</p>", "UTF-8", "html");
+        MimeBodyPart file = new MimeBodyPart();
+        file.setContent(attachment, "application/octet-stream");
+        file.setFileName("scan.bin");
+        file.setHeader("Content-Transfer-Encoding", "base64");
+        MimeBodyPart alternative = new MimeBodyPart();
+        alternative.setContent(new MimeMultipart("alternative", text, html));
+        MimeMessage message = new MimeMessage(session);
+        message.setContent(new MimeMultipart(alternative, file));
+        message.saveChanges();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        rawMessage = out.toByteArray();
+    }
+
+    @Test
+    void streaming_parser_should_allocate_a_fraction_of_in_memory_extractor() throws Exception {
+        // given
+        warmUp();
+
+        // when
+        long inMemoryBytes = allocatedBytes(() -> MimeExtractor.extractContent(new MimeMessage(session, new ByteArrayInputStream(rawMessage))));
+        long streamingBytes = allocatedBytes(() -> StreamingMimeParser.parse(new ByteArrayInputStream(rawMessage), ContentLimits.DEFAULT_MAX_TEXT_LENGTH));
+
+        // then
+        logger.info("MIME parsing of {} bytes message allocates {} bytes in memory, {} bytes streaming",
+                rawMessage.length, inMemoryBytes, streamingBytes);
+        assertThat(inMemoryBytes).isGreaterThan(rawMessage.length);
+        assertThat(streamingBytes).isLessThan(inMemoryBytes / 20);
+    }
+
+    private void warmUp() throws Exception {
+        for (int i = 0; i < ROUNDS; i++) {
+            MimeExtractor.extractContent(new MimeMessage(session, new ByteArrayInputStream(rawMessage)));
+            StreamingMimeParser.parse(new ByteArrayInputStream(rawMessage), ContentLimits.DEFAULT_MAX_TEXT_LENGTH);
+        }
+    }
+
+    private long allocatedBytes(Parsing parsing) throws Exception {
+        long threadId = Thread.currentThread().threadId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ROUNDS; i++) {
+            assertThat(parsing.parse().attachments()).singleElement()
+                    .satisfies(attachment -> assertThat(attachment.size()).isEqualTo(ATTACHMENT_SIZE));
+        }
+        return (threadBean.getThreadAllocatedBytes(threadId) - before) / ROUNDS;
+    }
+
+    interface Parsing {
+        MimeExtractor.MessageContent parse() throws Exception;
+    }
+}
@@ -0,0 +1,176 @@
+package org.gsobko.integration.mail;
+
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import org.gsobko.integration.mail.MimeExtractor.Attachment;
+import org.gsobko.integration.mail.MimeExtractor.MessageContent;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StreamingMimeParserTest {
+
+    static final int MAX_TEXT_LENGTH = 1000;
+    Session session = Session.getInstance(new Properties());
+
+    @Test
+    void should_extract_plain_text_email() throws Exception {
+        // given
+        MimeMessage message = new MimeMessage(session);
+        message.setText("Plain text body");
+
+        // when
+        MessageContent content = parse(message);
+
+        // then
+        assertThat(content.text()).contains("Plain text body");
+        assertThat(content.html()).isEmpty();
+        assertThat(content.attachments()).isEmpty();
+    }
+
+    @Test
+    void should_extract_html_email() throws Exception {
+        // given
+        MimeMessage message = new MimeMessage(session);
+        message.setText("<html><body><p>Hello, HTML!</p></body></html>", "UTF-8", "html");
+
+        // when
+        MessageContent content = parse(message);
+
+        // then
+        assertThat(content.text()).isEmpty();
+        assertThat(content.html()).contains("<html><body><p>Hello, HTML!</p></body></html>");
+    }
+
+    @Test
+    void should_extract_nested_multipart_email_with_attachment_metadata() throws Exception {
+        // given
+        MimeMultipart alternative = new MimeMultipart("alternative",
+                bodyPart(part -> part.setText("Plain text content\r\n\r\nwith lines\r\n", "UTF-8", "plain")),
+                bodyPart(part -> part.setText("<h1>\u00dcn\u00efc\u00f6d\u00e9 HTML</h1>", "UTF-8", "html")));
+        byte[] pdf = new byte[100_000];
+        MimeMessage message = new MimeMessage(session);
+        message.setContent(new MimeMultipart(
+                bodyPart(part -> part.setContent(alternative)),
+                bodyPart(part -> {
+                    part.setContent(pdf, "application/pdf");
+                    part.setFileName("report.pdf");
+                    part.setHeader("Content-Transfer-Encoding", "base64");
+                }),
+                bodyPart(part -> {
+                    part.setText("attached text");
+                    part.setFileName("notes.txt");
+                })));
+
+        // when
+        MessageContent content = parse(message);
+
+        // then
+        assertThat(content.text()).contains("Plain text content\r\n\r\nwith lines\r\n");
+        assertThat(content.html()).contains("<h1>\u00dcn\u00efc\u00f6d\u00e9 HTML</h1>");
+        assertThat(content.attachments()).containsExactly(
+                new Attachment("report.pdf", "application/pdf", pdf.length),
+                new Attachment("notes.txt", "text/plain", "attached text".length()));
+        assertThat(content).isEqualTo(MimeExtractor.extractContent(reparsed(message)));
+    }
+
+    @Test
+    void should_hand_decoded_attachment_content_to_sink() throws Exception {
+        // given
+        MimeMessage message = new MimeMessage(session);
+        message.setContent(new MimeMultipart(
+                bodyPart(part -> part.setText("Email body")),
+                bodyPart(part -> {
+                    part.setContent("pdf content".getBytes(StandardCharsets.UTF_8), "application/pdf");
+                    part.setFileName("report.pdf");
+                    part.setHeader("Content-Transfer-Encoding", "base64");
+                })));
+        List<String> stored = new ArrayList<>();
+
+        // when
+        MessageContent content = StreamingMimeParser.parse(new ByteArrayInputStream(bytesOf(message)), MAX_TEXT_LENGTH, attachment -> {
+            stored.add(new String(attachment.readAllBytes(), StandardCharsets.UTF_8));
+            return "sha";
+        });
+
+        // then
+        assertThat(stored).containsExactly("pdf content");
+        assertThat(content.attachments()).containsExactly(new Attachment("report.pdf", "application/pdf", 11, "sha"));
+    }
+
+    @Test
+    void should_cut_text_longer_than_limit() throws Exception {
+        // given
+        MimeMessage message = new MimeMessage(session);
+        message.setText("a".repeat(MAX_TEXT_LENGTH * 20), "UTF-8", "plain");
+
+        // when
+        MessageContent content = parse(message);
+
+        // then
+        assertThat(content.text()).contains("a".repeat(MAX_TEXT_LENGTH));
+    }
+
+    @Test
+    void should_keep_lines_longer_than_read_buffer() throws Exception {
+        // given
+        String longLine = "b".repeat(20_000);
+        MimeMessage message = new MimeMessage(session);
+        message.setContent(new MimeMultipart(
+                bodyPart(part -> {
+                    part.setText(longLine + "\r\n" + longLine, "UTF-8", "html");
+                    part.setHeader("Content-Transfer-Encoding", "8bit");
+                })));
+
+        // when
+        MessageContent content = StreamingMimeParser.parse(new ByteArrayInputStream(bytesOf(message)), Integer.MAX_VALUE);
+
+        // then
+        assertThat(content.html()).contains(longLine + "\r\n" + longLine);
+    }
+
+    @Test
+    void should_handle_unsupported_mime_type() throws Exception {
+        // given
+        MimeMessage message = new MimeMessage(session);
+        message.setContent(new byte[]{1, 2, 3}, "application/octet-stream");
+
+        // when
+        MessageContent content = parse(message);
+
+        // then
+        assertThat(content.text()).isEmpty();
+        assertThat(content.html()).isEmpty();
+        assertThat(content.attachments()).isEmpty();
+    }
+
+    private MessageContent parse(MimeMessage message) throws Exception {
+        return StreamingMimeParser.parse(new ByteArrayInputStream(bytesOf(message)), MAX_TEXT_LENGTH);
+    }
+
+    private MimeMessage reparsed(MimeMessage message) throws Exception {
+        return new MimeMessage(session, new ByteArrayInputStream(bytesOf(message)));
+    }
+
+    private static byte[] bytesOf(MimeMessage message) throws Exception {
+        message.saveChanges();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static MimeBodyPart bodyPart(MimeExtractorTest.MimeSetter setter) throws Exception {
+        MimeBodyPart part = new MimeBodyPart();
+        setter.setOn(part);
+        return part;
+    }
+}
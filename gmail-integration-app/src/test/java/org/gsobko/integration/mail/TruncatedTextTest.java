@@ -0,0 +1,60 @@
+package org.gsobko.integration.mail;
+
+import org.eclipse.angus.mail.imap.protocol.BODYSTRUCTURE;
+import org.eclipse.angus.mail.imap.protocol.FetchResponse;
+import org.eclipse.angus.mail.imap.protocol.IMAPResponse;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TruncatedTextTest {
+
+    @Test
+    void should_find_plain_text_part_in_nested_multipart() throws Exception {
+        // given
+        BODYSTRUCTURE structure = bodyStructure("(((\"text\" \"html\" (\"charset\" \"utf-8\") NIL NIL \"7bit\" 10 1 NIL NIL NIL)"
+                + "(\"text\" \"plain\" (\"charset\" \"iso-8859-1\") NIL NIL \"quoted-printable\" 10 1 NIL NIL NIL) \"alternative\")"
+                + "(\"application\" \"pdf\" (\"name\" \"a.pdf\") NIL NIL \"base64\" 100 NIL (\"attachment\" (\"filename\" \"a.pdf\")) NIL) \"mixed\")");
+
+        // expect
+        assertThat(TruncatedText.firstTextPart(structure))
+                .contains(new TruncatedText.TextPart("1.2", false, "quoted-printable", "iso-8859-1"));
+    }
+
+    @Test
+    void should_fall_back_to_html_and_skip_text_attachments() throws Exception {
+        // given
+        BODYSTRUCTURE structure = bodyStructure("((\"text\" \"plain\" NIL NIL NIL \"7bit\" 10 1 NIL (\"attachment\" (\"filename\" \"notes.txt\")) NIL)"
+                + "(\"text\" \"html\" NIL NIL NIL \"7bit\" 10 1 NIL NIL NIL) \"mixed\")");
+
+        // expect
+        assertThat(TruncatedText.firstTextPart(structure)).contains(new TruncatedText.TextPart("2", true, "7bit", null));
+    }
+
+    @Test
+    void should_decode_only_whole_lines_of_cut_base64_text() throws Exception {
+        // given
+        TruncatedText.TextPart part = new TruncatedText.TextPart("TEXT", false, "base64", "utf-8");
+        byte[] cut = "SGVsbG8gd29y\r\nbGQhIFRoaXMg\r\naXMg".getBytes(StandardCharsets.US_ASCII);
+
+        // expect
+        assertThat(TruncatedText.decode(part, cut, true)).isEqualTo("Hello world! This ");
+    }
+
+    @Test
+    void should_drop_cut_quoted_printable_escape() throws Exception {
+        // given
+        TruncatedText.TextPart part = new TruncatedText.TextPart("1", false, "quoted-printable", "iso-8859-1");
+        byte[] cut = "Gr=FC=DFe\r\nSch=F".getBytes(StandardCharsets.US_ASCII);
+
+        // expect
+        assertThat(TruncatedText.decode(part, cut, true)).isEqualTo("Gr\u00fc\u00dfe\r\n");
+    }
+
+    private static BODYSTRUCTURE bodyStructure(String structure) throws Exception {
+        FetchResponse response = new FetchResponse(new IMAPResponse("* 1 FETCH (BODYSTRUCTURE " + structure + ")"), null);
+        return response.getItem(BODYSTRUCTURE.class);
+    }
+}
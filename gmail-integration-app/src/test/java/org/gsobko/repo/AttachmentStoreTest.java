@@ -0,0 +1,63 @@
+package org.gsobko.repo;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AttachmentStoreTest {
+
+    // sha256("pdf content")
+    static final String PDF_SHA256 = "9cca06ce6b093aacad4657a5198cfceb531e04c69d602b30d1d05749173eae5f";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void should_store_content_under_its_sha256() throws Exception {
+        // given
+        AttachmentStore store = new AttachmentStore(dir);
+
+        // when
+        String sha256 = store.store(new ByteArrayInputStream("pdf content".getBytes(StandardCharsets.UTF_8)));
+
+        // then
+        assertThat(sha256).isEqualTo(PDF_SHA256);
+        assertThat(store.path(sha256)).isEqualTo(dir.resolve("9c").resolve("ca").resolve(PDF_SHA256));
+        assertThat(store.path(sha256)).hasContent("pdf content");
+    }
+
+    @Test
+    void should_store_same_content_once() throws Exception {
+        // given
+        AttachmentStore store = new AttachmentStore(dir);
+
+        // when
+        String first = store.store(new ByteArrayInputStream("same".getBytes(StandardCharsets.UTF_8)));
+        String second = store.store(new ByteArrayInputStream("same".getBytes(StandardCharsets.UTF_8)));
+        String other = store.store(new ByteArrayInputStream("other".getBytes(StandardCharsets.UTF_8)));
+
+        // then
+        assertThat(second).isEqualTo(first);
+        assertThat(other).isNotEqualTo(first);
+        try (Stream<Path> files = Files.walk(dir)) {
+            assertThat(files.filter(Files::isRegularFile)).hasSize(2);
+        }
+    }
+
+    @Test
+    void should_not_resolve_anything_but_a_hash() {
+        // given
+        AttachmentStore store = new AttachmentStore(dir);
+
+        // when then
+        assertThatThrownBy(() -> store.path("../../etc/passwd")).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,60 @@
+package org.gsobko.repo;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.flywaydb.core.Flyway;
+import org.gsobko.model.BackfillState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BackfillStateRepoTest {
+
+    HikariDataSource dataSource;
+    BackfillStateRepo backfillStateRepo;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = createH2DataSource();
+        Flyway.configure()
+                .dataSource(dataSource)
+                .locations("classpath:/migrations")
+                .baselineOnMigrate(true)
+                .load()
+                .migrate();
+
+        backfillStateRepo = new BackfillStateRepo(dataSource);
+    }
+
+    @Test
+    void should_find_nothing_when_backfill_never_started() {
+        // expect
+        assertThat(backfillStateRepo.find("user@gmail.com", "INBOX")).isEmpty();
+    }
+
+    @Test
+    void should_find_last_saved_low_water_mark() {
+        // given
+        BackfillState state = new BackfillState("user@gmail.com", "INBOX", 42, 500);
+        backfillStateRepo.save(state);
+
+        // when
+        backfillStateRepo.save(state.withLowWaterUid(450));
+
+        // then
+        assertThat(backfillStateRepo.find("user@gmail.com", "INBOX")).contains(state.withLowWaterUid(450));
+        assertThat(backfillStateRepo.find("user@gmail.com", "[Gmail]/Sent Mail")).isEmpty();
+    }
+
+    private HikariDataSource createH2DataSource() {
+        HikariDataSource dataSource = new HikariDataSource();
+        String randomId = UUID.randomUUID().toString();
+        dataSource.setJdbcUrl("jdbc:h2:mem:testdb%s;DB_CLOSE_DELAY=-1".formatted(randomId));
+        dataSource.setUsername("sa");
+        dataSource.setPassword("");
+        dataSource.setMaximumPoolSize(2);
+        return dataSource;
+    }
+}
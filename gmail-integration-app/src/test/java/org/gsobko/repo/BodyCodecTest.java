@@ -0,0 +1,92 @@
+package org.gsobko.repo;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BodyCodecTest {
+
+    String HTML = "<table role=\"presentation\" width=\"100%\" cellpadding=\"0\" cellspacing=\"0\" border=\"0\">"
+            + "<tr><td style=\"padding:20px 30px 20px 30px;\"><p style=\"margin:0 0 12px 0;\">Your order has been shipped.</p></td></tr></table>";
+
+    @Test
+    void should_decode_encoded_bodies_as_they_were() {
+        // given
+        String longText = "\u041f\u0440\u0438\u0432\u0435\u0442, \u043c\u0438\u0440! \ud83d\udc4b ".repeat(1000);
+
+        // expect
+        assertThat(BodyCodec.decode(BodyCodec.encode(HTML))).isEqualTo(HTML);
+        assertThat(BodyCodec.decode(BodyCodec.encode(longText))).isEqualTo(longText);
+        assertThat(BodyCodec.decode(BodyCodec.encode("Hi"))).isEqualTo("Hi");
+        assertThat(BodyCodec.decode(BodyCodec.encode(""))).isEmpty();
+        assertThat(BodyCodec.encode(null)).isNull();
+        assertThat(BodyCodec.decode(null)).isNull();
+    }
+
+    @Test
+    void should_compress_short_html_with_dictionary_and_store_what_does_not_compress_as_it_is() {
+        // given
+        Deflater deflater = new Deflater();
+        deflater.setInput(HTML.getBytes());
+        deflater.finish();
+        int withoutDictionary = deflater.deflate(new byte[1024]);
+
+        // when
+        byte[] html = BodyCodec.encode(HTML);
+        byte[] text = BodyCodec.encode("Hi");
+
+        // then
+        assertThat(html.length).isLessThan(withoutDictionary / 2);
+        assertThat(text).containsExactly(0, 'H', 'i');
+    }
+
+    @Test
+    void should_decode_bodies_stored_with_first_dictionary() {
+        // given a body encoded when dictionary 1 was added, it does not decode once the dictionary changes
+        byte[] stored = Base64.getDecoder().decode("AQAAANB4u1ZG7lqjfm61g4UxEUmIUFzja4BDogM9rgH4rkOw");
+
+        // expect
+        assertThat(BodyCodec.decode(stored)).isEqualTo(HTML);
+    }
+
+    @Test
+    void should_encode_and_decode_on_more_threads_than_zlib_state_is_pooled_for() throws Exception {
+        // given
+        List<String> bodies = IntStream.range(0, BodyCodec.POOL_SIZE * 4).mapToObj(i -> HTML.repeat(i + 1)).toList();
+
+        // when
+        List<Future<String>> decoded;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            decoded = executor.invokeAll(bodies.stream().<Callable<String>>map(body -> () -> BodyCodec.decode(BodyCodec.encode(body))).toList());
+        }
+
+        // then
+        for (int i = 0; i < bodies.size(); i++) {
+            assertThat(decoded.get(i).get()).isEqualTo(bodies.get(i));
+        }
+    }
+
+    @Test
+    void should_fail_on_corrupt_body() {
+        // given
+        byte[] stored = Base64.getDecoder().decode("AQAAANB4u1ZG7lqjfm61g4UxEUmIUFzja4BDogM9rgH4rkOw");
+        byte[] truncated = Arrays.copyOf(stored, stored.length - 10);
+
+        // expect
+        assertThrows(IllegalStateException.class, () -> BodyCodec.decode(truncated));
+        assertThrows(IllegalStateException.class, () -> BodyCodec.decode(new byte[]{7, 1, 2}));
+        // zlib state given back after a failure is reset
+        assertThat(BodyCodec.decode(BodyCodec.encode(HTML))).isEqualTo(HTML);
+    }
+}
@@ -2,27 +2,48 @@ package org.gsobko.repo;
 
 import com.zaxxer.hikari.HikariDataSource;
 import org.flywaydb.core.Flyway;
+import org.gsobko.model.BodyState;
+import org.gsobko.model.EmailAttachment;
+import org.gsobko.model.EmailBody;
 import org.gsobko.model.EmailMessage;
+import org.gsobko.model.MailCursor;
+import org.gsobko.model.MailField;
+import org.gsobko.model.MessageIds;
+import org.gsobko.model.SyncState;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.OptionalLong;
+import java.util.SortedMap;
 import java.util.UUID;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 class MailRepoTest {
 
     Instant now = Instant.now().truncatedTo(ChronoUnit.MICROS);
+    SyncState checkpoint = new SyncState("user@gmail.com", "INBOX", 42, 0, 0);
+    HikariDataSource dataSource;
     MailRepo mailRepo;
+    SyncStateRepo syncStateRepo;
 
     @BeforeEach
     void setUp() {
-        HikariDataSource dataSource = createH2DataSource();
+        dataSource = createH2DataSource();
         Flyway flyway = Flyway.configure()
                 .dataSource(dataSource)
                 .locations("classpath:/migrations")
@@ -31,7 +52,8 @@ class MailRepoTest {
 
         flyway.migrate();
 
-        mailRepo = new MailRepo(dataSource);
+        syncStateRepo = new SyncStateRepo(dataSource);
+        mailRepo = new MailRepo(dataSource, syncStateRepo);
     }
 
     @Test
@@ -83,24 +105,157 @@ class MailRepoTest {
     }
 
     @Test
-    void should_throw_duplicate_exception_when_trying_to_insert_messages_with_same_imap_uid() {
+    void should_walk_emails_page_by_page_with_cursor_including_ones_created_at_the_same_moment() {
+        // given
+        List<EmailMessage> saved = new ArrayList<>();
+        for (int uid = 1; uid <= 7; uid++) {
+            EmailMessage email = someEmail().withImapUid(uid).withCreatedDate(uid <= 5 ? now : now.minusSeconds(uid)).build();
+            mailRepo.save(email);
+            saved.add(email);
+        }
+
+        // when
+        List<MailRepo.Page> pages = new ArrayList<>();
+        Optional<MailCursor> cursor = Optional.empty();
+        do {
+            MailRepo.Page page = mailRepo.fetchPage(Instant.EPOCH, now, cursor, 2);
+            pages.add(page);
+            cursor = page.next();
+        } while (cursor.isPresent());
+
+        // then
+        assertThat(pages).extracting(page -> page.emails().size()).containsExactly(2, 2, 2, 1);
+        assertThat(pages.stream().flatMap(page -> page.emails().stream()))
+                .containsExactlyInAnyOrderElementsOf(saved)
+                .extracting(EmailMessage::createdDate)
+                .isSortedAccordingTo(Comparator.reverseOrder());
+    }
+
+    @Test
+    void should_stream_same_pages_as_fetched_ones_down_to_end_of_page() {
+        // given
+        for (int uid = 1; uid <= 5; uid++) {
+            mailRepo.save(someEmail().withImapUid(uid).withCreatedDate(uid <= 3 ? now : now.minusSeconds(uid)).build());
+        }
+        MailRepo.Page firstPage = mailRepo.fetchPage(Instant.EPOCH, now, Optional.empty(), 3);
+        MailRepo.Page lastPage = mailRepo.fetchPage(Instant.EPOCH, now, firstPage.next(), 3);
+
+        // when
+        Optional<MailCursor> firstPageEnd = mailRepo.findPageEnd(Instant.EPOCH, now, Optional.empty(), 3);
+        Optional<MailCursor> lastPageEnd = mailRepo.findPageEnd(Instant.EPOCH, now, firstPageEnd, 3);
+        List<EmailMessage> firstStreamed = new ArrayList<>();
+        mailRepo.streamPage(Instant.EPOCH, now, Optional.empty(), firstPageEnd, firstStreamed::add);
+        List<EmailMessage> lastStreamed = new ArrayList<>();
+        mailRepo.streamPage(Instant.EPOCH, now, firstPageEnd, lastPageEnd, lastStreamed::add);
+
+        // then
+        assertThat(firstPageEnd).isEqualTo(firstPage.next());
+        assertThat(lastPageEnd).isEmpty();
+        assertThat(firstStreamed).containsExactlyElementsOf(firstPage.emails());
+        assertThat(lastStreamed).containsExactlyElementsOf(lastPage.emails());
+    }
+
+    @Test
+    void should_stream_only_requested_fields_with_snippet_saved_instead_of_bodies() {
+        // given
+        String text = "  Hello,\r\n\r\n\tworld!  " + "x".repeat(500);
+        EmailMessage saved = someEmail().withText(text).build();
+        mailRepo.save(saved);
+
+        // when
+        List<EmailMessage> summaries = new ArrayList<>();
+        mailRepo.streamPage(Instant.EPOCH, now, Optional.empty(), Optional.empty(), MailField.SUMMARY, summaries::add);
+        List<EmailMessage> subjects = new ArrayList<>();
+        mailRepo.streamPage(Instant.EPOCH, now, Optional.empty(), Optional.empty(), EnumSet.of(MailField.ID, MailField.SUBJECT), subjects::add);
+
+        // then
+        assertThat(summaries).singleElement().satisfies(summary -> {
+            assertThat(summary.snippet()).hasSize(EmailMessage.SNIPPET_LENGTH).startsWith("Hello, world! xxx");
+            assertThat(summary.text()).isNull();
+            assertThat(summary.html()).isNull();
+            assertThat(summary.subject()).isEqualTo("Subj");
+            assertThat(summary.createdDate()).isEqualTo(now);
+        });
+        assertThat(subjects).extracting(EmailMessage::id, EmailMessage::subject, EmailMessage::from, EmailMessage::createdDate)
+                .containsExactly(tuple(saved.id(), "Subj", null, null));
+    }
+
+    @Test
+    void should_compute_snippets_of_emails_saved_before_snippets_were_once() throws Exception {
+        // given
+        mailRepo.save(someEmail().withImapUid(1).withText("first").build());
+        mailRepo.save(someEmail().withImapUid(2).withText("second").build());
+        try (Connection conn = dataSource.getConnection(); Statement statement = conn.createStatement()) {
+            statement.executeUpdate("UPDATE emails SET snippet = NULL");
+        }
+
+        // when
+        int applied = migrateData();
+
+        // then
+        assertThat(applied).isEqualTo(2);
+        List<EmailMessage> snippets = new ArrayList<>();
+        mailRepo.streamPage(Instant.EPOCH, now, Optional.empty(), Optional.empty(), EnumSet.of(MailField.IMAP_UID, MailField.SNIPPET), snippets::add);
+        assertThat(snippets).extracting(EmailMessage::imapUid, EmailMessage::snippet)
+                .containsExactlyInAnyOrder(tuple(1L, "first"), tuple(2L, "second"));
+        assertThat(migrateData()).isZero();
+    }
+
+    @Test
+    void should_move_bodies_saved_inline_into_compressed_bodies() throws Exception {
+        // given
+        mailRepo.save(someEmail().withImapUid(1).build());
+        try (Connection conn = dataSource.getConnection(); Statement statement = conn.createStatement()) {
+            statement.executeUpdate("DELETE FROM email_bodies");
+            statement.executeUpdate("UPDATE emails SET body_text = 'inline text', body_html = '<p>inline html</p>'");
+        }
+
+        // when
+        migrateData();
+
+        // then
+        assertThat(mailRepo.fetchAllInInterval(Instant.EPOCH, now, 100))
+                .extracting(EmailMessage::text, EmailMessage::html)
+                .containsExactly(tuple("inline text", "<p>inline html</p>"));
+        try (Connection conn = dataSource.getConnection(); Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM emails WHERE body_text IS NOT NULL OR body_html IS NOT NULL")) {
+            rs.next();
+            assertThat(rs.getInt(1)).isZero();
+        }
+    }
+
+    // the app runs data migrations among the schema ones, set up here without them, number of migrations applied
+    private int migrateData() {
+        return Flyway.configure()
+                .dataSource(dataSource)
+                .locations("classpath:/migrations")
+                .outOfOrder(true)
+                .javaMigrations(new V013__Compute_missing_snippets(), new V014__Move_inline_bodies())
+                .load()
+                .migrate()
+                .migrationsExecuted;
+    }
+
+    @Test
+    void should_skip_message_with_same_imap_uid_without_error() {
         // given
         mailRepo.save(someEmail()
                 .withImapUid(123L)
                 .build());
 
-        // expect
-        DuplicateModelException duplicateModelException = assertThrows(DuplicateModelException.class,
-                () -> mailRepo.save(someEmail()
-                        .withImapUid(123L).build()));
-        assertThat(duplicateModelException.constraint()).isEqualTo(MailRepo.EMAILS_IMAP_UID_CONSTRAINT);
+        // when
+        MailRepo.SaveResult result = mailRepo.save(someEmail()
+                .withImapUid(123L).build());
 
+        // then
+        assertThat(result).isEqualTo(new MailRepo.SaveResult(0, 1));
+        assertThat(mailRepo.fetchAllInInterval(Instant.EPOCH, now, 100)).hasSize(1);
     }
 
     @Test
     void should_get_empty_max_imap_uid_on_empty_repo() {
         // when
-        OptionalLong maxImapUid = mailRepo.maxImapUid();
+        OptionalLong maxImapUid = mailRepo.maxImapUid("INBOX");
 
         // then
         assertThat(maxImapUid).isEmpty();
@@ -114,12 +269,472 @@ class MailRepoTest {
         mailRepo.save(someEmail().withImapUid(3).build());
 
         // when
-        OptionalLong maxImapUid = mailRepo.maxImapUid();
+        OptionalLong maxImapUid = mailRepo.maxImapUid("INBOX");
 
         // then
         assertThat(maxImapUid).hasValue(9L);
     }
 
+    @Test
+    void should_save_backfilled_emails_without_moving_checkpoint_and_find_oldest_uid() {
+        // given
+        syncStateRepo.save(checkpoint.withLastUid(10));
+        mailRepo.save(someEmail().withImapUid(10).build(), checkpoint.withLastUid(10));
+
+        // when
+        mailRepo.save(someEmail().withImapUid(4).build(), checkpoint.uidValidity());
+        mailRepo.save(someEmail().withImapUid(7).build(), checkpoint.uidValidity());
+
+        // then
+        assertThat(mailRepo.minImapUid("INBOX", checkpoint.uidValidity())).hasValue(4L);
+        assertThat(mailRepo.minImapUid("INBOX", checkpoint.uidValidity() + 1)).isEmpty();
+        assertThat(syncStateRepo.find("user@gmail.com", "INBOX")).contains(checkpoint.withLastUid(10));
+        assertThat(mailRepo.save(someEmail().withImapUid(7).build(), checkpoint.uidValidity()).skipped()).isEqualTo(1);
+    }
+
+    @Test
+    void should_keep_uids_of_different_folders_apart() {
+        // given
+        mailRepo.save(someEmail().withImapUid(5).build(), checkpoint.uidValidity());
+        mailRepo.save(someEmail().withImapUid(5).withFolder("[Gmail]/Sent Mail").build(), checkpoint.uidValidity());
+
+        // when
+        mailRepo.markDeleted("INBOX", checkpoint.uidValidity(), List.of(5L));
+
+        // then
+        assertThat(mailRepo.findFlags("INBOX", checkpoint.uidValidity(), 0, 10, 10)).isEmpty();
+        assertThat(mailRepo.findFlags("[Gmail]/Sent Mail", checkpoint.uidValidity(), 0, 10, 10)).containsOnlyKeys(5L);
+        assertThat(mailRepo.maxImapUid("[Gmail]/Sent Mail")).hasValue(5L);
+        assertThat(mailRepo.maxImapUid("[Gmail]/Drafts")).isEmpty();
+    }
+
+    @Test
+    void should_save_gmail_message_once_across_folders_and_find_its_thread() {
+        // given
+        EmailMessage inbox = someEmail().withImapUid(5)
+                .withGmailMessageId(1_700_000_000_000_000_001L).withGmailThreadId(1_700_000_000_000_000_001L)
+                .withLabels(List.of("\\Inbox", "Work; urgent")).build();
+        EmailMessage reply = someEmail().withImapUid(6).withSentDate(now)
+                .withGmailMessageId(1_700_000_000_000_000_002L).withGmailThreadId(1_700_000_000_000_000_001L).build();
+        mailRepo.save(inbox, checkpoint.uidValidity());
+        mailRepo.save(reply, checkpoint.uidValidity());
+
+        // when
+        MailRepo.SaveResult result = mailRepo.save(someEmail().withImapUid(90).withFolder("[Gmail]/All Mail")
+                .withGmailMessageId(1_700_000_000_000_000_001L).build(), checkpoint.uidValidity());
+
+        // then
+        assertThat(result.skipped()).isEqualTo(1);
+        assertThat(mailRepo.maxImapUid("[Gmail]/All Mail")).isEmpty();
+        assertThat(mailRepo.findKnownGmailMessageIds(List.of(1_700_000_000_000_000_001L, 1_700_000_000_000_000_003L)))
+                .containsExactly(1_700_000_000_000_000_001L);
+        assertThat(mailRepo.findByThreadId(1_700_000_000_000_000_001L)).containsExactly(inbox, reply);
+        assertThat(mailRepo.findByThreadId(1_700_000_000_000_000_002L)).isEmpty();
+    }
+
+    @Test
+    void should_save_emails_without_gmail_ids_side_by_side() {
+        // given
+        mailRepo.save(someEmail().withImapUid(5).build(), checkpoint.uidValidity());
+        mailRepo.save(someEmail().withImapUid(6).build(), checkpoint.uidValidity());
+
+        // expect
+        assertThat(mailRepo.fetchAllInInterval(Instant.EPOCH, now, 10))
+                .allSatisfy(email -> assertThat(email.gmailMessageId()).isNull())
+                .hasSize(2);
+    }
+
+    @Test
+    void should_assign_emails_saved_before_folders_were_tracked_to_given_folder() {
+        // given
+        mailRepo.save(someEmail().withImapUid(5).withFolder("").build());
+        mailRepo.save(someEmail().withImapUid(6).withFolder("[Gmail]/Sent Mail").build());
+
+        // when
+        int assigned = mailRepo.assignLegacyEmailsToFolder("INBOX");
+
+        // then
+        assertThat(assigned).isEqualTo(1);
+        assertThat(mailRepo.fetchAllInInterval(Instant.EPOCH, now, 100))
+                .extracting(EmailMessage::imapUid, EmailMessage::folder)
+                .containsExactlyInAnyOrder(tuple(5L, "INBOX"), tuple(6L, "[Gmail]/Sent Mail"));
+    }
+
+    @Test
+    void should_advance_checkpoint_together_with_saved_email() {
+        // given
+        syncStateRepo.save(checkpoint.withLastUid(10));
+
+        // when
+        mailRepo.save(someEmail().withImapUid(11).build(), checkpoint.withLastUid(11));
+
+        // then
+        assertThat(syncStateRepo.find("user@gmail.com", "INBOX")).contains(checkpoint.withLastUid(11));
+    }
+
+    @Test
+    void should_not_save_email_when_there_is_no_checkpoint_to_advance() {
+        // expect
+        assertThrows(IllegalStateException.class,
+                () -> mailRepo.save(someEmail().withImapUid(11).build(), checkpoint.withLastUid(11)));
+        assertThat(mailRepo.fetchAllInInterval(Instant.EPOCH, now, 100)).isEmpty();
+    }
+
+    @Test
+    void should_advance_checkpoint_past_duplicate_email() {
+        // given
+        syncStateRepo.save(checkpoint.withLastUid(10));
+        mailRepo.save(someEmail().withImapUid(11).build(), checkpoint.withLastUid(11));
+        syncStateRepo.save(checkpoint.withLastUid(10));
+
+        // when
+        MailRepo.SaveResult result = mailRepo.save(someEmail().withImapUid(11).build(), checkpoint.withLastUid(11));
+
+        // then
+        assertThat(result.skipped()).isEqualTo(1);
+        assertThat(syncStateRepo.find("user@gmail.com", "INBOX")).contains(checkpoint.withLastUid(11));
+    }
+
+    @Test
+    void should_allow_same_imap_uid_under_different_uid_validity() {
+        // given
+        syncStateRepo.save(checkpoint);
+        mailRepo.save(someEmail().withImapUid(5).build(), checkpoint.withLastUid(5));
+        SyncState resynced = new SyncState("user@gmail.com", "INBOX", 43, 0, 0);
+        syncStateRepo.save(resynced);
+
+        // when
+        mailRepo.save(someEmail().withImapUid(5).build(), resynced.withLastUid(5));
+
+        // then
+        assertThat(mailRepo.fetchAllInInterval(Instant.EPOCH, now, 100)).hasSize(2);
+    }
+
+    @Test
+    void should_adopt_emails_saved_before_sync_state_into_initial_checkpoint() {
+        // given
+        mailRepo.save(someEmail().withImapUid(5).build());
+        SyncState initialState = checkpoint.withLastUid(5);
+
+        // when
+        mailRepo.adoptLegacyEmails(initialState);
+
+        // then
+        assertThat(syncStateRepo.find("user@gmail.com", "INBOX")).contains(initialState);
+        assertThat(mailRepo.save(someEmail().withImapUid(5).build(), initialState).skipped()).isEqualTo(1);
+    }
+
+    @Test
+    void should_remap_emails_to_new_uids_by_message_id() {
+        // given
+        syncStateRepo.save(checkpoint);
+        mailRepo.save(someEmail().withImapUid(1).withMessageId("<a@b>").build(), checkpoint.withLastUid(1));
+        mailRepo.save(someEmail().withImapUid(2).withMessageId("<c@d>").build(), checkpoint.withLastUid(2));
+        mailRepo.save(someEmail().withImapUid(3).withMessageId("<deleted@b>").build(), checkpoint.withLastUid(3));
+
+        // when
+        OptionalLong lastRemappedUid = mailRepo.remapUids(checkpoint.withLastUid(3), 43,
+                Map.of(101L, new MessageIds("<a@b>", null), 102L, new MessageIds("<c@d>", null), 103L, new MessageIds("<never-saved@b>", null)));
+
+        // then
+        assertThat(lastRemappedUid).hasValue(102L);
+        assertThat(mailRepo.fetchAllInInterval(Instant.EPOCH, now, 100))
+                .extracting(EmailMessage::messageId, EmailMessage::imapUid)
+                .containsExactlyInAnyOrder(
+                        tuple("<a@b>", 101L),
+                        tuple("<c@d>", 102L),
+                        tuple("<deleted@b>", 3L));
+    }
+
+    @Test
+    void should_leave_emails_sharing_message_id_under_old_uid_validity_as_they_can_not_be_told_apart() {
+        // given copies of a mailing list mail
+        syncStateRepo.save(checkpoint);
+        mailRepo.save(someEmail().withImapUid(1).withMessageId("<list@b>").build(), checkpoint.withLastUid(1));
+        mailRepo.save(someEmail().withImapUid(2).withMessageId("<list@b>").build(), checkpoint.withLastUid(2));
+        mailRepo.save(someEmail().withImapUid(3).withMessageId("<a@b>").build(), checkpoint.withLastUid(3));
+        Map<Long, MessageIds> newUids = Map.of(101L, new MessageIds("<list@b>", null), 102L, new MessageIds("<list@b>", null),
+                103L, new MessageIds("<a@b>", null));
+
+        // when
+        OptionalLong lastRemappedUid = mailRepo.remapUids(checkpoint.withLastUid(3), 43, newUids);
+
+        // then
+        assertThat(lastRemappedUid).hasValue(103L);
+        assertThat(mailRepo.fetchAllInInterval(Instant.EPOCH, now, 100))
+                .extracting(EmailMessage::messageId, EmailMessage::imapUid)
+                .containsExactlyInAnyOrder(
+                        tuple("<list@b>", 1L),
+                        tuple("<list@b>", 2L),
+                        tuple("<a@b>", 103L));
+        assertThat(mailRepo.remapUids(checkpoint.withLastUid(3), 43, newUids)).hasValue(103L);
+    }
+
+    @Test
+    void should_remap_emails_sharing_message_id_by_gmail_message_id() {
+        // given
+        syncStateRepo.save(checkpoint);
+        mailRepo.save(someEmail().withImapUid(1).withMessageId("<list@b>").withGmailMessageId(11L).build(), checkpoint.withLastUid(1));
+        mailRepo.save(someEmail().withImapUid(2).withMessageId("<list@b>").withGmailMessageId(12L).build(), checkpoint.withLastUid(2));
+
+        // when
+        OptionalLong lastRemappedUid = mailRepo.remapUids(checkpoint.withLastUid(2), 43,
+                Map.of(101L, new MessageIds("<list@b>", 12L), 102L, new MessageIds("<list@b>", 11L)));
+
+        // then
+        assertThat(lastRemappedUid).hasValue(102L);
+        assertThat(mailRepo.fetchAllInInterval(Instant.EPOCH, now, 100))
+                .extracting(EmailMessage::gmailMessageId, EmailMessage::imapUid)
+                .containsExactlyInAnyOrder(tuple(11L, 102L), tuple(12L, 101L));
+    }
+
+    @Test
+    void should_find_flags_of_not_deleted_emails_in_uid_order_after_given_uid() {
+        // given
+        syncStateRepo.save(checkpoint);
+        for (long uid = 1; uid <= 5; uid++) {
+            mailRepo.save(someEmail().withImapUid(uid).withFlags(uid % 2 == 0 ? "\\Seen" : "").build(), checkpoint.withLastUid(uid));
+        }
+        mailRepo.markDeleted("INBOX", 42, List.of(3L));
+
+        // when
+        SortedMap<Long, String> flags = mailRepo.findFlags("INBOX", 42, 1, 5, 2);
+
+        // then
+        assertThat(flags).containsExactly(entry(2L, "\\Seen"), entry(4L, "\\Seen"));
+    }
+
+    @Test
+    void should_update_flags_and_mark_deleted_in_batches() {
+        // given
+        syncStateRepo.save(checkpoint);
+        for (long uid = 1; uid <= 3; uid++) {
+            mailRepo.save(someEmail().withImapUid(uid).build(), checkpoint.withLastUid(uid));
+        }
+
+        // when
+        int updated = mailRepo.updateFlags("INBOX", 42, Map.of(1L, "\\Seen", 2L, "\\Flagged \\Seen", 99L, "\\Seen"));
+        int deleted = mailRepo.markDeleted("INBOX", 42, List.of(3L));
+
+        // then
+        assertThat(updated).isEqualTo(2);
+        assertThat(deleted).isEqualTo(1);
+        assertThat(mailRepo.fetchAllInInterval(Instant.EPOCH, now, 100))
+                .extracting(EmailMessage::imapUid, EmailMessage::flags, EmailMessage::deleted)
+                .containsExactlyInAnyOrder(
+                        tuple(1L, "\\Seen", false),
+                        tuple(2L, "\\Flagged \\Seen", false),
+                        tuple(3L, "", true));
+    }
+
+    @Test
+    void should_find_emails_created_since_given_date_and_changed_after_given_change_number() {
+        // given
+        syncStateRepo.save(checkpoint);
+        EmailMessage old = someEmail().withImapUid(1).withCreatedDate(now.minus(2, ChronoUnit.HOURS)).build();
+        EmailMessage recent = someEmail().withImapUid(2).build();
+        mailRepo.save(old, checkpoint.withLastUid(1));
+        mailRepo.save(recent, checkpoint.withLastUid(2));
+        long saved = mailRepo.lastChangeSeq();
+        mailRepo.updateFlags("INBOX", 42, Map.of(1L, "\\Seen", 2L, "\\Seen"));
+
+        // when
+        List<MailRepo.Change> changes = mailRepo.findChangedAfter(saved, now.minus(1, ChronoUnit.HOURS));
+
+        // then
+        assertThat(changes).extracting(MailRepo.Change::mail).containsExactly(MailCursor.of(recent));
+        assertThat(changes.getFirst().changeSeq()).isEqualTo(saved + 1).isEqualTo(mailRepo.lastChangeSeq());
+        assertThat(mailRepo.findChangedAfter(saved - 1, Instant.EPOCH)).extracting(MailRepo.Change::changeSeq)
+                .containsExactlyInAnyOrder(saved + 1, saved + 1);
+        assertThat(mailRepo.findChangedAfter(mailRepo.lastChangeSeq(), Instant.EPOCH)).isEmpty();
+    }
+
+    @Test
+    void should_find_email_by_id() {
+        // given
+        EmailMessage message = someEmail().build();
+        mailRepo.save(message);
+
+        // expect
+        assertThat(mailRepo.findById(message.id())).contains(message);
+        assertThat(mailRepo.findById(UUID.randomUUID())).isEmpty();
+    }
+
+    @Test
+    void should_find_emails_by_ids_in_given_order() {
+        // given
+        EmailMessage first = someEmail().withImapUid(1).build();
+        EmailMessage second = someEmail().withImapUid(2).withSubject("Second").build();
+        mailRepo.save(first);
+        mailRepo.save(second);
+
+        // when
+        List<EmailMessage> found = mailRepo.findByIds(List.of(second.id(), UUID.randomUUID(), first.id()), EnumSet.of(MailField.SUBJECT));
+
+        // then
+        assertThat(found).extracting(EmailMessage::subject).containsExactly("Second", "Subj");
+        assertThat(found).extracting(EmailMessage::text).containsOnlyNulls();
+        assertThat(mailRepo.findByIds(List.of(first.id()), MailField.ALL)).containsExactly(first);
+    }
+
+    @Test
+    void should_tell_change_listener_ids_of_inserted_emails_and_of_emails_with_bodies_saved() {
+        // given
+        List<UUID> changed = new ArrayList<>();
+        mailRepo.onChange(changed::addAll);
+        syncStateRepo.save(checkpoint);
+        EmailMessage headers = someEmail().withImapUid(1).withBodyState(BodyState.HEADERS).withText("").build();
+        mailRepo.save(headers, checkpoint.withLastUid(1));
+        mailRepo.save(headers, checkpoint.withLastUid(1));
+
+        // when
+        mailRepo.saveBodies("INBOX", 42, List.of(new EmailBody(1, "text", "", List.of()), new EmailBody(2, "no such mail", "", List.of())));
+
+        // then
+        assertThat(changed).containsExactly(headers.id(), headers.id());
+    }
+
+    @Test
+    void should_find_newest_headers_only_emails_and_save_their_bodies() {
+        // given
+        syncStateRepo.save(checkpoint);
+        mailRepo.save(someEmail().withImapUid(1).withBodyState(BodyState.HEADERS).withText("").build(), checkpoint.withLastUid(1));
+        mailRepo.save(someEmail().withImapUid(2).build(), checkpoint.withLastUid(2));
+        mailRepo.save(someEmail().withImapUid(3).withBodyState(BodyState.HEADERS).withText("").build(), checkpoint.withLastUid(3));
+        mailRepo.save(someEmail().withImapUid(4).withBodyState(BodyState.HEADERS).withText("").build(), checkpoint.withLastUid(4));
+        mailRepo.markDeleted("INBOX", 42, List.of(4L));
+
+        // when
+        List<Long> withoutBody = mailRepo.findUidsWithoutBody("INBOX", 42, 10);
+        int saved = mailRepo.saveBodies("INBOX", 42, List.of(
+                new EmailBody(3, "text3", "<p>html3</p>", List.of("a.pdf")),
+                new EmailBody(2, "overwritten?", "", List.of())));
+
+        // then
+        assertThat(withoutBody).containsExactly(3L, 1L);
+        assertThat(saved).isEqualTo(1);
+        assertThat(mailRepo.findUidsWithoutBody("INBOX", 42, 10)).containsExactly(1L);
+        assertThat(mailRepo.fetchAllInInterval(Instant.EPOCH, now, 100))
+                .extracting(EmailMessage::imapUid, EmailMessage::text, EmailMessage::snippet, EmailMessage::bodyState)
+                .contains(
+                        tuple(1L, "", "", BodyState.HEADERS),
+                        tuple(2L, "Text", "Text", BodyState.FULL),
+                        tuple(3L, "text3", "text3", BodyState.FULL));
+    }
+
+    @Test
+    void should_keep_truncated_emails_out_of_pending_bodies_and_replace_them_with_full_body() {
+        // given
+        syncStateRepo.save(checkpoint);
+        mailRepo.save(someEmail().withImapUid(1).withBodyState(BodyState.TRUNCATED).withText("beginning").build(), checkpoint.withLastUid(1));
+        mailRepo.save(someEmail().withImapUid(2).withBodyState(BodyState.HEADERS).withText("").build(), checkpoint.withLastUid(2));
+        mailRepo.saveBodies("INBOX", 42, List.of(new EmailBody(2, "beginning too", "", List.of(), List.of(), true)));
+
+        // when
+        List<Long> withoutBody = mailRepo.findUidsWithoutBody("INBOX", 42, 10);
+        int saved = mailRepo.saveBodies("INBOX", 42, List.of(new EmailBody(1, "beginning and the rest", "", List.of())));
+
+        // then
+        assertThat(withoutBody).isEmpty();
+        assertThat(saved).isEqualTo(1);
+        assertThat(mailRepo.fetchAllInInterval(Instant.EPOCH, now, 100))
+                .extracting(EmailMessage::imapUid, EmailMessage::text, EmailMessage::bodyState)
+                .contains(
+                        tuple(1L, "beginning and the rest", BodyState.FULL),
+                        tuple(2L, "beginning too", BodyState.TRUNCATED));
+    }
+
+    @Test
+    void should_save_stored_attachments_with_email_and_with_downloaded_body() {
+        // given
+        EmailAttachment pdf = new EmailAttachment("report.pdf", "application/pdf", 11, "a".repeat(64));
+        EmailAttachment png = new EmailAttachment("logo.png", "image/png", 20, "b".repeat(64));
+        EmailMessage full = someEmail().withImapUid(1).withStoredAttachments(List.of(pdf, png)).build();
+        EmailMessage headersOnly = someEmail().withImapUid(2).withBodyState(BodyState.HEADERS).build();
+
+        // when
+        mailRepo.save(full, 42);
+        mailRepo.save(headersOnly, 42);
+        mailRepo.saveBodies("INBOX", 42, List.of(new EmailBody(2, "text", "", List.of("logo.png"), List.of(png))));
+
+        // then
+        assertThat(mailRepo.findAttachment(full.id(), 0)).contains(pdf);
+        assertThat(mailRepo.findAttachment(full.id(), 1)).contains(png);
+        assertThat(mailRepo.findAttachment(full.id(), 2)).isEmpty();
+        assertThat(mailRepo.findAttachment(headersOnly.id(), 0)).contains(png);
+    }
+
+    @Test
+    void should_replace_saved_bodies_and_attachments_with_reprocessed_ones() {
+        // given
+        EmailAttachment pdf = new EmailAttachment("report.pdf", "application/pdf", 11, "a".repeat(64));
+        EmailAttachment png = new EmailAttachment("logo.png", "image/png", 20, "b".repeat(64));
+        EmailMessage full = someEmail().withImapUid(1).withStoredAttachments(List.of(pdf, png)).build();
+        EmailMessage truncated = someEmail().withImapUid(2).withBodyState(BodyState.TRUNCATED).withText("beginning").build();
+        mailRepo.save(full, 42);
+        mailRepo.save(truncated, 42);
+
+        // when
+        int replaced = mailRepo.replaceBodies("INBOX", 42, List.of(
+                new EmailBody(1, "text parsed again", "", List.of("logo.png"), List.of(png)),
+                new EmailBody(2, "whole text", "", List.of()),
+                new EmailBody(3, "not saved", "", List.of())));
+
+        // then
+        assertThat(replaced).isEqualTo(2);
+        assertThat(mailRepo.findById(full.id())).get()
+                .extracting(EmailMessage::text, EmailMessage::attachments, EmailMessage::bodyState)
+                .containsExactly("text parsed again", List.of("logo.png"), BodyState.FULL);
+        assertThat(mailRepo.findAttachment(full.id(), 0)).contains(png);
+        assertThat(mailRepo.findAttachment(full.id(), 1)).isEmpty();
+        assertThat(mailRepo.findById(truncated.id())).get()
+                .extracting(EmailMessage::text, EmailMessage::bodyState)
+                .containsExactly("whole text", BodyState.FULL);
+    }
+
+    @Test
+    void should_save_batch_of_emails_with_attachments_and_advance_checkpoint_once() {
+        // given
+        EmailAttachment pdf = new EmailAttachment("report.pdf", "application/pdf", 11, "a".repeat(64));
+        syncStateRepo.save(checkpoint);
+        List<EmailMessage> batch = List.of(
+                someEmail().withImapUid(1).withStoredAttachments(List.of(pdf)).build(),
+                someEmail().withImapUid(2).build(),
+                someEmail().withImapUid(3).build());
+
+        // when
+        MailRepo.SaveResult result = mailRepo.saveAll(batch, checkpoint.withLastUid(3));
+
+        // then
+        assertThat(result).isEqualTo(new MailRepo.SaveResult(3, 0));
+        assertThat(mailRepo.fetchAllInInterval(Instant.EPOCH, now, 100)).extracting(EmailMessage::imapUid)
+                .containsExactlyInAnyOrder(1L, 2L, 3L);
+        assertThat(mailRepo.findAttachment(batch.getFirst().id(), 0)).contains(pdf);
+        assertThat(syncStateRepo.find("user@gmail.com", "INBOX")).contains(checkpoint.withLastUid(3));
+    }
+
+    @Test
+    void should_save_rest_of_batch_and_count_skipped_emails_when_some_are_already_saved() {
+        // given
+        EmailAttachment pdf = new EmailAttachment("report.pdf", "application/pdf", 11, "a".repeat(64));
+        syncStateRepo.save(checkpoint);
+        mailRepo.save(someEmail().withImapUid(2).build(), checkpoint.withLastUid(2));
+        EmailMessage duplicate = someEmail().withImapUid(2).withStoredAttachments(List.of(pdf)).build();
+
+        // when
+        MailRepo.SaveResult result = mailRepo.saveAll(List.of(
+                someEmail().withImapUid(1).build(),
+                duplicate,
+                someEmail().withImapUid(3).build()), checkpoint.withLastUid(3));
+
+        // then
+        assertThat(result).isEqualTo(new MailRepo.SaveResult(2, 1));
+        assertThat(mailRepo.findAttachment(duplicate.id(), 0)).isEmpty();
+        assertThat(mailRepo.fetchAllInInterval(Instant.EPOCH, now, 100)).extracting(EmailMessage::imapUid)
+                .containsExactlyInAnyOrder(1L, 2L, 3L);
+        assertThat(syncStateRepo.find("user@gmail.com", "INBOX")).contains(checkpoint.withLastUid(3));
+    }
+
     private EmailMessage.Builder someEmail() {
         return EmailMessage.builder()
                 .withId(UUID.randomUUID())
@@ -133,7 +748,8 @@ class MailRepoTest {
                 .withCc("cc1;cc2")
                 .withSubject("Subj")
                 .withSentDate(now.minus(10, ChronoUnit.MINUTES))
-                .withCreatedDate(now);
+                .withCreatedDate(now)
+                .withFolder("INBOX");
     }
 
 
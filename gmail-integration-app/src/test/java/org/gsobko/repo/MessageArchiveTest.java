@@ -0,0 +1,133 @@
+package org.gsobko.repo;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MessageArchiveTest {
+
+    static final long UID_VALIDITY = 42;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void should_read_back_archived_messages_by_uid() throws Exception {
+        // given
+        MessageArchive archive = new MessageArchive(dir);
+        append(archive, UID_VALIDITY, 2, "second message ".repeat(100));
+        append(archive, UID_VALIDITY, 1, "first message");
+        append(archive, UID_VALIDITY + 1, 1, "other uid validity");
+
+        // expect
+        assertThat(archive.read(UID_VALIDITY, 1)).hasValue(bytes("first message"));
+        assertThat(archive.read(UID_VALIDITY, 2)).hasValue(bytes("second message ".repeat(100)));
+        assertThat(archive.read(UID_VALIDITY, 3)).isEmpty();
+        assertThat(archive.uids(UID_VALIDITY)).containsExactly(1L, 2L);
+        // compressed
+        assertThat(Files.size(dir.resolve("42").resolve("000001.seg"))).isLessThan(1500);
+        archive.close();
+    }
+
+    @Test
+    void should_find_archived_messages_after_reopening_and_ignore_partially_written_index_entry() throws Exception {
+        // given
+        MessageArchive archive = new MessageArchive(dir);
+        append(archive, UID_VALIDITY, 1, "first message");
+        append(archive, UID_VALIDITY, 2, "second message");
+        archive.close();
+        Files.write(dir.resolve("42").resolve("000001.idx"), new byte[5], StandardOpenOption.APPEND);
+
+        // when
+        MessageArchive reopened = new MessageArchive(dir);
+        append(reopened, UID_VALIDITY, 3, "third message");
+
+        // then
+        assertThat(reopened.uids(UID_VALIDITY)).containsExactly(1L, 2L, 3L);
+        assertThat(reopened.read(UID_VALIDITY, 2)).hasValue(bytes("second message"));
+        assertThat(reopened.read(UID_VALIDITY, 3)).hasValue(bytes("third message"));
+        reopened.close();
+    }
+
+    @Test
+    void should_start_new_segment_once_current_one_is_full() throws Exception {
+        // given
+        MessageArchive archive = new MessageArchive(dir, 1);
+        byte[] incompressible = new byte[700_000];
+        new Random(1).nextBytes(incompressible);
+
+        // when
+        for (long uid = 1; uid <= 3; uid++) {
+            try (OutputStream out = archive.append(UID_VALIDITY, uid)) {
+                out.write(incompressible);
+            }
+        }
+
+        // then
+        try (Stream<Path> files = Files.list(dir.resolve("42"))) {
+            assertThat(files.map(file -> file.getFileName().toString()))
+                    .containsExactlyInAnyOrder("000001.seg", "000001.idx", "000002.seg", "000002.idx", "000003.seg", "000003.idx");
+        }
+        assertThat(archive.read(UID_VALIDITY, 2)).hasValue(incompressible);
+        archive.close();
+    }
+
+    @Test
+    void should_return_message_archived_last_and_drop_unclosed_ones() throws Exception {
+        // given
+        MessageArchive archive = new MessageArchive(dir);
+        append(archive, UID_VALIDITY, 1, "beginning of the message");
+        append(archive, UID_VALIDITY, 1, "whole message");
+
+        // when download failed half way
+        archive.append(UID_VALIDITY, 2).write(bytes("half of the mess"));
+
+        // then
+        assertThat(archive.read(UID_VALIDITY, 1)).hasValue(bytes("whole message"));
+        assertThat(archive.uids(UID_VALIDITY)).containsExactly(1L);
+        archive.close();
+    }
+
+    @Test
+    void should_archive_messages_deflated_beyond_memory_buffer_through_temporary_file_and_delete_it() throws Exception {
+        // given
+        MessageArchive archive = new MessageArchive(dir);
+        byte[] incompressible = new byte[MessageArchive.MAX_BUFFERED_BYTES * 2];
+        new Random(1).nextBytes(incompressible);
+
+        // when
+        try (OutputStream out = archive.append(UID_VALIDITY, 1)) {
+            out.write(incompressible);
+        }
+        MessageArchive.ArchivedMessage aborted = archive.append(UID_VALIDITY, 2);
+        aborted.write(incompressible);
+        aborted.abort();
+
+        // then
+        assertThat(archive.read(UID_VALIDITY, 1)).hasValue(incompressible);
+        assertThat(archive.uids(UID_VALIDITY)).containsExactly(1L);
+        try (Stream<Path> files = Files.list(dir.resolve("42"))) {
+            assertThat(files.map(file -> file.getFileName().toString())).containsExactlyInAnyOrder("000001.seg", "000001.idx");
+        }
+        archive.close();
+    }
+
+    private static void append(MessageArchive archive, long uidValidity, long uid, String message) throws Exception {
+        try (OutputStream out = archive.append(uidValidity, uid)) {
+            out.write(bytes(message));
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,137 @@
+package org.gsobko.repo;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.flywaydb.core.Flyway;
+import org.gsobko.model.SyncState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SyncStateRepoTest {
+
+    HikariDataSource dataSource;
+    SyncStateRepo syncStateRepo;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = createH2DataSource();
+        Flyway.configure()
+                .dataSource(dataSource)
+                .locations("classpath:/migrations")
+                .baselineOnMigrate(true)
+                .load()
+                .migrate();
+
+        syncStateRepo = new SyncStateRepo(dataSource);
+    }
+
+    @Test
+    void should_find_nothing_when_state_was_never_saved() {
+        // expect
+        assertThat(syncStateRepo.find("user@gmail.com", "INBOX")).isEmpty();
+    }
+
+    @Test
+    void should_find_saved_state_from_another_repo_instance() {
+        // given
+        SyncState state = new SyncState("user@gmail.com", "INBOX", 42, 10, 100);
+        syncStateRepo.save(state);
+
+        // when
+        SyncStateRepo restartedRepo = new SyncStateRepo(dataSource);
+
+        // then
+        assertThat(restartedRepo.find("user@gmail.com", "INBOX")).contains(state);
+        assertThat(restartedRepo.find("user@gmail.com", "[Gmail]/Sent Mail")).isEmpty();
+    }
+
+    @Test
+    void should_overwrite_state_on_save() {
+        // given
+        syncStateRepo.save(new SyncState("user@gmail.com", "INBOX", 42, 10, 100));
+        SyncState resynced = new SyncState("user@gmail.com", "INBOX", 43, 2, 5);
+
+        // when
+        syncStateRepo.save(resynced);
+
+        // then
+        assertThat(new SyncStateRepo(dataSource).find("user@gmail.com", "INBOX")).contains(resynced);
+    }
+
+    @Test
+    void should_resync_only_from_previous_uid_validity_and_reload_what_another_node_saved() {
+        // given two nodes with the same state cached
+        SyncState previous = new SyncState("user@gmail.com", "INBOX", 42, 10, 100);
+        syncStateRepo.save(previous);
+        SyncStateRepo otherNode = new SyncStateRepo(dataSource);
+        otherNode.find("user@gmail.com", "INBOX");
+        SyncState resynced = new SyncState("user@gmail.com", "INBOX", 43, 8, 5);
+
+        // when
+        boolean first = syncStateRepo.resync(previous, resynced);
+        boolean second = otherNode.resync(previous, new SyncState("user@gmail.com", "INBOX", 43, 0, 5));
+
+        // then
+        assertThat(first).isTrue();
+        assertThat(second).isFalse();
+        assertThat(otherNode.find("user@gmail.com", "INBOX")).contains(previous);
+        assertThat(otherNode.reload("user@gmail.com", "INBOX")).contains(resynced);
+        assertThat(otherNode.find("user@gmail.com", "INBOX")).contains(resynced);
+    }
+
+    @Test
+    void should_never_move_last_uid_backwards() {
+        // given
+        SyncState state = new SyncState("user@gmail.com", "INBOX", 42, 10, 100);
+        syncStateRepo.save(state);
+
+        // when
+        syncStateRepo.advance(state.withLastUid(15));
+        syncStateRepo.advance(state.withLastUid(12));
+
+        // then
+        assertThat(syncStateRepo.find("user@gmail.com", "INBOX")).contains(state.withLastUid(15));
+        assertThat(new SyncStateRepo(dataSource).find("user@gmail.com", "INBOX")).contains(state.withLastUid(15));
+    }
+
+    @Test
+    void should_not_advance_state_of_another_uid_validity() {
+        // given
+        syncStateRepo.save(new SyncState("user@gmail.com", "INBOX", 42, 10, 100));
+
+        // expect
+        assertThatThrownBy(() -> syncStateRepo.advance(new SyncState("user@gmail.com", "INBOX", 41, 20, 100)))
+                .isInstanceOf(IllegalStateException.class);
+        assertThat(new SyncStateRepo(dataSource).find("user@gmail.com", "INBOX").orElseThrow().lastUid()).isEqualTo(10);
+    }
+
+    @Test
+    void should_update_only_highest_modseq() {
+        // given
+        SyncState state = new SyncState("user@gmail.com", "INBOX", 42, 10, 100);
+        syncStateRepo.save(state);
+        syncStateRepo.advance(state.withLastUid(15));
+
+        // when
+        syncStateRepo.updateHighestModSeq(state.withHighestModSeq(120));
+
+        // then
+        SyncState expected = new SyncState("user@gmail.com", "INBOX", 42, 15, 120);
+        assertThat(syncStateRepo.find("user@gmail.com", "INBOX")).contains(expected);
+        assertThat(new SyncStateRepo(dataSource).find("user@gmail.com", "INBOX")).contains(expected);
+    }
+
+    private HikariDataSource createH2DataSource() {
+        HikariDataSource dataSource = new HikariDataSource();
+        String randomId = UUID.randomUUID().toString();
+        dataSource.setJdbcUrl("jdbc:h2:mem:testdb%s;DB_CLOSE_DELAY=-1".formatted(randomId));
+        dataSource.setUsername("sa");
+        dataSource.setPassword("");
+        dataSource.setMaximumPoolSize(2);
+        return dataSource;
+    }
+}
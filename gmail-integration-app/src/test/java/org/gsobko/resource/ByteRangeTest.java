@@ -0,0 +1,35 @@
+package org.gsobko.resource;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ByteRangeTest {
+
+    @Test
+    void should_parse_closed_open_and_suffix_ranges() {
+        assertThat(ByteRange.parse("bytes=0-99", 1000)).contains(new ByteRange(0, 99));
+        assertThat(ByteRange.parse("bytes=900-", 1000)).contains(new ByteRange(900, 999));
+        assertThat(ByteRange.parse("bytes=-100", 1000)).contains(new ByteRange(900, 999));
+        assertThat(ByteRange.parse("bytes=500-5000", 1000)).contains(new ByteRange(500, 999));
+        assertThat(ByteRange.parse("bytes=-5000", 1000)).contains(new ByteRange(0, 999));
+    }
+
+    @Test
+    void should_send_whole_content_for_missing_malformed_or_multiple_ranges() {
+        assertThat(ByteRange.parse(null, 1000)).isEmpty();
+        assertThat(ByteRange.parse("items=0-1", 1000)).isEmpty();
+        assertThat(ByteRange.parse("bytes=a-b", 1000)).isEmpty();
+        assertThat(ByteRange.parse("bytes=0-1,5-6", 1000)).isEqualTo(Optional.empty());
+    }
+
+    @Test
+    void should_refuse_ranges_outside_of_content() {
+        assertThatThrownBy(() -> ByteRange.parse("bytes=1000-", 1000)).isInstanceOf(ByteRange.RangeNotSatisfiableException.class);
+        assertThatThrownBy(() -> ByteRange.parse("bytes=20-10", 1000)).isInstanceOf(ByteRange.RangeNotSatisfiableException.class);
+        assertThatThrownBy(() -> ByteRange.parse("bytes=-0", 1000)).isInstanceOf(ByteRange.RangeNotSatisfiableException.class);
+    }
+}
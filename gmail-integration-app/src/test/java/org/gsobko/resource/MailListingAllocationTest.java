@@ -0,0 +1,164 @@
+package org.gsobko.resource;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.sun.management.ThreadMXBean;
+import com.zaxxer.hikari.HikariDataSource;
+import org.flywaydb.core.Flyway;
+import org.gsobko.model.EmailMessage;
+import org.gsobko.model.MailCursor;
+import org.gsobko.repo.MailRepo;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// allocation and time to first byte of /mails serialized from a list of the whole page vs streamed row by row,
+// run by `./gradlew benchmark`
+@Tag("benchmark")
+class MailListingAllocationTest {
+    private static final Logger logger = LoggerFactory.getLogger(MailListingAllocationTest.class);
+
+    static final int MAILS = 500;
+    static final int HTML_SIZE = 100 * 1024;
+    static final int ROUNDS = 3;
+    static final Instant NOW = Instant.now();
+    static HikariDataSource dataSource;
+    static MailRepo repo;
+    ObjectMapper objectMapper = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+    ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @BeforeAll
+    static void saveHtmlHeavyMails() {
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl("jdbc:h2:mem:listing%s;DB_CLOSE_DELAY=-1".formatted(UUID.randomUUID()));
+        Flyway.configure().dataSource(dataSource).locations("classpath:/migrations").load().migrate();
+        repo = new MailRepo(dataSource);
+        String html = "<p>" + "Quarterly report attached. ".repeat(HTML_SIZE / 27) + "</p>";
+        for (int uid = 1; uid <= MAILS; uid++) {
+            repo.save(EmailMessage.builder()
+                    .withId(UUID.randomUUID())
+                    .withImapUid(uid)
+                    .withSubject("Report " + uid)
+                    .withText("Quarterly report attached.")
+                    .withHtml(html)
+                    .withSentDate(NOW)
+                    .withCreatedDate(NOW.minusSeconds(uid))
+                    .withFolder("INBOX")
+                    .build());
+        }
+    }
+
+    @AfterAll
+    static void tearDown() {
+        dataSource.close();
+    }
+
+    @Test
+    void streaming_should_allocate_a_fraction_of_serializing_whole_page_and_send_first_byte_sooner() throws Exception {
+        // given
+        warmUp();
+
+        // when
+        Listing whole = measure(this::writeWholePage);
+        Listing streamed = measure(this::streamPage);
+
+        // then
+        logger.info("Listing {} mails of {} bytes html allocates {} bytes, first byte after {}ms as a list; "
+                        + "{} bytes, first byte after {}ms streamed",
+                MAILS, HTML_SIZE, whole.allocatedBytes(), whole.firstByteMillis(), streamed.allocatedBytes(), streamed.firstByteMillis());
+        assertThat(whole.bytesWritten()).isEqualTo(streamed.bytesWritten());
+        // bodies are inflated from email_bodies into a string of their own, streaming saves the list and the serialized page
+        assertThat(streamed.allocatedBytes()).isLessThan(whole.allocatedBytes() / 4);
+    }
+
+    // the way /mails was served: page read into a list, then serialized as a whole before a byte is sent
+    private void writeWholePage(OutputStream out) throws IOException {
+        List<EmailMessage> emails = repo.fetchPage(Instant.EPOCH, NOW, Optional.empty(), MAILS).emails();
+        out.write(objectMapper.writeValueAsString(emails).getBytes());
+    }
+
+    private void streamPage(OutputStream out) throws IOException {
+        Optional<MailCursor> next = repo.findPageEnd(Instant.EPOCH, NOW, Optional.empty(), MAILS);
+        try (JsonGenerator json = objectMapper.createGenerator(out)) {
+            json.writeStartArray();
+            repo.streamPage(Instant.EPOCH, NOW, Optional.empty(), next, email -> {
+                try {
+                    json.writeObject(email);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            json.writeEndArray();
+        }
+    }
+
+    private void warmUp() throws Exception {
+        for (int i = 0; i < ROUNDS; i++) {
+            writeWholePage(OutputStream.nullOutputStream());
+            streamPage(OutputStream.nullOutputStream());
+        }
+    }
+
+    private Listing measure(Writing writing) throws Exception {
+        long threadId = Thread.currentThread().threadId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        long firstByteNanos = 0;
+        long written = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            FirstByteOutputStream out = new FirstByteOutputStream(System.nanoTime());
+            writing.write(out);
+            firstByteNanos += out.firstByteNanos;
+            written = out.written;
+        }
+        return new Listing((threadBean.getThreadAllocatedBytes(threadId) - before) / ROUNDS, firstByteNanos / ROUNDS / 1_000_000, written);
+    }
+
+    record Listing(long allocatedBytes, long firstByteMillis, long bytesWritten) {
+    }
+
+    interface Writing {
+        void write(OutputStream out) throws IOException;
+    }
+
+    // discards the response, remembering when its first byte came
+    private static final class FirstByteOutputStream extends OutputStream {
+        private final long startNanos;
+        private long firstByteNanos;
+        private long written;
+
+        private FirstByteOutputStream(long startNanos) {
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (written == 0 && len > 0) {
+                firstByteNanos = System.nanoTime() - startNanos;
+            }
+            written += len;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package org.gsobko.resource;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.mail.MessagingException;
 import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeMessage;
@@ -15,6 +17,7 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse;
 import java.time.Instant;
+import java.util.UUID;
 
 import static com.icegreen.greenmail.util.GreenMailUtil.createTextEmail;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -52,9 +55,17 @@ class MailResourceTest extends FunctionalTestBase {
                               "to": "aaa@bbb",
                               "cc": "",
                               "subject": "Subj1",
+                              "snippet": "Body test",
                               "text": "Body test",
                               "html": "",
-                              "attachments": []
+                              "attachments": [],
+                              "flags": "",
+                              "deleted": false,
+                              "bodyState": "FULL",
+                              "folder": "INBOX",
+                              "gmailMessageId": null,
+                              "gmailThreadId": null,
+                              "labels": []
                             }]
                             """);
             assertThatJson(response.body()).inPath("[0].messageId").isPresent();
@@ -65,6 +76,103 @@ class MailResourceTest extends FunctionalTestBase {
     }
 
 
+    @Test
+    void should_return_cursor_of_next_page_until_last_page() throws Exception {
+        // given
+        for (int i = 1; i <= 3; i++) {
+            user.deliver(createTextEmail("aaa@bbb", EMAIL, "Subj" + i, "Body test", greenMail.getImaps().getServerSetup()));
+        }
+        Instant from = Instant.now().minusSeconds(100);
+        await().atMost(3, SECONDS).until(
+                () -> new ObjectMapper().readTree(get(URI.create(baseUrl + "/mails?start=%s&end=%s".formatted(from, Instant.now()))).body()).size(),
+                size -> size == 3);
+        Instant to = Instant.now();
+
+        // when
+        HttpResponse<String> first = get(URI.create(baseUrl + "/mails?start=%s&end=%s&limit=2".formatted(from, to)));
+        String cursor = first.headers().firstValue(MailResource.NEXT_CURSOR_HEADER).orElseThrow();
+        HttpResponse<String> second = get(URI.create(baseUrl + "/mails?start=%s&end=%s&limit=2&cursor=%s".formatted(from, to, cursor)));
+
+        // then
+        assertThatJson(first.body()).isArray().hasSize(2);
+        assertThatJson(second.body()).isArray().hasSize(1);
+        assertThat(second.headers().firstValue(MailResource.NEXT_CURSOR_HEADER)).isEmpty();
+    }
+
+    @Test
+    void should_return_summaries_without_bodies_or_just_requested_fields() throws Exception {
+        // given
+        user.deliver(createTextEmail("aaa@bbb", EMAIL, "Subj1", "Body test", greenMail.getImaps().getServerSetup()));
+        Instant from = Instant.now().minusSeconds(100);
+        await().atMost(3, SECONDS).until(
+                () -> new ObjectMapper().readTree(get(URI.create(baseUrl + "/mails?start=%s&end=%s".formatted(from, Instant.now()))).body()).size(),
+                size -> size == 1);
+        Instant to = Instant.now();
+
+        // when
+        HttpResponse<String> summary = get(URI.create(baseUrl + "/mails?start=%s&end=%s&view=summary".formatted(from, to)));
+        HttpResponse<String> fields = get(URI.create(baseUrl + "/mails?start=%s&end=%s&fields=subject,from".formatted(from, to)));
+
+        // then
+        assertThatJson(summary.body()).inPath("[0]").isObject()
+                .containsEntry("subject", "Subj1")
+                .containsEntry("snippet", "Body test")
+                .containsKeys("id", "createdDate", "attachments")
+                .doesNotContainKeys("text", "html");
+        assertThatJson(fields.body()).isEqualTo("""
+                [{"from": "aaa@bbb", "subject": "Subj1"}]
+                """);
+    }
+
+    @Test
+    void should_return_400_bad_request_if_fields_are_unknown_or_combined_with_view() throws Exception {
+        // when
+        HttpResponse<String> unknown = get(URI.create(baseUrl + "/mails?start=%s&end=%s&fields=subject,body".formatted(Instant.now(), Instant.now())));
+        HttpResponse<String> combined = get(URI.create(baseUrl + "/mails?start=%s&end=%s&fields=subject&view=summary".formatted(Instant.now(), Instant.now())));
+
+        //then
+        assertThat(unknown.statusCode()).isEqualTo(400);
+        assertThat(combined.statusCode()).isEqualTo(400);
+    }
+
+    @Test
+    void should_return_400_bad_request_if_cursor_is_malformed() throws Exception {
+        // when
+        HttpResponse<String> response = get(URI.create(baseUrl + "/mails?start=%s&end=%s&cursor=bm90LWEtY3Vyc29y".formatted(Instant.now(), Instant.now())));
+
+        //then
+        assertThat(response.statusCode()).isEqualTo(400);
+    }
+
+    @Test
+    void should_return_single_email_by_id() throws Exception {
+        // given
+        user.deliver(createTextEmail("aaa@bbb", EMAIL, "Subj1", "Body test", greenMail.getImaps().getServerSetup()));
+        JsonNode mails = await().atMost(3, SECONDS).until(() -> {
+            Instant from = Instant.now().minusSeconds(100);
+            HttpResponse<String> response = get(URI.create(baseUrl + "/mails?start=%s&end=%s".formatted(from, Instant.now())));
+            return new ObjectMapper().readTree(response.body());
+        }, json -> json.size() == 1);
+        String id = mails.get(0).get("id").asText();
+
+        // when
+        HttpResponse<String> response = get(URI.create(baseUrl + "/mails/" + id));
+
+        // then
+        assertThat(response.statusCode()).isEqualTo(200);
+        assertThatJson(response.body()).inPath("id").isEqualTo(id);
+        assertThatJson(response.body()).inPath("text").isEqualTo("Body test");
+    }
+
+    @Test
+    void should_return_404_for_unknown_email_id() throws Exception {
+        // when
+        HttpResponse<String> response = get(URI.create(baseUrl + "/mails/" + UUID.randomUUID()));
+
+        // then
+        assertThat(response.statusCode()).isEqualTo(404);
+    }
+
     @Test
     void should_post_email_to_smtp() throws URISyntaxException, IOException, InterruptedException, MessagingException {
         // given
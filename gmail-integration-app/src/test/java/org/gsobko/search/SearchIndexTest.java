@@ -0,0 +1,137 @@
+package org.gsobko.search;
+
+import org.gsobko.model.BodyState;
+import org.gsobko.model.EmailMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SearchIndexTest {
+
+    static final Instant NOW = Instant.parse("2026-03-01T10:00:00Z");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void should_find_mails_with_all_terms_best_first() {
+        // given
+        SearchIndex index = SearchIndex.open(dir);
+        UUID invoiceInSubject = add(index, mail("billing@shop.com", "Invoice 42", "Thanks for your order, the invoice is attached."));
+        UUID invoiceInText = add(index, mail("alice@example.com", "Hello", "I sent you the invoice for the quarterly report yesterday."));
+        UUID reportNotInvoice = add(index, mail("alice@example.com", "Quarterly report", "Report of the quarter, no bill yet."));
+        index.refresh();
+
+        // expect
+        assertThat(search(index, "invoice")).containsExactly(invoiceInSubject, invoiceInText);
+        assertThat(search(index, "INVOICE quarterly")).containsExactly(invoiceInText);
+        assertThat(search(index, "\"quarterly report\"")).containsExactly(reportNotInvoice, invoiceInText);
+        assertThat(search(index, "\"report quarterly\"")).isEmpty();
+        assertThat(search(index, "from:alice report")).containsExactly(reportNotInvoice, invoiceInText);
+        assertThat(search(index, "from:alice@example.com subject:quarterly")).containsExactly(reportNotInvoice);
+        assertThat(search(index, "subject:invoice from:alice")).isEmpty();
+        assertThat(search(index, "nowhere")).isEmpty();
+    }
+
+    @Test
+    void should_replace_mail_indexed_again_and_keep_index_when_reopened() throws IOException {
+        // given
+        SearchIndex index = SearchIndex.open(dir);
+        EmailMessage headers = mail("bob@example.com", "Trip", null).withBodyState(BodyState.HEADERS).build();
+        index.add(SearchDocument.of(headers));
+        index.refresh();
+        assertThat(index.headersOnlyIds(10)).containsExactly(headers.id());
+
+        // when
+        index.add(SearchDocument.of(mail("bob@example.com", "Trip", null).withId(headers.id())
+                .withHtml("<p>Tickets to <b>Lisbon</b> attached</p>").build()));
+        index.watermark(NOW);
+        index.markComplete();
+        index.refresh();
+        index.close();
+        SearchIndex reopened = SearchIndex.open(dir);
+
+        // then
+        assertThat(search(reopened, "lisbon")).containsExactly(headers.id());
+        assertThat(search(reopened, "trip")).containsExactly(headers.id());
+        assertThat(search(reopened, "p")).isEmpty();
+        assertThat(reopened.headersOnlyIds(10)).isEmpty();
+        assertThat(reopened.contains(headers.id())).isTrue();
+        assertThat(reopened.size()).isEqualTo(1);
+        assertThat(reopened.watermark()).contains(NOW);
+        assertThat(reopened.isComplete()).isTrue();
+    }
+
+    @Test
+    void should_page_through_mails_of_many_refreshes() {
+        // given a segment every refresh
+        SearchIndex index = SearchIndex.open(dir);
+        List<UUID> ids = new ArrayList<>();
+        for (int refresh = 0; refresh < 16; refresh++) {
+            for (int i = 0; i < 10; i++) {
+                ids.add(add(index, mail("alice@example.com", "Weekly digest " + refresh, "Digest number " + i)));
+            }
+            index.refresh();
+        }
+
+        // when
+        List<UUID> found = new ArrayList<>();
+        Optional<SearchCursor> cursor = Optional.empty();
+        do {
+            SearchIndex.Page page = index.search(SearchQuery.parse("digest"), cursor, 7);
+            found.addAll(page.ids());
+            cursor = page.next();
+        } while (cursor.isPresent());
+
+        // then
+        assertThat(found).containsExactlyInAnyOrderElementsOf(ids);
+    }
+
+    @Test
+    void should_drop_index_of_former_format_and_start_over() throws IOException {
+        // given
+        Files.writeString(dir.resolve("manifest.properties"), "format=1\nsegments=1:0\n");
+        Files.write(dir.resolve("000001.pst"), new byte[16]);
+
+        // when
+        SearchIndex index = SearchIndex.open(dir);
+
+        // then
+        assertThat(index.isComplete()).isFalse();
+        assertThat(index.size()).isZero();
+        try (Stream<Path> files = Files.list(dir)) {
+            assertThat(files.map(file -> file.getFileName().toString())).doesNotContain("manifest.properties", "000001.pst");
+        }
+    }
+
+    private static UUID add(SearchIndex index, EmailMessage.Builder email) {
+        EmailMessage message = email.build();
+        index.add(SearchDocument.of(message));
+        return message.id();
+    }
+
+    private static List<UUID> search(SearchIndex index, String query) {
+        return index.search(SearchQuery.parse(query), Optional.empty(), 10).ids();
+    }
+
+    private static EmailMessage.Builder mail(String from, String subject, String text) {
+        return EmailMessage.builder()
+                .withId(UUID.randomUUID())
+                .withFrom(from)
+                .withTo("me@example.com")
+                .withSubject(subject)
+                .withText(text)
+                .withCreatedDate(NOW);
+    }
+}
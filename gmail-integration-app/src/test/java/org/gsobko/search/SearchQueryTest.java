@@ -0,0 +1,43 @@
+package org.gsobko.search;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SearchQueryTest {
+
+    Set<SearchField> ANY_FIELD = EnumSet.allOf(SearchField.class);
+
+    @Test
+    void should_parse_terms_phrases_and_fields() {
+        // when
+        SearchQuery query = SearchQuery.parse("Invoice  \"Quarterly  report\" from:alice@example.com subject:\"team meeting\" http://x.org");
+
+        // then
+        assertThat(query.clauses()).containsExactly(
+                new SearchQuery.Clause(ANY_FIELD, List.of("invoice")),
+                new SearchQuery.Clause(ANY_FIELD, List.of("quarterly", "report")),
+                new SearchQuery.Clause(EnumSet.of(SearchField.FROM), List.of("alice", "example", "com")),
+                new SearchQuery.Clause(EnumSet.of(SearchField.SUBJECT), List.of("team", "meeting")),
+                new SearchQuery.Clause(ANY_FIELD, List.of("http", "x", "org")));
+    }
+
+    @Test
+    void should_reject_query_without_terms() {
+        // expect
+        assertThrows(IllegalArgumentException.class, () -> SearchQuery.parse(" \"\" -- subject: "));
+    }
+
+    @Test
+    void should_tokenize_letters_and_digits_of_any_script_lower_cased() {
+        // expect
+        assertThat(Tokenizer.tokens("Re: Q3-report \u041e\u0422\u0427\u0401\u0422 " + "x".repeat(Tokenizer.MAX_TOKEN_LENGTH + 1) + " \ud835\udc00b", 100))
+                .containsExactly("re", "q3", "report", "\u043e\u0442\u0447\u0451\u0442", "\ud835\udc00b");
+        assertThat(Tokenizer.htmlText("<style>p {color: red}</style><p>Hello&nbsp;<b>world</b></p>")).isEqualToIgnoringWhitespace("Helloworld");
+    }
+}